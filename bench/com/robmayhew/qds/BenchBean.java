@@ -0,0 +1,80 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+/**
+ * A bean of the kind QDS saves, for {@link Benchmarks}
+ */
+public class BenchBean
+{
+    private int age;
+    private String name;
+    private boolean active;
+    private double value;
+
+    public BenchBean()
+    {
+    }
+
+    public BenchBean(int age, String name, boolean active, double value)
+    {
+        this.age = age;
+        this.name = name;
+        this.active = active;
+        this.value = value;
+    }
+
+    public int getAge()
+    {
+        return age;
+    }
+
+    public void setAge(int age)
+    {
+        this.age = age;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public void setName(String name)
+    {
+        this.name = name;
+    }
+
+    public boolean isActive()
+    {
+        return active;
+    }
+
+    public void setActive(boolean active)
+    {
+        this.active = active;
+    }
+
+    public double getValue()
+    {
+        return value;
+    }
+
+    public void setValue(double value)
+    {
+        this.value = value;
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+/**
+ * <p>One measured operation of {@link Benchmarks}.</p>
+ * <p>{@link #op(int)} is called in a loop with a growing count, the value
+ * it returns is consumed so the work is not optimised away.</p>
+ */
+abstract class Benchmark
+{
+    final String name;
+
+    Benchmark(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * Called once before the warm up
+     */
+    void setUp() throws Exception
+    {
+    }
+
+    /**
+     * @param i how many times the operation has run
+     * @return anything computed, so it is used
+     */
+    abstract Object op(int i) throws Exception;
+
+    /**
+     * Called once after the measurement
+     */
+    void tearDown() throws Exception
+    {
+    }
+}
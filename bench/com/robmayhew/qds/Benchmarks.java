@@ -0,0 +1,449 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.prefs.Preferences;
+
+/**
+ * <p>Measures the saves and loads of each kind of value, parsing and
+ * writing JSON, and each value store at several sizes.</p>
+ * <p>Each benchmark is warmed up and then measured for a number of
+ * iterations of a fixed time. It reports operations a second with their
+ * spread over the iterations, and the garbage made: the bytes allocated
+ * by the benchmark thread a second and per operation, and the collections
+ * and their time while measuring.</p>
+ * <pre>
+ * ant bench -Dbench.args="-i 10 save load"
+ * java -cp build/classes:build/bench com.robmayhew.qds.Benchmarks [-w warmups]
+ *     [-i iterations] [-t millis] [-d directory] [name ...]</pre>
+ * <p>Names select the benchmarks whose names contain any of them.</p>
+ */
+public final class Benchmarks
+{
+    private static final int VALUE_SIZE = 100;
+
+    /**
+     * Keeps the results of the operations so they are not optimised away
+     */
+    static volatile int sink;
+
+    private Benchmarks()
+    {
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int warmups = 3;
+        int iterations = 5;
+        long millis = 1000;
+        File dir = new File(System.getProperty("java.io.tmpdir"), "qds-bench");
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++)
+        {
+            if ("-w".equals(args[i]))
+                warmups = Integer.parseInt(args[++i]);
+            else if ("-i".equals(args[i]))
+                iterations = Integer.parseInt(args[++i]);
+            else if ("-t".equals(args[i]))
+                millis = Long.parseLong(args[++i]);
+            else if ("-d".equals(args[i]))
+                dir = new File(args[++i]);
+            else
+                names.add(args[i]);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IllegalArgumentException("Can't make " + dir);
+        System.out.println(String.format("%-36s %14s %10s %10s %12s %6s %8s",
+                "Benchmark", "ops/s", "+-", "MB/s", "bytes/op", "gcs", "gc ms"));
+        for (Benchmark benchmark : suite(dir))
+        {
+            if (selected(benchmark.name, names))
+                run(benchmark, warmups, iterations, millis);
+        }
+    }
+
+    private static boolean selected(String name, List<String> names)
+    {
+        if (names.isEmpty())
+            return true;
+        for (String part : names)
+        {
+            if (name.contains(part))
+                return true;
+        }
+        return false;
+    }
+
+    static void run(Benchmark benchmark, int warmups, int iterations, long millis)
+            throws Exception
+    {
+        benchmark.setUp();
+        try
+        {
+            int i = 0;
+            for (int w = 0; w < warmups; w++)
+            {
+                i = iterate(benchmark, i, millis);
+            }
+            double[] rates = new double[iterations];
+            long allocated = allocatedBytes();
+            long gcs = gcCount();
+            long gcMillis = gcMillis();
+            long start = System.nanoTime();
+            long ops = 0;
+            for (int n = 0; n < iterations; n++)
+            {
+                long iterationStart = System.nanoTime();
+                int end = iterate(benchmark, i, millis);
+                rates[n] = (end - i) * 1e9 / (System.nanoTime() - iterationStart);
+                ops += end - i;
+                i = end;
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            allocated = allocatedBytes() - allocated;
+            double mean = 0;
+            for (double rate : rates)
+            {
+                mean += rate / rates.length;
+            }
+            double variance = 0;
+            for (double rate : rates)
+            {
+                variance += (rate - mean) * (rate - mean) / Math.max(1, rates.length - 1);
+            }
+            System.out.println(String.format("%-36s %14.1f %10.1f %10.1f %12.1f %6d %8d",
+                    benchmark.name, mean, Math.sqrt(variance),
+                    allocated < 0 ? Double.NaN : allocated / seconds / (1024 * 1024),
+                    allocated < 0 ? Double.NaN : (double) allocated / Math.max(1, ops),
+                    gcCount() - gcs, gcMillis() - gcMillis));
+        } finally
+        {
+            benchmark.tearDown();
+        }
+    }
+
+    /**
+     * Run an operation for a while
+     *
+     * @return the count after the last operation
+     */
+    private static int iterate(Benchmark benchmark, int i, long millis) throws Exception
+    {
+        long end = System.nanoTime() + millis * 1000000;
+        int hash = 0;
+        do
+        {
+            Object result = benchmark.op(i++);
+            hash += result == null ? 0 : result.hashCode();
+        } while (System.nanoTime() < end);
+        sink += hash;
+        return i;
+    }
+
+    /**
+     * @return the bytes allocated by the current thread, -1 if the JVM does
+     *         not count them
+     */
+    private static long allocatedBytes()
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        return ((com.sun.management.ThreadMXBean) threads)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static long gcCount()
+    {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis()
+    {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    /**
+     * @return every benchmark, keeping their files in a directory
+     */
+    static List<Benchmark> suite(File dir)
+    {
+        List<Benchmark> suite = new ArrayList<Benchmark>();
+        Object[][] values = {
+                {"int", 42},
+                {"String", "a string of some length to save"},
+                {"bean", new BenchBean(42, "Ann", true, 1.5)},
+                {"list 10", numbers(10)},
+                {"list 1k", numbers(1000)},
+                {"list 100k", numbers(100000)},
+                {"bean list 1k", beans(1000)}};
+        for (Object[] value : values)
+        {
+            suite.add(save(dir, (String) value[0], value[1]));
+            suite.add(load(dir, (String) value[0], value[1]));
+        }
+        suite.add(parse("bean", new BenchBean(42, "Ann", true, 1.5)));
+        suite.add(parse("bean list 1k", beans(1000)));
+        suite.add(write("bean", new BenchBean(42, "Ann", true, 1.5)));
+        suite.add(write("bean list 1k", beans(1000)));
+        suite.add(writer());
+        for (int size : new int[]{1000, 10000, 100000})
+        {
+            suite.add(valueStore("file", new File(dir, "file" + size + ".qds").getPath(), size, false));
+            suite.add(valueStore("file", new File(dir, "file" + size + ".qds").getPath(), size, true));
+        }
+        for (int size : new int[]{1000, 10000})
+        {
+            suite.add(valueStore("preferences", "qds-bench-" + size, size, false));
+            suite.add(valueStore("preferences", "qds-bench-" + size, size, true));
+        }
+        return suite;
+    }
+
+    private static List<Integer> numbers(int count)
+    {
+        List<Integer> list = new ArrayList<Integer>(count);
+        for (int i = 0; i < count; i++)
+        {
+            list.add(i);
+        }
+        return list;
+    }
+
+    private static List<BenchBean> beans(int count)
+    {
+        List<BenchBean> list = new ArrayList<BenchBean>(count);
+        for (int i = 0; i < count; i++)
+        {
+            list.add(new BenchBean(i, "name" + i, i % 2 == 0, i * 1.5));
+        }
+        return list;
+    }
+
+    /**
+     * A store without syncing, so the time goes on QDS rather than the disk
+     */
+    private abstract static class StoreBenchmark extends Benchmark
+    {
+        private final File dir;
+        FileValueStore files;
+        QuickDataStore store;
+
+        StoreBenchmark(String name, File dir)
+        {
+            super(name);
+            this.dir = dir;
+        }
+
+        void setUp() throws Exception
+        {
+            delete(dir, "store");
+            files = new FileValueStore(new File(dir, "store").getPath(), Durability.NONE);
+            store = new QuickDataStore(files);
+        }
+
+        void tearDown() throws Exception
+        {
+            files.close();
+            delete(dir, "store");
+        }
+    }
+
+    private static Benchmark save(File dir, String kind, final Object value)
+    {
+        return new StoreBenchmark("save " + kind, dir)
+        {
+            Object op(int i)
+            {
+                store.save("key", value);
+                return null;
+            }
+        };
+    }
+
+    private static Benchmark load(File dir, String kind, final Object value)
+    {
+        return new StoreBenchmark("load " + kind, dir)
+        {
+            void setUp() throws Exception
+            {
+                super.setUp();
+                store.save("key", value);
+                files.checkpoint();
+            }
+
+            Object op(int i)
+            {
+                return store.load("key");
+            }
+        };
+    }
+
+    private static Benchmark parse(String kind, final Object value)
+    {
+        final String json = new QuickDataStore(new PreferencesValueStore("qds-bench"))
+                .toJson("key", value);
+        return new Benchmark("parse " + kind)
+        {
+            Object op(int i) throws Exception
+            {
+                return new QDSJSONObject(new QDSJSONTokener(json));
+            }
+        };
+    }
+
+    private static Benchmark write(String kind, final Object value)
+    {
+        final QuickDataStore store = new QuickDataStore(new PreferencesValueStore("qds-bench"));
+        return new Benchmark("write " + kind)
+        {
+            Object op(int i)
+            {
+                return store.toJson("key", value);
+            }
+        };
+    }
+
+    private static Benchmark writer()
+    {
+        return new Benchmark("QDSJSONWriter object")
+        {
+            Object op(int i) throws Exception
+            {
+                StringWriter sw = new StringWriter();
+                new QDSJSONWriter(sw).object()
+                        .key("Age").value(i)
+                        .key("Name").value("Ann")
+                        .key("Active").value(true)
+                        .key("Value").value(1.5)
+                        .endObject();
+                return sw.toString();
+            }
+        };
+    }
+
+    /**
+     * Read or overwrite keys spread over a value store of some size
+     *
+     * @param location the file path or the preferences node
+     */
+    private static Benchmark valueStore(final String kind, final String location,
+                                        final int size, final boolean write)
+    {
+        final char[] chars = new char[VALUE_SIZE];
+        Arrays.fill(chars, 'v');
+        final String value = new String(chars);
+        return new Benchmark(kind + " " + (write ? "write " : "read ") + size)
+        {
+            OrderedValueStore store;
+
+            void setUp()
+            {
+                store = open(kind, location);
+                WriteBatch batch = new WriteBatch();
+                for (int i = 0; i < size; i++)
+                {
+                    batch.put(key(i), value);
+                    if (batch.size() == 1000 || i == size - 1)
+                    {
+                        store.writeValues(batch);
+                        batch = new WriteBatch();
+                    }
+                }
+                if (store instanceof FileValueStore)
+                    ((FileValueStore) store).checkpoint();
+            }
+
+            Object op(int i)
+            {
+                // A step prime to the size visits every key in turn
+                String key = key((int) ((i * 7919L) % size));
+                if (!write)
+                    return store.loadValue(key);
+                store.writeValue(key, value);
+                return null;
+            }
+
+            void tearDown() throws Exception
+            {
+                close(store, location);
+            }
+        };
+    }
+
+    private static String key(int i)
+    {
+        return "key" + i;
+    }
+
+    private static OrderedValueStore open(String kind, String location)
+    {
+        if ("file".equals(kind))
+        {
+            File file = new File(location);
+            delete(file.getParentFile(), file.getName());
+            return new FileValueStore(location);
+        }
+        return new PreferencesValueStore(location);
+    }
+
+    private static void close(ValueStore store, String location) throws Exception
+    {
+        if (store instanceof FileValueStore)
+        {
+            ((FileValueStore) store).close();
+            File file = new File(location);
+            delete(file.getParentFile(), file.getName());
+        } else
+        {
+            Preferences.userRoot().node(location).removeNode();
+        }
+    }
+
+    /**
+     * Delete the files of a store
+     */
+    static void delete(File dir, String name)
+    {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        for (File f : files)
+        {
+            if (f.getName().startsWith(name) && !f.getName().endsWith(".lock"))
+                f.delete();
+        }
+    }
+}
@@ -0,0 +1,519 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.prefs.Preferences;
+
+/**
+ * <p>Drives a store with more and more threads, 1, 2, 4 and so on up to a
+ * limit, and prints the throughput and latencies at each count, to show
+ * how a store scales and to catch contention that stops it scaling.</p>
+ * <p>Each thread loads or saves keys at random, in a given share of loads,
+ * choosing keys in one of three ways:</p>
+ * <ul>
+ * <li><code>uniform</code>, every key equally</li>
+ * <li><code>zipfian</code>, a few keys most of the time</li>
+ * <li><code>latest</code>, saves add new keys and loads mostly choose the
+ * newest</li>
+ * </ul>
+ * <p>Every value saved names its key, thread and save, so a value that was
+ * torn or landed under the wrong key is caught when it is loaded. At the
+ * end of each count the store is closed and opened again, and each key must
+ * hold the last value some thread saved to it.</p>
+ * <pre>
+ * ant stress -Dstress.args="-n 16 -r 50 -a zipfian"
+ * java -cp build/classes:build/bench com.robmayhew.qds.Scalability
+ *     [-e file|preferences] [-s durability] [-d directory] [-n threads]
+ *     [-r read percent] [-a uniform|zipfian|latest] [-k keys]
+ *     [-v value size] [-t millis] [-x least speedup]</pre>
+ * <p>With <code>-x</code> the run fails when the most threads are less
+ * than that many times faster than one. It also fails on an error or a
+ * value that is wrong.</p>
+ */
+public final class Scalability
+{
+    private static final String KEY_PREFIX = "stress/";
+    private static final int MAX_PROBLEMS = 5;
+
+    private String engine = "file";
+    private Durability durability;
+    private File dir = new File(System.getProperty("java.io.tmpdir"), "qds-stress");
+    private int readPercent = 95;
+    private String access = "uniform";
+    private int keyCount = 10000;
+    private int valueSize = 100;
+    private long millis = 3000;
+
+    public static void main(String[] args) throws Exception
+    {
+        Scalability scalability = new Scalability();
+        int maxThreads = 2 * Runtime.getRuntime().availableProcessors();
+        double leastSpeedup = 0;
+        for (int i = 0; i < args.length; i++)
+        {
+            if ("-e".equals(args[i]))
+                scalability.engine = args[++i];
+            else if ("-s".equals(args[i]))
+                scalability.durability = Durability.valueOf(args[++i].toUpperCase());
+            else if ("-d".equals(args[i]))
+                scalability.dir = new File(args[++i]);
+            else if ("-n".equals(args[i]))
+                maxThreads = Integer.parseInt(args[++i]);
+            else if ("-r".equals(args[i]))
+                scalability.readPercent = Integer.parseInt(args[++i]);
+            else if ("-a".equals(args[i]))
+                scalability.access = args[++i];
+            else if ("-k".equals(args[i]))
+                scalability.keyCount = Integer.parseInt(args[++i]);
+            else if ("-v".equals(args[i]))
+                scalability.valueSize = Integer.parseInt(args[++i]);
+            else if ("-t".equals(args[i]))
+                scalability.millis = Long.parseLong(args[++i]);
+            else if ("-x".equals(args[i]))
+                leastSpeedup = Double.parseDouble(args[++i]);
+            else
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+        }
+        if (!"file".equals(scalability.engine) && !"preferences".equals(scalability.engine))
+            throw new IllegalArgumentException("Unknown engine " + scalability.engine);
+        scalability.distribution(new Keys(1));
+        if (!scalability.dir.isDirectory() && !scalability.dir.mkdirs())
+            throw new IllegalArgumentException("Can't make " + scalability.dir);
+
+        System.out.println(scalability.engine
+                + (scalability.durability == null ? "" : " " + scalability.durability)
+                + ", " + scalability.readPercent + "% loads, " + scalability.access
+                + " over " + scalability.keyCount + " keys, " + scalability.valueSize
+                + " characters, " + scalability.millis + "ms a step");
+        System.out.println(String.format("%7s %12s %8s %10s %8s %8s %10s %8s %8s  %s",
+                "threads", "ops/s", "speedup", "load p50", "p99", "p99.9",
+                "save p50", "p99", "p99.9", "check"));
+        boolean passed = true;
+        double single = 0;
+        Step last = null;
+        for (int threads = 1; threads <= maxThreads; threads = next(threads, maxThreads))
+        {
+            Step step = scalability.run(threads);
+            if (threads == 1)
+                single = step.opsPerSecond();
+            System.out.println(step.row(single));
+            for (String problem : step.problems)
+            {
+                System.out.println("        " + problem);
+            }
+            passed &= step.passed();
+            last = step;
+        }
+        if (last != null && leastSpeedup > 0 && last.opsPerSecond() < single * leastSpeedup)
+        {
+            System.out.println(String.format("%d threads are %.2f times faster than one, less than %.2f",
+                    last.threads, last.opsPerSecond() / single, leastSpeedup));
+            passed = false;
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * @return the next thread count, doubling but stopping at the most
+     */
+    private static int next(int threads, int maxThreads)
+    {
+        if (threads == maxThreads)
+            return maxThreads + 1;
+        return Math.min(threads * 2, maxThreads);
+    }
+
+    /**
+     * Run one step on a new store with some threads, then check the store
+     */
+    Step run(int threads) throws Exception
+    {
+        String location = "preferences".equals(engine) ? "qds-stress" : new File(dir, "store").getPath();
+        OrderedValueStore valueStore = open(location, true);
+        QuickDataStore store = new QuickDataStore(valueStore);
+        Keys keys = new Keys(keyCount);
+        WriteBatch batch = new WriteBatch();
+        for (int i = 0; i < keyCount; i++)
+        {
+            batch.put(key(i), store.toJson(key(i), value(i, 0, 0)));
+            if (batch.size() == 1000 || i == keyCount - 1)
+            {
+                valueStore.writeValues(batch);
+                batch = new WriteBatch();
+            }
+        }
+
+        Step step = new Step(threads);
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Worker> workers = new ArrayList<Worker>();
+        for (int i = 0; i < threads; i++)
+        {
+            Worker worker = new Worker(i + 1, store, keys, distribution(keys), step, ready, go);
+            workers.add(worker);
+            worker.start();
+        }
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        Thread.sleep(millis);
+        step.stop = true;
+        for (Worker worker : workers)
+        {
+            worker.join();
+        }
+        step.nanos = System.nanoTime() - start;
+        for (Worker worker : workers)
+        {
+            step.ops += worker.ops;
+        }
+
+        if (valueStore instanceof FileValueStore)
+        {
+            ((FileValueStore) valueStore).close();
+            valueStore = open(location, false);
+            store = new QuickDataStore(valueStore);
+        }
+        check(store, keys.inserted(), workers, step);
+        close(valueStore, location);
+        return step;
+    }
+
+    /**
+     * Check each key holds the last value a thread saved to it, or the
+     * first value if no thread saved to it
+     */
+    private void check(QuickDataStore store, long keys, List<Worker> workers, Step step)
+    {
+        for (long key = 0; key < keys; key++)
+        {
+            Set<String> expected = new HashSet<String>();
+            for (Worker worker : workers)
+            {
+                String value = worker.saved.get(key);
+                if (value != null)
+                    expected.add(value);
+            }
+            if (expected.isEmpty())
+                expected.add(value(key, 0, 0));
+            Object value = store.load(key(key));
+            if (!expected.contains(value))
+                step.problem("After reopening " + key(key) + " holds " + describe(value)
+                        + ", not one of " + expected.size() + " last saves");
+        }
+    }
+
+    private OrderedValueStore open(String location, boolean fresh)
+    {
+        if ("preferences".equals(engine))
+            return new PreferencesValueStore(location);
+        File file = new File(location);
+        if (fresh)
+            Benchmarks.delete(file.getParentFile(), file.getName());
+        return durability == null ? new FileValueStore(location) : new FileValueStore(location, durability);
+    }
+
+    private static void close(ValueStore store, String location) throws Exception
+    {
+        if (store instanceof FileValueStore)
+        {
+            ((FileValueStore) store).close();
+            File file = new File(location);
+            Benchmarks.delete(file.getParentFile(), file.getName());
+        } else
+        {
+            Preferences.userRoot().node(location).removeNode();
+        }
+    }
+
+    private Distribution distribution(final Keys keys)
+    {
+        if ("uniform".equals(access))
+        {
+            return new Distribution()
+            {
+                long next(Random random)
+                {
+                    return random.nextInt(keyCount);
+                }
+            };
+        }
+        final Zipfian zipfian = new Zipfian(keyCount);
+        if ("zipfian".equals(access))
+        {
+            return new Distribution()
+            {
+                long next(Random random)
+                {
+                    return zipfian.next(random);
+                }
+            };
+        }
+        if ("latest".equals(access))
+        {
+            return new Distribution()
+            {
+                long next(Random random)
+                {
+                    return Math.max(0, keys.acknowledged - 1 - zipfian.next(random));
+                }
+
+                boolean inserts()
+                {
+                    return true;
+                }
+            };
+        }
+        throw new IllegalArgumentException("Unknown key distribution " + access);
+    }
+
+    private static String key(long key)
+    {
+        return KEY_PREFIX + key;
+    }
+
+    /**
+     * @return the value a thread saves, naming the key, the thread and the
+     *         save, filled out to the value size with a letter of the save.
+     *         Thread 0 is the first value of each key.
+     */
+    private String value(long key, int thread, long save)
+    {
+        StringBuilder value = new StringBuilder();
+        value.append(key).append('/').append(thread).append('/').append(save).append('/');
+        char fill = (char) ('a' + save % 26);
+        do
+        {
+            value.append(fill);
+        } while (value.length() < valueSize);
+        return value.toString();
+    }
+
+    /**
+     * @return true if a loaded value is one some thread saved to the key
+     */
+    private boolean valid(long key, Object loaded)
+    {
+        if (!(loaded instanceof String))
+            return false;
+        String s = (String) loaded;
+        String[] parts = s.split("/", 4);
+        if (parts.length != 4)
+            return false;
+        try
+        {
+            return Long.parseLong(parts[0]) == key
+                    && s.equals(value(key, Integer.parseInt(parts[1]), Long.parseLong(parts[2])));
+        } catch (NumberFormatException e)
+        {
+            return false;
+        }
+    }
+
+    private static String describe(Object value)
+    {
+        if (value == null)
+            return "nothing";
+        String s = String.valueOf(value);
+        return s.length() > 40 ? s.substring(0, 40) + "..." : s;
+    }
+
+    /**
+     * How the threads choose keys
+     */
+    private abstract static class Distribution
+    {
+        abstract long next(Random random);
+
+        /**
+         * @return true if saves add new keys rather than replace
+         */
+        boolean inserts()
+        {
+            return false;
+        }
+    }
+
+    /**
+     * The keys of a step. New keys are numbered in turn, loads only choose
+     * keys below the first one that is not saved yet.
+     */
+    private static final class Keys
+    {
+        private final AtomicLong next;
+        private final BitSet saved = new BitSet();
+        volatile long acknowledged;
+
+        Keys(int count)
+        {
+            next = new AtomicLong(count);
+            saved.set(0, count);
+            acknowledged = count;
+        }
+
+        long insert()
+        {
+            return next.getAndIncrement();
+        }
+
+        synchronized void acknowledge(long key)
+        {
+            saved.set((int) key);
+            long first = acknowledged;
+            while (saved.get((int) first))
+            {
+                first++;
+            }
+            acknowledged = first;
+        }
+
+        long inserted()
+        {
+            return next.get();
+        }
+    }
+
+    /**
+     * The results of one thread count
+     */
+    private static final class Step
+    {
+        final int threads;
+        final LatencyHistogram loads = new LatencyHistogram();
+        final LatencyHistogram saves = new LatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+        final List<String> problems = new ArrayList<String>();
+        volatile boolean stop;
+        long ops;
+        long nanos;
+
+        Step(int threads)
+        {
+            this.threads = threads;
+        }
+
+        synchronized void problem(String problem)
+        {
+            if (problems.size() < MAX_PROBLEMS)
+                problems.add(problem);
+        }
+
+        boolean passed()
+        {
+            return problems.isEmpty() && errors.get() == 0;
+        }
+
+        double opsPerSecond()
+        {
+            return ops * 1e9 / nanos;
+        }
+
+        String row(double single)
+        {
+            return String.format("%7d %12.0f %8.2f %10.1f %8.1f %8.1f %10.1f %8.1f %8.1f  %s",
+                    threads, opsPerSecond(), opsPerSecond() / single,
+                    loads.getPercentile(50) / 1e3, loads.getPercentile(99) / 1e3,
+                    loads.getPercentile(99.9) / 1e3,
+                    saves.getPercentile(50) / 1e3, saves.getPercentile(99) / 1e3,
+                    saves.getPercentile(99.9) / 1e3,
+                    passed() ? "ok" : errors.get() + " errors, " + problems.size() + " problems");
+        }
+    }
+
+    /**
+     * One thread of a step, it keeps the last value it saved to each key
+     */
+    private final class Worker extends Thread
+    {
+        private final int thread;
+        private final QuickDataStore store;
+        private final Keys keys;
+        private final Distribution distribution;
+        private final Step step;
+        private final CountDownLatch ready;
+        private final CountDownLatch go;
+        final Map<Long, String> saved = new HashMap<Long, String>();
+        long ops;
+
+        Worker(int thread, QuickDataStore store, Keys keys, Distribution distribution, Step step,
+               CountDownLatch ready, CountDownLatch go)
+        {
+            super("QDS stress " + thread);
+            this.thread = thread;
+            this.store = store;
+            this.keys = keys;
+            this.distribution = distribution;
+            this.step = step;
+            this.ready = ready;
+            this.go = go;
+        }
+
+        public void run()
+        {
+            Random random = new Random(thread);
+            long save = 0;
+            ready.countDown();
+            try
+            {
+                go.await();
+            } catch (InterruptedException e)
+            {
+                return;
+            }
+            while (!step.stop)
+            {
+                boolean load = random.nextInt(100) < readPercent;
+                long key = load || !distribution.inserts() ? distribution.next(random) : keys.insert();
+                long start = System.nanoTime();
+                try
+                {
+                    if (load)
+                    {
+                        Object value = store.load(key(key));
+                        step.loads.record(System.nanoTime() - start);
+                        if (!valid(key, value))
+                            step.problem("Loading " + key(key) + " gave " + describe(value));
+                    } else
+                    {
+                        String value = value(key, thread, ++save);
+                        store.save(key(key), value);
+                        step.saves.record(System.nanoTime() - start);
+                        saved.put(key, value);
+                        if (distribution.inserts())
+                            keys.acknowledge(key);
+                    }
+                } catch (RuntimeException e)
+                {
+                    if (step.errors.incrementAndGet() == 1)
+                        step.problem(e.toString());
+                }
+                ops++;
+            }
+        }
+    }
+}
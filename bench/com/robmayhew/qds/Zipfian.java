@@ -0,0 +1,71 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.util.Random;
+
+/**
+ * <p>Chooses numbers from 0 to n - 1 with 0 the most likely, the chance of
+ * each falling as a power of its rank, the way a few keys get most of the
+ * calls in many applications.</p>
+ * <p>This is the generator of Gray et al, "Quickly Generating
+ * Billion-Record Synthetic Databases", as used by YCSB. Setting it up is
+ * linear in n, choosing is constant.</p>
+ */
+final class Zipfian
+{
+    static final double THETA = 0.99;
+
+    private final long n;
+    private final double zetan;
+    private final double alpha;
+    private final double eta;
+    private final double half;
+
+    Zipfian(long n)
+    {
+        if (n < 1)
+            throw new IllegalArgumentException("Nothing to choose from");
+        this.n = n;
+        double zeta2 = zeta(2);
+        zetan = zeta(n);
+        alpha = 1 / (1 - THETA);
+        eta = (1 - Math.pow(2.0 / n, 1 - THETA)) / (1 - zeta2 / zetan);
+        half = 1 + Math.pow(0.5, THETA);
+    }
+
+    private static double zeta(long n)
+    {
+        double sum = 0;
+        for (long i = 1; i <= n; i++)
+        {
+            sum += 1 / Math.pow(i, THETA);
+        }
+        return sum;
+    }
+
+    long next(Random random)
+    {
+        double u = random.nextDouble();
+        double uz = u * zetan;
+        if (uz < 1)
+            return 0;
+        if (uz < half)
+            return Math.min(1, n - 1);
+        return Math.min(n - 1, (long) (n * Math.pow(eta * u - eta + 1, alpha)));
+    }
+}
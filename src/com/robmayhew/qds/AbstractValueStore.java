@@ -0,0 +1,82 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Makes a {@link ValueStore} that only writes and loads single values
+ * into an {@link OrderedValueStore}, so it can be given to a
+ * {@link QuickDataStore}.</p>
+ * <p>Batches are written a value at a time and are not atomic. A store that
+ * cannot list its keys keeps the default scan, which finds none, so keys,
+ * scans, indexes, views and expiry see nothing of what it holds. Override
+ * {@link #scan} to list the keys in order, and {@link #removeValue} to
+ * remove them.</p>
+ */
+public abstract class AbstractValueStore implements OrderedValueStore
+{
+    /**
+     * Removes the keys in the batch's ranges found by scan, then writes or
+     * removes each of its values
+     */
+    public void writeValues(WriteBatch batch) throws QDSException
+    {
+        for (WriteBatch.Range range : batch.ranges())
+        {
+            List<String> keys = new ArrayList<String>();
+            Iterator<Map.Entry<String, String>> it = scan(range.fromKey, range.toKey);
+            while (it.hasNext())
+            {
+                keys.add(it.next().getKey());
+            }
+            for (String key : keys)
+            {
+                removeValue(key);
+            }
+        }
+        for (Map.Entry<String, String> e : batch.values().entrySet())
+        {
+            if (e.getValue() == null)
+                removeValue(e.getKey());
+            else
+                writeValue(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Remove a key. A {@link ValueStore} has no way to remove one, so
+     * unless overridden this throws and deletes, expiry and index updates
+     * fail on this store.
+     */
+    protected void removeValue(String key) throws QDSException
+    {
+        throw new QDSException(getClass().getName() + " does not support removing keys");
+    }
+
+    /**
+     * Finds no keys
+     */
+    public Iterator<Map.Entry<String, String>> scan(String fromKey, String toKey)
+    {
+        return Collections.<Map.Entry<String, String>>emptyList().iterator();
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+/**
+ * What <code>QuickDataStore.aggregate</code> computes from the numbers of a
+ * field. Fields that are not saved as numbers are left out.
+ */
+public enum Aggregate
+{
+    /**
+     * The total, 0 if there are no numbers
+     */
+    SUM,
+
+    /**
+     * The mean, NaN if there are no numbers
+     */
+    AVG,
+
+    /**
+     * The smallest number, NaN if there are no numbers
+     */
+    MIN,
+
+    /**
+     * The largest number, NaN if there are no numbers
+     */
+    MAX,
+
+    /**
+     * How many numbers there are
+     */
+    COUNT
+}
@@ -0,0 +1,101 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+/**
+ * <p>The totals of a field over every value saved under keys starting with
+ * a prefix, kept up to date on each save.</p>
+ * <p>The {@link Totals} are saved in the store under the view's name. A
+ * save of a watched key takes away what the old value added and adds what
+ * the new value adds, in the same commit as the value. Counts and sums are
+ * always kept this way. The smallest and largest numbers can't be taken
+ * away, when a value holding one of them is replaced the watched keys are
+ * read again to find them.</p>
+ */
+final class AggregateView
+{
+    static final String DECLARED_PREFIX = QuickDataStore.RESERVED_PREFIX + "views/";
+    private static final String TOTALS_PREFIX = QuickDataStore.RESERVED_PREFIX + "view/";
+
+    final String name;
+    final String keyPrefix;
+    final String field;
+
+    /**
+     * @param keyPrefix the start of the keys watched, a whole key to watch a
+     *                  single key and the keys starting with it
+     * @param field     the field as saved, or null for the primitives
+     */
+    AggregateView(String name, String keyPrefix, String field)
+    {
+        if (name.length() == 0)
+            throw new QDSException("A view needs a name");
+        this.name = name;
+        this.keyPrefix = keyPrefix;
+        this.field = field;
+    }
+
+    /**
+     * Get the view declared by a key under {@link #DECLARED_PREFIX}, the
+     * value is the field, empty for no field, a '/' and the key prefix
+     */
+    static AggregateView fromDeclared(String key, String value)
+    {
+        int slash = value.indexOf('/');
+        String field = value.substring(0, slash);
+        return new AggregateView(key.substring(DECLARED_PREFIX.length()),
+                value.substring(slash + 1), field.length() == 0 ? null : field);
+    }
+
+    String declaredKey()
+    {
+        return DECLARED_PREFIX + name;
+    }
+
+    String declaredValue()
+    {
+        return (field == null ? "" : field) + "/" + keyPrefix;
+    }
+
+    String totalsKey()
+    {
+        return TOTALS_PREFIX + name;
+    }
+
+    boolean watches(String key)
+    {
+        return key.startsWith(keyPrefix) && !key.startsWith(QuickDataStore.RESERVED_PREFIX);
+    }
+
+    /**
+     * @return what a saved value adds to the view, nothing for null
+     */
+    Totals totalsOf(String key, String jsonString)
+    {
+        Totals totals = new Totals();
+        if (jsonString == null)
+            return totals;
+        try
+        {
+            NumberScanner.scan(jsonString, field, totals);
+        } catch (QDSJSONException e)
+        {
+            throw new QDSException("Error reading " + key, e);
+        }
+        return totals;
+    }
+}
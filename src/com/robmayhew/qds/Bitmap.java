@@ -0,0 +1,635 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * <p>An immutable, compressed set of non negative ints, such as the
+ * positions of the elements of a list that have some value.</p>
+ * <p>The ints are split by their high 16 bits into blocks of 65536. A block
+ * holding up to 4096 ints keeps them as a sorted array of 16 bit values,
+ * a fuller block keeps a bit set of 8KB. Sparse and dense sets both stay
+ * small, and combining two sets works a block at a time.</p>
+ */
+public final class Bitmap implements Iterable<Integer>
+{
+    private static final int ARRAY_LIMIT = 4096;
+    private static final int WORDS = 1024;
+    private static final Bitmap EMPTY = new Bitmap(new char[0], new Object[0]);
+
+    /**
+     * The high 16 bits of each block, ascending
+     */
+    private final char[] highs;
+
+    /**
+     * Each block, a sorted char[] of low bits or a long[] bit set
+     */
+    private final Object[] blocks;
+
+    private Bitmap(char[] highs, Object[] blocks)
+    {
+        this.highs = highs;
+        this.blocks = blocks;
+    }
+
+    public static Bitmap empty()
+    {
+        return EMPTY;
+    }
+
+    /**
+     * @param values the ints in the set, in any order
+     */
+    public static Bitmap of(int... values)
+    {
+        int[] sorted = values.clone();
+        Arrays.sort(sorted);
+        Builder builder = new Builder();
+        for (int v : sorted)
+        {
+            builder.add(v);
+        }
+        return builder.build();
+    }
+
+    public boolean contains(int value)
+    {
+        int i = Arrays.binarySearch(highs, (char) (value >>> 16));
+        if (value < 0 || i < 0)
+            return false;
+        Object block = blocks[i];
+        char low = (char) value;
+        if (block instanceof char[])
+            return Arrays.binarySearch((char[]) block, low) >= 0;
+        return (((long[]) block)[low >>> 6] & (1L << low)) != 0;
+    }
+
+    public int cardinality()
+    {
+        int count = 0;
+        for (Object block : blocks)
+        {
+            count += cardinality(block);
+        }
+        return count;
+    }
+
+    public boolean isEmpty()
+    {
+        return blocks.length == 0;
+    }
+
+    /**
+     * @return the ints in both sets
+     */
+    public Bitmap and(Bitmap other)
+    {
+        List<Character> resultHighs = new ArrayList<Character>();
+        List<Object> resultBlocks = new ArrayList<Object>();
+        int i = 0;
+        int j = 0;
+        while (i < highs.length && j < other.highs.length)
+        {
+            if (highs[i] < other.highs[j])
+            {
+                i++;
+            } else if (highs[i] > other.highs[j])
+            {
+                j++;
+            } else
+            {
+                add(resultHighs, resultBlocks, highs[i], combine(blocks[i], other.blocks[j], AND));
+                i++;
+                j++;
+            }
+        }
+        return build(resultHighs, resultBlocks);
+    }
+
+    /**
+     * @return the ints in either set
+     */
+    public Bitmap or(Bitmap other)
+    {
+        List<Character> resultHighs = new ArrayList<Character>();
+        List<Object> resultBlocks = new ArrayList<Object>();
+        int i = 0;
+        int j = 0;
+        while (i < highs.length || j < other.highs.length)
+        {
+            if (j == other.highs.length || (i < highs.length && highs[i] < other.highs[j]))
+            {
+                add(resultHighs, resultBlocks, highs[i], blocks[i]);
+                i++;
+            } else if (i == highs.length || highs[i] > other.highs[j])
+            {
+                add(resultHighs, resultBlocks, other.highs[j], other.blocks[j]);
+                j++;
+            } else
+            {
+                add(resultHighs, resultBlocks, highs[i], combine(blocks[i], other.blocks[j], OR));
+                i++;
+                j++;
+            }
+        }
+        return build(resultHighs, resultBlocks);
+    }
+
+    /**
+     * @return the ints in this set that are not in the other
+     */
+    public Bitmap andNot(Bitmap other)
+    {
+        List<Character> resultHighs = new ArrayList<Character>();
+        List<Object> resultBlocks = new ArrayList<Object>();
+        int j = 0;
+        for (int i = 0; i < highs.length; i++)
+        {
+            while (j < other.highs.length && other.highs[j] < highs[i])
+            {
+                j++;
+            }
+            if (j < other.highs.length && other.highs[j] == highs[i])
+                add(resultHighs, resultBlocks, highs[i], combine(blocks[i], other.blocks[j], AND_NOT));
+            else
+                add(resultHighs, resultBlocks, highs[i], blocks[i]);
+        }
+        return build(resultHighs, resultBlocks);
+    }
+
+    /**
+     * Iterate the ints in ascending order
+     */
+    public Iterator<Integer> iterator()
+    {
+        return new Iterator<Integer>()
+        {
+            private int block;
+            private int next = -1;
+
+            {
+                advance(0);
+            }
+
+            private void advance(int from)
+            {
+                for (; block < blocks.length; block++, from = 0)
+                {
+                    Object b = blocks[block];
+                    if (b instanceof char[])
+                    {
+                        char[] array = (char[]) b;
+                        int k = Arrays.binarySearch(array, (char) from);
+                        if (k < 0)
+                            k = -k - 1;
+                        if (from <= 0xFFFF && k < array.length)
+                        {
+                            next = (highs[block] << 16) | array[k];
+                            return;
+                        }
+                    } else
+                    {
+                        long[] words = (long[]) b;
+                        for (int low = from; low <= 0xFFFF; low++)
+                        {
+                            long word = words[low >>> 6] >>> (low & 63);
+                            if (word == 0)
+                            {
+                                low |= 63;
+                                continue;
+                            }
+                            low += Long.numberOfTrailingZeros(word);
+                            next = (highs[block] << 16) | low;
+                            return;
+                        }
+                    }
+                }
+                next = -1;
+            }
+
+            public boolean hasNext()
+            {
+                return next >= 0;
+            }
+
+            public Integer next()
+            {
+                if (next < 0)
+                    throw new NoSuchElementException();
+                int value = next;
+                advance((value & 0xFFFF) + 1);
+                return value;
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    public boolean equals(Object o)
+    {
+        if (!(o instanceof Bitmap))
+            return false;
+        Iterator<Integer> a = iterator();
+        Iterator<Integer> b = ((Bitmap) o).iterator();
+        while (a.hasNext() && b.hasNext())
+        {
+            if (!a.next().equals(b.next()))
+                return false;
+        }
+        return !a.hasNext() && !b.hasNext();
+    }
+
+    public int hashCode()
+    {
+        int hash = 1;
+        for (int v : this)
+        {
+            hash = 31 * hash + v;
+        }
+        return hash;
+    }
+
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder("[");
+        for (int v : this)
+        {
+            if (sb.length() > 1)
+                sb.append(", ");
+            sb.append(v);
+        }
+        return sb.append(']').toString();
+    }
+
+    //--------------------------------------------------------------------------
+    // Saving
+
+    /**
+     * Encode the set as text that can be saved as a value
+     */
+    String encode()
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(blocks.length);
+            for (int i = 0; i < blocks.length; i++)
+            {
+                out.writeChar(highs[i]);
+                if (blocks[i] instanceof char[])
+                {
+                    char[] array = (char[]) blocks[i];
+                    out.writeShort(array.length - 1);
+                    for (char c : array)
+                    {
+                        out.writeChar(c);
+                    }
+                } else
+                {
+                    out.writeShort(-1);
+                    for (long word : (long[]) blocks[i])
+                    {
+                        out.writeLong(word);
+                    }
+                }
+            }
+            out.flush();
+            return Base64.encode(bytes.toByteArray());
+        } catch (IOException e)
+        {
+            throw new QDSException("Error encoding bitmap", e);
+        }
+    }
+
+    static Bitmap decode(String text)
+    {
+        try
+        {
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(Base64.decode(text)));
+            int count = in.readInt();
+            char[] highs = new char[count];
+            Object[] blocks = new Object[count];
+            for (int i = 0; i < count; i++)
+            {
+                highs[i] = in.readChar();
+                int length = in.readShort();
+                if (length >= 0)
+                {
+                    char[] array = new char[length + 1];
+                    for (int k = 0; k < array.length; k++)
+                    {
+                        array[k] = in.readChar();
+                    }
+                    blocks[i] = array;
+                } else
+                {
+                    long[] words = new long[WORDS];
+                    for (int k = 0; k < WORDS; k++)
+                    {
+                        words[k] = in.readLong();
+                    }
+                    blocks[i] = words;
+                }
+            }
+            return new Bitmap(highs, blocks);
+        } catch (IOException e)
+        {
+            throw new QDSException("Error decoding bitmap", e);
+        }
+    }
+
+    /**
+     * Builds a set from ints added in ascending order
+     */
+    static final class Builder
+    {
+        private final List<Character> highs = new ArrayList<Character>();
+        private final List<Object> blocks = new ArrayList<Object>();
+        private char[] array = new char[16];
+        private long[] words;
+        private int size;
+        private int high = -1;
+        private int last = -1;
+
+        void add(int value)
+        {
+            if (value < 0 || value <= last)
+                throw new IllegalArgumentException("Values must be added in ascending order");
+            last = value;
+            if (value >>> 16 != high)
+            {
+                finishBlock();
+                high = value >>> 16;
+            }
+            char low = (char) value;
+            if (words != null)
+            {
+                words[low >>> 6] |= 1L << low;
+            } else if (size < ARRAY_LIMIT)
+            {
+                if (size == array.length)
+                    array = Arrays.copyOf(array, size * 2);
+                array[size++] = low;
+            } else
+            {
+                words = toWords(Arrays.copyOf(array, size));
+                words[low >>> 6] |= 1L << low;
+            }
+        }
+
+        Bitmap build()
+        {
+            finishBlock();
+            return Bitmap.build(highs, blocks);
+        }
+
+        private void finishBlock()
+        {
+            if (high < 0)
+                return;
+            highs.add((char) high);
+            blocks.add(words != null ? words : Arrays.copyOf(array, size));
+            words = null;
+            size = 0;
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // Blocks
+    private static final int AND = 0;
+    private static final int OR = 1;
+    private static final int AND_NOT = 2;
+
+    private static Object combine(Object a, Object b, int op)
+    {
+        if (a instanceof char[] && b instanceof char[])
+            return combineArrays((char[]) a, (char[]) b, op);
+        if (op == AND && a instanceof char[])
+            return filter((char[]) a, (long[]) b, true);
+        if (op == AND && b instanceof char[])
+            return filter((char[]) b, (long[]) a, true);
+        if (op == AND_NOT && a instanceof char[])
+            return filter((char[]) a, (long[]) b, false);
+        long[] x = a instanceof char[] ? toWords((char[]) a) : ((long[]) a).clone();
+        long[] y = b instanceof char[] ? toWords((char[]) b) : (long[]) b;
+        for (int i = 0; i < WORDS; i++)
+        {
+            if (op == AND)
+                x[i] &= y[i];
+            else if (op == OR)
+                x[i] |= y[i];
+            else
+                x[i] &= ~y[i];
+        }
+        return compact(x);
+    }
+
+    private static Object combineArrays(char[] a, char[] b, int op)
+    {
+        char[] result = new char[op == OR ? a.length + b.length : a.length];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length)
+        {
+            if (j == b.length || (i < a.length && a[i] < b[j]))
+            {
+                if (op != AND)
+                    result[n++] = a[i];
+                i++;
+            } else if (i == a.length || a[i] > b[j])
+            {
+                if (op == OR)
+                    result[n++] = b[j];
+                j++;
+            } else
+            {
+                if (op != AND_NOT)
+                    result[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        if (n > ARRAY_LIMIT)
+            return toWords(Arrays.copyOf(result, n));
+        return Arrays.copyOf(result, n);
+    }
+
+    /**
+     * Keep the values of an array that are, or are not, in a bit set
+     */
+    private static char[] filter(char[] array, long[] words, boolean keepIn)
+    {
+        char[] result = new char[array.length];
+        int n = 0;
+        for (char c : array)
+        {
+            boolean in = (words[c >>> 6] & (1L << c)) != 0;
+            if (in == keepIn)
+                result[n++] = c;
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    private static long[] toWords(char[] array)
+    {
+        long[] words = new long[WORDS];
+        for (char c : array)
+        {
+            words[c >>> 6] |= 1L << c;
+        }
+        return words;
+    }
+
+    /**
+     * Turn a bit set back into an array once it holds few enough values
+     */
+    private static Object compact(long[] words)
+    {
+        int count = 0;
+        for (long word : words)
+        {
+            count += Long.bitCount(word);
+        }
+        if (count > ARRAY_LIMIT)
+            return words;
+        char[] array = new char[count];
+        int n = 0;
+        for (int i = 0; i < WORDS; i++)
+        {
+            long word = words[i];
+            while (word != 0)
+            {
+                array[n++] = (char) ((i << 6) + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return array;
+    }
+
+    private static int cardinality(Object block)
+    {
+        if (block instanceof char[])
+            return ((char[]) block).length;
+        int count = 0;
+        for (long word : (long[]) block)
+        {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    private static void add(List<Character> highs, List<Object> blocks,
+                            char high, Object block)
+    {
+        if (cardinality(block) == 0)
+            return;
+        highs.add(high);
+        blocks.add(block);
+    }
+
+    private static Bitmap build(List<Character> highs, List<Object> blocks)
+    {
+        if (blocks.isEmpty())
+            return EMPTY;
+        char[] h = new char[highs.size()];
+        for (int i = 0; i < h.length; i++)
+        {
+            h[i] = highs.get(i);
+        }
+        return new Bitmap(h, blocks.toArray());
+    }
+
+    /**
+     * Base64 without padding, the standard classes for it need Java 8
+     */
+    private static final class Base64
+    {
+        private static final char[] DIGITS =
+                "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+                        .toCharArray();
+        private static final int[] VALUES = new int[128];
+
+        static
+        {
+            Arrays.fill(VALUES, -1);
+            for (int i = 0; i < DIGITS.length; i++)
+            {
+                VALUES[DIGITS[i]] = i;
+            }
+        }
+
+        static String encode(byte[] bytes)
+        {
+            StringBuilder sb = new StringBuilder((bytes.length * 4 + 2) / 3);
+            for (int i = 0; i < bytes.length; i += 3)
+            {
+                int n = Math.min(3, bytes.length - i);
+                int chunk = (bytes[i] & 0xFF) << 16;
+                if (n > 1)
+                    chunk |= (bytes[i + 1] & 0xFF) << 8;
+                if (n > 2)
+                    chunk |= bytes[i + 2] & 0xFF;
+                for (int k = 0; k <= n; k++)
+                {
+                    sb.append(DIGITS[(chunk >>> (18 - 6 * k)) & 63]);
+                }
+            }
+            return sb.toString();
+        }
+
+        static byte[] decode(String text) throws IOException
+        {
+            byte[] bytes = new byte[text.length() * 3 / 4];
+            int n = 0;
+            for (int i = 0; i < text.length(); i += 4)
+            {
+                int digits = Math.min(4, text.length() - i);
+                int chunk = 0;
+                for (int k = 0; k < 4; k++)
+                {
+                    int v = 0;
+                    if (k < digits)
+                    {
+                        char c = text.charAt(i + k);
+                        v = c < 128 ? VALUES[c] : -1;
+                        if (v < 0)
+                            throw new IOException("Invalid character " + c);
+                    }
+                    chunk = (chunk << 6) | v;
+                }
+                for (int k = 0; k < digits - 1; k++)
+                {
+                    bytes[n++] = (byte) (chunk >>> (16 - 8 * k));
+                }
+            }
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>Bitmaps of the positions in each stored list of the objects of one
+ * class with each value of one property.</p>
+ * <p>For every list holding objects of the class there is one
+ * {@link Bitmap} per value, saved in the store under a key made of the
+ * list's key, the class, the property and the value. The bitmaps of a list
+ * are written again in the same commit as the list. Numbers can be put in
+ * buckets, with a bucket width of 10 the ages 30 to 39 share one bitmap.</p>
+ */
+final class BitmapIndex
+{
+    static final String DECLARED_PREFIX = QuickDataStore.RESERVED_PREFIX + "bitmaps/";
+    private static final String BITMAP_PREFIX = QuickDataStore.RESERVED_PREFIX + "bitmap/";
+
+    final String className;
+    final String property;
+    private final long bucketWidth;
+
+    /**
+     * @param bucketWidth width of the buckets numbers are put in, 0 to keep
+     *                    a bitmap for each value
+     */
+    BitmapIndex(String className, String property, long bucketWidth)
+    {
+        this.className = className;
+        this.property = property;
+        this.bucketWidth = bucketWidth;
+    }
+
+    /**
+     * Get the index declared by a key under {@link #DECLARED_PREFIX}
+     */
+    static BitmapIndex fromDeclared(String key, String value)
+    {
+        String name = key.substring(DECLARED_PREFIX.length());
+        int slash = name.lastIndexOf('/');
+        return new BitmapIndex(name.substring(0, slash), name.substring(slash + 1),
+                Long.parseLong(value));
+    }
+
+    String declaredKey()
+    {
+        return DECLARED_PREFIX + className + "/" + property;
+    }
+
+    String declaredValue()
+    {
+        return Long.toString(bucketWidth);
+    }
+
+    /**
+     * @return the prefix of the keys of every bitmap of a list, of any
+     *         bitmap index
+     */
+    static String listPrefix(String listKey)
+    {
+        return BITMAP_PREFIX + listKey.length() + ":" + listKey + "/";
+    }
+
+    /**
+     * @return the key of the bitmap of a value in a list
+     */
+    String bitmapKey(String listKey, Object value)
+    {
+        return listPrefix(listKey) + className + "/" + property + "/" + bucket(value);
+    }
+
+    /**
+     * Build the bitmaps of a stored list
+     *
+     * @param jsonString the list as saved
+     * @return the bitmap of each value, by key
+     */
+    Map<String, Bitmap> build(String listKey, String jsonString)
+            throws QDSJSONException
+    {
+        Map<String, Bitmap.Builder> builders = new HashMap<String, Bitmap.Builder>();
+        ListReader reader = new ListReader(jsonString);
+        QDSJSONObject element;
+        for (int position = 0; (element = reader.next()) != null; position++)
+        {
+            QDSJSONObject data = element.optJSONObject("data");
+            if (data == null || !className.equals(element.optString("class")))
+                continue;
+            Object value = data.opt(property);
+            if (QDSJSONObject.NULL.equals(value))
+                continue;
+            String key = bitmapKey(listKey, value);
+            Bitmap.Builder builder = builders.get(key);
+            if (builder == null)
+            {
+                builder = new Bitmap.Builder();
+                builders.put(key, builder);
+            }
+            builder.add(position);
+        }
+        Map<String, Bitmap> bitmaps = new HashMap<String, Bitmap>();
+        for (Map.Entry<String, Bitmap.Builder> e : builders.entrySet())
+        {
+            bitmaps.put(e.getKey(), e.getValue().build());
+        }
+        return bitmaps;
+    }
+
+    private String bucket(Object value)
+    {
+        if (value instanceof Number && bucketWidth > 0)
+        {
+            double v = ((Number) value).doubleValue();
+            return Long.toString((long) Math.floor(v / bucketWidth) * bucketWidth);
+        }
+        if (value instanceof Number && !(value instanceof Double || value instanceof Float))
+            return Long.toString(((Number) value).longValue());
+        if (value instanceof Number)
+        {
+            double v = ((Number) value).doubleValue();
+            if (v == Math.rint(v) && !Double.isInfinite(v))
+                return Long.toString((long) v);
+        }
+        return PropertyIndex.encodeString(value.toString());
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+/**
+ * <p>The time one save or load spent in each {@link StoreMetrics.Op}, so a
+ * slow one shows where its time went.</p>
+ * <p>A breakdown collects the operations recorded on its thread between
+ * {@link #start()} and {@link #stop()}. Until the first is started recording
+ * an operation only reads one more field.</p>
+ */
+final class Breakdown
+{
+    private static final ThreadLocal<Breakdown> CURRENT = new ThreadLocal<Breakdown>();
+    private static volatile boolean used;
+
+    final long[] nanos = new long[StoreMetrics.Op.values().length];
+    private Breakdown outer;
+
+    private Breakdown()
+    {
+    }
+
+    static Breakdown start()
+    {
+        used = true;
+        Breakdown breakdown = new Breakdown();
+        breakdown.outer = CURRENT.get();
+        CURRENT.set(breakdown);
+        return breakdown;
+    }
+
+    /**
+     * Stop collecting, the times collected are also added to a breakdown
+     * started before this one on the thread
+     */
+    void stop()
+    {
+        if (outer == null)
+        {
+            CURRENT.remove();
+            return;
+        }
+        for (int i = 0; i < nanos.length; i++)
+        {
+            outer.nanos[i] += nanos[i];
+        }
+        CURRENT.set(outer);
+    }
+
+    static void add(StoreMetrics.Op op, long nanos)
+    {
+        if (!used)
+            return;
+        Breakdown breakdown = CURRENT.get();
+        if (breakdown != null)
+            breakdown.nanos[op.ordinal()] += nanos;
+    }
+}
@@ -0,0 +1,230 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+/**
+ * <p>Decides which segments of a <code>FileValueStore</code> are merged by
+ * its background compaction.</p>
+ * <p>A policy is shown the segments oldest first, the size of each and how
+ * many of its bytes are still live, and picks a run of adjacent segments to
+ * merge into one, or nothing. A merge drops values that have been saved
+ * again or removed since, and a merge including the data file also drops
+ * the records of removed keys. Keys found in more than one of the merged
+ * segments are written to a segment of their own, so the values that keep
+ * changing are merged again without rewriting the ones that do not.</p>
+ * <pre>
+ * store.setCompactionPolicy(CompactionPolicy.sizeTiered(4)
+ *         .or(CompactionPolicy.deadRatio(0.5)));</pre>
+ * <p>Fewer merges write less but leave more segments to open and more dead
+ * bytes on disk, see <code>FileValueStore.compactionStats()</code>.</p>
+ */
+public abstract class CompactionPolicy
+{
+    /**
+     * Segments smaller than this are treated as this size when comparing
+     * sizes, so a run of small checkpoints is merged together
+     */
+    private static final long MIN_TIER_SIZE = 64 * 1024;
+
+    CompactionPolicy()
+    {
+    }
+
+    /**
+     * @param sizes     the size of each segment in bytes, oldest first
+     * @param liveBytes how many bytes of each segment a merge would keep
+     * @return the first and one past the last segment to merge, or null to
+     *         merge nothing
+     */
+    abstract int[] select(long[] sizes, long[] liveBytes);
+
+    /**
+     * The default policy, <code>sizeTiered(4).or(deadRatio(0.5))
+     * .or(maxSegments(16))</code>
+     */
+    public static CompactionPolicy defaultPolicy()
+    {
+        return sizeTiered(4).or(deadRatio(0.5)).or(maxSegments(16));
+    }
+
+    /**
+     * Merge a run of segments of about the same size, no more than twice
+     * the size of the smallest, once there are enough of them. Each byte is
+     * written once per tier it passes through, the cheapest to write but
+     * the most segments on disk.
+     *
+     * @param minSegments how many similar segments to merge at once, at
+     *                    least 2
+     */
+    public static CompactionPolicy sizeTiered(final int minSegments)
+    {
+        if (minSegments < 2)
+            throw new IllegalArgumentException("minSegments must be at least 2");
+        return new CompactionPolicy()
+        {
+            int[] select(long[] sizes, long[] liveBytes)
+            {
+                int end = sizes.length;
+                while (end >= minSegments)
+                {
+                    int start = end - 1;
+                    long min = Math.max(sizes[start], MIN_TIER_SIZE);
+                    long max = min;
+                    while (start > 0)
+                    {
+                        long size = Math.max(sizes[start - 1], MIN_TIER_SIZE);
+                        if (Math.max(max, size) > 2 * Math.min(min, size))
+                            break;
+                        min = Math.min(min, size);
+                        max = Math.max(max, size);
+                        start--;
+                    }
+                    if (end - start >= minSegments)
+                        return new int[]{start, end};
+                    end = start;
+                }
+                return null;
+            }
+
+            public String toString()
+            {
+                return "sizeTiered(" + minSegments + ")";
+            }
+        };
+    }
+
+    /**
+     * Keep each segment a number of times larger than all the segments
+     * newer than it: once they reach its size divided by the fanout they
+     * are merged into it. Segments are not split by key, so this writes
+     * each byte about fanout times per level, in return for few segments
+     * and little dead data.
+     *
+     * @param fanout how many times larger each level is than the next
+     */
+    public static CompactionPolicy leveled(final int fanout)
+    {
+        if (fanout < 2)
+            throw new IllegalArgumentException("fanout must be at least 2");
+        return new CompactionPolicy()
+        {
+            int[] select(long[] sizes, long[] liveBytes)
+            {
+                long newer = 0;
+                int start = -1;
+                for (int i = sizes.length - 1; i >= 0; i--)
+                {
+                    if (i < sizes.length - 1 && newer * fanout >= sizes[i])
+                        start = i;
+                    newer += sizes[i];
+                }
+                return start < 0 ? null : new int[]{start, sizes.length};
+            }
+
+            public String toString()
+            {
+                return "leveled(" + fanout + ")";
+            }
+        };
+    }
+
+    /**
+     * Rewrite the segment with the largest share of dead bytes, values
+     * saved again or removed since it was written, once the share reaches
+     * a ratio
+     *
+     * @param ratio the share of dead bytes, 0 to 1
+     */
+    public static CompactionPolicy deadRatio(final double ratio)
+    {
+        return new CompactionPolicy()
+        {
+            int[] select(long[] sizes, long[] liveBytes)
+            {
+                int worst = -1;
+                double worstRatio = 0;
+                for (int i = 0; i < sizes.length; i++)
+                {
+                    if (sizes[i] == 0)
+                        continue;
+                    double dead = (double) (sizes[i] - liveBytes[i]) / sizes[i];
+                    if (dead >= ratio && dead > worstRatio)
+                    {
+                        worst = i;
+                        worstRatio = dead;
+                    }
+                }
+                return worst < 0 ? null : new int[]{worst, worst + 1};
+            }
+
+            public String toString()
+            {
+                return "deadRatio(" + ratio + ")";
+            }
+        };
+    }
+
+    /**
+     * Merge the newest segments when there are more than a number of
+     * segments, bounding how many are opened and read
+     *
+     * @param max the most segments to keep, at least 2
+     */
+    public static CompactionPolicy maxSegments(final int max)
+    {
+        if (max < 2)
+            throw new IllegalArgumentException("max must be at least 2");
+        return new CompactionPolicy()
+        {
+            int[] select(long[] sizes, long[] liveBytes)
+            {
+                if (sizes.length <= max)
+                    return null;
+                // A merge can write two segments, one for the keys that
+                // change and one for the rest
+                return new int[]{Math.max(0, max - 2), sizes.length};
+            }
+
+            public String toString()
+            {
+                return "maxSegments(" + max + ")";
+            }
+        };
+    }
+
+    /**
+     * @return a policy using the run this one picks, or if it picks
+     *         nothing the run the other one picks
+     */
+    public CompactionPolicy or(final CompactionPolicy other)
+    {
+        final CompactionPolicy self = this;
+        return new CompactionPolicy()
+        {
+            int[] select(long[] sizes, long[] liveBytes)
+            {
+                int[] run = self.select(sizes, liveBytes);
+                return run != null ? run : other.select(sizes, liveBytes);
+            }
+
+            public String toString()
+            {
+                return "(" + self + " || " + other + ")";
+            }
+        };
+    }
+}
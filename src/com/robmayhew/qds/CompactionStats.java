@@ -0,0 +1,128 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+/**
+ * <p>How much a <code>FileValueStore</code> has on disk and how much it has
+ * written to keep it there.</p>
+ * <p>Debt is the bytes of segments holding values that have been saved
+ * again or removed since, what compaction would free. Write amplification
+ * is the bytes written to the log, checkpoints and compaction for each
+ * byte saved, counted since the store was created in this process.</p>
+ */
+public final class CompactionStats
+{
+    private final int segments;
+    private final long totalBytes;
+    private final long liveBytes;
+    private final long savedBytes;
+    private final long writtenBytes;
+    private final long compactions;
+    private final long compactedBytes;
+
+    CompactionStats(int segments, long totalBytes, long liveBytes, long savedBytes,
+                    long writtenBytes, long compactions, long compactedBytes)
+    {
+        this.segments = segments;
+        this.totalBytes = totalBytes;
+        this.liveBytes = liveBytes;
+        this.savedBytes = savedBytes;
+        this.writtenBytes = writtenBytes;
+        this.compactions = compactions;
+        this.compactedBytes = compactedBytes;
+    }
+
+    /**
+     * @return how many segments the store reads, including the data file
+     */
+    public int getSegments()
+    {
+        return segments;
+    }
+
+    /**
+     * @return the size of the segments
+     */
+    public long getTotalBytes()
+    {
+        return totalBytes;
+    }
+
+    /**
+     * @return the bytes of the segments a merge of all of them would keep
+     */
+    public long getLiveBytes()
+    {
+        return liveBytes;
+    }
+
+    /**
+     * @return the bytes of the segments that are no longer used
+     */
+    public long getDebtBytes()
+    {
+        return totalBytes - liveBytes;
+    }
+
+    /**
+     * @return the bytes saved, as appended to the log
+     */
+    public long getSavedBytes()
+    {
+        return savedBytes;
+    }
+
+    /**
+     * @return the bytes written to the log, checkpoints and compaction
+     */
+    public long getWrittenBytes()
+    {
+        return writtenBytes;
+    }
+
+    /**
+     * @return the bytes written for each byte saved, 0 before any save
+     */
+    public double getWriteAmplification()
+    {
+        return savedBytes == 0 ? 0 : (double) writtenBytes / savedBytes;
+    }
+
+    /**
+     * @return how many merges compaction has made
+     */
+    public long getCompactions()
+    {
+        return compactions;
+    }
+
+    /**
+     * @return the bytes written by compaction
+     */
+    public long getCompactedBytes()
+    {
+        return compactedBytes;
+    }
+
+    public String toString()
+    {
+        return "segments=" + segments + " total=" + totalBytes + " live=" + liveBytes
+                + " debt=" + getDebtBytes() + " saved=" + savedBytes
+                + " written=" + writtenBytes + " compactions=" + compactions
+                + " compacted=" + compactedBytes;
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+/**
+ * <p>When a <code>FileValueStore</code> syncs its log to disk.</p>
+ * <p>Every save is appended to the log before it returns, the modes only
+ * differ in when the operating system is told to put the log on disk. A
+ * save that has not been synced survives the process dying but not the
+ * machine losing power.</p>
+ * <p><code>NONE</code> and <code>PERIODIC</code> never wait for the disk.
+ * <code>GROUP</code> and <code>ALWAYS</code> wait for a sync on every save,
+ * which costs whatever the disk takes to sync. <code>ant stress</code>
+ * with <code>-s</code> measures it on a given disk.</p>
+ */
+public enum Durability
+{
+    /**
+     * Never sync, the operating system writes the log when it chooses.
+     * Fastest, a power failure can lose any number of recent saves.
+     */
+    NONE,
+
+    /**
+     * Sync in the background, every second unless the store is given
+     * another interval. A power failure loses at most the last interval of
+     * saves. A background sync that fails is logged and the next save or
+     * close throws it. The default.
+     */
+    PERIODIC,
+
+    /**
+     * A save returns once it is on disk, but saves made at the same time by
+     * different threads share a single sync. Nothing acknowledged is lost.
+     * With one writer this is the same as <code>ALWAYS</code>.
+     */
+    GROUP,
+
+    /**
+     * Every save syncs the log before returning, while still holding the
+     * store's lock. Nothing acknowledged is lost, concurrent writers queue
+     * for the disk one at a time.
+     */
+    ALWAYS
+}
@@ -0,0 +1,31 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+/**
+ * Work done on each saved value, see
+ * <code>QuickDataStore.forEachParallel</code>. Values are handed out on
+ * several threads at once, so the work must be safe to run concurrently.
+ */
+public interface EntryWork
+{
+    /**
+     * @param key   the key the value is saved under
+     * @param value the value as loaded
+     */
+    public void run(String key, Object value) throws Exception;
+}
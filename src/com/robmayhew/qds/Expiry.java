@@ -0,0 +1,98 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+/**
+ * <p>When saved values expire.</p>
+ * <p>A value saved with a time to live has the time it expires added as
+ * the last field of its saved text, so reading the value tells whether it
+ * has expired without another lookup. Each such save also records an
+ * empty value under a key made of the time and the value's key, so the
+ * values due to expire are a range of keys in time order for the
+ * sweeper. A record is only acted on if the value still expires at its
+ * time, the records of values saved again are simply dropped.</p>
+ */
+final class Expiry
+{
+    static final String PREFIX = QuickDataStore.RESERVED_PREFIX + "expiry/";
+    private static final String FIELD = ",\"expires\":";
+    private static final char END_OF_TIME = '!';
+
+    private Expiry()
+    {
+    }
+
+    /**
+     * @return saved text with the time it expires added
+     */
+    static String withExpiry(String jsonString, long expires)
+    {
+        return jsonString.substring(0, jsonString.lastIndexOf('}')) + FIELD + expires + "}";
+    }
+
+    /**
+     * @return the time saved text expires, or 0 if it does not expire
+     */
+    static long expiresAt(String jsonString)
+    {
+        if (jsonString == null || !jsonString.endsWith("}"))
+            return 0;
+        int start = jsonString.length() - 1;
+        while (start > 0 && Character.isDigit(jsonString.charAt(start - 1)))
+        {
+            start--;
+        }
+        if (start == jsonString.length() - 1 ||
+                !jsonString.startsWith(FIELD, start - FIELD.length()))
+            return 0;
+        return Long.parseLong(jsonString.substring(start, jsonString.length() - 1));
+    }
+
+    static boolean expired(String jsonString, long now)
+    {
+        long expires = expiresAt(jsonString);
+        return expires != 0 && expires <= now;
+    }
+
+    /**
+     * @return the key of the record of a value expiring at a time
+     */
+    static String recordKey(long expires, String key)
+    {
+        return timeKey(expires) + END_OF_TIME + key;
+    }
+
+    /**
+     * @return the key to stop before to visit the records of every value
+     *         expiring before a time
+     */
+    static String timeKey(long time)
+    {
+        String hex = Long.toHexString(time);
+        return PREFIX + "0000000000000000".substring(hex.length()) + hex;
+    }
+
+    static long timeOf(String recordKey)
+    {
+        return Long.parseLong(recordKey.substring(PREFIX.length(), PREFIX.length() + 16), 16);
+    }
+
+    static String keyOf(String recordKey)
+    {
+        return recordKey.substring(PREFIX.length() + 17);
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The operations of a {@link QuickDataStore} beyond saving and loading:
+ * expiry, deletes, ordered keys, queries, views, parallel work and indexes.
+ */
+public interface ExtendedDataStoreInterface extends QuickDataStoreInterface
+{
+    /**
+     * Save an object that expires once a time to live has passed
+     *
+     * @param ttlMillis how long the value lives, in milliseconds
+     */
+    public void save(String key, Object value, long ttlMillis);
+
+    /**
+     * Remove a key and its value
+     */
+    public void delete(String key);
+
+    /**
+     * Remove every key starting with a prefix, written as one range
+     * tombstone
+     */
+    public void deletePrefix(String prefix);
+
+    /**
+     * Iterate the keys starting with a prefix, in key order
+     *
+     * @param prefix the prefix, an empty prefix iterates every key
+     */
+    public Iterable<String> keys(String prefix);
+
+    /**
+     * Iterate the objects in a range of keys, in key order
+     *
+     * @param fromKey first key to include, or null to start at the first key
+     * @param toKey   key to stop before, or null to continue to the last key
+     */
+    public Iterable<Map.Entry<String, Object>> scan(String fromKey, String toKey);
+
+    /**
+     * Index the objects of a class by one of their properties
+     *
+     * @param type     the class
+     * @param property the property as saved, <code>"Age"</code> for
+     *                 <code>getAge()</code>
+     */
+    public void createIndex(Class<?> type, String property);
+
+    /**
+     * Find the keys of the objects of a class with a property equal to a
+     * value
+     */
+    public List<String> findBy(Class<?> type, String property, Object value);
+
+    /**
+     * Find the keys of the objects of a class with a property in a range of
+     * values
+     *
+     * @param from the lowest value to include, or null for no lower bound
+     * @param to   the value to stop before, or null for no upper bound
+     */
+    public List<String> findRange(Class<?> type, String property, Object from, Object to);
+
+    /**
+     * Load the elements of a stored list that match a filter
+     *
+     * @param key    key the list was saved under
+     * @param filter the condition elements must match
+     */
+    public List<Object> query(String key, FieldFilter filter);
+
+    /**
+     * Aggregate the numbers of a field of a stored list without creating its
+     * elements
+     *
+     * @param field the field as saved, or null for a list of numbers
+     */
+    public double aggregate(String key, String field, Aggregate aggregate);
+
+    /**
+     * Keep the totals of a field over the values saved under keys starting
+     * with a prefix, updated on each save
+     *
+     * @param field the field as saved, or null for saved numbers
+     */
+    public void createView(String name, String keyPrefix, String field);
+
+    /**
+     * Read a view made by createView without reading the values it watches
+     */
+    public double view(String name, Aggregate aggregate);
+
+    /**
+     * Run work on every saved value on several threads at once
+     */
+    public void forEachParallel(EntryWork work);
+
+    /**
+     * Combine every saved value into one result, reducing ranges of keys on
+     * several threads at once
+     */
+    public <T> T reduce(Reducer<T> reducer);
+
+    /**
+     * Keep bitmaps of where the objects of a class with each value of a
+     * property are in every stored list
+     */
+    public void createBitmapIndex(Class<?> type, String property);
+
+    /**
+     * Keep bitmaps of where the objects of a class with a numeric property
+     * in each bucket of values are in every stored list
+     */
+    public void createBitmapIndex(Class<?> type, String property, long bucketWidth);
+
+    /**
+     * Get the positions in a stored list of the objects with a value
+     */
+    public Bitmap bitmap(String key, Class<?> type, String property, Object value);
+
+    /**
+     * Load the elements at some positions of a stored list
+     */
+    public List<Object> loadElements(String key, Bitmap positions);
+
+    /**
+     * Index the words of a String property of the objects of a class
+     */
+    public void createTextIndex(Class<?> type, String property);
+
+    /**
+     * Find the objects whose text property contains every word of some text
+     */
+    public List<String> search(Class<?> type, String property, String words);
+
+    /**
+     * Find the objects whose text property has a word starting with some
+     * text
+     */
+    public List<String> searchPrefix(Class<?> type, String property, String prefix);
+}
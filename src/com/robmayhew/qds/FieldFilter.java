@@ -0,0 +1,194 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+/**
+ * <p>A condition on the saved fields of an object, used by
+ * <code>QuickDataStore.query</code> to pick elements of a stored list.</p>
+ * <p>Filters are checked against the fields as they were saved, before any
+ * object is created, so only the matching elements are created.</p>
+ * <pre>
+ * FieldFilter filter = FieldFilter.gt("Age", 30).and(FieldFilter.eq("Active", true));
+ * List&lt;Object&gt; found = store.query("people", filter);</pre>
+ * <p>Fields are named as they are saved, <code>"Age"</code> for
+ * <code>getAge()</code>. Numbers compare with numbers, Strings with
+ * Strings and booleans with booleans, a comparison of any other types, or
+ * with a field that is not saved, does not match. Elements of a list that
+ * are not objects never match.</p>
+ */
+public abstract class FieldFilter
+{
+    FieldFilter()
+    {
+    }
+
+    /**
+     * @param data the saved fields of an object
+     */
+    abstract boolean matches(QDSJSONObject data);
+
+    public static FieldFilter eq(String field, Object value)
+    {
+        return new Comparison(field, "==", value);
+    }
+
+    public static FieldFilter ne(String field, Object value)
+    {
+        return new Comparison(field, "!=", value);
+    }
+
+    public static FieldFilter lt(String field, Object value)
+    {
+        return new Comparison(field, "<", value);
+    }
+
+    public static FieldFilter le(String field, Object value)
+    {
+        return new Comparison(field, "<=", value);
+    }
+
+    public static FieldFilter gt(String field, Object value)
+    {
+        return new Comparison(field, ">", value);
+    }
+
+    public static FieldFilter ge(String field, Object value)
+    {
+        return new Comparison(field, ">=", value);
+    }
+
+    /**
+     * @return a filter matching objects that match this and the other
+     *         filter, the other filter is only checked if this one matches
+     */
+    public FieldFilter and(final FieldFilter other)
+    {
+        final FieldFilter self = this;
+        return new FieldFilter()
+        {
+            boolean matches(QDSJSONObject data)
+            {
+                return self.matches(data) && other.matches(data);
+            }
+
+            public String toString()
+            {
+                return "(" + self + " && " + other + ")";
+            }
+        };
+    }
+
+    /**
+     * @return a filter matching objects that match this or the other
+     *         filter, the other filter is only checked if this one does not
+     *         match
+     */
+    public FieldFilter or(final FieldFilter other)
+    {
+        final FieldFilter self = this;
+        return new FieldFilter()
+        {
+            boolean matches(QDSJSONObject data)
+            {
+                return self.matches(data) || other.matches(data);
+            }
+
+            public String toString()
+            {
+                return "(" + self + " || " + other + ")";
+            }
+        };
+    }
+
+    /**
+     * Compare two saved values
+     *
+     * @return the comparison, or null if the values can't be compared
+     */
+    static Integer compare(Object a, Object b)
+    {
+        if (a instanceof Number && b instanceof Number)
+        {
+            if (isIntegral(a) && isIntegral(b))
+            {
+                long x = ((Number) a).longValue();
+                long y = ((Number) b).longValue();
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+        if (a instanceof String && b instanceof String)
+            return ((String) a).compareTo((String) b);
+        if (a instanceof Boolean && b instanceof Boolean)
+            return ((Boolean) a).compareTo((Boolean) b);
+        return null;
+    }
+
+    private static boolean isIntegral(Object n)
+    {
+        return n instanceof Integer || n instanceof Long ||
+                n instanceof Short || n instanceof Byte;
+    }
+
+    private static final class Comparison extends FieldFilter
+    {
+        private final String field;
+        private final String op;
+        private final Object value;
+
+        Comparison(String field, String op, Object value)
+        {
+            this.field = field;
+            this.op = op;
+            this.value = value;
+        }
+
+        boolean matches(QDSJSONObject data)
+        {
+            Object saved = data.opt(field);
+            if (QDSJSONObject.NULL.equals(saved))
+                saved = null;
+            if (saved == null || value == null)
+            {
+                if ("==".equals(op))
+                    return saved == value;
+                if ("!=".equals(op))
+                    return saved != value;
+                return false;
+            }
+            Integer c = compare(saved, value);
+            if (c == null)
+                return false;
+            if ("==".equals(op))
+                return c == 0;
+            if ("!=".equals(op))
+                return c != 0;
+            if ("<".equals(op))
+                return c < 0;
+            if ("<=".equals(op))
+                return c <= 0;
+            if (">".equals(op))
+                return c > 0;
+            return c >= 0;
+        }
+
+        public String toString()
+        {
+            return field + " " + op + " " + value;
+        }
+    }
+}
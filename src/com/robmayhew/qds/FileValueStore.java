@@ -17,130 +17,1290 @@
 package com.robmayhew.qds;
 
 import java.io.*;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 
-public class FileValueStore implements ValueStore
+/**
+ * <p>Stores values in text files, one <code>key=value</code> per line,
+ * plus a write ahead log.</p>
+ * <p>A save appends the changed values to the log and keeps them in
+ * memory. A checkpoint writes the values saved since the last checkpoint
+ * to a new segment file and empties the log. A save that finds the log
+ * has grown past a limit or the checkpoint interval has passed hands the
+ * checkpoint to a background thread, and {@link #checkpoint()} runs one
+ * straight away. The segment is written without holding the lock, as
+ * {@link IoScheduler.Work#MAINTENANCE} work in the background, and the
+ * lock is only taken to list it, together with a small segment of the
+ * saves made while it was written, and to empty the log. A removed key is
+ * recorded in the log and in its segment until a merge into the data file
+ * drops it, a removed range of keys is recorded the same way as a single
+ * record. How often the log is synced to disk is set by the
+ * {@link Durability} passed in, the default is
+ * {@link Durability#PERIODIC}.</p>
+ * <p>A checkpoint file lists the segments and which log epoch they cover.
+ * Opening a store reads the keys of each segment from its hint file, maps
+ * the segments into memory without reading the values, and replays only
+ * the log written since the last checkpoint.</p>
+ * <p>After a checkpoint a background thread merges segments picked by the
+ * {@link CompactionPolicy}. A merge reads and writes its segments without
+ * holding the lock, at the rate the {@link IoScheduler} allows
+ * {@link IoScheduler.Work#COMPACTION}, and only takes the exclusive lock
+ * to list the merged segments in place of the ones they replace. Should
+ * there ever be too many segments anyway they are all merged back into
+ * the data file during the checkpoint.</p>
+ * <p>The contents of the store are held as an immutable snapshot. Loads
+ * read the current snapshot without locking and never wait for a save in
+ * progress. A save builds the next snapshot, writes it and then publishes
+ * the new snapshot in one step, so a reader sees either all of a save or
+ * none of it.</p>
+ * <p>Stores in this and other processes can share the same file. Reading
+ * the files takes a shared lock and a save holds an exclusive lock only
+ * while it commits. Every commit bumps a generation counter kept in a lock
+ * file next to the data file, a load compares it with the generation of its
+ * snapshot and only reads the new end of the log when they differ.</p>
+ * <p>Deleting the data file empties the store, the other files are ignored
+ * without it.</p>
+ */
+public class FileValueStore implements OrderedValueStore
 {
+    private static final long LOG_LIMIT = 4 * 1024 * 1024;
+    private static final long DEFAULT_SYNC_INTERVAL = 1000;
+    private static final long DEFAULT_CHECKPOINT_INTERVAL = 60 * 1000;
+    private static final int MAX_SEGMENTS = 32;
+    private static final String CHECKPOINT_HEADER = "#qds-checkpoint";
+    private static final Random RANDOM = new Random();
+    private static final List<WriteBatch.Range> NO_RANGES =
+            Collections.emptyList();
+
+    private static final Logger LOG = Logger.getLogger(FileValueStore.class.getName());
+    private static final ExecutorService COMPACTOR = background("QDS compaction");
+    private static final ExecutorService CHECKPOINTER = background("QDS checkpoint");
+
     private final String filePath;
+    private final StoreLock storeLock;
+    private final WriteAheadLog log;
+    private volatile Snapshot snapshot;
+    private volatile long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    private volatile long lastCheckpoint = System.currentTimeMillis();
+    private volatile CompactionPolicy compactionPolicy = CompactionPolicy.defaultPolicy();
+    private final Object compactionLock = new Object();
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    private Future<?> compaction;
+    private final Object checkpointLock = new Object();
+    private final AtomicBoolean checkpointScheduled = new AtomicBoolean();
+    private Future<?> checkpointing;
+    private volatile boolean closed;
+    private final AtomicLong savedBytes = new AtomicLong();
+    private final AtomicLong writtenBytes = new AtomicLong();
+    private final AtomicLong compactions = new AtomicLong();
+    private final AtomicLong compactedBytes = new AtomicLong();
 
     public FileValueStore(String filePath)
+    {
+        this(filePath, Durability.PERIODIC);
+    }
+
+    public FileValueStore(String filePath, Durability durability)
+    {
+        this(filePath, durability, DEFAULT_SYNC_INTERVAL);
+    }
+
+    /**
+     * @param filePath           path of the data file
+     * @param durability         when to sync the log to disk
+     * @param syncIntervalMillis how often to sync in
+     *                           {@link Durability#PERIODIC} mode
+     */
+    public FileValueStore(String filePath, Durability durability,
+                          long syncIntervalMillis)
     {
         this.filePath = filePath;
+        this.storeLock = StoreLock.forFile(filePath);
+        this.log = new WriteAheadLog(new File(filePath + ".wal"), durability,
+                syncIntervalMillis);
+    }
+
+    /**
+     * Set the longest time saves stay only in the log, which bounds how
+     * much log is replayed when the store is opened. The default is one
+     * minute.
+     *
+     * @param millis the interval in milliseconds
+     */
+    public void setCheckpointInterval(long millis)
+    {
+        this.checkpointInterval = millis;
+    }
+
+    /**
+     * Set which segments the background compaction merges, the default is
+     * {@link CompactionPolicy#defaultPolicy()}
+     *
+     * @param policy the policy, or null to only merge when
+     *               {@link #compact()} is called
+     */
+    public void setCompactionPolicy(CompactionPolicy policy)
+    {
+        this.compactionPolicy = policy;
     }
 
     public void writeValue(String key, String value) throws QDSException
     {
-        File f = new File(filePath);
-        File swapFile = new File(filePath + ".swap");
-        if (swapFile.exists())
+        WriteBatch batch = new WriteBatch();
+        batch.put(key, value);
+        writeValues(batch);
+    }
+
+    /**
+     * All values in the batch are appended to the log as one record
+     */
+    public void writeValues(WriteBatch batch) throws QDSException
+    {
+        boolean foreground = IoScheduler.enter(batch.bytes());
+        try
+        {
+            write(batch);
+        } finally
+        {
+            if (foreground)
+                IoScheduler.exit();
+        }
+    }
+
+    private void write(WriteBatch batch)
+    {
+        long sequence;
+        boolean checkpointDue;
+        storeLock.lockExclusive();
+        try
+        {
+            long generation = storeLock.readGeneration();
+            Snapshot s = refresh(snapshot, generation);
+            if (s.logEpoch < 0)
+                s = startLog(s);
+            Snapshot next = apply(s, batch);
+            if (log.size() > s.logSize)
+                log.truncate(s.logSize);
+            sequence = log.append(batch);
+            long logSize = log.size();
+            savedBytes.addAndGet(logSize - s.logSize);
+            writtenBytes.addAndGet(logSize - s.logSize);
+            storeLock.writeGeneration(generation + 1);
+            snapshot = new Snapshot(next.index, next.memtable, next.ranges, s.segments,
+                    generation + 1, s.logEpoch, logSize);
+            checkpointDue = logSize > LOG_LIMIT ||
+                    System.currentTimeMillis() - lastCheckpoint >= checkpointInterval;
+        } catch (IOException e)
+        {
+            throw new QDSException("Error writing file " + filePath, e);
+        } finally
+        {
+            storeLock.unlockExclusive();
+        }
+        if (checkpointDue)
+            scheduleCheckpoint();
+        try
+        {
+            log.awaitDurable(sequence);
+        } catch (IOException e)
+        {
+            throw new QDSException("Error syncing log for " + filePath, e);
+        }
+    }
+
+    public String loadValue(String key)
+    {
+        Object value = currentSnapshot().index.get(key);
+        if (value instanceof Segment.Ref)
+            return read((Segment.Ref) value);
+        return (String) value;
+    }
+
+    /**
+     * The scan reads the snapshot current when it starts, saves made while
+     * iterating are not seen.
+     */
+    public Iterator<Map.Entry<String, String>> scan(String fromKey, String toKey)
+    {
+        return new Values(currentSnapshot().index, fromKey, toKey).iterator();
+    }
+
+    /**
+     * Write everything saved since the last checkpoint to a segment and
+     * empty the log
+     */
+    public void checkpoint()
+    {
+        boolean compact;
+        try
+        {
+            compact = writeCheckpoint();
+        } catch (IOException e)
+        {
+            throw new QDSException("Error writing checkpoint for " + filePath, e);
+        }
+        if (compact)
+            scheduleCompaction();
+    }
+
+    /**
+     * Merge segments until the compaction policy picks no more, without
+     * waiting for the background compaction
+     *
+     * @return how many merges were made
+     */
+    public int compact()
+    {
+        CompactionPolicy policy = compactionPolicy;
+        if (policy == null)
+            policy = CompactionPolicy.defaultPolicy();
+        int merges = 0;
+        try
+        {
+            while (compactOnce(policy))
+            {
+                merges++;
+            }
+        } catch (IOException e)
+        {
+            throw new QDSException("Error compacting " + filePath, e);
+        }
+        return merges;
+    }
+
+    /**
+     * @return the path of the data file
+     */
+    public String getFilePath()
+    {
+        return filePath;
+    }
+
+    /**
+     * @return how many keys the store holds, including the keys
+     *         <code>QuickDataStore</code> keeps for its indexes
+     */
+    public int keyCount()
+    {
+        return currentSnapshot().index.size();
+    }
+
+    /**
+     * @return how many saves have been appended to the log and not yet
+     *         synced to disk, always 0 in {@link Durability#ALWAYS} mode
+     */
+    public long unsyncedSaves()
+    {
+        return log.unsynced();
+    }
+
+    /**
+     * @return true while segments are being merged in the background
+     */
+    public boolean isCompacting()
+    {
+        return compactionScheduled.get();
+    }
+
+    /**
+     * How much is on disk and how much has been written to keep it there.
+     * The live bytes are counted from every key, so this takes time in
+     * proportion to the size of the store.
+     */
+    public CompactionStats compactionStats()
+    {
+        Snapshot s = currentSnapshot();
+        long[] live = liveBytes(s);
+        long total = 0;
+        long liveTotal = 0;
+        for (int i = 0; i < live.length; i++)
+        {
+            total += s.segments.get(i).size();
+            liveTotal += live[i];
+        }
+        return new CompactionStats(s.segments.size(), total, liveTotal, savedBytes.get(),
+                writtenBytes.get(), compactions.get(), compactedBytes.get());
+    }
+
+    /**
+     * Sync the log and stop its background thread. A background checkpoint
+     * or merge that has not started is cancelled, a checkpoint in progress
+     * is finished and a merge in progress gives up, close returns once they
+     * have. The lock file is closed once every store using it is closed.
+     * Closing again does nothing.
+     */
+    public void close()
+    {
+        Future<?> pendingCheckpoint;
+        Future<?> pendingCompaction;
+        synchronized (this)
+        {
+            if (closed)
+                return;
+            closed = true;
+            pendingCheckpoint = checkpointing;
+            pendingCompaction = compaction;
+            checkpointing = null;
+            compaction = null;
+        }
+        // A future cancelled while running still runs, the locks are waited
+        // on for that
+        if (pendingCheckpoint != null)
+            pendingCheckpoint.cancel(false);
+        if (pendingCompaction != null)
+            pendingCompaction.cancel(false);
+        checkpointScheduled.set(false);
+        compactionScheduled.set(false);
+        synchronized (checkpointLock)
+        {
+            // Wait for the checkpoint in progress to finish
+        }
+        synchronized (compactionLock)
         {
-            if (!swapFile.delete())
-                throw new QDSException("Unable to delete swap file "
-                        + swapFile.getPath());
+            // Wait for the merge in progress to give up
         }
         try
         {
+            log.close();
+        } catch (IOException e)
+        {
+            throw new QDSException("Error closing " + filePath, e);
+        } finally
+        {
+            storeLock.release();
+        }
+    }
+
+    private Snapshot currentSnapshot()
+    {
+        Snapshot s = snapshot;
+        if (s != null && s.generation == storeLock.readGeneration())
+            return s;
+        storeLock.lockShared();
+        try
+        {
+            s = refresh(snapshot, storeLock.readGeneration());
+            snapshot = s;
+            return s;
+        } catch (IOException e)
+        {
+            throw new QDSException("Error loading " + filePath, e);
+        } finally
+        {
+            storeLock.unlockShared();
+        }
+    }
 
-            renameToSwapFile(f, swapFile);
-            if (!swapFile.exists())
+    /**
+     * Bring a snapshot up to date, a lock must be held. If the log has not
+     * been emptied since the snapshot was taken only the records added
+     * since then are read.
+     */
+    private Snapshot refresh(Snapshot s, long generation) throws IOException
+    {
+        if (s != null && s.generation == generation)
+            return s;
+        long epoch = log.epoch();
+        if (s == null || s.logEpoch < 0 || s.logEpoch != epoch)
+            return open(generation);
+        List<WriteBatch> batches = new ArrayList<WriteBatch>();
+        long logSize = log.replay(s.logSize, batches);
+        for (WriteBatch batch : batches)
+        {
+            s = apply(s, batch);
+        }
+        return new Snapshot(s.index, s.memtable, s.ranges, s.segments, generation,
+                epoch, logSize);
+    }
+
+    /**
+     * Read the store from disk: the keys of each segment listed by the
+     * checkpoint, then any log the checkpoint does not cover.
+     */
+    private Snapshot open(long generation) throws IOException
+    {
+        File f = new File(filePath);
+        restoreSwapFile(f);
+        List<Segment> segments = new ArrayList<Segment>();
+        if (!f.exists())
+        {
+            return new Snapshot(KeyIndex.<Object>empty(), KeyIndex.<String>empty(),
+                    NO_RANGES, segments, generation, -1, 0);
+        }
+        long coveredEpoch = -1;
+        List<Integer> ids = Collections.singletonList(0);
+        File checkpointFile = new File(filePath + ".checkpoint");
+        if (checkpointFile.exists())
+        {
+            BufferedReader reader = new BufferedReader(new FileReader(checkpointFile));
+            try
             {
-                // First write
-                PrintWriter writer = new PrintWriter(new FileWriter(filePath));
-                try
+                if (!CHECKPOINT_HEADER.equals(reader.readLine()))
+                    throw new QDSException("Invalid checkpoint " + checkpointFile.getPath());
+                coveredEpoch = Long.parseLong(reader.readLine());
+                ids = new ArrayList<Integer>();
+                for (String id : reader.readLine().split(","))
                 {
-                    writer.println(key + "=" + value);
-                } finally
+                    ids.add(Integer.parseInt(id));
+                }
+            } finally
+            {
+                reader.close();
+            }
+        }
+        TreeMap<String, Object> values = new TreeMap<String, Object>();
+        for (int id : ids)
+        {
+            Segment segment = Segment.forId(filePath, id);
+            if (!segment.file.exists())
+                throw new QDSException("Missing segment " + segment.file.getPath());
+            segment.open(values);
+            segments.add(segment);
+        }
+        TreeMap<String, String> memtable = new TreeMap<String, String>();
+        List<WriteBatch.Range> ranges = new ArrayList<WriteBatch.Range>();
+        long epoch = log.epoch();
+        long logSize = 0;
+        if (epoch == coveredEpoch)
+        {
+            epoch = -1;
+        } else if (epoch >= 0)
+        {
+            List<WriteBatch> batches = new ArrayList<WriteBatch>();
+            logSize = log.replay(WriteAheadLog.HEADER_SIZE, batches);
+            for (WriteBatch batch : batches)
+            {
+                for (WriteBatch.Range range : batch.ranges())
                 {
-                    writer.flush();
-                    writer.close();
+                    range.removeFrom(memtable);
+                    ranges.add(range);
                 }
-                return;
+                memtable.putAll(batch.values());
+            }
+            for (WriteBatch.Range range : ranges)
+            {
+                range.removeFrom(values);
+            }
+            for (Map.Entry<String, String> e : memtable.entrySet())
+            {
+                if (e.getValue() == null)
+                    values.remove(e.getKey());
+                else
+                    values.put(e.getKey(), e.getValue());
             }
-            replaceValueInFile(key, value, swapFile);
-        } catch (Exception e)
+        }
+        return new Snapshot(
+                KeyIndex.fromSorted(new ArrayList<Map.Entry<String, Object>>(values.entrySet())),
+                KeyIndex.fromSorted(new ArrayList<Map.Entry<String, String>>(memtable.entrySet())),
+                ranges, segments, generation, epoch, logSize);
+    }
+
+    /**
+     * Start a new log, creating the data file if there is none. The log is
+     * started over when there is no valid log or the last checkpoint already
+     * covers everything in it.
+     */
+    private Snapshot startLog(Snapshot s) throws IOException
+    {
+        List<Segment> segments = s.segments;
+        if (!new File(filePath).exists())
         {
-            throw new RuntimeException("Error writing file", e);
+            File checkpointFile = new File(filePath + ".checkpoint");
+            if (checkpointFile.exists() && !checkpointFile.delete())
+                throw new QDSException("Unable to delete " + checkpointFile.getPath());
+            Segment base = Segment.forId(filePath, 0);
+            writeDataFile(base, Collections.<Map.Entry<String, String>>emptyList(),
+                    new ArrayList<Map.Entry<String, Object>>());
+            segments = Collections.singletonList(base);
         }
+        long epoch = newEpoch();
+        log.reset(epoch);
+        return new Snapshot(s.index, s.memtable, s.ranges, segments, s.generation,
+                epoch, log.size());
     }
 
-    private void replaceValueInFile(String key, String value, File swapFile)
-            throws IOException
+    /**
+     * Checkpoint holding the lock only to list what was written. The saves
+     * in the current snapshot are written to a temporary segment first, at
+     * the rate the {@link IoScheduler} allows the work of the thread.
+     * Then, under the lock, the saves made meanwhile are read back from the
+     * log and checkpointed behind it. Should another store have emptied
+     * the log in the meantime the temporary segment is not used.
+     *
+     * @return true if segments were added, so a merge may be due
+     */
+    private boolean writeCheckpoint() throws IOException
     {
-        PrintWriter writer = new PrintWriter(new FileWriter(filePath));
-        BufferedReader reader = new BufferedReader(new FileReader(swapFile));
-        boolean valueWritten = false;
+        long start = System.nanoTime();
+        lastCheckpoint = System.currentTimeMillis();
+        Snapshot s = currentSnapshot();
+        Segment prepared = null;
+        boolean listed = false;
+        List<Map.Entry<String, Object>> refs = new ArrayList<Map.Entry<String, Object>>();
         try
         {
-            while (reader.ready())
+            if (s.logEpoch >= 0 && (s.memtable.size() > 0 || !s.ranges.isEmpty()))
             {
-                String line = reader.readLine();
-                if (line.startsWith(key + "="))
-                {
-                    writer.println(key + "=" + value);
-                    valueWritten = true;
-                } else
+                prepared = Segment.temporary(filePath);
+                prepared.write(prepared.file, s.memtable, s.ranges, refs, true);
+                prepared.map();
+            }
+            storeLock.lockExclusive();
+            try
+            {
+                Snapshot current = refresh(snapshot, storeLock.readGeneration());
+                if (current.logEpoch < 0)
                 {
-                    writer.println(line);
+                    snapshot = current;
+                    return false;
                 }
+                listed = prepared != null && current.logEpoch == s.logEpoch;
+                if (listed)
+                    current = savedSince(s, current, refs);
+                Snapshot checkpointed = checkpoint(current, listed ? prepared : null, start);
+                snapshot = checkpointed;
+                return checkpointed.segments != current.segments;
+            } finally
+            {
+                storeLock.unlockExclusive();
             }
-            if(!valueWritten)
-                writer.println(key + "=" + value);
         } finally
         {
-            reader.close();
-            writer.flush();
-            writer.close();
-            cleanupSwapFile(swapFile);
+            if (prepared != null && !listed)
+                prepared.delete();
         }
     }
 
-    private void renameToSwapFile(File f, File swapFile)
+    /**
+     * The current snapshot as it will be once a segment written from an
+     * earlier one of the same log epoch is listed: the index refers to the
+     * segment, and the memtable and ranges hold only the saves made since
+     * the earlier snapshot
+     *
+     * @param refs the references to the values written to the segment
+     */
+    private Snapshot savedSince(Snapshot earlier, Snapshot current,
+                                List<Map.Entry<String, Object>> refs) throws IOException
     {
-        if (f.exists())
+        KeyIndex<Object> index = earlier.index;
+        for (Map.Entry<String, Object> ref : refs)
         {
-            if (!f.renameTo(swapFile))
-                throw new RuntimeException("Unable to rename file " +
-                        filePath + " for writing");
+            if (ref.getValue() != null)
+                index = index.put(ref.getKey(), ref.getValue());
         }
+        Snapshot s = new Snapshot(index, KeyIndex.<String>empty(), NO_RANGES,
+                current.segments, current.generation, current.logEpoch, current.logSize);
+        List<WriteBatch> batches = new ArrayList<WriteBatch>();
+        log.replay(earlier.logSize, batches);
+        for (WriteBatch batch : batches)
+        {
+            s = apply(s, batch);
+        }
+        return s;
+    }
+
+    private Snapshot checkpoint(Snapshot s) throws IOException
+    {
+        return checkpoint(s, null, System.nanoTime());
     }
 
-    private void cleanupSwapFile(File swapFile)
+    /**
+     * Write the values saved since the last checkpoint to a new segment,
+     * list it in the checkpoint file and start a new log epoch.
+     * A crash before the checkpoint file is replaced leaves an unused
+     * segment and the old log is replayed. A crash after it leaves a log
+     * the checkpoint says it covers, so the log is not replayed.
+     *
+     * @param prepared a segment already written with the values saved
+     *                 before those in the memtable, listed ahead of them,
+     *                 or null
+     */
+    private Snapshot checkpoint(Snapshot s, Segment prepared, long start) throws IOException
     {
-        if (!swapFile.delete())
+        lastCheckpoint = System.currentTimeMillis();
+        boolean saved = s.memtable.size() > 0 || !s.ranges.isEmpty();
+        if (prepared == null && !saved)
+            return s;
+        int id = 0;
+        for (Segment segment : s.segments)
         {
-            System.err.println("Unable to delete swap file " + swapFile.getPath());
+            id = Math.max(id, segment.id);
+        }
+        List<Segment> segments = new ArrayList<Segment>(s.segments);
+        long written = 0;
+        if (prepared != null)
+        {
+            prepared.moveTo(filePath, ++id);
+            segments.add(prepared);
+            written += prepared.size();
+        }
+        KeyIndex<Object> index = s.index;
+        List<Map.Entry<String, Object>> refs = new ArrayList<Map.Entry<String, Object>>();
+        if (saved)
+        {
+            Segment segment = Segment.forId(filePath, ++id);
+            segment.write(segment.file, s.memtable, s.ranges, refs);
+            segment.map();
+            written += segment.size();
+            for (Map.Entry<String, Object> ref : refs)
+            {
+                if (ref.getValue() != null)
+                    index = index.put(ref.getKey(), ref.getValue());
+            }
+            segments.add(segment);
         }
+        List<Segment> merged = Collections.emptyList();
+        if (segments.size() > MAX_SEGMENTS)
+        {
+            merged = segments;
+            Segment base = Segment.forId(filePath, 0);
+            refs.clear();
+            writeDataFile(base, new Values(index, null, null), refs);
+            written += base.size();
+            index = KeyIndex.fromSorted(refs);
+            segments = Collections.singletonList(base);
+        }
+        writeCheckpointFile(s.logEpoch, segments);
+        long epoch = newEpoch();
+        log.reset(epoch);
+        for (Segment old : merged)
+        {
+            if (old.id != 0)
+                old.delete();
+        }
+        writtenBytes.addAndGet(written);
+        StoreEvent.fire(StoreEvent.Type.FILE_REWRITE, filePath, written, null, start);
+        return new Snapshot(index, KeyIndex.<String>empty(), NO_RANGES, segments,
+                s.generation, epoch, log.size());
     }
 
-    public String loadValue(String key)
+    /**
+     * Apply a batch to the index and memtable of a snapshot, the removed
+     * ranges first and then the values, a null value removes the key
+     *
+     * @return a snapshot with the new index, memtable and ranges, the rest
+     *         is left as it was
+     */
+    private static Snapshot apply(Snapshot s, WriteBatch batch)
     {
-        File f = new File(filePath);
-        if (!f.exists())
-            return null;
-        String jsonString = null;
+        KeyIndex<Object> index = s.index;
+        KeyIndex<String> memtable = s.memtable;
+        List<WriteBatch.Range> ranges = s.ranges;
+        if (!batch.ranges().isEmpty())
+        {
+            ranges = new ArrayList<WriteBatch.Range>(ranges);
+            for (WriteBatch.Range range : batch.ranges())
+            {
+                index = index.removeRange(range.fromKey, range.toKey);
+                memtable = memtable.removeRange(range.fromKey, range.toKey);
+                ranges.add(range);
+            }
+        }
+        for (Map.Entry<String, String> e : batch.values().entrySet())
+        {
+            if (e.getValue() == null)
+                index = index.remove(e.getKey());
+            else
+                index = index.put(e.getKey(), e.getValue());
+            memtable = memtable.put(e.getKey(), e.getValue());
+        }
+        return new Snapshot(index, memtable, ranges, s.segments, s.generation,
+                s.logEpoch, s.logSize);
+    }
+
+    private void scheduleCheckpoint()
+    {
+        synchronized (this)
+        {
+            if (closed || !checkpointScheduled.compareAndSet(false, true))
+                return;
+            checkpointing = CHECKPOINTER.submit(new Runnable()
+            {
+                public void run()
+                {
+                    long start = System.nanoTime();
+                    boolean compact = false;
+                    IoScheduler.Work previous = IoScheduler.begin(IoScheduler.Work.MAINTENANCE);
+                    try
+                    {
+                        synchronized (checkpointLock)
+                        {
+                            if (!closed)
+                                compact = writeCheckpoint();
+                        }
+                    } catch (Exception e)
+                    {
+                        // A store that was deleted gives up quietly
+                        if (new File(filePath).exists())
+                            backgroundFailed(StoreEvent.Type.CHECKPOINT_FAILED,
+                                    "Unable to checkpoint ", e, start);
+                    } finally
+                    {
+                        IoScheduler.end(previous);
+                        checkpointScheduled.set(false);
+                    }
+                    if (compact)
+                        scheduleCompaction();
+                }
+            });
+        }
+    }
+
+    private void scheduleCompaction()
+    {
+        final CompactionPolicy policy = compactionPolicy;
+        if (policy == null)
+            return;
+        synchronized (this)
+        {
+            if (closed || !compactionScheduled.compareAndSet(false, true))
+                return;
+            compaction = COMPACTOR.submit(new Runnable()
+            {
+                public void run()
+                {
+                    long start = System.nanoTime();
+                    try
+                    {
+                        while (compactOnce(policy))
+                        {
+                            // Keep merging until the policy picks nothing
+                        }
+                    } catch (Exception e)
+                    {
+                        // A store that was closed or deleted gives up quietly
+                        if (!closed && new File(filePath).exists())
+                            backgroundFailed(StoreEvent.Type.COMPACTION_FAILED,
+                                    "Unable to compact ", e, start);
+                    } finally
+                    {
+                        compactionScheduled.set(false);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Tell the event listeners and the log of background work that failed,
+     * there is no caller to throw to
+     */
+    private void backgroundFailed(StoreEvent.Type type, String message, Exception e, long start)
+    {
+        LOG.log(Level.WARNING, message + filePath, e);
+        StoreEvent.fireFailure(type, filePath, e, start);
+    }
+
+    private static ExecutorService background(final String name)
+    {
+        return Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Read a value from a segment, letting the {@link IoScheduler} know
+     */
+    private static String read(Segment.Ref ref)
+    {
+        boolean foreground = IoScheduler.enter(ref.length);
         try
         {
-            BufferedReader reader = new BufferedReader(new FileReader(filePath));
+            return ref.read();
+        } finally
+        {
+            if (foreground)
+                IoScheduler.exit();
+        }
+    }
+
+    /**
+     * Merge the run of segments a policy picks. The run is read and the
+     * merged segments written under temporary names without holding the
+     * lock, as compaction work for the {@link IoScheduler}, then they
+     * replace the run if it is still listed. A merge that would not leave
+     * fewer segments or fewer bytes is not made.
+     *
+     * @return true if a merge was made
+     */
+    private boolean compactOnce(CompactionPolicy policy) throws IOException
+    {
+        IoScheduler.Work previous = IoScheduler.begin(IoScheduler.Work.COMPACTION);
+        try
+        {
+            return compactRun(policy);
+        } finally
+        {
+            IoScheduler.end(previous);
+        }
+    }
+
+    private boolean compactRun(CompactionPolicy policy) throws IOException
+    {
+        synchronized (compactionLock)
+        {
+            if (closed)
+                return false;
+            Snapshot s = currentSnapshot();
+            long[] sizes = new long[s.segments.size()];
+            for (int i = 0; i < sizes.length; i++)
+            {
+                sizes[i] = s.segments.get(i).size();
+            }
+            int[] run = policy.select(sizes, liveBytes(s));
+            if (run == null)
+                return false;
+            long start = System.nanoTime();
+            List<Segment> merging = new ArrayList<Segment>(s.segments.subList(run[0], run[1]));
+            long mergingBytes = 0;
+            for (int i = run[0]; i < run[1]; i++)
+            {
+                mergingBytes += sizes[i];
+            }
+            List<Segment> merged = new ArrayList<Segment>();
+            List<Map.Entry<String, Object>> refs = new ArrayList<Map.Entry<String, Object>>();
+            boolean installed = false;
             try
             {
-                while (reader.ready())
+                merge(s.index, merging, merged, refs);
+                long mergedBytes = 0;
+                for (Segment segment : merged)
+                {
+                    mergedBytes += segment.size();
+                }
+                if (merged.size() >= merging.size() && mergedBytes >= mergingBytes)
+                    return false;
+                installed = install(merging, merged, refs);
+                if (installed)
+                {
+                    compactions.incrementAndGet();
+                    compactedBytes.addAndGet(mergedBytes);
+                    writtenBytes.addAndGet(mergedBytes);
+                    StoreEvent.fire(StoreEvent.Type.COMPACTION, filePath, mergedBytes, null, start);
+                }
+                return installed;
+            } finally
+            {
+                if (!installed)
                 {
-                    String line = reader.readLine();
-                    if (line.startsWith(key + "="))
+                    for (Segment segment : merged)
                     {
-                        int i = line.indexOf("=");
-                        jsonString = line.substring(i + 1);
+                        if (segment.id < 0)
+                            segment.delete();
                     }
                 }
-            } finally
+            }
+        }
+    }
+
+    /**
+     * Merge a run of segments into new ones under temporary names. Values
+     * no longer used are dropped, and when the run starts with the data
+     * file so are removed keys and ranges, there is nothing older left for
+     * them to remove. Keys found in more than one segment of the run are
+     * written to a segment of their own after the others.
+     *
+     * @param index  the index of the snapshot the run was picked from
+     * @param merged the new segments are added here, the first replaces the
+     *               data file if the run starts with it
+     * @param refs   a reference to each value written is added here
+     */
+    private void merge(KeyIndex<Object> index, List<Segment> merging,
+                       List<Segment> merged, List<Map.Entry<String, Object>> refs)
+            throws IOException
+    {
+        boolean intoBase = merging.get(0).id == 0;
+        TreeMap<String, Object> values = new TreeMap<String, Object>();
+        Set<String> rewritten = new HashSet<String>();
+        List<WriteBatch.Range> ranges = new ArrayList<WriteBatch.Range>();
+        for (Segment segment : merging)
+        {
+            TreeMap<String, Object> contents = new TreeMap<String, Object>();
+            List<WriteBatch.Range> segmentRanges = new ArrayList<WriteBatch.Range>();
+            segment.contents(contents, segmentRanges);
+            for (WriteBatch.Range range : segmentRanges)
             {
-                reader.close();
+                range.removeFrom(values);
+                if (!intoBase)
+                    ranges.add(range);
             }
-        } catch (Exception e)
+            for (Map.Entry<String, Object> e : contents.entrySet())
+            {
+                if (values.containsKey(e.getKey()))
+                    rewritten.add(e.getKey());
+                values.put(e.getKey(), e.getValue());
+            }
+        }
+        List<Map.Entry<String, Object>> stable = new ArrayList<Map.Entry<String, Object>>();
+        List<Map.Entry<String, Object>> changing = new ArrayList<Map.Entry<String, Object>>();
+        for (Map.Entry<String, Object> e : values.entrySet())
         {
-            throw new RuntimeException("Error loading " + filePath, e);
+            Object value = e.getValue();
+            if (value == null ? intoBase : !isLive(index, e.getKey(), (Segment.Ref) value))
+                continue;
+            if (rewritten.contains(e.getKey()))
+                changing.add(e);
+            else
+                stable.add(e);
         }
-        return jsonString;
+        if (intoBase || !stable.isEmpty() || !ranges.isEmpty())
+            writeMerged(stable, ranges, merged, refs);
+        if (!changing.isEmpty())
+            writeMerged(changing, NO_RANGES, merged, refs);
+    }
+
+    private static boolean isLive(KeyIndex<Object> index, String key, Segment.Ref ref)
+    {
+        Object current = index.get(key);
+        return current instanceof Segment.Ref
+                && ((Segment.Ref) current).segment == ref.segment
+                && ((Segment.Ref) current).position == ref.position;
+    }
+
+    private void writeMerged(final List<Map.Entry<String, Object>> entries,
+                             List<WriteBatch.Range> ranges, List<Segment> merged,
+                             List<Map.Entry<String, Object>> refs)
+            throws IOException
+    {
+        Segment segment = Segment.temporary(filePath);
+        merged.add(segment);
+        Iterable<Map.Entry<String, String>> values = new Iterable<Map.Entry<String, String>>()
+        {
+            public Iterator<Map.Entry<String, String>> iterator()
+            {
+                final Iterator<Map.Entry<String, Object>> it = entries.iterator();
+                return new Iterator<Map.Entry<String, String>>()
+                {
+                    public boolean hasNext()
+                    {
+                        return it.hasNext();
+                    }
+
+                    public Map.Entry<String, String> next()
+                    {
+                        if (closed)
+                            throw new QDSException("Store closed " + filePath);
+                        Map.Entry<String, Object> e = it.next();
+                        Segment.Ref ref = (Segment.Ref) e.getValue();
+                        if (ref == null)
+                            return new AbstractMap.SimpleImmutableEntry<String, String>(e.getKey(), null);
+                        IoScheduler.throttle(ref.length);
+                        return new AbstractMap.SimpleImmutableEntry<String, String>(
+                                e.getKey(), ref.read());
+                    }
+
+                    public void remove()
+                    {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+        segment.write(segment.file, values, ranges, refs, true);
+        segment.map();
     }
 
+    /**
+     * List merged segments in place of the run they were merged from. The
+     * log is checkpointed first so the new checkpoint file covers it, and
+     * then started over so stores in other processes open the new list of
+     * segments instead of only reading the end of the log. Most of the log
+     * is checkpointed before taking the lock, leaving only what is saved
+     * meanwhile to write while holding it.
+     *
+     * @return false if the run is no longer listed, another store merged
+     *         or rewrote it
+     */
+    private boolean install(List<Segment> merging, List<Segment> merged,
+                            List<Map.Entry<String, Object>> refs) throws IOException
+    {
+        writeCheckpoint();
+        storeLock.lockExclusive();
+        try
+        {
+            long generation = storeLock.readGeneration();
+            Snapshot s = refresh(snapshot, generation);
+            if (indexOf(s.segments, merging) < 0)
+                return false;
+            s = s.logEpoch < 0 ? startLog(s) : checkpoint(s);
+            int start = indexOf(s.segments, merging);
+            if (start < 0)
+                return false;
+            List<Segment> replaced = s.segments.subList(start, start + merging.size());
+            int id = 0;
+            for (Segment segment : s.segments)
+            {
+                id = Math.max(id, segment.id);
+            }
+            List<Segment> segments = new ArrayList<Segment>(s.segments.subList(0, start));
+            for (Segment segment : merged)
+            {
+                boolean base = segments.isEmpty() && merging.get(0).id == 0;
+                segment.moveTo(filePath, base ? 0 : ++id);
+                segments.add(segment);
+            }
+            segments.addAll(s.segments.subList(start + merging.size(), s.segments.size()));
+            KeyIndex<Object> index = s.index;
+            for (Map.Entry<String, Object> ref : refs)
+            {
+                Object current = index.get(ref.getKey());
+                if (ref.getValue() != null && current instanceof Segment.Ref
+                        && indexOf(replaced, Collections.singletonList(
+                        ((Segment.Ref) current).segment)) >= 0)
+                    index = index.put(ref.getKey(), ref.getValue());
+            }
+            writeCheckpointFile(s.logEpoch, segments);
+            long epoch = newEpoch();
+            log.reset(epoch);
+            storeLock.writeGeneration(generation + 1);
+            snapshot = new Snapshot(index, s.memtable, s.ranges, segments,
+                    generation + 1, epoch, log.size());
+            for (Segment old : replaced)
+            {
+                if (old.id != 0)
+                    old.delete();
+            }
+            return true;
+        } finally
+        {
+            storeLock.unlockExclusive();
+        }
+    }
+
+    /**
+     * @return where a run of segments starts in a list, matching them by
+     *         id and stamp, or -1 if it is not there
+     */
+    private static int indexOf(List<Segment> segments, List<Segment> run)
+    {
+        for (int start = 0; start + run.size() <= segments.size(); start++)
+        {
+            int i = 0;
+            while (i < run.size() && segments.get(start + i).sameAs(run.get(i)))
+            {
+                i++;
+            }
+            if (i == run.size())
+                return start;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the bytes of each segment of a snapshot a merge would keep,
+     *         its values the index still uses and what it retains anyway
+     */
+    private static long[] liveBytes(Snapshot s)
+    {
+        Map<Segment, Integer> positions = new IdentityHashMap<Segment, Integer>();
+        long[] live = new long[s.segments.size()];
+        for (int i = 0; i < live.length; i++)
+        {
+            positions.put(s.segments.get(i), i);
+            live[i] = s.segments.get(i).retainedBytes();
+        }
+        Iterator<Map.Entry<String, Object>> it = s.index.iterator(null, null);
+        while (it.hasNext())
+        {
+            Map.Entry<String, Object> e = it.next();
+            if (!(e.getValue() instanceof Segment.Ref))
+                continue;
+            Segment.Ref ref = (Segment.Ref) e.getValue();
+            Integer i = positions.get(ref.segment);
+            if (i != null)
+                live[i] += e.getKey().length() + ref.length + 2;
+        }
+        for (int i = 0; i < live.length; i++)
+        {
+            live[i] = Math.min(live[i], s.segments.get(i).size());
+        }
+        return live;
+    }
+
+    /**
+     * The data file is written to a swap file and synced to disk first,
+     * then renamed into place.
+     * Segments merged into the data file are still listed by the
+     * checkpoint until it is replaced, reading them again on top of the
+     * merged data file gives the same values.
+     */
+    private void writeDataFile(Segment base, Iterable<Map.Entry<String, String>> entries,
+                               List<Map.Entry<String, Object>> refs)
+            throws IOException
+    {
+        File f = base.file;
+        File swapFile = new File(filePath + ".swap");
+        if (swapFile.exists() && !swapFile.delete())
+            throw new QDSException("Unable to delete swap file "
+                    + swapFile.getPath());
+        base.write(swapFile, entries, NO_RANGES, refs);
+        if (!swapFile.renameTo(f))
+        {
+            // Some platforms will not rename over an existing file
+            if (f.exists() && !f.delete())
+                throw new QDSException("Unable to replace file " + filePath);
+            if (!swapFile.renameTo(f))
+                throw new QDSException("Unable to rename swap file "
+                        + swapFile.getPath() + " to " + filePath);
+        }
+        base.map();
+    }
+
+    private void writeCheckpointFile(long coveredEpoch, List<Segment> segments)
+            throws IOException
+    {
+        File checkpointFile = new File(filePath + ".checkpoint");
+        File tmp = new File(filePath + ".checkpoint.tmp");
+        StringBuilder ids = new StringBuilder();
+        for (Segment segment : segments)
+        {
+            if (ids.length() > 0)
+                ids.append(',');
+            ids.append(segment.id);
+        }
+        FileOutputStream out = new FileOutputStream(tmp);
+        try
+        {
+            out.write((CHECKPOINT_HEADER + "\n" + coveredEpoch + "\n" + ids + "\n")
+                    .getBytes("UTF-8"));
+            out.getFD().sync();
+        } finally
+        {
+            out.close();
+        }
+        if (!tmp.renameTo(checkpointFile))
+        {
+            if (checkpointFile.exists() && !checkpointFile.delete())
+                throw new QDSException("Unable to replace " + checkpointFile.getPath());
+            if (!tmp.renameTo(checkpointFile))
+                throw new QDSException("Unable to rename " + tmp.getPath());
+        }
+    }
+
+    /**
+     * A swap file left without its data file means a rewrite was
+     * interrupted after the old file was removed, the swap file is complete.
+     */
+    private void restoreSwapFile(File f)
+    {
+        File swapFile = new File(filePath + ".swap");
+        if (!f.exists() && swapFile.exists() && !swapFile.renameTo(f))
+            throw new QDSException("Unable to restore swap file "
+                    + swapFile.getPath());
+    }
+
+    /**
+     * Epochs are only compared for equality, a random one can not collide
+     * with an epoch another store still remembers.
+     */
+    private static long newEpoch()
+    {
+        synchronized (RANDOM)
+        {
+            return RANDOM.nextLong() & Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * An immutable view of the store as of one commit: every key, the keys
+     * saved or removed since the last checkpoint, the ranges removed since
+     * then, the segments and how much of the log it includes
+     */
+    private static final class Snapshot
+    {
+        final KeyIndex<Object> index;
+        final KeyIndex<String> memtable;
+        final List<WriteBatch.Range> ranges;
+        final List<Segment> segments;
+        final long generation;
+        final long logEpoch;
+        final long logSize;
+
+        Snapshot(KeyIndex<Object> index, KeyIndex<String> memtable,
+                 List<WriteBatch.Range> ranges, List<Segment> segments,
+                 long generation, long logEpoch, long logSize)
+        {
+            this.index = index;
+            this.memtable = memtable;
+            this.ranges = ranges;
+            this.segments = segments;
+            this.generation = generation;
+            this.logEpoch = logEpoch;
+            this.logSize = logSize;
+        }
+    }
+
+    /**
+     * The values in a range of an index, a value in a segment is read when
+     * the entry's value is asked for
+     */
+    private static final class Values implements Iterable<Map.Entry<String, String>>
+    {
+        private final KeyIndex<Object> index;
+        private final String fromKey;
+        private final String toKey;
+
+        Values(KeyIndex<Object> index, String fromKey, String toKey)
+        {
+            this.index = index;
+            this.fromKey = fromKey;
+            this.toKey = toKey;
+        }
+
+        public Iterator<Map.Entry<String, String>> iterator()
+        {
+            final Iterator<Map.Entry<String, Object>> it = index.iterator(fromKey, toKey);
+            return new Iterator<Map.Entry<String, String>>()
+            {
+                public boolean hasNext()
+                {
+                    return it.hasNext();
+                }
+
+                public Map.Entry<String, String> next()
+                {
+                    final Map.Entry<String, Object> e = it.next();
+                    return new LazyEntry<String>(e.getKey())
+                    {
+                        public String getValue()
+                        {
+                            Object value = e.getValue();
+                            if (value instanceof Segment.Ref)
+                                return read((Segment.Ref) value);
+                            return (String) value;
+                        }
+                    };
+                }
+
+                public void remove()
+                {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
 }
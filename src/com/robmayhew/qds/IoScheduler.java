@@ -0,0 +1,199 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>Puts loads and saves ahead of background work on the disk.</p>
+ * <p>Loads and saves are foreground work, they never wait here. A thread
+ * doing background work is marked with the class of its work. Each class
+ * has a token bucket limiting its bytes a second, and background work
+ * also steps aside for a moment, every so many bytes, while loads and
+ * saves are in progress. Every store in the process shares the scheduler,
+ * they share the disk.</p>
+ * <p>Background work holding a lock that loads or saves need is charged
+ * for its bytes without waiting, and waits for them at its next
+ * {@link #pause()}, once the lock is released. A checkpoint a save hands
+ * to the background is maintenance work, one asked for by calling
+ * <code>FileValueStore.checkpoint()</code> is foreground work.</p>
+ * <pre>
+ * IoScheduler.setRate(IoScheduler.Work.COMPACTION, 8 * 1024 * 1024);</pre>
+ */
+public final class IoScheduler
+{
+    /**
+     * The classes of background work
+     */
+    public enum Work
+    {
+        /**
+         * Merging segments of a <code>FileValueStore</code>, 32MB a second
+         * by default
+         */
+        COMPACTION(32 * 1024 * 1024),
+
+        /**
+         * Sweeping expired values, merging text indexes and background
+         * checkpoints of a <code>FileValueStore</code>, 16MB a second by
+         * default
+         */
+        MAINTENANCE(16 * 1024 * 1024);
+
+        final long defaultRate;
+
+        Work(long defaultRate)
+        {
+            this.defaultRate = defaultRate;
+        }
+    }
+
+    /**
+     * Background work steps aside for loads and saves after this many bytes
+     */
+    private static final long YIELD_BYTES = 64 * 1024;
+
+    /**
+     * Longest background work steps aside at a time, so it is slowed down
+     * but never starved
+     */
+    private static final long MAX_YIELD_NANOS = 2 * 1000 * 1000;
+
+    private static final ThreadLocal<Work> CURRENT = new ThreadLocal<Work>();
+    private static final AtomicInteger FOREGROUND = new AtomicInteger();
+    private static final TokenBucket[] BUCKETS = new TokenBucket[Work.values().length];
+    private static final AtomicLong[] SINCE_YIELD = new AtomicLong[Work.values().length];
+
+    static
+    {
+        for (Work work : Work.values())
+        {
+            BUCKETS[work.ordinal()] = new TokenBucket(work.defaultRate);
+            SINCE_YIELD[work.ordinal()] = new AtomicLong();
+        }
+    }
+
+    private IoScheduler()
+    {
+    }
+
+    /**
+     * Limit how fast a class of background work reads and writes
+     *
+     * @param bytesPerSecond the limit, 0 for none
+     */
+    public static void setRate(Work work, long bytesPerSecond)
+    {
+        BUCKETS[work.ordinal()].setRate(bytesPerSecond);
+    }
+
+    public static long getRate(Work work)
+    {
+        return BUCKETS[work.ordinal()].getRate();
+    }
+
+    /**
+     * Mark the current thread as doing a class of background work
+     *
+     * @return the class it was doing before, for {@link #end}
+     */
+    static Work begin(Work work)
+    {
+        Work previous = CURRENT.get();
+        CURRENT.set(work);
+        return previous;
+    }
+
+    /**
+     * Go back to the work the thread was doing before {@link #begin}
+     */
+    static void end(Work previous)
+    {
+        if (previous == null)
+            CURRENT.remove();
+        else
+            CURRENT.set(previous);
+    }
+
+    /**
+     * Start reading or writing some bytes. Foreground work is counted
+     * until {@link #exit()}, background work is charged for the bytes and
+     * does not wait, it may be holding a lock.
+     *
+     * @return true if this is foreground work and exit must be called
+     */
+    static boolean enter(long bytes)
+    {
+        Work work = CURRENT.get();
+        if (work == null)
+        {
+            FOREGROUND.incrementAndGet();
+            return true;
+        }
+        BUCKETS[work.ordinal()].take(bytes);
+        return false;
+    }
+
+    static void exit()
+    {
+        FOREGROUND.decrementAndGet();
+    }
+
+    /**
+     * Charge the current background work for some bytes and wait as
+     * needed, only call holding no lock. Does nothing on a foreground
+     * thread.
+     */
+    static void throttle(long bytes)
+    {
+        Work work = CURRENT.get();
+        if (work == null)
+            return;
+        BUCKETS[work.ordinal()].take(bytes);
+        if (SINCE_YIELD[work.ordinal()].addAndGet(bytes) >= YIELD_BYTES)
+            pause();
+    }
+
+    /**
+     * Wait until the current background work is within its rate and loads
+     * and saves in progress have had a moment, only call holding no lock.
+     * Does nothing on a foreground thread.
+     */
+    static void pause()
+    {
+        Work work = CURRENT.get();
+        if (work == null)
+            return;
+        SINCE_YIELD[work.ordinal()].set(0);
+        BUCKETS[work.ordinal()].await();
+        long deadline = System.nanoTime() + MAX_YIELD_NANOS;
+        while (FOREGROUND.get() > 0 && System.nanoTime() < deadline)
+        {
+            LockSupport.parkNanos(50 * 1000);
+        }
+    }
+
+    /**
+     * @return how many loads and saves are reading or writing right now
+     */
+    static int foreground()
+    {
+        return FOREGROUND.get();
+    }
+}
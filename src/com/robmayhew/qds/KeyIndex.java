@@ -0,0 +1,371 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * <p>An immutable, sorted map of keys to values.</p>
+ * <p>Every change returns a new index and leaves the old one untouched, only
+ * the nodes on the path to the changed key are copied. This lets a writer
+ * build the next version of a store while readers keep using the version
+ * they already have, without either side taking a lock.</p>
+ */
+final class KeyIndex<V> implements Iterable<Map.Entry<String, V>>
+{
+    private static final KeyIndex<Object> EMPTY = new KeyIndex<Object>(null);
+
+    private final Node<V> root;
+
+    private KeyIndex(Node<V> root)
+    {
+        this.root = root;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <V> KeyIndex<V> empty()
+    {
+        return (KeyIndex<V>) EMPTY;
+    }
+
+    /**
+     * Build an index from entries that are already sorted by key with no
+     * duplicates. Runs in linear time.
+     */
+    static <V> KeyIndex<V> fromSorted(List<Map.Entry<String, V>> entries)
+    {
+        return new KeyIndex<V>(build(entries, 0, entries.size() - 1));
+    }
+
+    public V get(String key)
+    {
+        Node<V> n = root;
+        while (n != null)
+        {
+            int c = key.compareTo(n.key);
+            if (c == 0)
+                return n.value;
+            n = c < 0 ? n.left : n.right;
+        }
+        return null;
+    }
+
+    public KeyIndex<V> put(String key, V value)
+    {
+        return new KeyIndex<V>(put(root, key, value));
+    }
+
+    public KeyIndex<V> remove(String key)
+    {
+        Node<V> n = remove(root, key);
+        return n == root ? this : new KeyIndex<V>(n);
+    }
+
+    /**
+     * Remove every key in a range. Only the nodes along the edges of the
+     * range are copied, the nodes inside it are dropped whole, so removing
+     * a large range takes time proportional to the square of the height of
+     * the tree rather than to the number of keys removed.
+     *
+     * @param fromKey first key to remove, or null to start at the first key
+     * @param toKey   key to stop before, or null to continue to the last key
+     */
+    public KeyIndex<V> removeRange(String fromKey, String toKey)
+    {
+        Node<V> n = removeRange(root, fromKey, toKey, fromKey == null, toKey == null);
+        return n == root ? this : new KeyIndex<V>(n);
+    }
+
+    public int size()
+    {
+        return size(root);
+    }
+
+    /**
+     * Iterate all entries in key order
+     */
+    public Iterator<Map.Entry<String, V>> iterator()
+    {
+        return new EntryIterator<V>(root, null, null);
+    }
+
+    /**
+     * Iterate the entries in a range of keys in key order. Finding the start
+     * of the range takes time proportional to the height of the tree, after
+     * that each entry is found in constant time.
+     *
+     * @param fromKey first key to include, or null to start at the first key
+     * @param toKey   key to stop before, or null to continue to the last key
+     */
+    public Iterator<Map.Entry<String, V>> iterator(String fromKey, String toKey)
+    {
+        return new EntryIterator<V>(root, fromKey, toKey);
+    }
+
+    /**
+     * Get the key to stop before when iterating every key starting with a
+     * prefix
+     *
+     * @param prefix the prefix
+     * @return the first key after all the keys with the prefix, or null if
+     *         there is no such key
+     */
+    static String endOfPrefix(String prefix)
+    {
+        int i = prefix.length() - 1;
+        while (i >= 0 && prefix.charAt(i) == Character.MAX_VALUE)
+        {
+            i--;
+        }
+        if (i < 0)
+            return null;
+        return prefix.substring(0, i) + (char) (prefix.charAt(i) + 1);
+    }
+
+    //--------------------------------------------------------------------------
+    // Tree
+    private static final class Node<V>
+    {
+        final String key;
+        final V value;
+        final Node<V> left;
+        final Node<V> right;
+        final int height;
+        final int size;
+
+        Node(String key, V value, Node<V> left, Node<V> right)
+        {
+            this.key = key;
+            this.value = value;
+            this.left = left;
+            this.right = right;
+            this.height = Math.max(height(left), height(right)) + 1;
+            this.size = size(left) + size(right) + 1;
+        }
+    }
+
+    private static int height(Node<?> n)
+    {
+        return n == null ? 0 : n.height;
+    }
+
+    private static int size(Node<?> n)
+    {
+        return n == null ? 0 : n.size;
+    }
+
+    private static <V> Node<V> build(List<Map.Entry<String, V>> entries,
+                                     int from, int to)
+    {
+        if (from > to)
+            return null;
+        int mid = (from + to) >>> 1;
+        Map.Entry<String, V> e = entries.get(mid);
+        return new Node<V>(e.getKey(), e.getValue(),
+                build(entries, from, mid - 1), build(entries, mid + 1, to));
+    }
+
+    private static <V> Node<V> put(Node<V> n, String key, V value)
+    {
+        if (n == null)
+            return new Node<V>(key, value, null, null);
+        int c = key.compareTo(n.key);
+        if (c == 0)
+            return new Node<V>(key, value, n.left, n.right);
+        if (c < 0)
+            return balance(n.key, n.value, put(n.left, key, value), n.right);
+        return balance(n.key, n.value, n.left, put(n.right, key, value));
+    }
+
+    private static <V> Node<V> remove(Node<V> n, String key)
+    {
+        if (n == null)
+            return null;
+        int c = key.compareTo(n.key);
+        if (c < 0)
+        {
+            Node<V> left = remove(n.left, key);
+            return left == n.left ? n : balance(n.key, n.value, left, n.right);
+        }
+        if (c > 0)
+        {
+            Node<V> right = remove(n.right, key);
+            return right == n.right ? n : balance(n.key, n.value, n.left, right);
+        }
+        if (n.left == null)
+            return n.right;
+        if (n.right == null)
+            return n.left;
+        Node<V> first = n.right;
+        while (first.left != null)
+        {
+            first = first.left;
+        }
+        return balance(first.key, first.value, n.left, removeFirst(n.right));
+    }
+
+    /**
+     * @param afterFrom true if every key under the node is known to be at
+     *                  or after the start of the range
+     * @param beforeTo  true if every key under the node is known to be
+     *                  before the end of the range
+     */
+    private static <V> Node<V> removeRange(Node<V> n, String fromKey, String toKey,
+                                           boolean afterFrom, boolean beforeTo)
+    {
+        if (n == null || (afterFrom && beforeTo))
+            return null;
+        if (fromKey != null && n.key.compareTo(fromKey) < 0)
+        {
+            Node<V> right = removeRange(n.right, fromKey, toKey, false, beforeTo);
+            return right == n.right ? n : join(n.left, n.key, n.value, right);
+        }
+        if (toKey != null && n.key.compareTo(toKey) >= 0)
+        {
+            Node<V> left = removeRange(n.left, fromKey, toKey, afterFrom, false);
+            return left == n.left ? n : join(left, n.key, n.value, n.right);
+        }
+        Node<V> left = removeRange(n.left, fromKey, toKey, afterFrom, true);
+        Node<V> right = removeRange(n.right, fromKey, toKey, true, beforeTo);
+        if (right == null)
+            return left;
+        Node<V> first = right;
+        while (first.left != null)
+        {
+            first = first.left;
+        }
+        return join(left, first.key, first.value, removeFirst(right));
+    }
+
+    /**
+     * Join two trees and a key between them, whatever their heights
+     */
+    private static <V> Node<V> join(Node<V> left, String key, V value, Node<V> right)
+    {
+        if (height(left) > height(right) + 1)
+            return balance(left.key, left.value, left.left,
+                    join(left.right, key, value, right));
+        if (height(right) > height(left) + 1)
+            return balance(right.key, right.value,
+                    join(left, key, value, right.left), right.right);
+        return new Node<V>(key, value, left, right);
+    }
+
+    private static <V> Node<V> removeFirst(Node<V> n)
+    {
+        if (n.left == null)
+            return n.right;
+        return balance(n.key, n.value, removeFirst(n.left), n.right);
+    }
+
+    private static <V> Node<V> balance(String key, V value,
+                                       Node<V> left, Node<V> right)
+    {
+        int diff = height(left) - height(right);
+        if (diff > 1)
+        {
+            if (height(left.left) < height(left.right))
+                left = rotateLeft(left.key, left.value, left.left, left.right);
+            return rotateRight(key, value, left, right);
+        }
+        if (diff < -1)
+        {
+            if (height(right.right) < height(right.left))
+                right = rotateRight(right.key, right.value, right.left, right.right);
+            return rotateLeft(key, value, left, right);
+        }
+        return new Node<V>(key, value, left, right);
+    }
+
+    private static <V> Node<V> rotateRight(String key, V value,
+                                           Node<V> left, Node<V> right)
+    {
+        return new Node<V>(left.key, left.value, left.left,
+                new Node<V>(key, value, left.right, right));
+    }
+
+    private static <V> Node<V> rotateLeft(String key, V value,
+                                          Node<V> left, Node<V> right)
+    {
+        return new Node<V>(right.key, right.value,
+                new Node<V>(key, value, left, right.left), right.right);
+    }
+
+    private static final class EntryIterator<V>
+            implements Iterator<Map.Entry<String, V>>
+    {
+        private final List<Node<V>> stack = new ArrayList<Node<V>>();
+        private final String toKey;
+
+        EntryIterator(Node<V> root, String fromKey, String toKey)
+        {
+            this.toKey = toKey;
+            if (fromKey == null)
+            {
+                pushLeft(root);
+                return;
+            }
+            Node<V> n = root;
+            while (n != null)
+            {
+                if (n.key.compareTo(fromKey) >= 0)
+                {
+                    stack.add(n);
+                    n = n.left;
+                } else
+                {
+                    n = n.right;
+                }
+            }
+        }
+
+        private void pushLeft(Node<V> n)
+        {
+            while (n != null)
+            {
+                stack.add(n);
+                n = n.left;
+            }
+        }
+
+        public boolean hasNext()
+        {
+            if (stack.isEmpty())
+                return false;
+            return toKey == null || stack.get(stack.size() - 1).key.compareTo(toKey) < 0;
+        }
+
+        public Map.Entry<String, V> next()
+        {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Node<V> n = stack.remove(stack.size() - 1);
+            pushLeft(n.right);
+            return new AbstractMap.SimpleImmutableEntry<String, V>(n.key, n.value);
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Counts how long an operation took, in buckets fine enough to give
+ * percentiles within about 3%.</p>
+ * <p>Times below 64 nanoseconds each have a bucket, above that each power
+ * of two is split into 32 buckets, the way an HDR histogram with two
+ * significant digits is. Times of a minute or more share the last bucket.
+ * Each thread counts in one of a few copies of the buckets so threads
+ * rarely contend, and recording allocates nothing.</p>
+ */
+public final class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = 1024;
+    private static final int STRIPES = Math.min(4, StripedCounter.STRIPES);
+
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS);
+    private final StripedCounter total = new StripedCounter();
+    private final AtomicLong max = new AtomicLong();
+
+    LatencyHistogram()
+    {
+    }
+
+    /**
+     * Count one operation
+     *
+     * @param nanos how long it took
+     */
+    void record(long nanos)
+    {
+        if (nanos < 0)
+            nanos = 0;
+        int stripe = StripedCounter.stripe() & (STRIPES - 1);
+        counts.getAndIncrement(stripe * BUCKETS + bucket(nanos));
+        total.add(nanos);
+        long m = max.get();
+        while (nanos > m && !max.compareAndSet(m, nanos))
+        {
+            m = max.get();
+        }
+    }
+
+    static int bucket(long nanos)
+    {
+        if (nanos < 2 * SUB_BUCKETS)
+            return (int) nanos;
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int index = ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS)
+                + (int) (nanos >>> shift) - SUB_BUCKETS;
+        return Math.min(index, BUCKETS - 1);
+    }
+
+    /**
+     * @return the largest time that falls in a bucket
+     */
+    static long highestInBucket(int bucket)
+    {
+        if (bucket < 2 * SUB_BUCKETS)
+            return bucket;
+        int exponent = (bucket >> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+        int shift = exponent - SUB_BUCKET_BITS;
+        long mantissa = (bucket & (SUB_BUCKETS - 1)) + SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * @return how many operations were counted
+     */
+    public long getCount()
+    {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++)
+        {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return the total time of the operations in nanoseconds
+     */
+    public long getTotalNanos()
+    {
+        return total.sum();
+    }
+
+    /**
+     * @return the mean time in nanoseconds, 0 if none were counted
+     */
+    public double getMean()
+    {
+        long count = getCount();
+        return count == 0 ? 0 : (double) total.sum() / count;
+    }
+
+    /**
+     * @return the longest time in nanoseconds
+     */
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    /**
+     * @param percentile from 0 to 100, 99 for the time 99% of operations
+     *                   took no longer than
+     * @return the time in nanoseconds, 0 if none were counted
+     */
+    public long getPercentile(double percentile)
+    {
+        long[] buckets = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++)
+        {
+            long n = counts.get(i);
+            buckets[i % BUCKETS] += n;
+            count += n;
+        }
+        if (count == 0)
+            return 0;
+        long wanted = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += buckets[i];
+            if (seen >= wanted)
+                return Math.min(highestInBucket(i), max.get());
+        }
+        return max.get();
+    }
+
+    public String toString()
+    {
+        return "count=" + getCount() + " mean=" + (long) getMean() + "ns p50="
+                + getPercentile(50) + "ns p99=" + getPercentile(99) + "ns p99.9="
+                + getPercentile(99.9) + "ns max=" + getMax() + "ns";
+    }
+}
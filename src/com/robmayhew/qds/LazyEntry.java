@@ -0,0 +1,64 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.util.Map;
+
+/**
+ * An entry of a scan whose value is only read when it is asked for. The
+ * entries are not serializable, the value is read from the store.
+ */
+abstract class LazyEntry<V> implements Map.Entry<String, V>
+{
+    private final String key;
+
+    LazyEntry(String key)
+    {
+        this.key = key;
+    }
+
+    public String getKey()
+    {
+        return key;
+    }
+
+    public V setValue(V value)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean equals(Object o)
+    {
+        if (!(o instanceof Map.Entry))
+            return false;
+        Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+        V value = getValue();
+        return key.equals(e.getKey())
+                && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+    }
+
+    public int hashCode()
+    {
+        V value = getValue();
+        return key.hashCode() ^ (value == null ? 0 : value.hashCode());
+    }
+
+    public String toString()
+    {
+        return key + "=" + getValue();
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+/**
+ * <p>Reads the elements of a saved list one at a time.</p>
+ * <p>Loading a list parses the whole value into a <code>QDSJSONArray</code>
+ * and then creates every element. The reader instead walks the saved text
+ * and parses one element when it is asked for, so a caller can look at an
+ * element's saved fields and skip it without creating the object or
+ * holding the rest of the list.</p>
+ */
+final class ListReader
+{
+    private final QDSJSONTokener x;
+    private boolean first = true;
+    private boolean done;
+
+    /**
+     * @param jsonString the list as saved
+     * @throws QDSJSONException if the value is not a saved list
+     */
+    ListReader(String jsonString) throws QDSJSONException
+    {
+        x = new QDSJSONTokener(jsonString);
+        if (x.nextClean() != '{')
+            throw x.syntaxError("A saved value must begin with '{'");
+        while (true)
+        {
+            char c = x.nextClean();
+            if (c == '}' || c == 0)
+                throw x.syntaxError("Not a saved list");
+            if (c != ',')
+                x.back();
+            String key = x.nextValue().toString();
+            if (x.nextClean() != ':')
+                throw x.syntaxError("Expected a ':' after a key");
+            if ("value".equals(key))
+            {
+                if (x.nextClean() != '[')
+                    throw x.syntaxError("Not a saved list");
+                return;
+            }
+            Object value = x.nextValue();
+            if ("type".equals(key) && !"list".equals(value))
+                throw x.syntaxError("Not a saved list");
+        }
+    }
+
+    /**
+     * @return the next element as saved, with a <code>class</code> and either
+     *         <code>data</code> or <code>primitive</code>, or null at the end
+     *         of the list
+     */
+    QDSJSONObject next() throws QDSJSONException
+    {
+        if (done)
+            return null;
+        char c = x.nextClean();
+        if (c == ']')
+        {
+            done = true;
+            return null;
+        }
+        if (first)
+            x.back();
+        else if (c != ',')
+            throw x.syntaxError("Expected a ',' or ']'");
+        first = false;
+        return new QDSJSONObject(x);
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Times every operation of a value store for {@link StoreMetrics}
+ */
+final class MeteredValueStore implements OrderedValueStore
+{
+    private final OrderedValueStore store;
+    private final StoreMetrics metrics;
+
+    MeteredValueStore(OrderedValueStore store, StoreMetrics metrics)
+    {
+        this.store = store;
+        this.metrics = metrics;
+    }
+
+    public void writeValue(String key, String value) throws QDSException
+    {
+        long start = System.nanoTime();
+        store.writeValue(key, value);
+        metrics.record(StoreMetrics.Op.WRITE, start);
+        metrics.written(key.length() + 2 + (value == null ? 0 : value.length()));
+    }
+
+    public void writeValues(WriteBatch batch) throws QDSException
+    {
+        long start = System.nanoTime();
+        store.writeValues(batch);
+        metrics.record(StoreMetrics.Op.WRITE, start);
+        metrics.written(batch.bytes());
+    }
+
+    public String loadValue(String key)
+    {
+        long start = System.nanoTime();
+        String value = store.loadValue(key);
+        metrics.record(StoreMetrics.Op.READ, start);
+        if (value != null)
+            metrics.read(value.length());
+        return value;
+    }
+
+    public Iterator<Map.Entry<String, String>> scan(String fromKey, String toKey)
+    {
+        long start = System.nanoTime();
+        Iterator<Map.Entry<String, String>> it = store.scan(fromKey, toKey);
+        metrics.record(StoreMetrics.Op.SCAN, start);
+        return it;
+    }
+}
@@ -0,0 +1,355 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+/**
+ * <p>Adds up the numbers of one field of a saved value straight from its
+ * text.</p>
+ * <p>The scanner walks the saved characters, compares keys in place and
+ * skips every value other than the field, so no <code>QDSJSONObject</code>,
+ * key String or object is created. Whole numbers are parsed from the
+ * characters, only numbers with a fraction or an exponent go through
+ * <code>Double.parseDouble</code>.</p>
+ * <p>A saved object gives its field, a saved list the field of each object
+ * element. With no field the primitives are used instead, the value of a
+ * saved Integer or each element of a list of numbers.</p>
+ */
+final class NumberScanner
+{
+    private final String s;
+    private final String field;
+    private final Totals totals;
+    private int pos;
+
+    private NumberScanner(String s, String field, Totals totals)
+    {
+        this.s = s;
+        this.field = field;
+        this.totals = totals;
+    }
+
+    /**
+     * Add the numbers of a field of a saved value to some totals
+     *
+     * @param jsonString the value as saved
+     * @param field      the saved field name, <code>Value</code> for
+     *                   <code>getValue()</code>, or null for the primitives
+     * @throws QDSJSONException if the text is not a saved value
+     */
+    static void scan(String jsonString, String field, Totals totals) throws QDSJSONException
+    {
+        NumberScanner scanner = new NumberScanner(jsonString, field, totals);
+        scanner.value(true);
+        if (scanner.clean() != 0)
+            throw scanner.syntaxError("Unexpected text after the saved value");
+    }
+
+    /**
+     * Read one saved value, an object with <code>data</code> or
+     * <code>primitive</code>, or at the top level a list with a
+     * <code>value</code> array of them
+     */
+    private void value(boolean top) throws QDSJSONException
+    {
+        expect('{');
+        if (peekClean() == '}')
+        {
+            pos++;
+            return;
+        }
+        do
+        {
+            if (top && key("value"))
+            {
+                elements();
+            } else if (key("data"))
+            {
+                if (peekClean() == '{')
+                    data();
+                else
+                    skip();
+            } else if (field == null && key("primitive"))
+            {
+                number();
+            } else
+            {
+                skipKey();
+                skip();
+            }
+        } while (more('}'));
+    }
+
+    private void elements() throws QDSJSONException
+    {
+        if (peekClean() != '[')
+        {
+            skip();
+            return;
+        }
+        pos++;
+        if (peekClean() == ']')
+        {
+            pos++;
+            return;
+        }
+        do
+        {
+            if (peekClean() == '{')
+                value(false);
+            else
+                skip();
+        } while (more(']'));
+    }
+
+    private void data() throws QDSJSONException
+    {
+        expect('{');
+        if (peekClean() == '}')
+        {
+            pos++;
+            return;
+        }
+        do
+        {
+            if (field != null && key(field))
+                number();
+            else
+            {
+                skipKey();
+                skip();
+            }
+        } while (more('}'));
+    }
+
+    /**
+     * Read a key and its ':' if it is the one wanted, otherwise leave the
+     * position at the key
+     */
+    private boolean key(String wanted) throws QDSJSONException
+    {
+        int start = pos;
+        if (clean() != '"')
+            throw syntaxError("Expected a key");
+        int i = 0;
+        while (true)
+        {
+            char c = next();
+            if (c == '"')
+                break;
+            if (c == '\\')
+            {
+                pos = start;
+                return escapedKey(wanted);
+            }
+            if (i >= wanted.length() || wanted.charAt(i) != c)
+            {
+                pos = start;
+                return false;
+            }
+            i++;
+        }
+        if (i != wanted.length())
+        {
+            pos = start;
+            return false;
+        }
+        if (clean() != ':')
+            throw syntaxError("Expected a ':' after a key");
+        return true;
+    }
+
+    /**
+     * Compare a key with escapes, which the writer only uses for unusual
+     * characters
+     */
+    private boolean escapedKey(String wanted) throws QDSJSONException
+    {
+        int start = pos;
+        clean();
+        pos--;
+        QDSJSONTokener x = new QDSJSONTokener(s.substring(pos));
+        Object key = x.nextValue();
+        if (!wanted.equals(key))
+        {
+            pos = start;
+            return false;
+        }
+        skipString();
+        if (clean() != ':')
+            throw syntaxError("Expected a ':' after a key");
+        return true;
+    }
+
+    private void skipKey() throws QDSJSONException
+    {
+        if (clean() != '"')
+            throw syntaxError("Expected a key");
+        pos--;
+        skipString();
+        if (clean() != ':')
+            throw syntaxError("Expected a ':' after a key");
+    }
+
+    /**
+     * Add the number at the position, values that are not numbers are
+     * skipped
+     */
+    private void number() throws QDSJSONException
+    {
+        char c = peekClean();
+        if (c != '-' && (c < '0' || c > '9'))
+        {
+            skip();
+            return;
+        }
+        int start = pos;
+        boolean negative = c == '-';
+        if (negative)
+            pos++;
+        long whole = 0;
+        int digits = 0;
+        while (pos < s.length() && s.charAt(pos) >= '0' && s.charAt(pos) <= '9')
+        {
+            whole = whole * 10 + (s.charAt(pos++) - '0');
+            digits++;
+        }
+        boolean simple = digits > 0 && digits <= 18;
+        while (pos < s.length() && "+-.eE0123456789".indexOf(s.charAt(pos)) >= 0)
+        {
+            pos++;
+            simple = false;
+        }
+        if (simple)
+        {
+            totals.add(negative ? -whole : whole);
+            return;
+        }
+        try
+        {
+            totals.add(Double.parseDouble(s.substring(start, pos)));
+        } catch (NumberFormatException e)
+        {
+            throw syntaxError("Bad number " + s.substring(start, pos));
+        }
+    }
+
+    /**
+     * Skip the value at the position
+     */
+    private void skip() throws QDSJSONException
+    {
+        char c = peekClean();
+        if (c == '"' || c == '\'')
+        {
+            skipString();
+            return;
+        }
+        if (c == '{' || c == '[')
+        {
+            int depth = 0;
+            do
+            {
+                c = peekClean();
+                if (c == '"' || c == '\'')
+                {
+                    skipString();
+                    continue;
+                }
+                pos++;
+                if (c == '{' || c == '[')
+                    depth++;
+                else if (c == '}' || c == ']')
+                    depth--;
+                else if (c == 0)
+                    throw syntaxError("Unterminated value");
+            } while (depth > 0);
+            return;
+        }
+        int start = pos;
+        while (pos < s.length() && ",:]}/\\\"[{;=#".indexOf(s.charAt(pos)) < 0
+                && s.charAt(pos) > ' ')
+        {
+            pos++;
+        }
+        if (pos == start)
+            throw syntaxError("Missing value");
+    }
+
+    private void skipString() throws QDSJSONException
+    {
+        char quote = clean();
+        while (true)
+        {
+            char c = next();
+            if (c == quote)
+                return;
+            if (c == 0 || c == '\n' || c == '\r')
+                throw syntaxError("Unterminated string");
+            if (c == '\\')
+                next();
+        }
+    }
+
+    /**
+     * @return true if a ',' follows, false if the closing character does
+     */
+    private boolean more(char close) throws QDSJSONException
+    {
+        char c = clean();
+        if (c == ',')
+            return true;
+        if (c == close)
+            return false;
+        throw syntaxError("Expected a ',' or '" + close + "'");
+    }
+
+    private void expect(char c) throws QDSJSONException
+    {
+        if (clean() != c)
+            throw syntaxError("Expected a '" + c + "'");
+    }
+
+    private char next()
+    {
+        return pos < s.length() ? s.charAt(pos++) : 0;
+    }
+
+    /**
+     * @return the next character that is not white space, 0 at the end
+     */
+    private char clean()
+    {
+        while (pos < s.length() && s.charAt(pos) <= ' ')
+        {
+            pos++;
+        }
+        return next();
+    }
+
+    private char peekClean()
+    {
+        char c = clean();
+        if (c != 0)
+            pos--;
+        return c;
+    }
+
+    private QDSJSONException syntaxError(String message)
+    {
+        return new QDSJSONException(message + " at character " + pos);
+    }
+}
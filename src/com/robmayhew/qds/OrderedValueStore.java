@@ -0,0 +1,46 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A value store that keeps its keys in order, so that ranges of keys can be
+ * listed and written together. Keys, scans, indexes, views and expiry are
+ * built on these operations.
+ */
+public interface OrderedValueStore extends ValueStore
+{
+    /**
+     * Write every value in the batch as one commit, keys with a null value
+     * are removed. The batch's ranges of keys are removed before its values
+     * are written. Stores that support it make the commit atomic, readers
+     * see all of the batch or none of it.
+     */
+    public void writeValues(WriteBatch batch) throws QDSException;
+
+    /**
+     * Iterate the values in a range of keys, in key order. Values are read
+     * when an entry's value is asked for, iterating only the keys reads no
+     * values.
+     *
+     * @param fromKey first key to include, or null to start at the first key
+     * @param toKey   key to stop before, or null to continue to the last key
+     */
+    public Iterator<Map.Entry<String, String>> scan(String fromKey, String toKey);
+}
@@ -16,10 +16,40 @@
  */
 package com.robmayhew.qds;
 
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.prefs.BackingStoreException;
 import java.util.prefs.Preferences;
 
 
-public class PreferencesValueStore implements ValueStore{
+/**
+ * <p>Keeps values in the user's preferences.</p>
+ * <p>Preferences hold keys of up to 80 characters and values of up to
+ * 8192. A longer key or value is kept under a hash of its key instead,
+ * split over as many preferences as it needs, so indexes and expiry, whose
+ * keys hold the values they index, work here too. A short key whose value
+ * is kept that way holds a marker, so loading other short keys never looks
+ * under the hash.</p>
+ */
+public class PreferencesValueStore implements OrderedValueStore{
+
+    /**
+     * Keys too long to keep as they are are kept under this and a hash
+     */
+    static final String SPILL_PREFIX = QuickDataStore.RESERVED_PREFIX + "spill/";
+
+    /**
+     * Kept under a short key whose value is too long to keep there
+     */
+    static final String SPILLED = SPILL_PREFIX;
+
+    private static final int HASH_LENGTH = 40;
 
     private final String node;
 
@@ -31,13 +61,189 @@ public class PreferencesValueStore implements ValueStore{
     @Override
     public void writeValue(String key, String value) throws QDSException {
         Preferences preferences = Preferences.userRoot().node(node);
-        preferences.put(key,value);
+        synchronized (preferences) {
+            put(preferences, key, value);
+        }
+    }
 
+    /**
+     * Preferences have no transactions, the values are put one at a time
+     * and then flushed to the backing store together. Removed ranges are
+     * removed key by key.
+     */
+    @Override
+    public void writeValues(WriteBatch batch) throws QDSException {
+        Preferences preferences = Preferences.userRoot().node(node);
+        synchronized (preferences) {
+            for (WriteBatch.Range range : batch.ranges()) {
+                Iterator<Map.Entry<String, String>> it = scan(range.fromKey, range.toKey);
+                while (it.hasNext()) {
+                    remove(preferences, it.next().getKey());
+                }
+            }
+            for (Map.Entry<String, String> e : batch.values().entrySet()) {
+                if (e.getValue() == null)
+                    remove(preferences, e.getKey());
+                else
+                    put(preferences, e.getKey(), e.getValue());
+            }
+        }
+        try {
+            preferences.flush();
+        } catch (BackingStoreException e) {
+            throw new QDSException("Error flushing preferences " + node, e);
+        }
     }
 
     @Override
     public String loadValue(String key) {
         Preferences preferences = Preferences.userRoot().node(node);
-        return preferences.get(key,null);
+        if (fits(key)) {
+            String value = preferences.get(key, null);
+            if (!SPILLED.equals(value))
+                return value;
+        }
+        synchronized (preferences) {
+            String record = readSpilled(preferences, spillKey(key), false);
+            if (record == null || !key.equals(spilledKey(record)))
+                return null;
+            return record.substring(record.indexOf(':') + 1 + key.length());
+        }
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, String>> scan(String fromKey, String toKey) {
+        Preferences preferences = Preferences.userRoot().node(node);
+        List<String> keys = new ArrayList<String>();
+        synchronized (preferences) {
+            String[] stored;
+            try {
+                stored = preferences.keys();
+            } catch (BackingStoreException e) {
+                throw new QDSException("Error reading preferences " + node, e);
+            }
+            for (String key : stored) {
+                if (!key.startsWith(SPILL_PREFIX)) {
+                    keys.add(key);
+                } else if (key.length() == SPILL_PREFIX.length() + HASH_LENGTH) {
+                    // Short keys are listed with their marker
+                    String record = readSpilled(preferences, key, true);
+                    if (record != null && !fits(spilledKey(record)))
+                        keys.add(spilledKey(record));
+                }
+            }
+        }
+        Collections.sort(keys);
+        List<Map.Entry<String, String>> entries = new ArrayList<Map.Entry<String, String>>();
+        for (final String key : keys) {
+            if (fromKey != null && key.compareTo(fromKey) < 0)
+                continue;
+            if (toKey != null && key.compareTo(toKey) >= 0)
+                break;
+            entries.add(new LazyEntry<String>(key) {
+                public String getValue() {
+                    return loadValue(key);
+                }
+            });
+        }
+        return entries.iterator();
+    }
+
+    private static boolean fits(String key) {
+        return key.length() <= Preferences.MAX_KEY_LENGTH && !key.startsWith(SPILL_PREFIX);
+    }
+
+    private static void put(Preferences preferences, String key, String value) {
+        if (fits(key) && value.length() <= Preferences.MAX_VALUE_LENGTH && !value.equals(SPILLED)) {
+            String old = preferences.get(key, null);
+            preferences.put(key, value);
+            if (SPILLED.equals(old))
+                removeSpilled(preferences, spillKey(key));
+            return;
+        }
+        String head = spillKey(key);
+        // The record starts with the key so a scan can tell what it is
+        String record = key.length() + ":" + key + value;
+        int chunks = (record.length() + Preferences.MAX_VALUE_LENGTH - 1) / Preferences.MAX_VALUE_LENGTH;
+        int old = chunks(preferences, head);
+        for (int i = 0; i < chunks; i++) {
+            int start = i * Preferences.MAX_VALUE_LENGTH;
+            preferences.put(head + "." + i, record.substring(start,
+                    Math.min(record.length(), start + Preferences.MAX_VALUE_LENGTH)));
+        }
+        for (int i = chunks; i < old; i++) {
+            preferences.remove(head + "." + i);
+        }
+        preferences.put(head, String.valueOf(chunks));
+        if (fits(key))
+            preferences.put(key, SPILLED);
+    }
+
+    private static void remove(Preferences preferences, String key) {
+        if (fits(key)) {
+            String old = preferences.get(key, null);
+            preferences.remove(key);
+            if (!SPILLED.equals(old))
+                return;
+        }
+        removeSpilled(preferences, spillKey(key));
+    }
+
+    private static void removeSpilled(Preferences preferences, String head) {
+        int chunks = chunks(preferences, head);
+        if (chunks == 0)
+            return;
+        preferences.remove(head);
+        for (int i = 0; i < chunks; i++) {
+            preferences.remove(head + "." + i);
+        }
+    }
+
+    private static int chunks(Preferences preferences, String head) {
+        String chunks = preferences.get(head, null);
+        return chunks == null ? 0 : Integer.parseInt(chunks);
+    }
+
+    /**
+     * Read a spilled record
+     *
+     * @param keyOnly stop reading once the record's key has been read
+     * @return the record or null if it is missing or incomplete
+     */
+    private static String readSpilled(Preferences preferences, String head, boolean keyOnly) {
+        int chunks = chunks(preferences, head);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < chunks; i++) {
+            String chunk = preferences.get(head + "." + i, null);
+            if (chunk == null)
+                return null;
+            sb.append(chunk);
+            int colon = sb.indexOf(":");
+            if (keyOnly && colon > 0
+                    && sb.length() >= colon + 1 + Integer.parseInt(sb.substring(0, colon)))
+                break;
+        }
+        return chunks == 0 ? null : sb.toString();
+    }
+
+    private static String spilledKey(String record) {
+        int colon = record.indexOf(':');
+        return record.substring(colon + 1, colon + 1 + Integer.parseInt(record.substring(0, colon)));
+    }
+
+    static String spillKey(String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(SPILL_PREFIX);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new QDSException("No SHA-1 to hash the key " + key, e);
+        } catch (UnsupportedEncodingException e) {
+            throw new QDSException("No UTF-8 to hash the key " + key, e);
+        }
     }
 }
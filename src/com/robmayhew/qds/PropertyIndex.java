@@ -0,0 +1,202 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.lang.reflect.Method;
+
+/**
+ * <p>An index of the saved objects of one class by one property.</p>
+ * <p>The index is kept in the store as one empty value per object. Its key
+ * is the index's prefix, the property value and then the object's key. The
+ * value is encoded so the keys sort in the order of the values, so finding
+ * the objects with a value, or a range of values, is a scan of a range of
+ * keys and no objects are loaded.</p>
+ * <p>Numbers are encoded as 16 hex digits with the sign flipped, doubles
+ * using their sortable bits. Characters of a String up to <code>=</code>
+ * are escaped as two characters that keep their order, the only
+ * characters left below the escaped ones end the value.</p>
+ */
+final class PropertyIndex
+{
+    static final String DECLARED_PREFIX = QuickDataStore.RESERVED_PREFIX + "indexes/";
+    private static final String INDEX_PREFIX = QuickDataStore.RESERVED_PREFIX + "index/";
+    private static final char END_OF_VALUE = '!';
+    private static final char ESCAPE = '"';
+    private static final char LAST_ESCAPED = '=';
+
+    final String className;
+    final String property;
+    private final Class<?> type;
+    private final String prefix;
+
+    /**
+     * @param className class of the objects indexed
+     * @param property  name of the property as saved, <code>Age</code> for
+     *                  <code>getAge()</code>
+     */
+    PropertyIndex(String className, String property)
+    {
+        this.className = className;
+        this.property = property;
+        this.type = propertyType(className, property);
+        this.prefix = INDEX_PREFIX + className + "/" + property + "/";
+    }
+
+    /**
+     * Get the index declared by a key under {@link #DECLARED_PREFIX}
+     */
+    static PropertyIndex fromDeclaredKey(String key)
+    {
+        String name = key.substring(DECLARED_PREFIX.length());
+        int slash = name.lastIndexOf('/');
+        return new PropertyIndex(name.substring(0, slash), name.substring(slash + 1));
+    }
+
+    /**
+     * @return the key saved to record that the index exists
+     */
+    String declaredKey()
+    {
+        return DECLARED_PREFIX + className + "/" + property;
+    }
+
+    /**
+     * Get the value of the property from a saved object
+     *
+     * @param json the object as saved
+     * @return the value or null if it is not set
+     */
+    Object valueOf(QDSJSONObject json)
+    {
+        QDSJSONObject data = json.optJSONObject("data");
+        if (data == null)
+            return null;
+        Object value = data.opt(property);
+        return QDSJSONObject.NULL.equals(value) ? null : value;
+    }
+
+    /**
+     * @return the index key for an object, or null if the value is null and
+     *         the object is not indexed
+     */
+    String entryKey(Object value, String key)
+    {
+        if (value == null)
+            return null;
+        return prefix + encode(value) + END_OF_VALUE + key;
+    }
+
+    /**
+     * @return the prefix of the index keys of every object with a value
+     */
+    String valuePrefix(Object value)
+    {
+        return prefix + encode(value) + END_OF_VALUE;
+    }
+
+    /**
+     * @return the first index key of a range, or of the whole index when the
+     *         value is null
+     */
+    String rangeStart(Object from)
+    {
+        if (from == null)
+            return prefix;
+        return prefix + encode(from);
+    }
+
+    /**
+     * @return the index key to stop before, the end of the whole index when
+     *         the value is null
+     */
+    String rangeEnd(Object to)
+    {
+        if (to == null)
+            return KeyIndex.endOfPrefix(prefix);
+        return prefix + encode(to);
+    }
+
+    /**
+     * @return the key of the object an index key points at
+     */
+    String keyOf(String entryKey)
+    {
+        return entryKey.substring(entryKey.indexOf(END_OF_VALUE, prefix.length()) + 1);
+    }
+
+    private String encode(Object value)
+    {
+        try
+        {
+            if (type == String.class)
+                return encodeString(value.toString());
+            if (type == boolean.class || type == Boolean.class)
+                return ((Boolean) value) ? "1" : "0";
+            if (type == double.class || type == Double.class ||
+                    type == float.class || type == Float.class)
+            {
+                long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+                return hex(bits < 0 ? ~bits : bits ^ Long.MIN_VALUE);
+            }
+            return hex(((Number) value).longValue() ^ Long.MIN_VALUE);
+        } catch (ClassCastException e)
+        {
+            throw new QDSException("Can't compare " + className + "." + property
+                    + " with " + value.getClass().getName(), e);
+        }
+    }
+
+    static String encodeString(String s)
+    {
+        StringBuilder sb = new StringBuilder(s.length() + 8);
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if (c <= LAST_ESCAPED)
+                sb.append(ESCAPE).append((char) ('A' + c));
+            else
+                sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private static String hex(long v)
+    {
+        String s = Long.toHexString(v);
+        return "0000000000000000".substring(s.length()) + s;
+    }
+
+    static Class<?> propertyType(String className, String property)
+    {
+        Class<?> clazz;
+        try
+        {
+            clazz = Class.forName(className);
+        } catch (ClassNotFoundException e)
+        {
+            throw new QDSException("Unable to find indexed class " + className, e);
+        }
+        for (Method m : clazz.getMethods())
+        {
+            if (m.getParameterTypes().length == 0 &&
+                    (m.getName().equals("get" + property) ||
+                            m.getName().equals("is" + property)))
+                return m.getReturnType();
+        }
+        throw new QDSException(className + " has no property " + property);
+    }
+}
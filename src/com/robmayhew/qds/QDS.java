@@ -16,6 +16,8 @@
 package com.robmayhew.qds;
 
 import java.io.File;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Convenience methods for quickly loading and saving data to the store
@@ -78,11 +80,42 @@ public class QDS
      */
     public static void save(String key, Object value)
     {
-        if (instance == null)
-        {
-            instance = new QuickDataStore(new PreferencesValueStore(chooseName()));
-        }
-        instance.save(key, value);
+        instance().save(key, value);
+    }
+
+    /**
+     * Save an object that reads as null once its time to live has passed,
+     * expired values are removed from the store in the background
+     *
+     * @param key       Key to save the object
+     * @param value     The value to be saved, will overwrite existing if
+     *                  present
+     * @param ttlMillis how long the value lives, in milliseconds
+     */
+    public static void save(String key, Object value, long ttlMillis)
+    {
+        extended().save(key, value, ttlMillis);
+    }
+
+    /**
+     * Remove a key and its value from the store
+     *
+     * @param key the key to remove
+     */
+    public static void delete(String key)
+    {
+        extended().delete(key);
+    }
+
+    /**
+     * Remove every key starting with a prefix, as one record however many
+     * keys there are
+     *
+     * @param prefix the prefix, an empty prefix removes every key
+     */
+    public static void deletePrefix(String prefix)
+    {
+        extended().deletePrefix(prefix);
     }
 
     /**
@@ -93,11 +126,206 @@ public class QDS
      */
     public static Object load(String key)
     {
-        if (instance == null)
-        {
-            instance = new QuickDataStore(new PreferencesValueStore(chooseName()));
-        }
-        return instance.load(key);
+        return instance().load(key);
+    }
+
+    /**
+     * Iterate the keys starting with a prefix, in key order
+     *
+     * @param prefix the prefix, an empty prefix iterates every key
+     */
+    public static Iterable<String> keys(String prefix)
+    {
+        return extended().keys(prefix);
+    }
+
+    /**
+     * Iterate the objects in a range of keys, in key order
+     *
+     * @param fromKey first key to include, or null to start at the first key
+     * @param toKey   key to stop before, or null to continue to the last key
+     */
+    public static Iterable<Map.Entry<String, Object>> scan(String fromKey, String toKey)
+    {
+        return extended().scan(fromKey, toKey);
+    }
+
+    /**
+     * Load the elements of a stored list that match a filter, only the
+     * matching elements are created
+     *
+     * @param key    key the list was saved under
+     * @param filter the condition elements must match
+     */
+    public static List<Object> query(String key, FieldFilter filter)
+    {
+        return extended().query(key, filter);
+    }
+
+    /**
+     * Aggregate the numbers of a field of a stored list, the list is scanned
+     * and no elements are created
+     *
+     * @param key       key the list was saved under
+     * @param field     the field as saved, <code>"Value"</code> for
+     *                  <code>getValue()</code>, or null for a list of numbers
+     * @param aggregate what to compute
+     */
+    public static double aggregate(String key, String field, Aggregate aggregate)
+    {
+        return extended().aggregate(key, field, aggregate);
+    }
+
+    /**
+     * Keep the totals of a field over every value saved under keys starting
+     * with a prefix, every save of a watched key updates them
+     *
+     * @param name      the name to read the view by
+     * @param keyPrefix the start of the keys watched
+     * @param field     the field as saved, <code>"Value"</code> for
+     *                  <code>getValue()</code>, or null for saved numbers
+     */
+    public static void createView(String name, String keyPrefix, String field)
+    {
+        extended().createView(name, keyPrefix, field);
+    }
+
+    /**
+     * Read a view made by createView, the values it watches are not read
+     *
+     * @param name      the view's name
+     * @param aggregate what to compute
+     */
+    public static double view(String name, Aggregate aggregate)
+    {
+        return extended().view(name, aggregate);
+    }
+
+    /**
+     * Run work on every saved value, on a thread per processor
+     *
+     * @param work the work, called from several threads at once
+     */
+    public static void forEachParallel(EntryWork work)
+    {
+        extended().forEachParallel(work);
+    }
+
+    /**
+     * Combine every saved value into one result, ranges of keys are reduced
+     * on a thread per processor and combined in key order
+     *
+     * @param reducer how to combine the values
+     */
+    public static <T> T reduce(Reducer<T> reducer)
+    {
+        return extended().reduce(reducer);
+    }
+
+    /**
+     * Index the objects of a class by one of their properties, every save of
+     * the class keeps the index up to date
+     *
+     * @param type     the class
+     * @param property the property as saved, <code>"Age"</code> for
+     *                 <code>getAge()</code>
+     */
+    public static void createIndex(Class<?> type, String property)
+    {
+        extended().createIndex(type, property);
+    }
+
+    /**
+     * Find the keys of the objects of a class with a property equal to a
+     * value, using an index made by <code>createIndex</code>
+     */
+    public static List<String> findBy(Class<?> type, String property, Object value)
+    {
+        return extended().findBy(type, property, value);
+    }
+
+    /**
+     * Find the keys of the objects of a class with a property in a range of
+     * values, using an index made by <code>createIndex</code>
+     *
+     * @param from the lowest value to include, or null for no lower bound
+     * @param to   the value to stop before, or null for no upper bound
+     */
+    public static List<String> findRange(Class<?> type, String property,
+                                         Object from, Object to)
+    {
+        return extended().findRange(type, property, from, to);
+    }
+
+    /**
+     * Keep bitmaps of where the objects of a class with each value of a
+     * property are in every stored list
+     *
+     * @param type     the class of the list elements
+     * @param property the property as saved
+     */
+    public static void createBitmapIndex(Class<?> type, String property)
+    {
+        extended().createBitmapIndex(type, property);
+    }
+
+    /**
+     * Keep bitmaps of where the objects of a class with a numeric property
+     * in each bucket of values are in every stored list
+     *
+     * @param type        the class of the list elements
+     * @param property    the property as saved
+     * @param bucketWidth the width of each bucket of values
+     */
+    public static void createBitmapIndex(Class<?> type, String property, long bucketWidth)
+    {
+        extended().createBitmapIndex(type, property, bucketWidth);
+    }
+
+    /**
+     * Get the positions in a stored list of the objects with a value, using
+     * an index made by <code>createBitmapIndex</code>
+     */
+    public static Bitmap bitmap(String key, Class<?> type, String property, Object value)
+    {
+        return extended().bitmap(key, type, property, value);
+    }
+
+    /**
+     * Load the elements at some positions of a stored list
+     */
+    public static List<Object> loadElements(String key, Bitmap positions)
+    {
+        return extended().loadElements(key, positions);
+    }
+
+    /**
+     * Index the words of a String property of the objects of a class
+     *
+     * @param type     the class
+     * @param property a String property
+     */
+    public static void createTextIndex(Class<?> type, String property)
+    {
+        extended().createTextIndex(type, property);
+    }
+
+    /**
+     * Find the objects whose text property contains every word of some
+     * text, using an index made by <code>createTextIndex</code>
+     */
+    public static List<String> search(Class<?> type, String property, String words)
+    {
+        return extended().search(type, property, words);
+    }
+
+    /**
+     * Find the objects whose text property has a word starting with some
+     * text, using an index made by <code>createTextIndex</code>
+     */
+    public static List<String> searchPrefix(Class<?> type, String property, String prefix)
+    {
+        return extended().searchPrefix(type, property, prefix);
     }
 
     /**
@@ -128,6 +356,33 @@ public class QDS
         instance =  new QuickDataStore(new FileValueStore(chooseName()));
     }
 
+    /**
+     * The store to use, chosen from the calling class when none has been
+     * set up
+     */
+    private static QuickDataStoreInterface instance()
+    {
+        if (instance == null)
+        {
+            instance = new QuickDataStore(new PreferencesValueStore(chooseName()));
+        }
+        return instance;
+    }
+
+    /**
+     * The store to use for the operations beyond saving and loading
+     */
+    private static ExtendedDataStoreInterface extended()
+    {
+        QuickDataStoreInterface store = instance();
+        if (!(store instanceof ExtendedDataStoreInterface))
+        {
+            throw new QDSException(store.getClass().getName()
+                    + " only saves and loads");
+        }
+        return (ExtendedDataStoreInterface) store;
+    }
+
     private static String chooseName()
     {
         StackTraceElement[] stackTraceElements = Thread.currentThread()
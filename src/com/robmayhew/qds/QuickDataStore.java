@@ -17,20 +17,117 @@
 package com.robmayhew.qds;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Method;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 
 /**
  * <p>The Quick Data Store</p>
- * <p>This class is not thread safe</p>
+ * <p>A store can be shared by threads. A save, delete or transaction is
+ * written in one commit with the index, view and expiry entries it changes,
+ * and loads made after it returns see it. With a FileValueStore other
+ * readers see all of a commit or none of it. Creating an index waits for
+ * the saves in progress, so none is left out of it. Keys and scans made
+ * while other threads save may or may not include their saves.</p>
  * <p>This class is not for long term or production use</p>
  * <p>This class is for quick prototype and demo projects</p>
  * <p>For anything longer term use some form of database</p>
  */
-public class QuickDataStore implements QuickDataStoreInterface
+public class QuickDataStore implements ExtendedDataStoreInterface
 {
-    private final ValueStore valueStore;
+    /**
+     * Keys starting with this are used by the store itself
+     */
+    static final String RESERVED_PREFIX = "__qds/";
+
+    private static final Logger LOG = Logger.getLogger(QuickDataStore.class.getName());
+
+    private static final String SAVED_OBJECT = "{\"type\":\"object\"";
+    private static final String SAVED_LIST = "{\"type\":\"list\"";
+
+    private final OrderedValueStore valueStore;
+    /**
+     * The store without its metrics, for the reads the store makes to keep
+     * its own entries up to date
+     */
+    private final OrderedValueStore unmetered;
+    private final StoreMetrics metrics = new StoreMetrics();
+    private ObjectName mbeanName;
+    private volatile long slowNanos;
+    private volatile Map<String, List<PropertyIndex>> indexes;
+    /**
+     * Saves that find no indexes write without the store's lock and hold
+     * this read lock instead, creating an index or view takes the write lock
+     * so no save is missed by its scan
+     */
+    private final ReadWriteLock declaring = new ReentrantReadWriteLock();
+    private List<BitmapIndex> bitmapIndexes;
+    private List<TextIndex> textIndexes;
+    private List<AggregateView> views;
+    private boolean storageReport;
+    private int pendingDeltas;
+    private boolean mergeScheduled;
+    private long sweepAt;
+    private ExecutorService workers;
+    private boolean closed;
+
+    /**
+     * Text index deltas are merged once there are this many
+     */
+    private static final int MERGE_THRESHOLD = 1000;
+
+    /**
+     * Longest the expiry sweeper holds the store before letting saves in
+     */
+    private static final long SWEEP_SLICE_MILLIS = 10;
+
+    private static final ScheduledExecutorService SWEEPER =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "QDS expiry sweep");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /**
+     * Keys handed to a worker at a time by {@link #reduce}
+     */
+    private static final int RANGE_SIZE = 256;
+
+    private static final ExecutorService MERGER = Executors.newSingleThreadExecutor(
+            new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "QDS text index merge");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
 
 
     /**
@@ -50,7 +147,112 @@ public class QuickDataStore implements QuickDataStoreInterface
      */
     public QuickDataStore(ValueStore valueStore)
     {
-        this.valueStore = valueStore;
+        this.unmetered = ordered(valueStore);
+        this.valueStore = new MeteredValueStore(unmetered, metrics);
+    }
+
+    /**
+     * Adapt a store that only writes and loads single values, see
+     * {@link AbstractValueStore}
+     */
+    private static OrderedValueStore ordered(final ValueStore valueStore)
+    {
+        if (valueStore instanceof OrderedValueStore)
+            return (OrderedValueStore) valueStore;
+        return new AbstractValueStore()
+        {
+            public void writeValue(String key, String value) throws QDSException
+            {
+                valueStore.writeValue(key, value);
+            }
+
+            public String loadValue(String key)
+            {
+                return valueStore.loadValue(key);
+            }
+        };
+    }
+
+    /**
+     * @return the counts and times of this store's operations
+     */
+    public StoreMetrics metrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * <p>Log the saves and loads that take at least some time, with the key,
+     * the size of the value and the time spent validating the object,
+     * serializing it, parsing it and in the value store.</p>
+     * <p>They are logged at <code>WARNING</code> to the
+     * <code>java.util.logging</code> logger named after this class. Each
+     * save and load is then timed step by step, which costs a little.</p>
+     *
+     * @param millis the threshold in milliseconds, 0 to log none
+     */
+    public void setSlowOperationThreshold(long millis)
+    {
+        slowNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * <p>Register a {@link StoreMXBean} for this store with the platform
+     * MBean server, named
+     * <code>com.robmayhew.qds:type=Store,name=</code><i>name</i>.</p>
+     * <p>A store registers one MBean at a time, registering again replaces
+     * it.</p>
+     *
+     * @param name what to call the store in JMX
+     * @return the name it was registered under
+     */
+    public synchronized ObjectName registerMBean(String name)
+    {
+        unregisterMBean();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try
+        {
+            ObjectName objectName = new ObjectName("com.robmayhew.qds:type=Store,name="
+                    + ObjectName.quote(name));
+            server.registerMBean(new StoreMonitor(this, unmetered), objectName);
+            mbeanName = objectName;
+            return objectName;
+        } catch (JMException e)
+        {
+            throw new QDSException("Error registering the MBean " + name, e);
+        }
+    }
+
+    /**
+     * Remove the MBean registered by {@link #registerMBean}, if there is one
+     */
+    public synchronized void unregisterMBean()
+    {
+        if (mbeanName == null)
+            return;
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+        } catch (JMException e)
+        {
+            throw new QDSException("Error unregistering the MBean " + mbeanName, e);
+        } finally
+        {
+            mbeanName = null;
+        }
+    }
+
+    /**
+     * Stop the threads that run {@link #reduce} and
+     * {@link #forEachParallel} and unregister the store's MBean. The value
+     * store is left open.
+     */
+    public synchronized void close()
+    {
+        closed = true;
+        if (workers != null)
+            workers.shutdownNow();
+        unregisterMBean();
     }
 
     /**
@@ -69,25 +271,151 @@ public class QuickDataStore implements QuickDataStoreInterface
      */
     public void save(String key, Object value)
     {
-        if (!canIWriteThisObject(value))
-            throw new QDSException("I can't write the value type " +
-                    value.getClass().getName());
-        if (isPrimitive(value.getClass()))
-        {
-            savePrimitive(key, value);
-        } else if (value instanceof List)
+        long start = System.nanoTime();
+        Breakdown breakdown = startBreakdown();
+        boolean indexed;
+        try
         {
+            String json = toJson(key, value);
+            declaring.readLock().lock();
             try
             {
-                save(key, (List) value);
-            } catch (Exception e)
+                indexed = hasIndexes();
+                if (!indexed)
+                    valueStore.writeValue(key, json);
+            } finally
             {
-                throw new QDSException("Exception saving list ", e);
+                declaring.readLock().unlock();
             }
-        } else
+            if (indexed)
+            {
+                WriteBatch batch = new WriteBatch();
+                batch.put(key, json);
+                synchronized (this)
+                {
+                    valueStore.writeValues(addIndexEntries(batch));
+                }
+            }
+            finished(StoreEvent.Type.SAVE, key, json.length(), value, start, breakdown);
+        } finally
+        {
+            if (breakdown != null)
+                breakdown.stop();
+        }
+        if (indexed)
+            scheduleMerge();
+    }
+
+    /**
+     * <p>Save an object to the store for a while.</p>
+     * <p>Once the time to live has passed the value reads as if it was never
+     * saved. A background sweeper removes expired values from the store, a
+     * little at a time so saves are not held up. Until it does,
+     * <code>keys</code> may still list the key and <code>scan</code> gives it
+     * a null value. Saving the key again without a time to live keeps the
+     * new value.</p>
+     *
+     * @param key        Key to save the object
+     * @param value      The value to be saved, will overwrite existing if
+     *                   present
+     * @param ttlMillis  how long the value lives, in milliseconds
+     */
+    public void save(String key, Object value, long ttlMillis)
+    {
+        if (ttlMillis <= 0)
+            throw new QDSException("The time to live must be positive");
+        long start = System.nanoTime();
+        Breakdown breakdown = startBreakdown();
+        long expires = System.currentTimeMillis() + ttlMillis;
+        try
+        {
+            String json = Expiry.withExpiry(toJson(key, value), expires);
+            WriteBatch batch = new WriteBatch();
+            batch.put(key, json);
+            synchronized (this)
+            {
+                batch = addIndexEntries(batch);
+                batch.put(Expiry.recordKey(expires, key), "");
+                valueStore.writeValues(batch);
+            }
+            finished(StoreEvent.Type.SAVE, key, json.length(), value, start, breakdown);
+        } finally
+        {
+            if (breakdown != null)
+                breakdown.stop();
+        }
+        scheduleMerge();
+        scheduleSweep(expires);
+    }
+
+    /**
+     * <p>Remove a key and its value from the store.</p>
+     * <p>The removal is recorded as a tombstone that hides any older value
+     * until compaction drops both. Indexes and views are updated in the
+     * same commit.</p>
+     *
+     * @param key the key to remove, nothing happens if it is not saved
+     */
+    public void delete(String key)
+    {
+        checkKey(key);
+        WriteBatch batch = new WriteBatch();
+        batch.remove(key);
+        declaring.readLock().lock();
+        try
+        {
+            if (!hasIndexes())
+            {
+                valueStore.writeValues(batch);
+                return;
+            }
+        } finally
+        {
+            declaring.readLock().unlock();
+        }
+        synchronized (this)
+        {
+            valueStore.writeValues(addIndexEntries(batch));
+        }
+        scheduleMerge();
+    }
+
+    /**
+     * <p>Remove every key starting with a prefix.</p>
+     * <p>The removal is recorded as one range tombstone however many keys
+     * it covers, and compaction drops it along with the values it hides.
+     * With indexes or views the keys in the range are visited to update
+     * them, the range is still written as a single record. The keys the
+     * store uses itself are never removed.</p>
+     *
+     * @param prefix the prefix, an empty prefix removes every key
+     */
+    public void deletePrefix(String prefix)
+    {
+        checkKey(prefix);
+        String end = KeyIndex.endOfPrefix(prefix);
+        String reservedEnd = KeyIndex.endOfPrefix(RESERVED_PREFIX);
+        WriteBatch batch = new WriteBatch();
+        synchronized (this)
         {
-            saveObject(key, value);
+            if (hasIndexes())
+            {
+                Iterator<Map.Entry<String, String>> it = userValues(prefix, end);
+                while (it.hasNext())
+                {
+                    batch.remove(it.next().getKey());
+                }
+                batch = addIndexEntries(batch);
+            }
+            // The removed keys added for the indexes are dropped by the ranges
+            if (prefix.compareTo(RESERVED_PREFIX) < 0)
+                batch.removeRange(prefix, end != null && end.compareTo(RESERVED_PREFIX) < 0
+                        ? end : RESERVED_PREFIX);
+            if (end == null || end.compareTo(reservedEnd) > 0)
+                batch.removeRange(prefix.compareTo(reservedEnd) > 0 ? prefix : reservedEnd, end);
+            valueStore.writeValues(batch);
         }
+        scheduleMerge();
     }
 
     /**
@@ -98,37 +426,1716 @@ public class QuickDataStore implements QuickDataStoreInterface
      */
     public Object load(String key)
     {
-        String jsonString = valueStore.loadValue(key);
+        long start = System.nanoTime();
+        Breakdown breakdown = startBreakdown();
+        try
+        {
+            String jsonString = loadLive(key);
+            Object value = jsonString == null ? null : fromJson(key, jsonString);
+            finished(StoreEvent.Type.LOAD, key, jsonString == null ? 0 : jsonString.length(),
+                    value, start, breakdown);
+            return value;
+        } finally
+        {
+            if (breakdown != null)
+                breakdown.stop();
+        }
+    }
+
+    /**
+     * @return a breakdown to collect the steps of a save or load, or null if
+     *         nothing would look at it
+     */
+    private Breakdown startBreakdown()
+    {
+        return slowNanos > 0 || StoreEvent.enabled() ? Breakdown.start() : null;
+    }
+
+    /**
+     * Record a save or load, and with a breakdown tell the listeners and
+     * log it if it was slow
+     */
+    private void finished(StoreEvent.Type type, String key, int valueBytes, Object value,
+                          long start, Breakdown breakdown)
+    {
+        long nanos = metrics.record(type == StoreEvent.Type.SAVE
+                ? StoreMetrics.Op.SAVE : StoreMetrics.Op.LOAD, start);
+        if (breakdown == null)
+            return;
+        StoreEvent event = new StoreEvent(type, key, valueBytes,
+                value == null ? null : value.getClass().getName(), start, nanos,
+                breakdown.nanos.clone());
+        StoreEvent.fire(event);
+        long threshold = slowNanos;
+        if (threshold > 0 && nanos >= threshold && LOG.isLoggable(Level.WARNING))
+            LOG.warning("Slow " + event);
+    }
+
+    /**
+     * <p>Iterate the keys starting with a prefix, in key order.</p>
+     * <p>For example <code>keys("user:42:")</code> iterates every key saved
+     * for user 42. Only the matching keys are visited and no values are
+     * read.</p>
+     *
+     * @param prefix the prefix, an empty prefix iterates every key
+     */
+    public Iterable<String> keys(final String prefix)
+    {
+        return new Iterable<String>()
+        {
+            public Iterator<String> iterator()
+            {
+                final Iterator<Map.Entry<String, String>> it =
+                        userValues(prefix, KeyIndex.endOfPrefix(prefix));
+                return new Iterator<String>()
+                {
+                    public boolean hasNext()
+                    {
+                        return it.hasNext();
+                    }
+
+                    public String next()
+                    {
+                        return it.next().getKey();
+                    }
+
+                    public void remove()
+                    {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Iterate the objects in a range of keys, in key order. Each object is
+     * loaded when the entry's value is asked for.
+     *
+     * @param fromKey first key to include, or null to start at the first key
+     * @param toKey   key to stop before, or null to continue to the last key
+     */
+    public Iterable<Map.Entry<String, Object>> scan(final String fromKey,
+                                                   final String toKey)
+    {
+        return new Iterable<Map.Entry<String, Object>>()
+        {
+            public Iterator<Map.Entry<String, Object>> iterator()
+            {
+                final Iterator<Map.Entry<String, String>> it =
+                        userValues(fromKey, toKey);
+                return new Iterator<Map.Entry<String, Object>>()
+                {
+                    public boolean hasNext()
+                    {
+                        return it.hasNext();
+                    }
+
+                    public Map.Entry<String, Object> next()
+                    {
+                        final Map.Entry<String, String> e = it.next();
+                        return new LazyEntry<Object>(e.getKey())
+                        {
+                            public Object getValue()
+                            {
+                                return fromJson(e.getKey(), e.getValue());
+                            }
+                        };
+                    }
+
+                    public void remove()
+                    {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * <p>Load the elements of a stored list that match a filter.</p>
+     * <p>The list is read one element at a time and the filter is checked
+     * against each element's saved fields, only the elements that match are
+     * created.</p>
+     *
+     * @param key    key the list was saved under
+     * @param filter the condition elements must match
+     * @return the matching elements in list order, empty if nothing is
+     *         saved under the key
+     */
+    public List<Object> query(String key, FieldFilter filter)
+    {
+        List<Object> matches = new ArrayList<Object>();
+        String jsonString = loadLive(key);
         if (jsonString == null)
-            return null;
+            return matches;
         try
         {
-            QDSJSONObject json = new QDSJSONObject(jsonString);
-            String type = json.getString("type");
-            if ("list".equals(type))
+            ListReader reader = new ListReader(jsonString);
+            QDSJSONObject element;
+            while ((element = reader.next()) != null)
             {
-                QDSJSONArray array = json.getJSONArray("value");
-                List<Object> list = new ArrayList<Object>();
-                for (int i = 0; i < array.length(); i++)
+                QDSJSONObject data = element.optJSONObject("data");
+                if (data != null && filter.matches(data))
+                    matches.add(createAndPopulate(element));
+            }
+        } catch (QDSJSONException e)
+        {
+            throw new QDSException("Error reading list " + key, e);
+        }
+        return matches;
+    }
+
+    /**
+     * <p>Aggregate the numbers of a field of a stored list.</p>
+     * <p>The saved text is scanned and the numbers are added up as they are
+     * read, no elements are created, so a list of any length is aggregated
+     * without loading it.</p>
+     * <pre>
+     * double total = store.aggregate("foos", "Value", Aggregate.SUM);</pre>
+     *
+     * @param key       key the list was saved under, a single saved object
+     *                  gives its own field
+     * @param field     the field as saved, <code>"Value"</code> for
+     *                  <code>getValue()</code>, or null to aggregate a list
+     *                  of numbers
+     * @param aggregate what to compute
+     * @return the result, computed over no numbers if nothing is saved under
+     *         the key
+     */
+    public double aggregate(String key, String field, Aggregate aggregate)
+    {
+        Totals totals = new Totals();
+        String jsonString = loadLive(key);
+        if (jsonString != null)
+        {
+            try
+            {
+                NumberScanner.scan(jsonString, field, totals);
+            } catch (QDSJSONException e)
+            {
+                throw new QDSException("Error reading " + key, e);
+            }
+        }
+        return totals.get(aggregate);
+    }
+
+    /**
+     * <p>Keep the totals of a field over every value saved under keys
+     * starting with a prefix, so they can be read without a scan.</p>
+     * <p>The view is added up from the values already in the store when it
+     * is created, after that every save of a watched key updates it in the
+     * same commit as the value. The view is saved in the store, a store
+     * opened later on the same file keeps it up to date. Creating a view
+     * that already exists does nothing, creating it with another prefix or
+     * field replaces it.</p>
+     * <pre>
+     * store.createView("order totals", "orders/", "Value");
+     * double total = store.view("order totals", Aggregate.SUM);</pre>
+     *
+     * @param name      the name to read the view by
+     * @param keyPrefix the start of the keys watched, a whole key watches
+     *                  that key and any key starting with it
+     * @param field     the field as saved, <code>"Value"</code> for
+     *                  <code>getValue()</code>, or null for saved numbers
+     */
+    public void createView(String name, String keyPrefix, String field)
+    {
+        declaring.writeLock().lock();
+        try
+        {
+            synchronized (this)
+            {
+                AggregateView view = new AggregateView(name, keyPrefix, field);
+                AggregateView existing = aggregateView(name);
+                if (existing != null && existing.declaredValue().equals(view.declaredValue()))
+                    return;
+                WriteBatch batch = new WriteBatch();
+                batch.put(view.declaredKey(), view.declaredValue());
+                batch.put(view.totalsKey(), viewTotals(view, null).encode());
+                valueStore.writeValues(batch);
+                views.remove(existing);
+                views.add(view);
+            }
+        } finally
+        {
+            declaring.writeLock().unlock();
+        }
+    }
+
+    /**
+     * <p>Keep a {@link StorageReport} of the store, so it can be read
+     * without a scan.</p>
+     * <p>The report is counted from the values already in the store, after
+     * that every save and removal updates it in the same commit, reading
+     * the old value of the key as an index does. The report is saved in the
+     * store, a store opened later on the same file keeps it up to date.
+     * Calling this again counts the report again from every value, which
+     * also finds the largest values replaced since.</p>
+     */
+    public void createStorageReport()
+    {
+        declaring.writeLock().lock();
+        try
+        {
+            synchronized (this)
+            {
+                loadIndexes();
+                WriteBatch batch = new WriteBatch();
+                batch.removeRange(StorageAnalytics.USAGE_PREFIX,
+                        KeyIndex.endOfPrefix(StorageAnalytics.USAGE_PREFIX));
+                batch.put(StorageAnalytics.DECLARED_KEY, "");
+                for (Map.Entry<String, StorageReport.Usage> e : countUsages().entrySet())
                 {
-                    QDSJSONObject obj = array.getJSONObject(i);
-                    list.add(toObject(obj));
+                    batch.put(e.getKey(), e.getValue().encode());
                 }
-                return list;
-            } else if ("primitive".equals(type))
+                valueStore.writeValues(batch);
+                storageReport = true;
+            }
+        } finally
+        {
+            declaring.writeLock().unlock();
+        }
+    }
+
+    /**
+     * <p>Get how many keys and bytes are saved under each key prefix, class
+     * and type of value, and the dead space of the files.</p>
+     * <p>With {@link #createStorageReport()} the report is read from the
+     * usages kept in the store, otherwise every value is read to count it.
+     * The dead space of a <code>FileValueStore</code> is counted from
+     * every key, without reading the values.</p>
+     */
+    public StorageReport storageReport()
+    {
+        Map<String, StorageReport.Usage> byPrefix = new HashMap<String, StorageReport.Usage>();
+        Map<String, StorageReport.Usage> byClass = new HashMap<String, StorageReport.Usage>();
+        Map<String, StorageReport.Usage> byType = new HashMap<String, StorageReport.Usage>();
+        Map<String, StorageReport.Usage> usages;
+        synchronized (this)
+        {
+            loadIndexes();
+            if (storageReport)
             {
-                return toPrimitive(json);
-            } else if ("object".equals(type))
+                usages = new HashMap<String, StorageReport.Usage>();
+                Iterator<Map.Entry<String, String>> it = valueStore.scan(
+                        StorageAnalytics.USAGE_PREFIX,
+                        KeyIndex.endOfPrefix(StorageAnalytics.USAGE_PREFIX));
+                while (it.hasNext())
+                {
+                    Map.Entry<String, String> e = it.next();
+                    usages.put(e.getKey(), StorageReport.Usage.decode(e.getValue()));
+                }
+            } else
             {
-                return toObject(json);
+                usages = countUsages();
             }
-            return null;
-        } catch (Exception e)
+        }
+        for (Map.Entry<String, StorageReport.Usage> e : usages.entrySet())
         {
-            throw new RuntimeException("Error parsing json " + jsonString, e);
+            String key = e.getKey();
+            if (key.startsWith(StorageAnalytics.PREFIX))
+                byPrefix.put(key.substring(StorageAnalytics.PREFIX.length()), e.getValue());
+            else if (key.startsWith(StorageAnalytics.CLASS))
+                byClass.put(key.substring(StorageAnalytics.CLASS.length()), e.getValue());
+            else if (key.startsWith(StorageAnalytics.TYPE))
+                byType.put(key.substring(StorageAnalytics.TYPE.length()), e.getValue());
+        }
+        double deadSpace = Double.NaN;
+        if (unmetered instanceof FileValueStore)
+        {
+            CompactionStats stats = ((FileValueStore) unmetered).compactionStats();
+            deadSpace = stats.getTotalBytes() == 0 ? 0
+                    : (double) stats.getDebtBytes() / stats.getTotalBytes();
         }
+        return new StorageReport(byPrefix, byClass, byType, deadSpace);
+    }
+
+    /**
+     * Read a view made by {@link #createView}, without reading the values
+     * it watches
+     *
+     * @param name      the view's name
+     * @param aggregate what to compute
+     * @return the result over every watched value
+     */
+    public double view(String name, Aggregate aggregate)
+    {
+        AggregateView view = aggregateView(name);
+        if (view == null)
+            throw new QDSException("No view " + name);
+        String saved = valueStore.loadValue(view.totalsKey());
+        return (saved == null ? new Totals() : Totals.decode(saved)).get(aggregate);
     }
 
+    /**
+     * <p>Run work on every saved value, using a thread per processor.</p>
+     * <p>The keys are split into ranges that are loaded and handed to the
+     * work on the worker threads, so reading and parsing the values runs in
+     * parallel as well as the work. Values saved while the work runs may
+     * or may not be seen.</p>
+     *
+     * @param work the work, called from several threads at once
+     */
+    public void forEachParallel(final EntryWork work)
+    {
+        reduce(new Reducer<Object>()
+        {
+            public Object start()
+            {
+                return null;
+            }
+
+            public Object add(Object result, String key, Object value) throws Exception
+            {
+                work.run(key, value);
+                return null;
+            }
+
+            public Object combine(Object first, Object second)
+            {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * <p>Combine every saved value into one result, using a thread per
+     * processor.</p>
+     * <p>The keys are split into ranges of up to 256 keys in key order.
+     * Each range is loaded and reduced on a worker thread, and the results
+     * of the ranges are combined in key order on the calling thread. Only a
+     * few ranges are read ahead of the workers, so the store is never
+     * loaded at once.</p>
+     * <pre>
+     * int count = store.reduce(new Reducer&lt;Integer&gt;()
+     * {
+     *     public Integer start() { return 0; }
+     *     public Integer add(Integer n, String key, Object value) { return n + 1; }
+     *     public Integer combine(Integer a, Integer b) { return a + b; }
+     * });</pre>
+     *
+     * <p>The worker threads are kept by the store and stop after a minute
+     * without work, the reducer must not call <code>reduce</code> or
+     * <code>forEachParallel</code> itself.</p>
+     *
+     * @param reducer how to combine the values
+     * @return the combined result, <code>reducer.start()</code> if the
+     *         store is empty
+     */
+    public <T> T reduce(final Reducer<T> reducer)
+    {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService workers = workers(threads);
+        final Semaphore readAhead = new Semaphore(threads * 2);
+        final AtomicBoolean failed = new AtomicBoolean();
+        List<Future<T>> ranges = new ArrayList<Future<T>>();
+        try
+        {
+            Iterator<Map.Entry<String, String>> it = userValues(null, null);
+            while (it.hasNext() && !failed.get())
+            {
+                final List<Map.Entry<String, String>> range =
+                        new ArrayList<Map.Entry<String, String>>(RANGE_SIZE);
+                while (range.size() < RANGE_SIZE && it.hasNext())
+                {
+                    range.add(it.next());
+                }
+                readAhead.acquire();
+                ranges.add(workers.submit(new Callable<T>()
+                {
+                    public T call() throws Exception
+                    {
+                        try
+                        {
+                            T result = reducer.start();
+                            for (Map.Entry<String, String> e : range)
+                            {
+                                result = reducer.add(result, e.getKey(),
+                                        fromJson(e.getKey(), e.getValue()));
+                            }
+                            return result;
+                        } catch (Exception e)
+                        {
+                            failed.set(true);
+                            throw e;
+                        } finally
+                        {
+                            readAhead.release();
+                        }
+                    }
+                }));
+            }
+            T result = reducer.start();
+            for (Future<T> range : ranges)
+            {
+                result = reducer.combine(result, range.get());
+            }
+            return result;
+        } catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new QDSException("Reduce failed", e.getCause());
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new QDSException("Interrupted while reducing", e);
+        } catch (RuntimeException e)
+        {
+            throw e;
+        } catch (Exception e)
+        {
+            throw new QDSException("Reduce failed", e);
+        } finally
+        {
+            for (Future<T> range : ranges)
+            {
+                range.cancel(true);
+            }
+        }
+    }
+
+    private synchronized ExecutorService workers(int threads)
+    {
+        if (closed)
+            throw new QDSException("The store is closed");
+        if (workers == null)
+        {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+                    1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory()
+                    {
+                        public Thread newThread(Runnable r)
+                        {
+                            Thread t = new Thread(r, "QDS worker");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            workers = pool;
+        }
+        return workers;
+    }
+
+    /**
+     * <p>Run work in a transaction.</p>
+     * <p>Saves made through the transaction are buffered and written in one
+     * commit after the work returns, either all of them are saved or none
+     * are. Loads through the transaction see its own saves.</p>
+     * <p>Loads of keys the transaction has not saved read the store as it
+     * is at the time of the load, changes by other stores are not checked
+     * for conflicts.</p>
+     * <pre>
+     * store.transaction(new TransactionWork()
+     * {
+     *     public void run(Transaction tx)
+     *     {
+     *         int count = (Integer) tx.load("count");
+     *         tx.save("count", count + 1);
+     *         tx.save("last", "now");
+     *     }
+     * });</pre>
+     *
+     * @param work the work to run
+     */
+    public void transaction(TransactionWork work)
+    {
+        Transaction tx = new Transaction(this);
+        try
+        {
+            work.run(tx);
+        } catch (RuntimeException e)
+        {
+            throw e;
+        } catch (Exception e)
+        {
+            throw new QDSException("Transaction failed", e);
+        }
+        WriteBatch batch = tx.getBatch();
+        if (batch.isEmpty())
+            return;
+        synchronized (this)
+        {
+            valueStore.writeValues(addIndexEntries(batch));
+        }
+        scheduleMerge();
+    }
+
+    /**
+     * <p>Index the objects of a class by one of their properties.</p>
+     * <p>Objects of the class already in the store are indexed when the
+     * index is created, after that every save of the class updates the
+     * index in the same commit as the object. The index is saved in the
+     * store, a store opened later on the same file keeps it up to date
+     * without creating it again.</p>
+     * <p>Only objects saved directly under a key are indexed, not objects
+     * in a list.</p>
+     *
+     * @param type     the class
+     * @param property the property as saved, <code>"Age"</code> for
+     *                 <code>getAge()</code>
+     */
+    public void createIndex(Class<?> type, String property)
+    {
+        declaring.writeLock().lock();
+        try
+        {
+            synchronized (this)
+            {
+                List<PropertyIndex> classIndexes = indexes().get(type.getName());
+                if (classIndexes != null)
+                {
+                    for (PropertyIndex index : classIndexes)
+                    {
+                        if (index.property.equals(property))
+                            return;
+                    }
+                }
+                PropertyIndex index = new PropertyIndex(type.getName(), property);
+                WriteBatch batch = new WriteBatch();
+                Iterator<Map.Entry<String, String>> it = userValues(null, null);
+                while (it.hasNext())
+                {
+                    Map.Entry<String, String> e = it.next();
+                    QDSJSONObject json = savedObject(e.getValue());
+                    if (json != null && index.className.equals(json.optString("class")))
+                    {
+                        String entryKey = index.entryKey(index.valueOf(json), e.getKey());
+                        if (entryKey != null)
+                            batch.put(entryKey, "");
+                    }
+                }
+                batch.put(index.declaredKey(), "");
+                valueStore.writeValues(batch);
+                addIndex(index);
+            }
+        } finally
+        {
+            declaring.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Find the keys of the objects of a class with a property equal to a
+     * value, using an index made by {@link #createIndex}
+     *
+     * @param type     the class
+     * @param property the property
+     * @param value    the value to look for
+     * @return the keys of the matching objects, in key order
+     */
+    public List<String> findBy(Class<?> type, String property, Object value)
+    {
+        PropertyIndex index = index(type, property);
+        if (value == null)
+            return new ArrayList<String>();
+        String prefix = index.valuePrefix(value);
+        return indexedKeys(index, prefix, KeyIndex.endOfPrefix(prefix));
+    }
+
+    /**
+     * Find the keys of the objects of a class with a property in a range of
+     * values, using an index made by {@link #createIndex}
+     *
+     * @param type     the class
+     * @param property the property
+     * @param from     the lowest value to include, or null for no lower bound
+     * @param to       the value to stop before, or null for no upper bound
+     * @return the keys of the matching objects, in order of their values
+     */
+    public List<String> findRange(Class<?> type, String property,
+                                  Object from, Object to)
+    {
+        PropertyIndex index = index(type, property);
+        return indexedKeys(index, index.rangeStart(from), index.rangeEnd(to));
+    }
+
+    /**
+     * <p>Keep bitmaps of where the objects of a class with each value of a
+     * property are in every stored list.</p>
+     * <p>Meant for properties with few values, like booleans or a status.
+     * Lists already in the store are indexed when the index is created,
+     * after that saving a list rewrites its bitmaps in the same commit.
+     * Use {@link #bitmap} to get the positions with a value, combine them
+     * with <code>and</code>, <code>or</code> and <code>andNot</code> and
+     * count them or load only those elements.</p>
+     *
+     * @param type     the class of the list elements
+     * @param property the property as saved, <code>"Active"</code> for
+     *                 <code>isActive()</code>
+     */
+    public void createBitmapIndex(Class<?> type, String property)
+    {
+        createBitmapIndex(type, property, 0);
+    }
+
+    /**
+     * Keep bitmaps of where the objects of a class with a numeric property
+     * in each bucket of values are in every stored list
+     *
+     * @param type        the class of the list elements
+     * @param property    the property as saved
+     * @param bucketWidth the width of each bucket, with 10 the values 30 to
+     *                    39 share the bitmap for 30
+     */
+    public void createBitmapIndex(Class<?> type, String property, long bucketWidth)
+    {
+        declaring.writeLock().lock();
+        try
+        {
+            synchronized (this)
+            {
+                loadIndexes();
+                for (BitmapIndex index : bitmapIndexes)
+                {
+                    if (index.className.equals(type.getName()) && index.property.equals(property))
+                        return;
+                }
+                PropertyIndex.propertyType(type.getName(), property);
+                BitmapIndex index = new BitmapIndex(type.getName(), property, bucketWidth);
+                WriteBatch batch = new WriteBatch();
+                Iterator<Map.Entry<String, String>> it = userValues(null, null);
+                while (it.hasNext())
+                {
+                    Map.Entry<String, String> e = it.next();
+                    if (e.getValue().startsWith(SAVED_LIST))
+                        addBitmaps(batch, index, e.getKey(), e.getValue());
+                }
+                batch.put(index.declaredKey(), index.declaredValue());
+                valueStore.writeValues(batch);
+                bitmapIndexes.add(index);
+            }
+        } finally
+        {
+            declaring.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get the positions in a stored list of the objects with a value, using
+     * an index made by {@link #createBitmapIndex}. No part of the list is
+     * read.
+     *
+     * @param key      key the list was saved under
+     * @param type     the class of the list elements
+     * @param property the property
+     * @param value    the value, or any value in its bucket
+     * @return the positions, empty if there are none or nothing is saved
+     *         under the key
+     */
+    public Bitmap bitmap(String key, Class<?> type, String property, Object value)
+    {
+        loadIndexes();
+        for (BitmapIndex index : bitmapIndexes)
+        {
+            if (index.className.equals(type.getName()) && index.property.equals(property))
+            {
+                String encoded = valueStore.loadValue(index.bitmapKey(key, value));
+                return encoded == null ? Bitmap.empty() : Bitmap.decode(encoded);
+            }
+        }
+        throw new QDSException("No bitmap index on " + type.getName() + "." + property);
+    }
+
+    /**
+     * Load the elements at some positions of a stored list, the other
+     * elements are skipped without being created
+     *
+     * @param key       key the list was saved under
+     * @param positions the positions to load
+     * @return the elements in list order
+     */
+    public List<Object> loadElements(String key, Bitmap positions)
+    {
+        List<Object> elements = new ArrayList<Object>();
+        String jsonString = loadLive(key);
+        Iterator<Integer> wanted = positions.iterator();
+        if (jsonString == null || !wanted.hasNext())
+            return elements;
+        try
+        {
+            ListReader reader = new ListReader(jsonString);
+            int next = wanted.next();
+            QDSJSONObject element;
+            for (int position = 0; (element = reader.next()) != null; position++)
+            {
+                if (position != next)
+                    continue;
+                elements.add(toObject(element));
+                if (!wanted.hasNext())
+                    break;
+                next = wanted.next();
+            }
+        } catch (Exception e)
+        {
+            throw new QDSException("Error reading list " + key, e);
+        }
+        return elements;
+    }
+
+    /**
+     * <p>Index the words of a String property of the objects of a class, for
+     * searching by word or by the start of a word.</p>
+     * <p>Objects of the class already in the store are indexed when the
+     * index is created. After that a save records only the words that
+     * changed, and these changes are merged into compressed lists of the
+     * objects using each word in the background, once enough of them
+     * build up.</p>
+     *
+     * @param type     the class
+     * @param property a String property, <code>"Name"</code> for
+     *                 <code>getName()</code>
+     */
+    public void createTextIndex(Class<?> type, String property)
+    {
+        declaring.writeLock().lock();
+        try
+        {
+            synchronized (this)
+            {
+                loadIndexes();
+                for (TextIndex index : textIndexes)
+                {
+                    if (index.className.equals(type.getName()) && index.property.equals(property))
+                        return;
+                }
+                TextIndex index = new TextIndex(type.getName(), property);
+                WriteBatch batch = new WriteBatch();
+                Iterator<Map.Entry<String, String>> it = userValues(null, null);
+                while (it.hasNext())
+                {
+                    Map.Entry<String, String> e = it.next();
+                    QDSJSONObject json = savedObject(e.getValue());
+                    if (json == null || !index.className.equals(json.optString("class")))
+                        continue;
+                    for (String term : index.terms(json))
+                    {
+                        assignId(batch, e.getKey());
+                        batch.put(index.deltaKey(term, e.getKey()), TextIndex.ADDED);
+                    }
+                }
+                batch.put(index.declaredKey(), "");
+                valueStore.writeValues(batch);
+                textIndexes.add(index);
+            }
+        } finally
+        {
+            declaring.writeLock().unlock();
+        }
+        mergeTextIndexes();
+    }
+
+    /**
+     * Find the objects whose text property contains every word of some text,
+     * using an index made by {@link #createTextIndex}
+     *
+     * @param type     the class
+     * @param property the property
+     * @param words    the words to look for, in any case
+     * @return the keys of the matching objects, in key order
+     */
+    public List<String> search(Class<?> type, String property, String words)
+    {
+        TextIndex index = textIndex(type, property);
+        Bitmap ids = null;
+        for (String term : TextIndex.terms(words))
+        {
+            Bitmap termIds = postings(index, term);
+            ids = ids == null ? termIds : ids.and(termIds);
+        }
+        return ids == null ? new ArrayList<String>() : keysOfIds(ids);
+    }
+
+    /**
+     * Find the objects whose text property has a word starting with some
+     * text, using an index made by {@link #createTextIndex}
+     *
+     * @param type     the class
+     * @param property the property
+     * @param prefix   the start of a word, in any case
+     * @return the keys of the matching objects, in key order
+     */
+    public List<String> searchPrefix(Class<?> type, String property, String prefix)
+    {
+        TextIndex index = textIndex(type, property);
+        String term = prefix.toLowerCase(Locale.ENGLISH);
+        String deltaPrefix = index.deltaPrefix(term);
+        Map<String, TextIndex.Deltas> deltas = readDeltas(index, deltaPrefix,
+                KeyIndex.endOfPrefix(deltaPrefix), null);
+        Map<String, Bitmap> byTerm = new HashMap<String, Bitmap>();
+        String postingPrefix = index.postingKey(term);
+        Iterator<Map.Entry<String, String>> it =
+                valueStore.scan(postingPrefix, KeyIndex.endOfPrefix(postingPrefix));
+        while (it.hasNext())
+        {
+            Map.Entry<String, String> e = it.next();
+            byTerm.put(index.termOfPosting(e.getKey()), Bitmap.decode(e.getValue()));
+        }
+        for (Map.Entry<String, TextIndex.Deltas> e : deltas.entrySet())
+        {
+            Bitmap ids = byTerm.get(e.getKey());
+            byTerm.put(e.getKey(), e.getValue().apply(ids == null ? Bitmap.empty() : ids));
+        }
+        Bitmap ids = Bitmap.empty();
+        for (Bitmap termIds : byTerm.values())
+        {
+            ids = ids.or(termIds);
+        }
+        return keysOfIds(ids);
+    }
+
+    /**
+     * Merge the recorded word changes of every text index into the lists of
+     * objects using each word. Runs in the background once enough changes
+     * build up, as maintenance work for the {@link IoScheduler}, searches
+     * give the same results before and after.
+     */
+    public void mergeTextIndexes()
+    {
+        synchronized (this)
+        {
+            loadIndexes();
+            for (TextIndex index : textIndexes)
+            {
+                WriteBatch batch = new WriteBatch();
+                String deltaPrefix = index.deltaPrefix("");
+                Map<String, TextIndex.Deltas> deltas = readDeltas(index, deltaPrefix,
+                        KeyIndex.endOfPrefix(deltaPrefix), batch);
+                for (Map.Entry<String, TextIndex.Deltas> e : deltas.entrySet())
+                {
+                    String postingKey = index.postingKey("") + e.getKey();
+                    String encoded = valueStore.loadValue(postingKey);
+                    Bitmap ids = e.getValue().apply(
+                            encoded == null ? Bitmap.empty() : Bitmap.decode(encoded));
+                    if (ids.isEmpty())
+                        batch.remove(postingKey);
+                    else
+                        batch.put(postingKey, ids.encode());
+                }
+                if (!batch.isEmpty())
+                    valueStore.writeValues(batch);
+            }
+            pendingDeltas = 0;
+        }
+    }
+
+    /**
+     * @throws QDSException if the key is one the store uses itself
+     */
+    static void checkKey(String key)
+    {
+        if (key.startsWith(RESERVED_PREFIX))
+            throw new QDSException("Keys starting with " + RESERVED_PREFIX
+                    + " are reserved");
+    }
+
+    String toJson(String key, Object value)
+    {
+        long start = System.nanoTime();
+        String json = encode(key, value);
+        metrics.record(StoreMetrics.Op.ENCODE, start);
+        return json;
+    }
+
+    Object fromJson(String key, String jsonString)
+    {
+        long start = System.nanoTime();
+        Object value = decode(jsonString);
+        metrics.record(StoreMetrics.Op.DECODE, start);
+        if (StoreEvent.enabled())
+            StoreEvent.fire(StoreEvent.Type.PARSE, key, jsonString.length(),
+                    value == null ? null : value.getClass().getName(), start);
+        return value;
+    }
+
+    private String encode(String key, Object value)
+    {
+        checkKey(key);
+        long validating = System.nanoTime();
+        boolean writable = canIWriteThisObject(value);
+        metrics.record(StoreMetrics.Op.VALIDATE, validating);
+        if (!writable)
+            throw new QDSException("I can't write the value type " +
+                    value.getClass().getName());
+        if (isPrimitive(value.getClass()))
+        {
+            return primitiveJson(key, value);
+        } else if (value instanceof List)
+        {
+            try
+            {
+                return listJson((List) value);
+            } catch (Exception e)
+            {
+                throw new QDSException("Exception saving list ", e);
+            }
+        } else
+        {
+            return objectJson(key, value);
+        }
+    }
+
+    private Object decode(String jsonString)
+    {
+        if (live(jsonString) == null)
+            return null;
+        try
+        {
+            QDSJSONObject json = new QDSJSONObject(jsonString);
+            String type = json.getString("type");
+            if ("list".equals(type))
+            {
+                QDSJSONArray array = json.getJSONArray("value");
+                List<Object> list = new ArrayList<Object>();
+                for (int i = 0; i < array.length(); i++)
+                {
+                    QDSJSONObject obj = array.getJSONObject(i);
+                    list.add(toObject(obj));
+                }
+                return list;
+            } else if ("primitive".equals(type))
+            {
+                return toPrimitive(json);
+            } else if ("object".equals(type))
+            {
+                return toObject(json);
+            }
+            return null;
+        } catch (Exception e)
+        {
+            throw new RuntimeException("Error parsing json " + jsonString, e);
+        }
+    }
+
+
+    /**
+     * <p>Remove every value whose time to live has passed.</p>
+     * <p>The sweeper runs this in the background, a slice at a time, once
+     * values are due to expire. The slices are maintenance work for the
+     * {@link IoScheduler}, waiting between them for loads and saves.
+     * Indexes and views are updated as for any other change.</p>
+     *
+     * @return the number of values removed
+     */
+    public int sweepExpired()
+    {
+        int removed = 0;
+        while (true)
+        {
+            int slice = sweepSlice(System.currentTimeMillis() + SWEEP_SLICE_MILLIS);
+            if (slice < 0)
+                return removed - slice - 1;
+            removed += slice;
+        }
+    }
+
+
+    //--------------------------------------------------------------------------
+    // Expiry
+
+    private String loadLive(String key)
+    {
+        return live(valueStore.loadValue(key));
+    }
+
+    /**
+     * @return saved text, or null if it is null or has expired
+     */
+    private String live(String jsonString)
+    {
+        long expires = Expiry.expiresAt(jsonString);
+        if (expires == 0 || expires > System.currentTimeMillis())
+            return jsonString;
+        scheduleSweep(expires);
+        return null;
+    }
+
+    /**
+     * Remove the expired values found until a time, in one commit
+     *
+     * @return the number of values removed, or -1 minus the number removed
+     *         if every expired value has been removed
+     */
+    private int sweepSlice(long until)
+    {
+        synchronized (this)
+        {
+            WriteBatch batch = new WriteBatch();
+            List<String> records = new ArrayList<String>();
+            Iterator<Map.Entry<String, String>> it = valueStore.scan(Expiry.PREFIX,
+                    Expiry.timeKey(System.currentTimeMillis() + 1));
+            boolean done = true;
+            while (it.hasNext())
+            {
+                if (!records.isEmpty() && System.currentTimeMillis() >= until)
+                {
+                    done = false;
+                    break;
+                }
+                String record = it.next().getKey();
+                records.add(record);
+                String key = Expiry.keyOf(record);
+                if (Expiry.expiresAt(valueStore.loadValue(key)) == Expiry.timeOf(record))
+                    batch.remove(key);
+            }
+            int removed = batch.values().size();
+            batch = addIndexEntries(batch);
+            for (String record : records)
+            {
+                batch.remove(record);
+            }
+            if (!batch.isEmpty())
+                valueStore.writeValues(batch);
+            return done ? -1 - removed : removed;
+        }
+    }
+
+    /**
+     * Have the sweeper run when a value expires, unless it will run before
+     * then anyway
+     */
+    private void scheduleSweep(final long expires)
+    {
+        synchronized (this)
+        {
+            if (sweepAt != 0 && sweepAt <= expires)
+                return;
+            sweepAt = expires;
+        }
+        SWEEPER.schedule(new Runnable()
+        {
+            public void run()
+            {
+                synchronized (QuickDataStore.this)
+                {
+                    if (sweepAt != expires)
+                        return;
+                    sweepAt = 0;
+                }
+                long start = System.nanoTime();
+                IoScheduler.Work previous = IoScheduler.begin(IoScheduler.Work.MAINTENANCE);
+                try
+                {
+                    IoScheduler.pause();
+                    if (sweepSlice(System.currentTimeMillis() + SWEEP_SLICE_MILLIS) >= 0)
+                    {
+                        scheduleSweep(System.currentTimeMillis());
+                        return;
+                    }
+                    Iterator<Map.Entry<String, String>> it = valueStore.scan(Expiry.PREFIX,
+                            KeyIndex.endOfPrefix(Expiry.PREFIX));
+                    if (it.hasNext())
+                        scheduleSweep(Expiry.timeOf(it.next().getKey()));
+                } catch (Exception e)
+                {
+                    backgroundFailed(StoreEvent.Type.SWEEP_FAILED,
+                            "Unable to sweep expired values", e, start);
+                } finally
+                {
+                    IoScheduler.end(previous);
+                }
+            }
+        }, Math.max(0, expires - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Tell the event listeners and the log of background work that failed,
+     * there is no caller to throw to
+     */
+    private void backgroundFailed(StoreEvent.Type type, String message, Exception e, long start)
+    {
+        metrics.failed();
+        LOG.log(Level.WARNING, message, e);
+        StoreEvent.fireFailure(type, null, e, start);
+    }
+
+
+    //--------------------------------------------------------------------------
+    // Indexes
+
+    /**
+     * Read the indexes saved in the store the first time they are needed.
+     * Saves check for indexes without the lock, so the other lists are set
+     * before <code>indexes</code> is.
+     */
+    private void loadIndexes()
+    {
+        if (indexes != null)
+            return;
+        synchronized (this)
+        {
+            if (indexes == null)
+                readIndexes();
+        }
+    }
+
+    private void readIndexes()
+    {
+        Map<String, List<PropertyIndex>> indexes = new HashMap<String, List<PropertyIndex>>();
+        bitmapIndexes = new CopyOnWriteArrayList<BitmapIndex>();
+        String prefix = PropertyIndex.DECLARED_PREFIX;
+        Iterator<Map.Entry<String, String>> it =
+                valueStore.scan(prefix, KeyIndex.endOfPrefix(prefix));
+        while (it.hasNext())
+        {
+            addIndex(indexes, PropertyIndex.fromDeclaredKey(it.next().getKey()));
+        }
+        prefix = BitmapIndex.DECLARED_PREFIX;
+        it = valueStore.scan(prefix, KeyIndex.endOfPrefix(prefix));
+        while (it.hasNext())
+        {
+            Map.Entry<String, String> e = it.next();
+            bitmapIndexes.add(BitmapIndex.fromDeclared(e.getKey(), e.getValue()));
+        }
+        textIndexes = new CopyOnWriteArrayList<TextIndex>();
+        prefix = TextIndex.DECLARED_PREFIX;
+        it = valueStore.scan(prefix, KeyIndex.endOfPrefix(prefix));
+        while (it.hasNext())
+        {
+            textIndexes.add(TextIndex.fromDeclaredKey(it.next().getKey()));
+        }
+        views = new CopyOnWriteArrayList<AggregateView>();
+        prefix = AggregateView.DECLARED_PREFIX;
+        it = valueStore.scan(prefix, KeyIndex.endOfPrefix(prefix));
+        while (it.hasNext())
+        {
+            Map.Entry<String, String> e = it.next();
+            views.add(AggregateView.fromDeclared(e.getKey(), e.getValue()));
+        }
+        prefix = StorageAnalytics.DECLARED_PREFIX;
+        storageReport = valueStore.scan(prefix, KeyIndex.endOfPrefix(prefix)).hasNext();
+        this.indexes = indexes;
+    }
+
+    private Map<String, List<PropertyIndex>> indexes()
+    {
+        loadIndexes();
+        return indexes;
+    }
+
+    private boolean hasIndexes()
+    {
+        loadIndexes();
+        return !indexes.isEmpty() || !bitmapIndexes.isEmpty() ||
+                !textIndexes.isEmpty() || !views.isEmpty() || storageReport;
+    }
+
+    /**
+     * Indexes are looked up without the lock, so a new index is added to a
+     * copy that then replaces them
+     */
+    private void addIndex(PropertyIndex index)
+    {
+        Map<String, List<PropertyIndex>> copy = new HashMap<String, List<PropertyIndex>>();
+        for (Map.Entry<String, List<PropertyIndex>> e : indexes.entrySet())
+        {
+            copy.put(e.getKey(), new ArrayList<PropertyIndex>(e.getValue()));
+        }
+        addIndex(copy, index);
+        indexes = copy;
+    }
+
+    private static void addIndex(Map<String, List<PropertyIndex>> indexes, PropertyIndex index)
+    {
+        List<PropertyIndex> classIndexes = indexes.get(index.className);
+        if (classIndexes == null)
+        {
+            classIndexes = new ArrayList<PropertyIndex>();
+            indexes.put(index.className, classIndexes);
+        }
+        classIndexes.add(index);
+    }
+
+    private PropertyIndex index(Class<?> type, String property)
+    {
+        List<PropertyIndex> classIndexes = indexes().get(type.getName());
+        if (classIndexes != null)
+        {
+            for (PropertyIndex index : classIndexes)
+            {
+                if (index.property.equals(property))
+                    return index;
+            }
+        }
+        throw new QDSException("No index on " + type.getName() + "." + property);
+    }
+
+    private List<String> indexedKeys(PropertyIndex index, String fromKey,
+                                     String toKey)
+    {
+        List<String> keys = new ArrayList<String>();
+        Iterator<Map.Entry<String, String>> it = valueStore.scan(fromKey, toKey);
+        while (it.hasNext())
+        {
+            keys.add(index.keyOf(it.next().getKey()));
+        }
+        return keys;
+    }
+
+    /**
+     * Add the index and view changes for the values in a batch. The entries
+     * for the values being replaced are removed first, so an entry that has
+     * not changed is written again rather than removed. The values read
+     * here are not counted in the metrics.
+     */
+    private WriteBatch addIndexEntries(WriteBatch batch)
+    {
+        if (!hasIndexes())
+            return batch;
+        List<Map.Entry<String, String>> values =
+                new ArrayList<Map.Entry<String, String>>(batch.values().entrySet());
+        Map<String, String> olds = new HashMap<String, String>();
+        for (Map.Entry<String, String> e : values)
+        {
+            String old = unmetered.loadValue(e.getKey());
+            olds.put(e.getKey(), old);
+            updateIndexEntries(batch, e.getKey(), old, true);
+            if (!bitmapIndexes.isEmpty() && old != null && old.startsWith(SAVED_LIST))
+            {
+                String prefix = BitmapIndex.listPrefix(e.getKey());
+                Iterator<Map.Entry<String, String>> it =
+                        unmetered.scan(prefix, KeyIndex.endOfPrefix(prefix));
+                while (it.hasNext())
+                {
+                    batch.remove(it.next().getKey());
+                }
+            }
+        }
+        for (Map.Entry<String, String> e : values)
+        {
+            updateIndexEntries(batch, e.getKey(), e.getValue(), false);
+            if (e.getValue() != null && e.getValue().startsWith(SAVED_LIST))
+            {
+                for (BitmapIndex index : bitmapIndexes)
+                {
+                    addBitmaps(batch, index, e.getKey(), e.getValue());
+                }
+            }
+        }
+        if (!textIndexes.isEmpty())
+        {
+            for (Map.Entry<String, String> e : values)
+            {
+                addTextDeltas(batch, e.getKey(), olds.get(e.getKey()), e.getValue());
+            }
+        }
+        for (AggregateView view : views)
+        {
+            updateView(batch, view, values, olds);
+        }
+        if (storageReport)
+            updateUsages(batch, values, olds);
+        return batch;
+    }
+
+    /**
+     * Move the old values of the keys in a batch out of the usages of the
+     * storage report and the new values in, an emptied usage is removed
+     */
+    private void updateUsages(WriteBatch batch, List<Map.Entry<String, String>> values,
+                              Map<String, String> olds)
+    {
+        Map<String, StorageReport.Usage> usages = new HashMap<String, StorageReport.Usage>();
+        for (Map.Entry<String, String> e : values)
+        {
+            String key = e.getKey();
+            if (key.startsWith(RESERVED_PREFIX))
+                continue;
+            String old = olds.get(key);
+            if (old != null)
+            {
+                for (String usageKey : StorageAnalytics.usageKeys(key, old))
+                {
+                    usage(usages, usageKey).remove(key, StorageAnalytics.sizeOf(key, old));
+                }
+            }
+            if (e.getValue() != null)
+            {
+                for (String usageKey : StorageAnalytics.usageKeys(key, e.getValue()))
+                {
+                    usage(usages, usageKey).add(key, StorageAnalytics.sizeOf(key, e.getValue()));
+                }
+            }
+        }
+        for (Map.Entry<String, StorageReport.Usage> e : usages.entrySet())
+        {
+            if (e.getValue().getCount() == 0)
+                batch.remove(e.getKey());
+            else
+                batch.put(e.getKey(), e.getValue().encode());
+        }
+    }
+
+    private StorageReport.Usage usage(Map<String, StorageReport.Usage> usages, String usageKey)
+    {
+        StorageReport.Usage usage = usages.get(usageKey);
+        if (usage == null)
+        {
+            String saved = unmetered.loadValue(usageKey);
+            usage = saved == null ? new StorageReport.Usage() : StorageReport.Usage.decode(saved);
+            usages.put(usageKey, usage);
+        }
+        return usage;
+    }
+
+    /**
+     * Count the usages of the storage report from every saved value
+     */
+    private Map<String, StorageReport.Usage> countUsages()
+    {
+        Map<String, StorageReport.Usage> usages = new HashMap<String, StorageReport.Usage>();
+        Iterator<Map.Entry<String, String>> it = userValues(null, null);
+        while (it.hasNext())
+        {
+            Map.Entry<String, String> e = it.next();
+            for (String usageKey : StorageAnalytics.usageKeys(e.getKey(), e.getValue()))
+            {
+                StorageReport.Usage usage = usages.get(usageKey);
+                if (usage == null)
+                {
+                    usage = new StorageReport.Usage();
+                    usages.put(usageKey, usage);
+                }
+                usage.add(e.getKey(), StorageAnalytics.sizeOf(e.getKey(), e.getValue()));
+            }
+        }
+        return usages;
+    }
+
+    /**
+     * Move the totals of a view from the old values of the keys it watches
+     * in a batch to the new ones, reading all the watched keys again if the
+     * smallest or largest number is replaced
+     */
+    private void updateView(WriteBatch batch, AggregateView view,
+                            List<Map.Entry<String, String>> values,
+                            Map<String, String> olds)
+    {
+        Totals totals = null;
+        boolean known = true;
+        for (Map.Entry<String, String> e : values)
+        {
+            if (!view.watches(e.getKey()))
+                continue;
+            if (totals == null)
+            {
+                String saved = unmetered.loadValue(view.totalsKey());
+                known = saved != null;
+                totals = known ? Totals.decode(saved) : new Totals();
+            }
+            known &= totals.remove(view.totalsOf(e.getKey(), olds.get(e.getKey())));
+            totals.add(view.totalsOf(e.getKey(), e.getValue()));
+        }
+        if (totals == null)
+            return;
+        if (!known)
+            totals = viewTotals(view, batch);
+        batch.put(view.totalsKey(), totals.encode());
+    }
+
+    /**
+     * Add up a view from every key it watches
+     *
+     * @param batch values about to be written, used in place of the saved
+     *              values of their keys, or null
+     */
+    private Totals viewTotals(AggregateView view, WriteBatch batch)
+    {
+        Totals totals = new Totals();
+        Iterator<Map.Entry<String, String>> it = userValues(view.keyPrefix,
+                KeyIndex.endOfPrefix(view.keyPrefix));
+        while (it.hasNext())
+        {
+            Map.Entry<String, String> e = it.next();
+            if (batch == null || !batch.contains(e.getKey()))
+                totals.add(view.totalsOf(e.getKey(), e.getValue()));
+        }
+        if (batch != null)
+        {
+            for (Map.Entry<String, String> e : batch.values().entrySet())
+            {
+                if (view.watches(e.getKey()))
+                    totals.add(view.totalsOf(e.getKey(), e.getValue()));
+            }
+        }
+        return totals;
+    }
+
+    private AggregateView aggregateView(String name)
+    {
+        loadIndexes();
+        for (AggregateView view : views)
+        {
+            if (view.name.equals(name))
+                return view;
+        }
+        return null;
+    }
+
+    /**
+     * Write a delta for each word an object starts or stops using
+     */
+    private void addTextDeltas(WriteBatch batch, String key, String oldJson,
+                               String newJson)
+    {
+        QDSJSONObject oldObject = savedObject(oldJson);
+        QDSJSONObject newObject = savedObject(newJson);
+        for (TextIndex index : textIndexes)
+        {
+            Set<String> oldTerms = oldObject != null &&
+                    index.className.equals(oldObject.optString("class"))
+                    ? index.terms(oldObject) : Collections.<String>emptySet();
+            Set<String> newTerms = newObject != null &&
+                    index.className.equals(newObject.optString("class"))
+                    ? index.terms(newObject) : Collections.<String>emptySet();
+            for (String term : oldTerms)
+            {
+                if (!newTerms.contains(term))
+                {
+                    batch.put(index.deltaKey(term, key), TextIndex.REMOVED);
+                    pendingDeltas++;
+                }
+            }
+            for (String term : newTerms)
+            {
+                if (!oldTerms.contains(term))
+                {
+                    assignId(batch, key);
+                    batch.put(index.deltaKey(term, key), TextIndex.ADDED);
+                    pendingDeltas++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Give a key the next free number if it does not have one yet
+     */
+    private void assignId(WriteBatch batch, String key)
+    {
+        String idKey = TextIndex.idKey(key);
+        if (batch.contains(idKey) || unmetered.loadValue(idKey) != null)
+            return;
+        String next = batch.contains(TextIndex.NEXT_ID)
+                ? batch.get(TextIndex.NEXT_ID) : unmetered.loadValue(TextIndex.NEXT_ID);
+        int id = next == null ? 0 : Integer.parseInt(next);
+        batch.put(idKey, Integer.toString(id));
+        batch.put(TextIndex.keyOfId(id), key);
+        batch.put(TextIndex.NEXT_ID, Integer.toString(id + 1));
+    }
+
+    private TextIndex textIndex(Class<?> type, String property)
+    {
+        loadIndexes();
+        for (TextIndex index : textIndexes)
+        {
+            if (index.className.equals(type.getName()) && index.property.equals(property))
+                return index;
+        }
+        throw new QDSException("No text index on " + type.getName() + "." + property);
+    }
+
+    /**
+     * Read the deltas in a range of delta keys, grouped by encoded word
+     *
+     * @param read the keys of the deltas read are removed in this batch, if
+     *             not null
+     */
+    private Map<String, TextIndex.Deltas> readDeltas(TextIndex index, String fromKey,
+                                                     String toKey, WriteBatch read)
+    {
+        Map<String, TextIndex.Deltas> deltas = new TreeMap<String, TextIndex.Deltas>();
+        Iterator<Map.Entry<String, String>> it = valueStore.scan(fromKey, toKey);
+        while (it.hasNext())
+        {
+            Map.Entry<String, String> e = it.next();
+            if (read != null)
+                read.remove(e.getKey());
+            String id = valueStore.loadValue(TextIndex.idKey(index.keyOfDelta(e.getKey())));
+            if (id == null)
+                continue;
+            String term = index.termOfDelta(e.getKey());
+            TextIndex.Deltas termDeltas = deltas.get(term);
+            if (termDeltas == null)
+            {
+                termDeltas = new TextIndex.Deltas();
+                deltas.put(term, termDeltas);
+            }
+            termDeltas.add(Integer.parseInt(id), e.getValue());
+        }
+        return deltas;
+    }
+
+    /**
+     * Get the posting list of a word with its deltas applied. The deltas are
+     * read first, if a merge runs in between they are applied twice, which
+     * gives the same list.
+     */
+    private Bitmap postings(TextIndex index, String term)
+    {
+        String deltaPrefix = index.deltaPrefix(term) + TextIndex.END_OF_TERM;
+        Collection<TextIndex.Deltas> deltas = readDeltas(index, deltaPrefix,
+                KeyIndex.endOfPrefix(deltaPrefix), null).values();
+        String encoded = valueStore.loadValue(index.postingKey(term));
+        Bitmap ids = encoded == null ? Bitmap.empty() : Bitmap.decode(encoded);
+        for (TextIndex.Deltas termDeltas : deltas)
+        {
+            ids = termDeltas.apply(ids);
+        }
+        return ids;
+    }
+
+    private List<String> keysOfIds(Bitmap ids)
+    {
+        List<String> keys = new ArrayList<String>();
+        for (int id : ids)
+        {
+            String key = valueStore.loadValue(TextIndex.keyOfId(id));
+            if (key != null)
+                keys.add(key);
+        }
+        Collections.sort(keys);
+        return keys;
+    }
+
+    private void scheduleMerge()
+    {
+        synchronized (this)
+        {
+            if (pendingDeltas < MERGE_THRESHOLD || mergeScheduled)
+                return;
+            mergeScheduled = true;
+        }
+        MERGER.execute(new Runnable()
+        {
+            public void run()
+            {
+                long start = System.nanoTime();
+                IoScheduler.Work previous = IoScheduler.begin(IoScheduler.Work.MAINTENANCE);
+                try
+                {
+                    IoScheduler.pause();
+                    mergeTextIndexes();
+                } catch (Exception e)
+                {
+                    backgroundFailed(StoreEvent.Type.TEXT_MERGE_FAILED,
+                            "Unable to merge text indexes", e, start);
+                } finally
+                {
+                    IoScheduler.end(previous);
+                    synchronized (QuickDataStore.this)
+                    {
+                        mergeScheduled = false;
+                    }
+                }
+            }
+        });
+    }
+
+    private void addBitmaps(WriteBatch batch, BitmapIndex index, String key,
+                            String jsonString)
+    {
+        try
+        {
+            for (Map.Entry<String, Bitmap> e : index.build(key, jsonString).entrySet())
+            {
+                batch.put(e.getKey(), e.getValue().encode());
+            }
+        } catch (QDSJSONException e)
+        {
+            throw new QDSException("Error reading list " + key, e);
+        }
+    }
+
+    private void updateIndexEntries(WriteBatch batch, String key,
+                                    String jsonString, boolean remove)
+    {
+        QDSJSONObject json = savedObject(jsonString);
+        if (json == null)
+            return;
+        List<PropertyIndex> classIndexes = indexes.get(json.optString("class"));
+        if (classIndexes == null)
+            return;
+        for (PropertyIndex index : classIndexes)
+        {
+            String entryKey = index.entryKey(index.valueOf(json), key);
+            if (entryKey == null)
+                continue;
+            if (remove)
+                batch.remove(entryKey);
+            else
+                batch.put(entryKey, "");
+        }
+    }
+
+    /**
+     * @return a saved value if it is an object, not a list or primitive
+     */
+    private QDSJSONObject savedObject(String jsonString)
+    {
+        if (jsonString == null || !jsonString.startsWith(SAVED_OBJECT))
+            return null;
+        try
+        {
+            QDSJSONObject json = new QDSJSONObject(jsonString);
+            return "object".equals(json.optString("type")) ? json : null;
+        } catch (QDSJSONException e)
+        {
+            throw new QDSException("Error parsing json " + jsonString, e);
+        }
+    }
+
+    /**
+     * Iterate a range of keys leaving out the reserved keys, which are
+     * skipped over as one range rather than read
+     */
+    private Iterator<Map.Entry<String, String>> userValues(String fromKey,
+                                                           String toKey)
+    {
+        String reservedEnd = KeyIndex.endOfPrefix(RESERVED_PREFIX);
+        final List<Iterator<Map.Entry<String, String>>> parts =
+                new ArrayList<Iterator<Map.Entry<String, String>>>();
+        if (fromKey == null || fromKey.compareTo(RESERVED_PREFIX) < 0)
+        {
+            parts.add(valueStore.scan(fromKey,
+                    toKey != null && toKey.compareTo(RESERVED_PREFIX) < 0
+                            ? toKey : RESERVED_PREFIX));
+        }
+        if (toKey == null || toKey.compareTo(reservedEnd) > 0)
+        {
+            parts.add(valueStore.scan(
+                    fromKey != null && fromKey.compareTo(reservedEnd) > 0
+                            ? fromKey : reservedEnd, toKey));
+        }
+        return new Iterator<Map.Entry<String, String>>()
+        {
+            public boolean hasNext()
+            {
+                while (!parts.isEmpty())
+                {
+                    if (parts.get(0).hasNext())
+                        return true;
+                    parts.remove(0);
+                }
+                return false;
+            }
+
+            public Map.Entry<String, String> next()
+            {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return parts.get(0).next();
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
 
     //--------------------------------------------------------------------------
     // Utils
@@ -219,7 +2226,7 @@ public class QuickDataStore implements QuickDataStoreInterface
 
     //--------------------------------------------------------------------------
     // Save
-    private void save(String key, List list)
+    private String listJson(List list)
             throws Exception
     {
         StringWriter sw = new StringWriter();
@@ -255,7 +2262,7 @@ public class QuickDataStore implements QuickDataStoreInterface
         }
         writer.endArray();
         writer.endObject();
-        valueStore.writeValue(key, sw.toString());
+        return sw.toString();
     }
 
 
@@ -313,7 +2320,7 @@ public class QuickDataStore implements QuickDataStoreInterface
         return s;
     }
 
-    private void saveObject(String key, Object value)
+    private String objectJson(String key, Object value)
     {
         try
         {
@@ -329,14 +2336,14 @@ public class QuickDataStore implements QuickDataStoreInterface
             writeGetters(writer, value);
             writer.endObject();
             writer.endObject();
-            valueStore.writeValue(key, sw.toString());
+            return sw.toString();
         } catch (Exception e)
         {
             throw new QDSException("Error saving " + key, e);
         }
     }
 
-    private void savePrimitive(String key, Object value)
+    private String primitiveJson(String key, Object value)
     {
         try
         {
@@ -350,7 +2357,7 @@ public class QuickDataStore implements QuickDataStoreInterface
             writer.key("primitive");
             writer.value(value);
             writer.endObject();
-            valueStore.writeValue(key, sw.toString());
+            return sw.toString();
         } catch (Exception e)
         {
             throw new QDSException("Error saving " + key, e);
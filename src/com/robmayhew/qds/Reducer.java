@@ -0,0 +1,48 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+/**
+ * <p>Combines every saved value into one result, see
+ * <code>QuickDataStore.reduce</code>.</p>
+ * <p>The store is split into ranges of keys that are reduced on separate
+ * threads, each range starting from its own {@link #start} result. The
+ * results of the ranges are then combined in key order. A result is only
+ * used by one thread at a time.</p>
+ *
+ * @param <T> the type of the result
+ */
+public interface Reducer<T>
+{
+    /**
+     * @return the result of no values
+     */
+    public T start();
+
+    /**
+     * Add a value to a result
+     *
+     * @return the new result, which can be the one passed in
+     */
+    public T add(T result, String key, Object value) throws Exception;
+
+    /**
+     * Combine the results of two ranges of keys, the first range's keys
+     * come before the second's
+     */
+    public T combine(T first, T second) throws Exception;
+}
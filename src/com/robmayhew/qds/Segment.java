@@ -0,0 +1,567 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+/**
+ * <p>An immutable file of values written by a checkpoint.</p>
+ * <p>A segment is a text file with one <code>key=value</code> per line, the
+ * same format the data file has always used, so segment 0 is the data file
+ * itself. Segments written by QDS start with a line holding a random stamp,
+ * it has no <code>=</code> so older readers skip it. In a stamped segment
+ * a line holding only a key records that the key was removed. The stamp
+ * line can also give a number of removed ranges of keys, each written as
+ * two lines after it, a start and an end key each marked with a
+ * <code>-</code>, or a <code>*</code> alone for an open end. The ranges are
+ * removed before the segment's values are read.</p>
+ * <p>Next to each segment is a hint file listing every key with the
+ * position and length of its value. Opening a segment reads the hint file,
+ * not the values, and the segment is memory mapped so a value is only read
+ * when it is loaded. The hint repeats the segment's stamp, if they do not
+ * match, or there is no hint, the segment itself is scanned.</p>
+ * <p>Compaction writes its segments under a temporary name and moves them
+ * into place once they are listed, a segment keeps its mapping when it is
+ * moved or deleted.</p>
+ */
+final class Segment
+{
+    private static final String CHARSET = "UTF-8";
+    private static final String STAMP_PREFIX = "#qds-segment ";
+    private static final int HINT_MAGIC = 0x51445349;
+    private static final long CHUNK_SIZE = 1L << 30;
+    private static final Random RANDOM = new Random();
+    private static final Logger LOG = Logger.getLogger(Segment.class.getName());
+
+    int id;
+    File file;
+    private File hintFile;
+    private MappedByteBuffer[] chunks;
+    private long stamp;
+    private long retainedBytes;
+
+    private Segment(int id, File file)
+    {
+        this.id = id;
+        this.file = file;
+        this.hintFile = new File(file.getPath() + ".hint");
+    }
+
+    /**
+     * @param filePath path of the data file
+     * @param id       id of the segment, 0 is the data file itself
+     */
+    static Segment forId(String filePath, int id)
+    {
+        if (id == 0)
+            return new Segment(id, new File(filePath));
+        return new Segment(id, new File(filePath + "." + id + ".seg"));
+    }
+
+    /**
+     * A segment with a temporary name, given its id by {@link #moveTo}
+     */
+    static Segment temporary(String filePath)
+    {
+        long name;
+        synchronized (RANDOM)
+        {
+            name = RANDOM.nextLong() & Long.MAX_VALUE;
+        }
+        return new Segment(-1, new File(filePath + "." + Long.toHexString(name) + ".tmp"));
+    }
+
+    /**
+     * Read the keys of the segment, without reading the values
+     *
+     * @param refs a reference to the value of each key is put here, and the
+     *             keys in the segment's removed ranges are removed
+     */
+    void open(TreeMap<String, Object> refs) throws IOException
+    {
+        map();
+        retainedBytes = 0;
+        stamp = readStamp();
+        if (stamp == 0 || !readHint(refs, null))
+            scan(refs, null, stamp != 0);
+    }
+
+    /**
+     * Read what the segment records, for merging it with others
+     *
+     * @param refs   a reference to the value of each key is put here, with
+     *               a null reference for each removed key
+     * @param ranges the segment's removed ranges are added here
+     */
+    void contents(TreeMap<String, Object> refs, List<WriteBatch.Range> ranges)
+            throws IOException
+    {
+        if (stamp == 0 || !readHint(refs, ranges))
+            scan(refs, ranges, stamp != 0);
+    }
+
+    /**
+     * @return the bytes of the segment a merge keeps even when no value in
+     *         it is used: its stamp, removed ranges and removed keys, which
+     *         are only dropped by a merge into the data file
+     */
+    long retainedBytes()
+    {
+        return retainedBytes;
+    }
+
+    /**
+     * @return true if both are the same file as written, by id and stamp
+     */
+    boolean sameAs(Segment other)
+    {
+        return id == other.id && stamp == other.stamp;
+    }
+
+    /**
+     * Write the segment, sync it and its hint to disk and map it.
+     *
+     * @param target  where to write the segment, renamed into place by the
+     *                caller before the segment is read
+     * @param entries values to write, in key order, a null value is a
+     *                removed key
+     * @param ranges  ranges of keys removed before the values
+     * @param refs    a reference to each value written is added here, with
+     *                a null reference for each removed key
+     */
+    void write(File target, Iterable<Map.Entry<String, String>> entries,
+               List<WriteBatch.Range> ranges,
+               List<Map.Entry<String, Object>> refs) throws IOException
+    {
+        write(target, entries, ranges, refs, false);
+    }
+
+    /**
+     * Write the segment as background work
+     *
+     * @param throttled true to have the {@link IoScheduler} limit how fast
+     *                  the segment is written, the caller must hold no lock
+     */
+    void write(File target, Iterable<Map.Entry<String, String>> entries,
+               List<WriteBatch.Range> ranges,
+               List<Map.Entry<String, Object>> refs, boolean throttled)
+            throws IOException
+    {
+        long stamp;
+        synchronized (RANDOM)
+        {
+            stamp = RANDOM.nextLong() | 1;
+        }
+        List<Map.Entry<String, Object>> written =
+                new ArrayList<Map.Entry<String, Object>>();
+        long retained;
+        FileOutputStream fileOut = new FileOutputStream(target);
+        try
+        {
+            OutputStream out = new BufferedOutputStream(fileOut, 64 * 1024);
+            StringBuilder header = new StringBuilder(STAMP_PREFIX)
+                    .append(Long.toHexString(stamp));
+            if (!ranges.isEmpty())
+                header.append(' ').append(ranges.size());
+            header.append('\n');
+            for (WriteBatch.Range range : ranges)
+            {
+                header.append(rangeLine(range.fromKey)).append('\n');
+                header.append(rangeLine(range.toKey)).append('\n');
+            }
+            byte[] headerBytes = header.toString().getBytes(CHARSET);
+            out.write(headerBytes);
+            long position = headerBytes.length;
+            retained = headerBytes.length;
+            for (Map.Entry<String, String> e : entries)
+            {
+                byte[] key = e.getKey().getBytes(CHARSET);
+                if (e.getValue() == null)
+                {
+                    out.write(key);
+                    out.write('\n');
+                    position += key.length + 1;
+                    retained += key.length + 1;
+                    written.add(new AbstractMap.SimpleImmutableEntry<String, Object>(
+                            e.getKey(), null));
+                    continue;
+                }
+                byte[] value = e.getValue().getBytes(CHARSET);
+                out.write(key);
+                out.write('=');
+                out.write(value);
+                out.write('\n');
+                position += key.length + 1;
+                written.add(new AbstractMap.SimpleImmutableEntry<String, Object>(
+                        e.getKey(), new Ref(this, position, value.length)));
+                position += value.length + 1;
+                if (throttled)
+                    IoScheduler.throttle(key.length + value.length + 2);
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } finally
+        {
+            fileOut.close();
+        }
+        writeHint(stamp, ranges, written);
+        this.stamp = stamp;
+        this.retainedBytes = retained;
+        refs.addAll(written);
+    }
+
+    /**
+     * Map the segment once it is in place
+     */
+    void map() throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            int count = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            MappedByteBuffer[] mapped = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++)
+            {
+                long start = i * CHUNK_SIZE;
+                mapped[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(CHUNK_SIZE, size - start));
+            }
+            chunks = mapped;
+        } finally
+        {
+            raf.close();
+        }
+    }
+
+    String read(long position, int length)
+    {
+        byte[] bytes = new byte[length];
+        int done = 0;
+        while (done < length)
+        {
+            long p = position + done;
+            ByteBuffer chunk = chunks[(int) (p / CHUNK_SIZE)].duplicate();
+            chunk.position((int) (p % CHUNK_SIZE));
+            int n = Math.min(length - done, chunk.remaining());
+            chunk.get(bytes, done, n);
+            done += n;
+        }
+        try
+        {
+            return new String(bytes, CHARSET);
+        } catch (UnsupportedEncodingException e)
+        {
+            throw new QDSException(e);
+        }
+    }
+
+    long size()
+    {
+        return file.length();
+    }
+
+    /**
+     * Give a segment written under a temporary name its id, replacing any
+     * file already using it
+     */
+    void moveTo(String filePath, int id) throws IOException
+    {
+        Segment target = forId(filePath, id);
+        rename(file, target.file);
+        if (hintFile.exists())
+            rename(hintFile, target.hintFile);
+        this.id = id;
+        this.file = target.file;
+        this.hintFile = target.hintFile;
+    }
+
+    private static void rename(File from, File to) throws IOException
+    {
+        if (from.renameTo(to))
+            return;
+        // Some platforms will not rename over an existing file
+        if (to.exists() && !to.delete())
+            throw new IOException("Unable to replace " + to.getPath());
+        if (!from.renameTo(to))
+            throw new IOException("Unable to rename " + from.getPath() + " to " + to.getPath());
+    }
+
+    /**
+     * Remove the segment and its hint, the mapping stays readable for
+     * snapshots still using it. A file that can not be deleted is only
+     * logged, it is no longer listed and takes nothing but disk space.
+     */
+    void delete()
+    {
+        if (file.exists() && !file.delete())
+            LOG.warning("Unable to delete segment " + file.getPath());
+        if (hintFile.exists() && !hintFile.delete())
+            LOG.warning("Unable to delete hint " + hintFile.getPath());
+    }
+
+    private long readStamp() throws IOException
+    {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), CHARSET));
+        try
+        {
+            String line = reader.readLine();
+            if (line == null || !line.startsWith(STAMP_PREFIX))
+                return 0;
+            retainedBytes += line.length() + 1;
+            return new BigInteger(
+                    line.substring(STAMP_PREFIX.length()).split(" ")[0], 16).longValue();
+        } catch (NumberFormatException e)
+        {
+            return 0;
+        } finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * @param ranges null to remove the keys in the ranges and the removed
+     *               keys from the references, otherwise the ranges are
+     *               added to it and removed keys given a null reference
+     */
+    private boolean readHint(TreeMap<String, Object> refs,
+                             List<WriteBatch.Range> ranges)
+            throws IOException
+    {
+        if (!hintFile.exists())
+            return false;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(hintFile), 64 * 1024));
+        try
+        {
+            if (in.readInt() != HINT_MAGIC || in.readLong() != stamp)
+                return false;
+            int rangeCount = in.readInt();
+            List<WriteBatch.Range> read = new ArrayList<WriteBatch.Range>();
+            for (int i = 0; i < rangeCount; i++)
+            {
+                String fromKey = in.readBoolean() ? in.readUTF() : null;
+                String toKey = in.readBoolean() ? in.readUTF() : null;
+                read.add(new WriteBatch.Range(fromKey, toKey));
+                if (ranges == null)
+                    retainedBytes += rangeLine(fromKey).length() + rangeLine(toKey).length() + 2;
+            }
+            int count = in.readInt();
+            for (WriteBatch.Range range : read)
+            {
+                range.removeFrom(refs);
+            }
+            for (int i = 0; i < count; i++)
+            {
+                String key = in.readUTF();
+                long position = in.readLong();
+                int length = in.readInt();
+                if (length < 0 && ranges != null)
+                    refs.put(key, null);
+                else if (length < 0)
+                {
+                    refs.remove(key);
+                    retainedBytes += key.length() + 1;
+                }
+                else
+                    refs.put(key, new Ref(this, position, length));
+            }
+            if (ranges != null)
+                ranges.addAll(read);
+            return true;
+        } catch (EOFException e)
+        {
+            return false;
+        } finally
+        {
+            in.close();
+        }
+    }
+
+    private void writeHint(long stamp, List<WriteBatch.Range> ranges,
+                           List<Map.Entry<String, Object>> refs)
+            throws IOException
+    {
+        FileOutputStream fileOut = new FileOutputStream(hintFile);
+        try
+        {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(fileOut, 64 * 1024));
+            out.writeInt(HINT_MAGIC);
+            out.writeLong(stamp);
+            out.writeInt(ranges.size());
+            for (WriteBatch.Range range : ranges)
+            {
+                out.writeBoolean(range.fromKey != null);
+                if (range.fromKey != null)
+                    out.writeUTF(range.fromKey);
+                out.writeBoolean(range.toKey != null);
+                if (range.toKey != null)
+                    out.writeUTF(range.toKey);
+            }
+            out.writeInt(refs.size());
+            for (Map.Entry<String, Object> e : refs)
+            {
+                Ref ref = (Ref) e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(ref == null ? -1 : ref.position);
+                out.writeInt(ref == null ? -1 : ref.length);
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } finally
+        {
+            fileOut.close();
+        }
+    }
+
+    /**
+     * Find the values in a segment with no usable hint, reading it line by
+     * line. Later lines for a key replace earlier ones.
+     *
+     * @param ranges  as for {@link #readHint}
+     * @param stamped true if the segment starts with a stamp and may hold
+     *                removed keys
+     */
+    private void scan(TreeMap<String, Object> refs, List<WriteBatch.Range> ranges,
+                      boolean stamped) throws IOException
+    {
+        InputStream in = new BufferedInputStream(new FileInputStream(file),
+                64 * 1024);
+        try
+        {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            long lineStart = 0;
+            long position = 0;
+            int rangeLines = 0;
+            String fromKey = null;
+            int b;
+            while (true)
+            {
+                b = in.read();
+                if (b == '\n' || b == -1)
+                {
+                    if (lineStart == 0 && stamped)
+                    {
+                        String[] header = line.toString(CHARSET).split(" ");
+                        rangeLines = header.length > 2 ? 2 * Integer.parseInt(header[2]) : 0;
+                    } else if (rangeLines > 0)
+                    {
+                        String key = rangeKey(line.toString(CHARSET));
+                        if (ranges == null)
+                            retainedBytes += line.size() + 1;
+                        if (rangeLines-- % 2 == 0)
+                        {
+                            fromKey = key;
+                        } else
+                        {
+                            WriteBatch.Range range = new WriteBatch.Range(fromKey, key);
+                            range.removeFrom(refs);
+                            if (ranges != null)
+                                ranges.add(range);
+                        }
+                    } else
+                    {
+                        addLine(line.toByteArray(), lineStart, refs, stamped, ranges != null);
+                    }
+                    line.reset();
+                    lineStart = position + 1;
+                    if (b == -1)
+                        return;
+                } else
+                {
+                    line.write(b);
+                }
+                position++;
+            }
+        } finally
+        {
+            in.close();
+        }
+    }
+
+    private void addLine(byte[] line, long lineStart, Map<String, Object> refs,
+                         boolean stamped, boolean keepRemoved)
+            throws IOException
+    {
+        for (int i = 0; i < line.length; i++)
+        {
+            if (line[i] == '=')
+            {
+                int length = line.length - i - 1;
+                if (length > 0 && line[line.length - 1] == '\r')
+                    length--;
+                refs.put(new String(line, 0, i, CHARSET),
+                        new Ref(this, lineStart + i + 1, length));
+                return;
+            }
+        }
+        if (stamped && line.length > 0 && keepRemoved)
+            refs.put(new String(line, 0, line.length, CHARSET), null);
+        else if (stamped && line.length > 0)
+        {
+            refs.remove(new String(line, 0, line.length, CHARSET));
+            retainedBytes += line.length + 1;
+        }
+    }
+
+    private static String rangeLine(String key)
+    {
+        return key == null ? "*" : "-" + key;
+    }
+
+    private static String rangeKey(String line)
+    {
+        return line.startsWith("-") ? line.substring(1) : null;
+    }
+
+    /**
+     * Where a value is in a segment
+     */
+    static final class Ref
+    {
+        final Segment segment;
+        final long position;
+        final int length;
+
+        Ref(Segment segment, long position, int length)
+        {
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+        }
+
+        String read()
+        {
+            return segment.read(position, length);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>Collects the {@link StoreEvent}s of one thread while it handles
+ * something of the caller's, such as a request, so the time it spent in
+ * QDS can be added to the caller's own trace.</p>
+ * <pre>
+ * Span span = Span.start("GET /orders");
+ * try
+ * {
+ *     ...
+ * } finally
+ * {
+ *     span.end();
+ * }
+ * long qds = span.getStoreNanos();</pre>
+ * <p>A span started while another is open on the thread is nested in it,
+ * its events are added to the outer span when it ends. Saves and loads
+ * come with the time of each step, see
+ * {@link StoreEvent#getNanos(StoreMetrics.Op)}.</p>
+ */
+public final class Span
+{
+    private static final ThreadLocal<Span> CURRENT = new ThreadLocal<Span>();
+
+    private final String name;
+    private final Span outer;
+    private final long startNanos = System.nanoTime();
+    private long endNanos;
+    private final List<StoreEvent> events = new ArrayList<StoreEvent>();
+
+    private Span(String name, Span outer)
+    {
+        this.name = name;
+        this.outer = outer;
+    }
+
+    /**
+     * Start collecting the events of the current thread
+     *
+     * @param name what the caller calls the work
+     */
+    public static Span start(String name)
+    {
+        Span span = new Span(name, CURRENT.get());
+        CURRENT.set(span);
+        return span;
+    }
+
+    /**
+     * @return the innermost span open on the current thread, or null
+     */
+    public static Span current()
+    {
+        return CURRENT.get();
+    }
+
+    /**
+     * Stop collecting, nothing happens if the span has already ended
+     *
+     * @throws QDSException if a span nested in this one is still open
+     */
+    public void end()
+    {
+        if (endNanos != 0)
+            return;
+        if (CURRENT.get() != this)
+            throw new QDSException("Span " + name + " ended before the spans in it");
+        endNanos = System.nanoTime();
+        if (outer == null)
+        {
+            CURRENT.remove();
+            return;
+        }
+        outer.events.addAll(events);
+        CURRENT.set(outer);
+    }
+
+    void add(StoreEvent event)
+    {
+        events.add(event);
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return how long the span has been open, or was open once ended
+     */
+    public long getDurationNanos()
+    {
+        return (endNanos == 0 ? System.nanoTime() : endNanos) - startNanos;
+    }
+
+    /**
+     * @return the events of the span, in the order they happened
+     */
+    public List<StoreEvent> getEvents()
+    {
+        return Collections.unmodifiableList(events);
+    }
+
+    /**
+     * @return the time of the saves and loads in the span
+     */
+    public long getStoreNanos()
+    {
+        long nanos = 0;
+        for (StoreEvent event : events)
+        {
+            if (event.getType() == StoreEvent.Type.SAVE || event.getType() == StoreEvent.Type.LOAD)
+                nanos += event.getDurationNanos();
+        }
+        return nanos;
+    }
+
+    /**
+     * @return the name and duration, then a line per event
+     */
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(name).append(' ').append(getDurationNanos()).append("ns\n");
+        for (StoreEvent event : events)
+        {
+            sb.append("  ").append(event).append('\n');
+        }
+        return sb.toString();
+    }
+}
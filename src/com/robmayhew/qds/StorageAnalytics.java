@@ -0,0 +1,98 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+/**
+ * <p>The keys a {@link StorageReport} is kept under once
+ * <code>QuickDataStore.createStorageReport</code> has been called.</p>
+ * <p>The usage of each prefix, class and type is saved under its own key.
+ * A save takes the old value away from the usages it was in and adds the
+ * new value, in the same commit as the value. The type and class are read
+ * from the start of the saved text, the value is not parsed.</p>
+ */
+final class StorageAnalytics
+{
+    static final String DECLARED_PREFIX = QuickDataStore.RESERVED_PREFIX + "reports/";
+    static final String DECLARED_KEY = DECLARED_PREFIX + "storage";
+    static final String USAGE_PREFIX = QuickDataStore.RESERVED_PREFIX + "usage/";
+    static final String PREFIX = USAGE_PREFIX + "p/";
+    static final String CLASS = USAGE_PREFIX + "c/";
+    static final String TYPE = USAGE_PREFIX + "t/";
+
+    private static final String TYPE_START = "{\"type\":\"";
+    private static final String CLASS_START = "\"class\":\"";
+
+    private StorageAnalytics()
+    {
+    }
+
+    /**
+     * @return the keys of the usages a saved value is counted in: its
+     *         prefix, class and type
+     */
+    static String[] usageKeys(String key, String jsonString)
+    {
+        return new String[]{PREFIX + prefixOf(key), CLASS + classOf(jsonString),
+                TYPE + typeOf(jsonString)};
+    }
+
+    /**
+     * @return what a saved value adds to a usage
+     */
+    static long sizeOf(String key, String jsonString)
+    {
+        return key.length() + jsonString.length();
+    }
+
+    /**
+     * @return the key up to and including its first ':' or '/', empty if it
+     *         has neither
+     */
+    static String prefixOf(String key)
+    {
+        for (int i = 0; i < key.length(); i++)
+        {
+            char c = key.charAt(i);
+            if (c == ':' || c == '/')
+                return key.substring(0, i + 1);
+        }
+        return "";
+    }
+
+    static String typeOf(String jsonString)
+    {
+        if (!jsonString.startsWith(TYPE_START))
+            return "unknown";
+        int end = jsonString.indexOf('"', TYPE_START.length());
+        return end < 0 ? "unknown" : jsonString.substring(TYPE_START.length(), end);
+    }
+
+    /**
+     * @return the class of an object or primitive, or of the first element
+     *         of a list
+     */
+    static String classOf(String jsonString)
+    {
+        String type = typeOf(jsonString);
+        int start = jsonString.indexOf(CLASS_START);
+        int end = start < 0 ? -1 : jsonString.indexOf('"', start + CLASS_START.length());
+        String name = end < 0 ? null : jsonString.substring(start + CLASS_START.length(), end);
+        if ("list".equals(type))
+            return name == null ? "java.util.List" : "java.util.List<" + name + ">";
+        return name == null ? "unknown" : name;
+    }
+}
@@ -0,0 +1,290 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Where the bytes of a store go: the keys and characters saved under
+ * each key prefix, each saved class and each type of value, with the
+ * largest value of each, and how much of a <code>FileValueStore</code>'s
+ * files is dead space waiting for compaction.</p>
+ * <p>See <code>QuickDataStore.storageReport()</code>, or from the command
+ * line</p>
+ * <pre>
+ * java -cp qds.jar com.robmayhew.qds.StorageReport pathname [rows]</pre>
+ */
+public final class StorageReport
+{
+    /**
+     * The keys and characters of one prefix, class or type
+     */
+    public static final class Usage
+    {
+        long count;
+        long bytes;
+        String largestKey;
+        long largestBytes;
+
+        void add(String key, long size)
+        {
+            count++;
+            bytes += size;
+            if (largestKey == null || size > largestBytes)
+            {
+                largestKey = key;
+                largestBytes = size;
+            }
+        }
+
+        /**
+         * Take away a value added before. If it was the largest the next
+         * largest is not known, the next value added takes its place.
+         */
+        void remove(String key, long size)
+        {
+            count = Math.max(0, count - 1);
+            bytes = Math.max(0, bytes - size);
+            if (key.equals(largestKey))
+            {
+                largestKey = null;
+                largestBytes = 0;
+            }
+        }
+
+        /**
+         * @return the usage as text for saving, read back by {@link #decode}
+         */
+        String encode()
+        {
+            return count + " " + bytes + " " + largestBytes
+                    + (largestKey == null ? "" : " " + largestKey);
+        }
+
+        static Usage decode(String s)
+        {
+            String[] parts = s.split(" ", 4);
+            Usage usage = new Usage();
+            usage.count = Long.parseLong(parts[0]);
+            usage.bytes = Long.parseLong(parts[1]);
+            usage.largestBytes = Long.parseLong(parts[2]);
+            usage.largestKey = parts.length > 3 ? parts[3] : null;
+            return usage;
+        }
+
+        /**
+         * @return how many keys
+         */
+        public long getCount()
+        {
+            return count;
+        }
+
+        /**
+         * @return the characters of the keys and their values as saved
+         */
+        public long getBytes()
+        {
+            return bytes;
+        }
+
+        /**
+         * @return the key of the largest value, null if it is not known
+         *         since the largest was replaced or removed
+         */
+        public String getLargestKey()
+        {
+            return largestKey;
+        }
+
+        public long getLargestBytes()
+        {
+            return largestBytes;
+        }
+
+        public String toString()
+        {
+            return count + " keys " + bytes + " bytes"
+                    + (largestKey == null ? "" : ", largest " + largestKey + " " + largestBytes);
+        }
+    }
+
+    private final Map<String, Usage> byPrefix;
+    private final Map<String, Usage> byClass;
+    private final Map<String, Usage> byType;
+    private final double deadSpaceRatio;
+
+    StorageReport(Map<String, Usage> byPrefix, Map<String, Usage> byClass,
+                  Map<String, Usage> byType, double deadSpaceRatio)
+    {
+        this.byPrefix = largestFirst(byPrefix);
+        this.byClass = largestFirst(byClass);
+        this.byType = largestFirst(byType);
+        this.deadSpaceRatio = deadSpaceRatio;
+    }
+
+    private static Map<String, Usage> largestFirst(Map<String, Usage> usages)
+    {
+        List<Map.Entry<String, Usage>> entries =
+                new ArrayList<Map.Entry<String, Usage>>(usages.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Usage>>()
+        {
+            public int compare(Map.Entry<String, Usage> a, Map.Entry<String, Usage> b)
+            {
+                if (a.getValue().bytes != b.getValue().bytes)
+                    return a.getValue().bytes > b.getValue().bytes ? -1 : 1;
+                return a.getKey().compareTo(b.getKey());
+            }
+        });
+        Map<String, Usage> sorted = new LinkedHashMap<String, Usage>();
+        for (Map.Entry<String, Usage> e : entries)
+        {
+            sorted.put(e.getKey(), e.getValue());
+        }
+        return Collections.unmodifiableMap(sorted);
+    }
+
+    /**
+     * @return the usage of each key prefix, the key up to and including its
+     *         first <code>:</code> or <code>/</code>, largest first. Keys
+     *         with neither are under the empty prefix.
+     */
+    public Map<String, Usage> getByPrefix()
+    {
+        return byPrefix;
+    }
+
+    /**
+     * @return the usage of each saved class, largest first. Lists are
+     *         under <code>java.util.List&lt;</code><i>class</i><code>&gt;</code>
+     *         of their first element.
+     */
+    public Map<String, Usage> getByClass()
+    {
+        return byClass;
+    }
+
+    /**
+     * @return the usage of <code>primitive</code>, <code>object</code> and
+     *         <code>list</code> values, largest first
+     */
+    public Map<String, Usage> getByType()
+    {
+        return byType;
+    }
+
+    public long getKeyCount()
+    {
+        long count = 0;
+        for (Usage usage : byType.values())
+        {
+            count += usage.count;
+        }
+        return count;
+    }
+
+    public long getBytes()
+    {
+        long bytes = 0;
+        for (Usage usage : byType.values())
+        {
+            bytes += usage.bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the part of the files no longer used, from 0 to 1, or NaN if
+     *         the store does not keep its values in a
+     *         <code>FileValueStore</code>
+     */
+    public double getDeadSpaceRatio()
+    {
+        return deadSpaceRatio;
+    }
+
+    public String toString()
+    {
+        return toString(20);
+    }
+
+    /**
+     * @param rows the most prefixes and classes to list
+     * @return the report as a table
+     */
+    public String toString(int rows)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(getKeyCount()).append(" keys ").append(getBytes()).append(" bytes");
+        if (!Double.isNaN(deadSpaceRatio))
+            sb.append(String.format(", %.1f%% dead space", deadSpaceRatio * 100));
+        sb.append('\n');
+        append(sb, "Type", byType, rows);
+        append(sb, "Class", byClass, rows);
+        append(sb, "Prefix", byPrefix, rows);
+        return sb.toString();
+    }
+
+    private static void append(StringBuilder sb, String title, Map<String, Usage> usages, int rows)
+    {
+        sb.append('\n').append(String.format("%-40s %10s %14s  %s%n",
+                title, "Keys", "Bytes", "Largest"));
+        int row = 0;
+        for (Map.Entry<String, Usage> e : usages.entrySet())
+        {
+            if (row++ == rows)
+            {
+                sb.append("... ").append(usages.size() - rows).append(" more\n");
+                break;
+            }
+            Usage usage = e.getValue();
+            sb.append(String.format("%-40s %10d %14d  %s%n",
+                    e.getKey().length() == 0 ? "(none)" : e.getKey(), usage.count, usage.bytes,
+                    usage.largestKey == null ? "" : usage.largestKey + " " + usage.largestBytes));
+        }
+    }
+
+    /**
+     * Print the report of a <code>FileValueStore</code>
+     *
+     * @param args the path of the store, and optionally the most prefixes
+     *             and classes to list
+     */
+    public static void main(String[] args)
+    {
+        if (args.length == 0)
+        {
+            System.err.println("Usage: StorageReport pathname [rows]");
+            System.exit(2);
+        }
+        FileValueStore files = new FileValueStore(args[0]);
+        try
+        {
+            files.setCompactionPolicy(null);
+            StorageReport report = new QuickDataStore(files).storageReport();
+            System.out.print(report.toString(args.length > 1 ? Integer.parseInt(args[1]) : 20));
+        } finally
+        {
+            files.close();
+        }
+    }
+}
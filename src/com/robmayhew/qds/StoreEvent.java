@@ -0,0 +1,293 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+/**
+ * <p>A save, load, parse, checkpoint or compaction that has just been done,
+ * with how long it took.</p>
+ * <p>Events are only made while a {@link StoreEventListener} is added or a
+ * {@link Span} is open on the thread. With neither, the cost is a read of
+ * two fields. Listeners are shared by every store in the process. A
+ * listener can hand the events on to a profiler, for example committing a
+ * Flight Recorder event of its own so stalls line up with garbage
+ * collection and threads in the same recording.</p>
+ */
+public final class StoreEvent
+{
+    /**
+     * What was done
+     */
+    public enum Type
+    {
+        /**
+         * <code>QuickDataStore.save</code>, the value bytes are the saved
+         * text
+         */
+        SAVE,
+
+        /**
+         * <code>QuickDataStore.load</code>, the value bytes are the saved
+         * text, 0 when the key is not saved
+         */
+        LOAD,
+
+        /**
+         * Turning saved text back into an object, on a load, scan, query
+         * or reduce
+         */
+        PARSE,
+
+        /**
+         * A <code>FileValueStore</code> checkpoint writing the saves in its
+         * log to a segment, the key is the file path and the value bytes
+         * are the bytes written
+         */
+        FILE_REWRITE,
+
+        /**
+         * A <code>FileValueStore</code> checkpoint in the background that
+         * failed, the key is the file path and {@link #getError()} is why
+         */
+        CHECKPOINT_FAILED,
+
+        /**
+         * A periodic sync of a <code>FileValueStore</code> log that failed,
+         * the key is the path of the log and {@link #getError()} is why.
+         * Saves since the last sync may not be on disk.
+         */
+        LOG_SYNC_FAILED,
+
+        /**
+         * A <code>FileValueStore</code> merging segments, the key is the
+         * file path and the value bytes are the bytes written
+         */
+        COMPACTION,
+
+        /**
+         * A <code>FileValueStore</code> merge in the background that
+         * failed, the key is the file path and {@link #getError()} is why
+         */
+        COMPACTION_FAILED,
+
+        /**
+         * A <code>QuickDataStore</code> sweep of expired values in the
+         * background that failed, {@link #getError()} is why
+         */
+        SWEEP_FAILED,
+
+        /**
+         * A <code>QuickDataStore</code> merge of text index deltas in the
+         * background that failed, {@link #getError()} is why
+         */
+        TEXT_MERGE_FAILED
+    }
+
+    private static final StoreEventListener[] NONE = new StoreEventListener[0];
+    private static volatile StoreEventListener[] listeners = NONE;
+
+    private final Type type;
+    private final String key;
+    private final long valueBytes;
+    private final String valueType;
+    private final long startNanos;
+    private final long durationNanos;
+    private final long[] nanos;
+    private final Throwable error;
+
+    StoreEvent(Type type, String key, long valueBytes, String valueType,
+               long startNanos, long durationNanos, long[] nanos)
+    {
+        this(type, key, valueBytes, valueType, startNanos, durationNanos, nanos, null);
+    }
+
+    StoreEvent(Type type, String key, long valueBytes, String valueType,
+               long startNanos, long durationNanos, long[] nanos, Throwable error)
+    {
+        this.type = type;
+        this.key = key;
+        this.valueBytes = valueBytes;
+        this.valueType = valueType;
+        this.startNanos = startNanos;
+        this.durationNanos = durationNanos;
+        this.nanos = nanos;
+        this.error = error;
+    }
+
+    /**
+     * Start telling a listener of the events of every store
+     */
+    public static synchronized void addListener(StoreEventListener listener)
+    {
+        StoreEventListener[] added = new StoreEventListener[listeners.length + 1];
+        System.arraycopy(listeners, 0, added, 0, listeners.length);
+        added[listeners.length] = listener;
+        listeners = added;
+    }
+
+    /**
+     * Stop telling a listener of events, nothing happens if it was not
+     * added
+     */
+    public static synchronized void removeListener(StoreEventListener listener)
+    {
+        for (int i = 0; i < listeners.length; i++)
+        {
+            if (listeners[i] == listener)
+            {
+                StoreEventListener[] removed = new StoreEventListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, removed, 0, i);
+                System.arraycopy(listeners, i + 1, removed, i, removed.length - i);
+                listeners = removed.length == 0 ? NONE : removed;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return true if events are wanted, checked before working out what to
+     *         put in one
+     */
+    static boolean enabled()
+    {
+        return listeners.length > 0 || Span.current() != null;
+    }
+
+    /**
+     * Tell the listeners and the open span of work that started at
+     * <code>startNanos</code> and has just finished
+     */
+    static void fire(Type type, String key, long valueBytes, String valueType, long startNanos)
+    {
+        if (enabled())
+            fire(new StoreEvent(type, key, valueBytes, valueType, startNanos,
+                    System.nanoTime() - startNanos, null));
+    }
+
+    /**
+     * Tell the listeners and the open span of work that started at
+     * <code>startNanos</code> and has just failed
+     */
+    static void fireFailure(Type type, String key, Throwable error, long startNanos)
+    {
+        if (enabled())
+            fire(new StoreEvent(type, key, 0, null, startNanos,
+                    System.nanoTime() - startNanos, null, error));
+    }
+
+    static void fire(StoreEvent event)
+    {
+        for (StoreEventListener listener : listeners)
+        {
+            listener.event(event);
+        }
+        Span span = Span.current();
+        if (span != null)
+            span.add(event);
+    }
+
+    public Type getType()
+    {
+        return type;
+    }
+
+    /**
+     * @return the key saved, loaded or parsed, or the file path of a
+     *         <code>FileValueStore</code>, null when parsing text not read
+     *         by key and for work on the whole of a
+     *         <code>QuickDataStore</code>
+     */
+    public String getKey()
+    {
+        return key;
+    }
+
+    /**
+     * @return the length of the saved text, or the bytes written to disk
+     */
+    public long getValueBytes()
+    {
+        return valueBytes;
+    }
+
+    /**
+     * @return the class name of the value saved, loaded or parsed, null for
+     *         a missing value and for the file events
+     */
+    public String getValueType()
+    {
+        return valueType;
+    }
+
+    /**
+     * @return when the work started, from <code>System.nanoTime()</code>
+     */
+    public long getStartNanos()
+    {
+        return startNanos;
+    }
+
+    public long getDurationNanos()
+    {
+        return durationNanos;
+    }
+
+    /**
+     * @return why background work such as a {@link Type#COMPACTION_FAILED}
+     *         failed, null for the other events
+     */
+    public Throwable getError()
+    {
+        return error;
+    }
+
+    /**
+     * @return the time a save or load spent in one of its steps, for
+     *         example {@link StoreMetrics.Op#DECODE} for parsing, 0 for the
+     *         other events
+     */
+    public long getNanos(StoreMetrics.Op op)
+    {
+        return nanos == null ? 0 : nanos[op.ordinal()];
+    }
+
+    /**
+     * @return the type, key, size and duration, and for a save or load the
+     *         time spent validating, serializing, parsing and on the value
+     *         store
+     */
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(type).append(' ').append(key).append(' ').append(valueBytes).append(" bytes ");
+        if (valueType != null)
+            sb.append(valueType).append(' ');
+        sb.append(durationNanos).append("ns");
+        if (error != null)
+            sb.append(' ').append(error);
+        if (nanos != null)
+        {
+            long validate = getNanos(StoreMetrics.Op.VALIDATE);
+            sb.append(" (validate ").append(validate)
+                    .append("ns, serialize ").append(getNanos(StoreMetrics.Op.ENCODE) - validate)
+                    .append("ns, parse ").append(getNanos(StoreMetrics.Op.DECODE))
+                    .append("ns, io ").append(getNanos(StoreMetrics.Op.WRITE)
+                    + getNanos(StoreMetrics.Op.READ) + getNanos(StoreMetrics.Op.SCAN))
+                    .append("ns)");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,31 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+/**
+ * Told of every {@link StoreEvent} once added with
+ * <code>StoreEvent.addListener</code>. It is called on the thread that did
+ * the work, before the call returns to the caller, so it must be quick and
+ * safe to call from several threads at once.
+ */
+public interface StoreEventListener
+{
+    /**
+     * @param event what was done and how long it took
+     */
+    public void event(StoreEvent event);
+}
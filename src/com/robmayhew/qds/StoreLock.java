@@ -0,0 +1,300 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <p>Coordinates every store using the same data file, in this JVM and in
+ * other processes.</p>
+ * <p>A lock file is kept next to the data file. It holds a small header
+ * with a generation counter that is bumped by every commit, and one byte
+ * past the header is locked with <code>FileChannel.lock</code>: shared
+ * while a store reads the data file, exclusive while a store commits.</p>
+ * <p>The header is mapped into memory and read without locking, so a store
+ * can check whether anything changed since it last read the data file
+ * with a read of memory, no system call. The mapping is shared with the
+ * other processes using the file. The locked byte is kept outside the
+ * header so the check also works on platforms where file locks are
+ * mandatory.</p>
+ * <p>Java only allows one lock per file for the whole JVM, so there is a
+ * single instance per lock file and threads share its locks. It is
+ * counted out to each store using the file and closed once the last of
+ * them is closed.</p>
+ */
+final class StoreLock
+{
+    private static final int MAGIC = 0x51445331;
+    private static final int HEADER_SIZE = 16;
+
+    private static final Map<String, StoreLock> LOCKS =
+            new HashMap<String, StoreLock>();
+
+    private final File lockFile;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Object channelLock = new Object();
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private FileLock sharedLock;
+    private int sharedHolders;
+    private FileLock exclusiveLock;
+    private volatile MappedByteBuffer header;
+    private int users;
+
+    private StoreLock(File lockFile)
+    {
+        this.lockFile = lockFile;
+    }
+
+    /**
+     * Get the lock for a data file, each call must be matched by a call to
+     * {@link #release()}
+     *
+     * @param filePath path of the data file
+     * @return the lock shared by all stores using that file
+     */
+    static StoreLock forFile(String filePath)
+    {
+        String path;
+        try
+        {
+            path = new File(filePath).getCanonicalPath() + ".lock";
+        } catch (IOException e)
+        {
+            throw new QDSException("Unable to resolve " + filePath, e);
+        }
+        synchronized (LOCKS)
+        {
+            StoreLock storeLock = LOCKS.get(path);
+            if (storeLock == null)
+            {
+                storeLock = new StoreLock(new File(path));
+                LOCKS.put(path, storeLock);
+            }
+            storeLock.users++;
+            return storeLock;
+        }
+    }
+
+    /**
+     * Stop using the lock, the last store to stop closes the lock file
+     */
+    void release()
+    {
+        synchronized (LOCKS)
+        {
+            if (--users > 0)
+                return;
+            LOCKS.remove(lockFile.getPath());
+        }
+        synchronized (channelLock)
+        {
+            try
+            {
+                if (file != null)
+                    file.close();
+            } catch (IOException e)
+            {
+                throw new QDSException("Unable to close " + lockFile.getPath(), e);
+            } finally
+            {
+                file = null;
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * @return how many lock files are open, for tests
+     */
+    static int openCount()
+    {
+        synchronized (LOCKS)
+        {
+            return LOCKS.size();
+        }
+    }
+
+    /**
+     * Take a shared lock, other readers may hold it at the same time but
+     * no store can commit until it is released.
+     */
+    void lockShared()
+    {
+        lock.readLock().lock();
+        try
+        {
+            synchronized (this)
+            {
+                if (sharedHolders == 0 && exclusiveLock == null)
+                    sharedLock = channel().lock(HEADER_SIZE, 1, true);
+                sharedHolders++;
+            }
+        } catch (IOException e)
+        {
+            lock.readLock().unlock();
+            throw new QDSException("Unable to lock " + lockFile.getPath(), e);
+        }
+    }
+
+    void unlockShared()
+    {
+        try
+        {
+            synchronized (this)
+            {
+                if (--sharedHolders == 0 && sharedLock != null)
+                {
+                    release(sharedLock);
+                    sharedLock = null;
+                }
+            }
+        } finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Take the exclusive lock for the duration of a commit
+     */
+    void lockExclusive()
+    {
+        lock.writeLock().lock();
+        if (lock.getWriteHoldCount() > 1)
+            return;
+        try
+        {
+            synchronized (this)
+            {
+                exclusiveLock = channel().lock(HEADER_SIZE, 1, false);
+            }
+        } catch (IOException e)
+        {
+            lock.writeLock().unlock();
+            throw new QDSException("Unable to lock " + lockFile.getPath(), e);
+        }
+    }
+
+    void unlockExclusive()
+    {
+        try
+        {
+            if (lock.getWriteHoldCount() == 1)
+            {
+                synchronized (this)
+                {
+                    release(exclusiveLock);
+                    exclusiveLock = null;
+                }
+            }
+        } finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Read the generation from the mapped header, without locking
+     *
+     * @return the current generation, 0 if nothing has been committed
+     */
+    long readGeneration()
+    {
+        MappedByteBuffer h = header();
+        if (h.getInt(0) != MAGIC)
+            return 0;
+        return h.getLong(8);
+    }
+
+    /**
+     * Publish a new generation, the exclusive lock must be held
+     *
+     * @param generation the new generation
+     */
+    void writeGeneration(long generation)
+    {
+        MappedByteBuffer h = header();
+        h.putLong(8, generation);
+        h.putInt(4, 1);
+        h.putInt(0, MAGIC);
+    }
+
+    /**
+     * Map the header the first time it is needed. The mapping stays valid
+     * when the channel is closed by an interrupt.
+     */
+    private MappedByteBuffer header()
+    {
+        MappedByteBuffer h = header;
+        if (h != null)
+            return h;
+        synchronized (channelLock)
+        {
+            if (header == null)
+            {
+                try
+                {
+                    header = channel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+                } catch (IOException e)
+                {
+                    throw new QDSException("Unable to map " + lockFile.getPath(), e);
+                }
+            }
+            return header;
+        }
+    }
+
+    /**
+     * The channel is closed if a thread using it is interrupted, in which
+     * case it is opened again.
+     */
+    private FileChannel channel() throws IOException
+    {
+        synchronized (channelLock)
+        {
+            if (channel == null || !channel.isOpen())
+            {
+                if (file != null)
+                    file.close();
+                file = new RandomAccessFile(lockFile, "rw");
+                channel = file.getChannel();
+            }
+            return channel;
+        }
+    }
+
+    private void release(FileLock fileLock)
+    {
+        try
+        {
+            if (fileLock != null && fileLock.isValid())
+                fileLock.release();
+        } catch (IOException e)
+        {
+            throw new QDSException("Unable to unlock " + lockFile.getPath(), e);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+/**
+ * <p>What a <code>QuickDataStore</code> shows through JMX once
+ * <code>registerMBean</code> has been called.</p>
+ * <p>The file and compaction attributes are those of a
+ * <code>FileValueStore</code>, other value stores show 0 for them. Times
+ * are in microseconds. The live and debt bytes are counted from every key
+ * each time they are read.</p>
+ */
+public interface StoreMXBean
+{
+    /**
+     * @return where the store keeps its values
+     */
+    String getFilePath();
+
+    /**
+     * @return how many keys the value store holds, including index keys
+     */
+    long getKeyCount();
+
+    int getSegmentCount();
+
+    long getDataBytes();
+
+    long getLiveBytes();
+
+    long getCompactionDebtBytes();
+
+    double getWriteAmplification();
+
+    long getCompactions();
+
+    boolean isCompacting();
+
+    /**
+     * @return saves appended to the log that are not yet synced to disk
+     */
+    long getUnsyncedSaves();
+
+    long getSaveCount();
+
+    double getSaveP50Micros();
+
+    double getSaveP99Micros();
+
+    double getSaveP999Micros();
+
+    double getSaveMaxMicros();
+
+    long getLoadCount();
+
+    double getLoadP50Micros();
+
+    double getLoadP99Micros();
+
+    double getLoadP999Micros();
+
+    double getLoadMaxMicros();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    /**
+     * @return sweeps and text index merges in the background that failed
+     */
+    long getBackgroundFailures();
+
+    long getCompactionRate();
+
+    /**
+     * Set the rate of compaction for every store in the process
+     *
+     * @param bytesPerSecond the limit, 0 for none
+     */
+    void setCompactionRate(long bytesPerSecond);
+
+    /**
+     * @param op         an operation of <code>StoreMetrics.Op</code>, such
+     *                   as <code>DECODE</code>
+     * @param percentile from 0 to 100
+     * @return the time in microseconds
+     */
+    double latencyMicros(String op, double percentile);
+
+    /**
+     * Merge segments now, as <code>FileValueStore.compact()</code>
+     *
+     * @return how many merges were made
+     */
+    int compact();
+
+    /**
+     * Write everything saved since the last checkpoint to a segment and
+     * empty the log
+     */
+    void flush();
+
+    /**
+     * Remove every value whose time to live has passed
+     *
+     * @return how many were removed
+     */
+    int sweepExpired();
+}
@@ -0,0 +1,183 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+/**
+ * <p>Counts and times the work of a <code>QuickDataStore</code> and of the
+ * <code>ValueStore</code> under it.</p>
+ * <p>A save is timed as a whole, and split into turning the object into
+ * text ({@link Op#ENCODE}) and writing it ({@link Op#WRITE}). A load is
+ * split into reading the text ({@link Op#READ}) and parsing it and
+ * creating the object ({@link Op#DECODE}). So a slow load shows whether the
+ * time went on the disk or on parsing and reflection. The value store
+ * operations include the reads and writes the store makes for its own
+ * indexes.</p>
+ * <pre>
+ * LatencyHistogram loads = store.metrics().latency(StoreMetrics.Op.LOAD);
+ * long p99 = loads.getPercentile(99);</pre>
+ * <p>Recording allocates nothing and threads rarely contend. The clock is
+ * read at the start and end of every step timed, so a save reads it eight
+ * times and a load six.</p>
+ */
+public final class StoreMetrics
+{
+    /**
+     * The operations timed
+     */
+    public enum Op
+    {
+        /**
+         * <code>QuickDataStore.save</code>, from the object to the commit
+         */
+        SAVE,
+
+        /**
+         * <code>QuickDataStore.load</code>, from the key to the object
+         */
+        LOAD,
+
+        /**
+         * Turning a saved object into text
+         */
+        ENCODE,
+
+        /**
+         * Checking by reflection that an object can be saved, part of
+         * {@link #ENCODE}
+         */
+        VALIDATE,
+
+        /**
+         * Parsing loaded text and creating the object from it
+         */
+        DECODE,
+
+        /**
+         * <code>ValueStore.writeValue</code> and <code>writeValues</code>
+         */
+        WRITE,
+
+        /**
+         * <code>ValueStore.loadValue</code>
+         */
+        READ,
+
+        /**
+         * Starting a <code>ValueStore.scan</code>, the values are read as it
+         * is iterated
+         */
+        SCAN
+    }
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Op.values().length];
+    private final StripedCounter bytesRead = new StripedCounter();
+    private final StripedCounter bytesWritten = new StripedCounter();
+    private final StripedCounter backgroundFailures = new StripedCounter();
+
+    StoreMetrics()
+    {
+        for (Op op : Op.values())
+        {
+            latencies[op.ordinal()] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Count an operation that started at a time from
+     * <code>System.nanoTime()</code>
+     *
+     * @return how long it took
+     */
+    long record(Op op, long startNanos)
+    {
+        long nanos = System.nanoTime() - startNanos;
+        latencies[op.ordinal()].record(nanos);
+        Breakdown.add(op, nanos);
+        return nanos;
+    }
+
+    void read(long bytes)
+    {
+        bytesRead.add(bytes);
+    }
+
+    void written(long bytes)
+    {
+        bytesWritten.add(bytes);
+    }
+
+    void failed()
+    {
+        backgroundFailures.add(1);
+    }
+
+    /**
+     * @return the times of an operation
+     */
+    public LatencyHistogram latency(Op op)
+    {
+        return latencies[op.ordinal()];
+    }
+
+    /**
+     * @return how many times an operation ran
+     */
+    public long count(Op op)
+    {
+        return latencies[op.ordinal()].getCount();
+    }
+
+    /**
+     * @return the characters of the values loaded, not counting scans
+     */
+    public long getBytesRead()
+    {
+        return bytesRead.sum();
+    }
+
+    /**
+     * @return the characters of the keys and values written
+     */
+    public long getBytesWritten()
+    {
+        return bytesWritten.sum();
+    }
+
+    /**
+     * @return how many sweeps of expired values and text index merges run
+     *         in the background have failed
+     */
+    public long getBackgroundFailures()
+    {
+        return backgroundFailures.sum();
+    }
+
+    /**
+     * @return a line per operation with its count and percentiles
+     */
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Op op : Op.values())
+        {
+            sb.append(op).append(' ').append(latency(op)).append('\n');
+        }
+        sb.append("read=").append(getBytesRead()).append(" written=")
+                .append(getBytesWritten()).append('\n');
+        return sb.toString();
+    }
+}
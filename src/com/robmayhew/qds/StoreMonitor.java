@@ -0,0 +1,197 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The {@link StoreMXBean} of a <code>QuickDataStore</code>
+ */
+final class StoreMonitor implements StoreMXBean
+{
+    private final QuickDataStore store;
+    private final OrderedValueStore valueStore;
+    private final FileValueStore files;
+
+    StoreMonitor(QuickDataStore store, OrderedValueStore valueStore)
+    {
+        this.store = store;
+        this.valueStore = valueStore;
+        this.files = valueStore instanceof FileValueStore ? (FileValueStore) valueStore : null;
+    }
+
+    public String getFilePath()
+    {
+        return files == null ? store.getFilePath() : files.getFilePath();
+    }
+
+    public long getKeyCount()
+    {
+        if (files != null)
+            return files.keyCount();
+        long count = 0;
+        Iterator<Map.Entry<String, String>> it = valueStore.scan(null, null);
+        while (it.hasNext())
+        {
+            it.next();
+            count++;
+        }
+        return count;
+    }
+
+    public int getSegmentCount()
+    {
+        return files == null ? 0 : files.compactionStats().getSegments();
+    }
+
+    public long getDataBytes()
+    {
+        return files == null ? 0 : files.compactionStats().getTotalBytes();
+    }
+
+    public long getLiveBytes()
+    {
+        return files == null ? 0 : files.compactionStats().getLiveBytes();
+    }
+
+    public long getCompactionDebtBytes()
+    {
+        return files == null ? 0 : files.compactionStats().getDebtBytes();
+    }
+
+    public double getWriteAmplification()
+    {
+        return files == null ? 0 : files.compactionStats().getWriteAmplification();
+    }
+
+    public long getCompactions()
+    {
+        return files == null ? 0 : files.compactionStats().getCompactions();
+    }
+
+    public boolean isCompacting()
+    {
+        return files != null && files.isCompacting();
+    }
+
+    public long getUnsyncedSaves()
+    {
+        return files == null ? 0 : files.unsyncedSaves();
+    }
+
+    public long getSaveCount()
+    {
+        return store.metrics().count(StoreMetrics.Op.SAVE);
+    }
+
+    public double getSaveP50Micros()
+    {
+        return latencyMicros(StoreMetrics.Op.SAVE, 50);
+    }
+
+    public double getSaveP99Micros()
+    {
+        return latencyMicros(StoreMetrics.Op.SAVE, 99);
+    }
+
+    public double getSaveP999Micros()
+    {
+        return latencyMicros(StoreMetrics.Op.SAVE, 99.9);
+    }
+
+    public double getSaveMaxMicros()
+    {
+        return store.metrics().latency(StoreMetrics.Op.SAVE).getMax() / 1000.0;
+    }
+
+    public long getLoadCount()
+    {
+        return store.metrics().count(StoreMetrics.Op.LOAD);
+    }
+
+    public double getLoadP50Micros()
+    {
+        return latencyMicros(StoreMetrics.Op.LOAD, 50);
+    }
+
+    public double getLoadP99Micros()
+    {
+        return latencyMicros(StoreMetrics.Op.LOAD, 99);
+    }
+
+    public double getLoadP999Micros()
+    {
+        return latencyMicros(StoreMetrics.Op.LOAD, 99.9);
+    }
+
+    public double getLoadMaxMicros()
+    {
+        return store.metrics().latency(StoreMetrics.Op.LOAD).getMax() / 1000.0;
+    }
+
+    public long getBytesRead()
+    {
+        return store.metrics().getBytesRead();
+    }
+
+    public long getBytesWritten()
+    {
+        return store.metrics().getBytesWritten();
+    }
+
+    public long getBackgroundFailures()
+    {
+        return store.metrics().getBackgroundFailures();
+    }
+
+    public long getCompactionRate()
+    {
+        return IoScheduler.getRate(IoScheduler.Work.COMPACTION);
+    }
+
+    public void setCompactionRate(long bytesPerSecond)
+    {
+        IoScheduler.setRate(IoScheduler.Work.COMPACTION, bytesPerSecond);
+    }
+
+    public double latencyMicros(String op, double percentile)
+    {
+        return latencyMicros(StoreMetrics.Op.valueOf(op), percentile);
+    }
+
+    private double latencyMicros(StoreMetrics.Op op, double percentile)
+    {
+        return store.metrics().latency(op).getPercentile(percentile) / 1000.0;
+    }
+
+    public int compact()
+    {
+        return files == null ? 0 : files.compact();
+    }
+
+    public void flush()
+    {
+        if (files != null)
+            files.checkpoint();
+    }
+
+    public int sweepExpired()
+    {
+        return store.sweepExpired();
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A counter many threads add to without contending.</p>
+ * <p>Each thread adds to one of several cells, each on its own cache
+ * line, picked by its thread id, and reading the counter adds the cells
+ * up. Adding allocates nothing.</p>
+ */
+final class StripedCounter
+{
+    static final int STRIPES = stripes();
+
+    /**
+     * Longs to a cache line, cells are this far apart
+     */
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    private static int stripes()
+    {
+        int processors = Runtime.getRuntime().availableProcessors();
+        return Math.min(64, Integer.highestOneBit(Math.max(1, processors - 1)) << 1);
+    }
+
+    /**
+     * @return the stripe of the current thread, below {@link #STRIPES}
+     */
+    static int stripe()
+    {
+        return (int) Thread.currentThread().getId() & (STRIPES - 1);
+    }
+
+    void add(long n)
+    {
+        cells.getAndAdd(stripe() * PADDING, n);
+    }
+
+    void increment()
+    {
+        add(1);
+    }
+
+    long sum()
+    {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++)
+        {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+}
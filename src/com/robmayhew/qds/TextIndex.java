@@ -0,0 +1,200 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * <p>An inverted index of the words in a String property of the saved
+ * objects of one class.</p>
+ * <p>Each object key is given a number, and each word has a posting list:
+ * a {@link Bitmap} of the numbers of the objects using the word. Rewriting
+ * a posting list on every save would make common words expensive, so a save
+ * only writes a small delta per changed word, <code>+</code> when an object
+ * starts using the word and <code>-</code> when it stops. Searches apply the
+ * deltas on top of the posting lists, and a merge folds the deltas into the
+ * posting lists.</p>
+ * <p>Words are the runs of letters and digits, lower cased.</p>
+ */
+final class TextIndex
+{
+    static final String DECLARED_PREFIX = QuickDataStore.RESERVED_PREFIX + "textindexes/";
+    private static final String TEXT_PREFIX = QuickDataStore.RESERVED_PREFIX + "text/";
+    private static final String IDS_PREFIX = QuickDataStore.RESERVED_PREFIX + "ids/";
+    static final String NEXT_ID = IDS_PREFIX + "next";
+    static final char END_OF_TERM = '!';
+    static final String ADDED = "+";
+    static final String REMOVED = "-";
+
+    final String className;
+    final String property;
+    private final String prefix;
+
+    TextIndex(String className, String property)
+    {
+        if (PropertyIndex.propertyType(className, property) != String.class)
+            throw new QDSException(className + "." + property + " is not a String");
+        this.className = className;
+        this.property = property;
+        this.prefix = TEXT_PREFIX + className + "/" + property + "/";
+    }
+
+    static TextIndex fromDeclaredKey(String key)
+    {
+        String name = key.substring(DECLARED_PREFIX.length());
+        int slash = name.lastIndexOf('/');
+        return new TextIndex(name.substring(0, slash), name.substring(slash + 1));
+    }
+
+    String declaredKey()
+    {
+        return DECLARED_PREFIX + className + "/" + property;
+    }
+
+    /**
+     * @return the words of a saved object's property, empty if it is not
+     *         set
+     */
+    Set<String> terms(QDSJSONObject json)
+    {
+        QDSJSONObject data = json.optJSONObject("data");
+        Object value = data == null ? null : data.opt(property);
+        if (!(value instanceof String))
+            return new TreeSet<String>();
+        return terms((String) value);
+    }
+
+    /**
+     * Split text into words
+     */
+    static Set<String> terms(String text)
+    {
+        Set<String> terms = new TreeSet<String>();
+        text = text.toLowerCase(Locale.ENGLISH);
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++)
+        {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0)
+                start = i;
+            if (!wordChar && start >= 0)
+            {
+                terms.add(text.substring(start, i));
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * @return the key of the posting list of a word, which is also the
+     *         prefix of the keys of the words starting with it
+     */
+    String postingKey(String term)
+    {
+        return prefix + "t/" + PropertyIndex.encodeString(term);
+    }
+
+    /**
+     * @return the encoded word of a posting list key, as used in delta keys
+     */
+    String termOfPosting(String postingKey)
+    {
+        return postingKey.substring(prefix.length() + 2);
+    }
+
+    /**
+     * @return the key of the delta for an object starting or stopping using a
+     *         word
+     */
+    String deltaKey(String term, String key)
+    {
+        return deltaPrefix(term) + END_OF_TERM + key;
+    }
+
+    /**
+     * @return the prefix of the delta keys of the words starting with some
+     *         text, the deltas of one word when followed by
+     *         {@link #END_OF_TERM}
+     */
+    String deltaPrefix(String termPrefix)
+    {
+        return prefix + "d/" + PropertyIndex.encodeString(termPrefix);
+    }
+
+    /**
+     * @return the encoded word of a delta key, as used in posting keys
+     */
+    String termOfDelta(String deltaKey)
+    {
+        int start = prefix.length() + 2;
+        return deltaKey.substring(start, deltaKey.indexOf(END_OF_TERM, start));
+    }
+
+    /**
+     * @return the object key of a delta key
+     */
+    String keyOfDelta(String deltaKey)
+    {
+        return deltaKey.substring(deltaKey.indexOf(END_OF_TERM, prefix.length() + 2) + 1);
+    }
+
+    static String idKey(String key)
+    {
+        return IDS_PREFIX + "k/" + key;
+    }
+
+    static String keyOfId(int id)
+    {
+        String hex = Integer.toHexString(id);
+        return IDS_PREFIX + "i/" + "00000000".substring(hex.length()) + hex;
+    }
+
+    /**
+     * The deltas of one word not yet merged into its posting list
+     */
+    static final class Deltas
+    {
+        private final Set<Integer> added = new TreeSet<Integer>();
+        private final Set<Integer> removed = new TreeSet<Integer>();
+
+        void add(int id, String delta)
+        {
+            if (ADDED.equals(delta))
+                added.add(id);
+            else
+                removed.add(id);
+        }
+
+        Bitmap apply(Bitmap postings)
+        {
+            return postings.andNot(toBitmap(removed)).or(toBitmap(added));
+        }
+
+        private static Bitmap toBitmap(Set<Integer> ids)
+        {
+            Bitmap.Builder builder = new Bitmap.Builder();
+            for (int id : ids)
+            {
+                builder.add(id);
+            }
+            return builder.build();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+/**
+ * <p>Limits how fast something runs, in units per second.</p>
+ * <p>Tokens are added at the rate up to one second's worth, taking more
+ * than there are waits until they have been added. A burst after a pause
+ * runs at once, a long run is held to the rate. Work that must not wait
+ * where it is can take tokens into debt and wait later.</p>
+ */
+final class TokenBucket
+{
+    private volatile long rate;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * @param rate units per second, 0 for no limit
+     */
+    TokenBucket(long rate)
+    {
+        this.rate = rate;
+        this.tokens = rate;
+    }
+
+    void setRate(long rate)
+    {
+        this.rate = rate;
+    }
+
+    long getRate()
+    {
+        return rate;
+    }
+
+    /**
+     * Take some tokens, waiting until there are enough
+     */
+    void acquire(long count)
+    {
+        take(count);
+        await();
+    }
+
+    /**
+     * Take some tokens without waiting, the bucket may go into debt
+     */
+    synchronized void take(long count)
+    {
+        if (rate <= 0)
+            return;
+        refill();
+        tokens -= count;
+    }
+
+    /**
+     * Wait until any debt has been paid off
+     */
+    void await()
+    {
+        long wait;
+        synchronized (this)
+        {
+            long r = rate;
+            if (r <= 0)
+            {
+                tokens = 0;
+                return;
+            }
+            refill();
+            if (tokens >= 0)
+                return;
+            wait = (long) (-tokens * 1e9 / r);
+        }
+        try
+        {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void refill()
+    {
+        long now = System.nanoTime();
+        tokens = Math.min(rate, tokens + (now - lastRefill) * rate / 1e9);
+        lastRefill = now;
+    }
+}
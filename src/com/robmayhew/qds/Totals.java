@@ -0,0 +1,110 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+/**
+ * The count, sum, smallest and largest of some numbers, enough to give
+ * every {@link Aggregate}
+ */
+final class Totals
+{
+    long count;
+    double sum;
+    double min = Double.NaN;
+    double max = Double.NaN;
+
+    void add(double value)
+    {
+        if (count == 0 || value < min)
+            min = value;
+        if (count == 0 || value > max)
+            max = value;
+        count++;
+        sum += value;
+    }
+
+    void add(Totals other)
+    {
+        if (other.count == 0)
+            return;
+        if (count == 0 || other.min < min)
+            min = other.min;
+        if (count == 0 || other.max > max)
+            max = other.max;
+        count += other.count;
+        sum += other.sum;
+    }
+
+    /**
+     * Take away numbers added before
+     *
+     * @return false if the smallest or largest number may have been taken
+     *         away and they are no longer known
+     */
+    boolean remove(Totals other)
+    {
+        if (other.count == 0)
+            return true;
+        count -= other.count;
+        sum -= other.sum;
+        if (count <= 0)
+        {
+            count = 0;
+            sum = 0;
+            min = Double.NaN;
+            max = Double.NaN;
+            return true;
+        }
+        return other.min > min && other.max < max;
+    }
+
+    double get(Aggregate aggregate)
+    {
+        switch (aggregate)
+        {
+            case SUM:
+                return sum;
+            case AVG:
+                return count == 0 ? Double.NaN : sum / count;
+            case MIN:
+                return min;
+            case MAX:
+                return max;
+            default:
+                return count;
+        }
+    }
+
+    /**
+     * @return the totals as text for saving, read back by {@link #decode}
+     */
+    String encode()
+    {
+        return count + " " + sum + " " + min + " " + max;
+    }
+
+    static Totals decode(String s)
+    {
+        String[] parts = s.split(" ");
+        Totals totals = new Totals();
+        totals.count = Long.parseLong(parts[0]);
+        totals.sum = Double.parseDouble(parts[1]);
+        totals.min = Double.parseDouble(parts[2]);
+        totals.max = Double.parseDouble(parts[3]);
+        return totals;
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+/**
+ * <p>One save, load or delete in a trace written by {@link TraceRecorder}
+ * and replayed by {@link TraceReplayer}.</p>
+ * <p>A trace is text, a line per call:</p>
+ * <pre>
+ * offsetMicros op keyHash size durationMicros</pre>
+ * <p>The op is <code>S</code>, <code>L</code> or <code>D</code>, the key
+ * hash is the 64 bit FNV-1a hash of the key in hex, and the size is the
+ * length of the saved text, -1 when it is not known. Lines starting with
+ * <code>#</code> are comments.</p>
+ */
+final class TraceCall
+{
+    static final String HEADER = "# QDS trace 1";
+    static final char SAVE = 'S';
+    static final char LOAD = 'L';
+    static final char DELETE = 'D';
+
+    final long offsetNanos;
+    final char op;
+    final long keyHash;
+    final int size;
+    final long durationNanos;
+
+    TraceCall(long offsetNanos, char op, long keyHash, int size, long durationNanos)
+    {
+        this.offsetNanos = offsetNanos;
+        this.op = op;
+        this.keyHash = keyHash;
+        this.size = size;
+        this.durationNanos = durationNanos;
+    }
+
+    /**
+     * @return the FNV-1a hash of a key, so a trace holds no keys
+     */
+    static long hash(String key)
+    {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++)
+        {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * @return the key a replay uses for the hashed key
+     */
+    String replayKey()
+    {
+        return "trace/" + Long.toHexString(keyHash);
+    }
+
+    /**
+     * @return the call as a line of a trace, read back by {@link #decode}
+     */
+    String encode()
+    {
+        return offsetNanos / 1000 + " " + op + " " + Long.toHexString(keyHash) + " " + size
+                + " " + durationNanos / 1000;
+    }
+
+    /**
+     * @return the call of a line, null for a comment or an empty line
+     * @throws QDSException if the line is not a call
+     */
+    static TraceCall decode(String line)
+    {
+        if (line.length() == 0 || line.charAt(0) == '#')
+            return null;
+        String[] parts = line.split(" ");
+        try
+        {
+            if (parts.length != 5 || parts[1].length() != 1)
+                throw new NumberFormatException();
+            return new TraceCall(Long.parseLong(parts[0]) * 1000, parts[1].charAt(0),
+                    parseHex(parts[2]), Integer.parseInt(parts[3]), Long.parseLong(parts[4]) * 1000);
+        } catch (NumberFormatException e)
+        {
+            throw new QDSException("Bad trace line " + line);
+        }
+    }
+
+    /**
+     * Parse an unsigned 64 bit hex number, which <code>Long.parseLong</code>
+     * does not take above <code>Long.MAX_VALUE</code>
+     */
+    private static long parseHex(String hex)
+    {
+        if (hex.length() == 0 || hex.length() > 16)
+            throw new NumberFormatException(hex);
+        long value = 0;
+        for (int i = 0; i < hex.length(); i++)
+        {
+            int digit = Character.digit(hex.charAt(i), 16);
+            if (digit < 0)
+                throw new NumberFormatException(hex);
+            value = value << 4 | digit;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,270 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Writes a trace of the saves, loads and deletes made through it, to
+ * be replayed later by {@link TraceReplayer}, and passes every call on to
+ * the store it wraps.</p>
+ * <pre>
+ * TraceRecorder recorder = new TraceRecorder(
+ *         new QuickDataStore(new FileValueStore("pathname")),
+ *         new BufferedWriter(new FileWriter("app.trace")));
+ * QDS.useInstance(recorder);
+ * ...
+ * recorder.close();</pre>
+ * <p>The trace holds when each call was made, how long it took, a hash of
+ * the key and the size of the saved text, no keys or values. The sizes are
+ * known when the wrapped store is a <code>QuickDataStore</code>. The other
+ * calls are passed on without being recorded.</p>
+ */
+public class TraceRecorder implements ExtendedDataStoreInterface
+{
+    private final ExtendedDataStoreInterface store;
+    private final Writer out;
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * @param store the store the calls are made on
+     * @param out   where the trace is written, it should be buffered
+     */
+    public TraceRecorder(ExtendedDataStoreInterface store, Writer out)
+    {
+        this.store = store;
+        this.out = out;
+        write(TraceCall.HEADER);
+    }
+
+    /**
+     * Flush and close the trace, the wrapped store is left open
+     */
+    public void close()
+    {
+        synchronized (out)
+        {
+            try
+            {
+                out.close();
+            } catch (IOException e)
+            {
+                throw new QDSException("Error closing the trace", e);
+            }
+        }
+    }
+
+    private void write(String line)
+    {
+        synchronized (out)
+        {
+            try
+            {
+                out.write(line);
+                out.write('\n');
+            } catch (IOException e)
+            {
+                throw new QDSException("Error writing the trace", e);
+            }
+        }
+    }
+
+    /**
+     * Start recording a call, the span collects the size of the value
+     */
+    private Span begin()
+    {
+        return store instanceof QuickDataStore ? Span.start("trace") : null;
+    }
+
+    private void record(char op, String key, long start, Span span)
+    {
+        long end = System.nanoTime();
+        int size = -1;
+        if (span != null)
+        {
+            span.end();
+            List<StoreEvent> events = span.getEvents();
+            for (int i = events.size() - 1; i >= 0 && size < 0; i--)
+            {
+                StoreEvent event = events.get(i);
+                if (event.getType() == StoreEvent.Type.SAVE
+                        || event.getType() == StoreEvent.Type.LOAD)
+                    size = (int) event.getValueBytes();
+            }
+            if (op == TraceCall.DELETE)
+                size = 0;
+        }
+        write(new TraceCall(start - startNanos, op, TraceCall.hash(key), size, end - start)
+                .encode());
+    }
+
+    public String getFilePath()
+    {
+        return store.getFilePath();
+    }
+
+    public void save(String key, Object value)
+    {
+        long start = System.nanoTime();
+        Span span = begin();
+        try
+        {
+            store.save(key, value);
+        } finally
+        {
+            record(TraceCall.SAVE, key, start, span);
+        }
+    }
+
+    public void save(String key, Object value, long ttlMillis)
+    {
+        long start = System.nanoTime();
+        Span span = begin();
+        try
+        {
+            store.save(key, value, ttlMillis);
+        } finally
+        {
+            record(TraceCall.SAVE, key, start, span);
+        }
+    }
+
+    public Object load(String key)
+    {
+        long start = System.nanoTime();
+        Span span = begin();
+        try
+        {
+            return store.load(key);
+        } finally
+        {
+            record(TraceCall.LOAD, key, start, span);
+        }
+    }
+
+    public void delete(String key)
+    {
+        long start = System.nanoTime();
+        Span span = begin();
+        try
+        {
+            store.delete(key);
+        } finally
+        {
+            record(TraceCall.DELETE, key, start, span);
+        }
+    }
+
+    public void deletePrefix(String prefix)
+    {
+        store.deletePrefix(prefix);
+    }
+
+    public Iterable<String> keys(String prefix)
+    {
+        return store.keys(prefix);
+    }
+
+    public Iterable<Map.Entry<String, Object>> scan(String fromKey, String toKey)
+    {
+        return store.scan(fromKey, toKey);
+    }
+
+    public void createIndex(Class<?> type, String property)
+    {
+        store.createIndex(type, property);
+    }
+
+    public List<String> findBy(Class<?> type, String property, Object value)
+    {
+        return store.findBy(type, property, value);
+    }
+
+    public List<String> findRange(Class<?> type, String property, Object from, Object to)
+    {
+        return store.findRange(type, property, from, to);
+    }
+
+    public List<Object> query(String key, FieldFilter filter)
+    {
+        return store.query(key, filter);
+    }
+
+    public double aggregate(String key, String field, Aggregate aggregate)
+    {
+        return store.aggregate(key, field, aggregate);
+    }
+
+    public void createView(String name, String keyPrefix, String field)
+    {
+        store.createView(name, keyPrefix, field);
+    }
+
+    public double view(String name, Aggregate aggregate)
+    {
+        return store.view(name, aggregate);
+    }
+
+    public void forEachParallel(EntryWork work)
+    {
+        store.forEachParallel(work);
+    }
+
+    public <T> T reduce(Reducer<T> reducer)
+    {
+        return store.reduce(reducer);
+    }
+
+    public void createBitmapIndex(Class<?> type, String property)
+    {
+        store.createBitmapIndex(type, property);
+    }
+
+    public void createBitmapIndex(Class<?> type, String property, long bucketWidth)
+    {
+        store.createBitmapIndex(type, property, bucketWidth);
+    }
+
+    public Bitmap bitmap(String key, Class<?> type, String property, Object value)
+    {
+        return store.bitmap(key, type, property, value);
+    }
+
+    public List<Object> loadElements(String key, Bitmap positions)
+    {
+        return store.loadElements(key, positions);
+    }
+
+    public void createTextIndex(Class<?> type, String property)
+    {
+        store.createTextIndex(type, property);
+    }
+
+    public List<String> search(Class<?> type, String property, String words)
+    {
+        return store.search(type, property, words);
+    }
+
+    public List<String> searchPrefix(Class<?> type, String property, String prefix)
+    {
+        return store.searchPrefix(type, property, prefix);
+    }
+}
@@ -0,0 +1,341 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>Replays a trace written by {@link TraceRecorder} against a store, at
+ * the recorded pace or faster or slower.</p>
+ * <p>The replay is open loop: each call is started when the trace says,
+ * by a pool of threads, whether or not the calls before it have
+ * finished. A call's response time is counted from when it should have
+ * started, so a stall shows in the time of every call that waited behind
+ * it rather than in one slow call. The service time, from when a thread
+ * got to the call, is given too.</p>
+ * <p>Keys loaded before they are saved in the trace are saved first, with
+ * values of the recorded size, so loads find what they found when the
+ * trace was recorded. Saved values are Strings of about the recorded
+ * size.</p>
+ * <pre>
+ * java -cp qds.jar com.robmayhew.qds.TraceReplayer app.trace pathname [speed] [threads]</pre>
+ */
+public final class TraceReplayer
+{
+    /**
+     * The text a saved String takes beside its characters
+     */
+    private static final int STRING_OVERHEAD =
+            "{\"type\":\"primitive\",\"class\":\"java.lang.String\",\"primitive\":\"\"}".length();
+
+    /**
+     * The size of values whose size was not recorded
+     */
+    private static final int DEFAULT_SIZE = 100;
+
+    private final ExtendedDataStoreInterface store;
+
+    public TraceReplayer(ExtendedDataStoreInterface store)
+    {
+        this.store = store;
+    }
+
+    /**
+     * The times of a replay
+     */
+    public static final class Result
+    {
+        private final LatencyHistogram saves = new LatencyHistogram();
+        private final LatencyHistogram loads = new LatencyHistogram();
+        private final LatencyHistogram deletes = new LatencyHistogram();
+        private final LatencyHistogram service = new LatencyHistogram();
+        private final AtomicLong errors = new AtomicLong();
+        private long calls;
+        private long intendedNanos;
+        private long actualNanos;
+
+        private Result()
+        {
+        }
+
+        /**
+         * @return the response times of the saves, from when each should
+         *         have started
+         */
+        public LatencyHistogram getSaves()
+        {
+            return saves;
+        }
+
+        public LatencyHistogram getLoads()
+        {
+            return loads;
+        }
+
+        public LatencyHistogram getDeletes()
+        {
+            return deletes;
+        }
+
+        /**
+         * @return the times of every call from when a thread started it,
+         *         leaving out any wait for a thread
+         */
+        public LatencyHistogram getServiceTimes()
+        {
+            return service;
+        }
+
+        public long getCalls()
+        {
+            return calls;
+        }
+
+        /**
+         * @return the calls that threw an exception, they are still timed
+         */
+        public long getErrors()
+        {
+            return errors.get();
+        }
+
+        /**
+         * @return how long the replay should have taken at its speed
+         */
+        public long getIntendedNanos()
+        {
+            return intendedNanos;
+        }
+
+        /**
+         * @return how long the replay took until the last call finished
+         */
+        public long getActualNanos()
+        {
+            return actualNanos;
+        }
+
+        public String toString()
+        {
+            return calls + " calls in " + actualNanos / 1000000 + "ms, "
+                    + intendedNanos / 1000000 + "ms intended, " + getErrors() + " errors\n"
+                    + "save    " + saves + "\n"
+                    + "load    " + loads + "\n"
+                    + "delete  " + deletes + "\n"
+                    + "service " + service + "\n";
+        }
+    }
+
+    /**
+     * Replay a trace
+     *
+     * @param trace   the trace as written by {@link TraceRecorder}
+     * @param speed   how much faster than recorded to make the calls, 2
+     *                for twice as fast
+     * @param threads how many calls can run at once
+     */
+    public Result replay(Reader trace, double speed, int threads) throws IOException
+    {
+        if (speed <= 0 || threads <= 0)
+            throw new IllegalArgumentException("The speed and threads must be positive");
+        List<TraceCall> calls = read(trace);
+        String[] values = values(calls);
+        prefill(calls, values);
+        final Result result = new Result();
+        result.calls = calls.size();
+        if (calls.isEmpty())
+            return result;
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "QDS trace replay");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long base = calls.get(0).offsetNanos;
+        long start = System.nanoTime();
+        final AtomicLong finished = new AtomicLong(start);
+        try
+        {
+            for (int i = 0; i < calls.size(); i++)
+            {
+                final TraceCall call = calls.get(i);
+                final String value = values[i];
+                final long intended = start + (long) ((call.offsetNanos - base) / speed);
+                long wait;
+                while ((wait = intended - System.nanoTime()) > 0)
+                {
+                    LockSupport.parkNanos(wait);
+                }
+                pool.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        long began = System.nanoTime();
+                        try
+                        {
+                            call(call, value);
+                        } catch (RuntimeException e)
+                        {
+                            result.errors.incrementAndGet();
+                        }
+                        long end = System.nanoTime();
+                        result.service.record(end - began);
+                        histogram(result, call.op).record(end - intended);
+                        long last = finished.get();
+                        while (end > last && !finished.compareAndSet(last, end))
+                        {
+                            last = finished.get();
+                        }
+                    }
+                });
+            }
+        } finally
+        {
+            pool.shutdown();
+        }
+        try
+        {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new QDSException("Interrupted replaying a trace", e);
+        }
+        result.intendedNanos = (long) ((calls.get(calls.size() - 1).offsetNanos - base) / speed);
+        result.actualNanos = finished.get() - start;
+        return result;
+    }
+
+    private static List<TraceCall> read(Reader trace) throws IOException
+    {
+        BufferedReader reader = new BufferedReader(trace);
+        List<TraceCall> calls = new ArrayList<TraceCall>();
+        String line;
+        while ((line = reader.readLine()) != null)
+        {
+            TraceCall call = TraceCall.decode(line);
+            if (call != null)
+                calls.add(call);
+        }
+        return calls;
+    }
+
+    /**
+     * @return the value each save makes, the same String for each size
+     */
+    private static String[] values(List<TraceCall> calls)
+    {
+        String[] values = new String[calls.size()];
+        Map<Integer, String> bySize = new HashMap<Integer, String>();
+        for (int i = 0; i < values.length; i++)
+        {
+            TraceCall call = calls.get(i);
+            if (call.op == TraceCall.DELETE)
+                continue;
+            int size = call.size < 0 ? DEFAULT_SIZE : call.size;
+            String value = bySize.get(size);
+            if (value == null)
+            {
+                char[] chars = new char[Math.max(1, size - STRING_OVERHEAD)];
+                Arrays.fill(chars, 'x');
+                value = new String(chars);
+                bySize.put(size, value);
+            }
+            values[i] = value;
+        }
+        return values;
+    }
+
+    /**
+     * Save the keys loaded before the trace saves or deletes them, with the
+     * value of the size loaded
+     */
+    private void prefill(List<TraceCall> calls, String[] values)
+    {
+        Set<Long> seen = new HashSet<Long>();
+        for (int i = 0; i < calls.size(); i++)
+        {
+            TraceCall call = calls.get(i);
+            if (seen.add(call.keyHash) && call.op == TraceCall.LOAD && call.size != 0)
+                store.save(call.replayKey(), values[i]);
+        }
+    }
+
+    private void call(TraceCall call, String value)
+    {
+        if (call.op == TraceCall.SAVE)
+            store.save(call.replayKey(), value);
+        else if (call.op == TraceCall.LOAD)
+            store.load(call.replayKey());
+        else
+            store.delete(call.replayKey());
+    }
+
+    private static LatencyHistogram histogram(Result result, char op)
+    {
+        if (op == TraceCall.SAVE)
+            return result.saves;
+        return op == TraceCall.LOAD ? result.loads : result.deletes;
+    }
+
+    /**
+     * Replay a trace against a <code>FileValueStore</code>
+     *
+     * @param args the trace, the path of the store, and optionally the
+     *             speed and the threads
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 2)
+        {
+            System.err.println("Usage: TraceReplayer trace pathname [speed] [threads]");
+            System.exit(2);
+        }
+        double speed = args.length > 2 ? Double.parseDouble(args[2]) : 1;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+        FileValueStore files = new FileValueStore(args[1]);
+        Reader trace = new FileReader(args[0]);
+        try
+        {
+            Result result = new TraceReplayer(new QuickDataStore(files)).replay(trace, speed, threads);
+            System.out.print(result);
+        } finally
+        {
+            trace.close();
+            files.close();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+/**
+ * <p>Buffers saves so they are committed together.</p>
+ * <p>Nothing is written until the transaction's work returns, then every
+ * saved key is written in one commit. Loads see the transaction's own
+ * saves first and fall back to the store.</p>
+ */
+public class Transaction
+{
+    private final QuickDataStore store;
+    private final WriteBatch batch = new WriteBatch();
+
+    Transaction(QuickDataStore store)
+    {
+        this.store = store;
+    }
+
+    /**
+     * Save an object as part of the transaction.
+     * The same values as <code>QuickDataStore.save</code> are supported.
+     *
+     * @param key   Key to save the object
+     * @param value The value to be saved, will overwrite existing if present
+     */
+    public void save(String key, Object value)
+    {
+        batch.put(key, store.toJson(key, value));
+    }
+
+    /**
+     * Remove a key as part of the transaction
+     *
+     * @param key the key to remove
+     */
+    public void delete(String key)
+    {
+        QuickDataStore.checkKey(key);
+        batch.remove(key);
+    }
+
+    /**
+     * Load an object, including objects saved earlier in this transaction
+     *
+     * @param key key the object was saved under
+     * @return The object stored or null
+     */
+    public Object load(String key)
+    {
+        if (!batch.contains(key))
+            return store.load(key);
+        String jsonString = batch.get(key);
+        if (jsonString == null)
+            return null;
+        return store.fromJson(key, jsonString);
+    }
+
+    WriteBatch getBatch()
+    {
+        return batch;
+    }
+}
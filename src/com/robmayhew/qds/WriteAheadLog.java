@@ -0,0 +1,458 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * <p>An append only log of committed batches.</p>
+ * <p>The log starts with a header holding an epoch, a new epoch is started
+ * each time the log is emptied so a reader can tell whether the records it
+ * has already read are still there. Each record is a length, a CRC32 and
+ * the encoded batch. A record that is cut short or fails its CRC ends the
+ * log, it was never acknowledged as committed.</p>
+ * <p>When records are synced to disk is decided by the {@link Durability}
+ * the log was opened with. A periodic sync that fails is logged, told to
+ * event listeners and thrown by the next {@link #awaitDurable} or
+ * {@link #close()}, so the failure is not lost with the thread.</p>
+ */
+final class WriteAheadLog
+{
+    static final int HEADER_SIZE = 16;
+    private static final Logger LOG = Logger.getLogger(WriteAheadLog.class.getName());
+    private static final int MAGIC = 0x51445357;
+    private static final int VERSION = 1;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte REMOVE_RANGE = 3;
+
+    private final File file;
+    private final Durability durability;
+    private final Object channelLock = new Object();
+    private RandomAccessFile raf;
+    private FileChannel channel;
+
+    private final Object syncMonitor = new Object();
+    private long appended;
+    private long synced;
+    private boolean syncing;
+    private Thread syncThread;
+    private volatile IOException syncFailure;
+    private volatile boolean closed;
+
+    WriteAheadLog(File file, Durability durability, final long syncIntervalMillis)
+    {
+        this.file = file;
+        this.durability = durability;
+        if (durability == Durability.PERIODIC)
+        {
+            syncThread = new Thread("QDS log sync " + file.getName())
+            {
+                public void run()
+                {
+                    while (!closed)
+                    {
+                        try
+                        {
+                            Thread.sleep(syncIntervalMillis);
+                        } catch (InterruptedException e)
+                        {
+                            return;
+                        }
+                        long start = System.nanoTime();
+                        try
+                        {
+                            sync();
+                        } catch (IOException e)
+                        {
+                            if (!closed)
+                                syncFailed(e, start);
+                        }
+                    }
+                }
+            };
+            syncThread.setDaemon(true);
+            syncThread.start();
+        }
+    }
+
+    /**
+     * Keep a failed background sync to throw to the next caller, and tell
+     * the log and the event listeners now
+     */
+    void syncFailed(IOException e, long start)
+    {
+        syncFailure = e;
+        LOG.log(Level.WARNING, "Unable to sync " + file.getPath()
+                + ", saves since the last sync may not be on disk", e);
+        StoreEvent.fireFailure(StoreEvent.Type.LOG_SYNC_FAILED, file.getPath(), e, start);
+    }
+
+    /**
+     * Throw a background sync failure once
+     */
+    private void throwSyncFailure() throws IOException
+    {
+        IOException failure = syncFailure;
+        if (failure == null)
+            return;
+        syncFailure = null;
+        throw new IOException("Background sync of " + file.getPath() + " failed", failure);
+    }
+
+    /**
+     * @return the epoch of the log, or -1 if there is no valid log
+     */
+    long epoch() throws IOException
+    {
+        if (!file.exists())
+            return -1;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        FileChannel c = channel();
+        while (header.hasRemaining())
+        {
+            if (c.read(header, header.position()) < 0)
+                return -1;
+        }
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != VERSION)
+            return -1;
+        return header.getLong();
+    }
+
+    /**
+     * Empty the log and start a new epoch. Everything in the old log must
+     * already be safely on disk elsewhere.
+     */
+    void reset(long epoch) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(epoch);
+        header.flip();
+        FileChannel c = channel();
+        c.truncate(0);
+        while (header.hasRemaining())
+        {
+            c.write(header, header.position());
+        }
+        c.force(false);
+        synchronized (syncMonitor)
+        {
+            synced = appended;
+        }
+    }
+
+    long size() throws IOException
+    {
+        return channel().size();
+    }
+
+    /**
+     * Cut off a partly written record at the end of the log
+     */
+    void truncate(long size) throws IOException
+    {
+        channel().truncate(size);
+    }
+
+    /**
+     * Append a batch to the end of the log. The caller must hold the
+     * exclusive store lock.
+     *
+     * @return the sequence number to pass to {@link #awaitDurable}
+     */
+    long append(WriteBatch batch) throws IOException
+    {
+        byte[] payload = encode(batch);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(8 + payload.length);
+        record.putInt(payload.length);
+        record.putInt((int) crc.getValue());
+        record.put(payload);
+        record.flip();
+        FileChannel c = channel();
+        long position = c.size();
+        while (record.hasRemaining())
+        {
+            position += c.write(record, position);
+        }
+        long sequence;
+        synchronized (syncMonitor)
+        {
+            sequence = ++appended;
+        }
+        if (durability == Durability.ALWAYS)
+            sync();
+        return sequence;
+    }
+
+    /**
+     * <p>Wait until an appended batch is on disk.</p>
+     * <p>Only the {@link Durability#GROUP} mode waits here. The first
+     * writer to arrive syncs everything appended so far, writers that
+     * arrive while a sync is running wait for it and then share the next
+     * one.</p>
+     *
+     * @throws IOException if a background sync failed since the last call
+     */
+    void awaitDurable(long sequence) throws IOException
+    {
+        throwSyncFailure();
+        if (durability != Durability.GROUP)
+            return;
+        while (true)
+        {
+            long target;
+            synchronized (syncMonitor)
+            {
+                while (syncing && synced < sequence)
+                {
+                    try
+                    {
+                        syncMonitor.wait();
+                    } catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for sync");
+                    }
+                }
+                if (synced >= sequence)
+                    return;
+                syncing = true;
+                target = appended;
+            }
+            boolean done = false;
+            try
+            {
+                channel().force(false);
+                done = true;
+            } finally
+            {
+                synchronized (syncMonitor)
+                {
+                    syncing = false;
+                    if (done && target > synced)
+                        synced = target;
+                    syncMonitor.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return how many appended records are not yet synced to disk
+     */
+    long unsynced()
+    {
+        synchronized (syncMonitor)
+        {
+            return appended - synced;
+        }
+    }
+
+    /**
+     * Sync everything appended so far
+     */
+    void sync() throws IOException
+    {
+        long target;
+        synchronized (syncMonitor)
+        {
+            if (synced == appended)
+                return;
+            target = appended;
+        }
+        channel().force(false);
+        synchronized (syncMonitor)
+        {
+            if (target > synced)
+                synced = target;
+        }
+    }
+
+    /**
+     * Read the batches from a position to the end of the log
+     *
+     * @param position where to start reading, at or after the header
+     * @param batches  the batches read are added to this list
+     * @return the position just after the last complete record
+     */
+    long replay(long position, List<WriteBatch> batches) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try
+        {
+            long skip = position;
+            while (skip > 0)
+            {
+                long skipped = in.skip(skip);
+                if (skipped <= 0)
+                    return position;
+                skip -= skipped;
+            }
+            CRC32 crc = new CRC32();
+            while (true)
+            {
+                int length;
+                int checksum;
+                byte[] payload;
+                try
+                {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length < 0)
+                        return position;
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException e)
+                {
+                    return position;
+                }
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum)
+                    return position;
+                batches.add(decode(payload));
+                position += 8 + length;
+            }
+        } finally
+        {
+            in.close();
+        }
+    }
+
+    void close() throws IOException
+    {
+        closed = true;
+        if (syncThread != null)
+            syncThread.interrupt();
+        synchronized (channelLock)
+        {
+            if (channel != null && channel.isOpen())
+            {
+                if (durability != Durability.NONE)
+                    channel.force(false);
+                raf.close();
+            }
+        }
+        throwSyncFailure();
+    }
+
+    private static byte[] encode(WriteBatch batch) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(batch.size());
+        for (WriteBatch.Range range : batch.ranges())
+        {
+            out.writeByte(REMOVE_RANGE);
+            writeKey(out, range.fromKey);
+            writeKey(out, range.toKey);
+        }
+        for (Map.Entry<String, String> e : batch.values().entrySet())
+        {
+            if (e.getValue() == null)
+            {
+                out.writeByte(REMOVE);
+                out.writeUTF(e.getKey());
+                continue;
+            }
+            out.writeByte(PUT);
+            out.writeUTF(e.getKey());
+            byte[] value = e.getValue().getBytes("UTF-8");
+            out.writeInt(value.length);
+            out.write(value);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static WriteBatch decode(byte[] payload) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        WriteBatch batch = new WriteBatch();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++)
+        {
+            byte op = in.readByte();
+            if (op == REMOVE)
+            {
+                batch.remove(in.readUTF());
+                continue;
+            }
+            if (op == REMOVE_RANGE)
+            {
+                batch.removeRange(readKey(in), readKey(in));
+                continue;
+            }
+            if (op != PUT)
+                throw new IOException("Unknown log operation " + op);
+            String key = in.readUTF();
+            byte[] value = new byte[in.readInt()];
+            in.readFully(value);
+            batch.put(key, new String(value, "UTF-8"));
+        }
+        return batch;
+    }
+
+    /**
+     * Write a key that may be null, for the open end of a range
+     */
+    private static void writeKey(DataOutputStream out, String key) throws IOException
+    {
+        out.writeBoolean(key != null);
+        if (key != null)
+            out.writeUTF(key);
+    }
+
+    private static String readKey(DataInputStream in) throws IOException
+    {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * The channel is closed if a thread using it is interrupted, in which
+     * case it is opened again.
+     */
+    private FileChannel channel() throws IOException
+    {
+        synchronized (channelLock)
+        {
+            if (closed)
+                throw new IOException("Log " + file.getPath() + " is closed");
+            if (channel == null || !channel.isOpen())
+            {
+                if (raf != null)
+                    raf.close();
+                raf = new RandomAccessFile(file, "rw");
+                channel = raf.getChannel();
+            }
+            return channel;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A group of values a <code>ValueStore</code> writes in one commit.
+ * Writing a key twice keeps only the last value or removal. Ranges of keys
+ * removed are applied before the values.
+ */
+public class WriteBatch
+{
+    private final Map<String, String> values = new LinkedHashMap<String, String>();
+    private final List<Range> ranges = new ArrayList<Range>();
+
+    /**
+     * Add a value to the batch
+     *
+     * @param key   key to write
+     * @param value value to write, replaces any earlier value for the key
+     */
+    public void put(String key, String value)
+    {
+        values.put(key, value);
+    }
+
+    /**
+     * Add the removal of a key to the batch
+     *
+     * @param key key to remove, replaces any earlier value for the key
+     */
+    public void remove(String key)
+    {
+        values.put(key, null);
+    }
+
+    /**
+     * Add the removal of every key in a range to the batch, as one record
+     * however many keys there are. Values already added to the batch in the
+     * range are dropped, values added after it are written.
+     *
+     * @param fromKey first key to remove, or null to start at the first key
+     * @param toKey   key to stop before, or null to continue to the last key
+     */
+    public void removeRange(String fromKey, String toKey)
+    {
+        Range range = new Range(fromKey, toKey);
+        Iterator<String> it = values.keySet().iterator();
+        while (it.hasNext())
+        {
+            if (range.contains(it.next()))
+                it.remove();
+        }
+        ranges.add(range);
+    }
+
+    /**
+     * Get a value written to this batch
+     *
+     * @param key the key
+     * @return the value or null if the key is not in the batch or is removed
+     */
+    public String get(String key)
+    {
+        return values.get(key);
+    }
+
+    /**
+     * @return true if the batch writes or removes the key
+     */
+    public boolean contains(String key)
+    {
+        return values.containsKey(key);
+    }
+
+    /**
+     * @return the number of values and ranges in the batch
+     */
+    public int size()
+    {
+        return values.size() + ranges.size();
+    }
+
+    public boolean isEmpty()
+    {
+        return values.isEmpty() && ranges.isEmpty();
+    }
+
+    /**
+     * @return about how many bytes the batch writes, counting characters
+     */
+    long bytes()
+    {
+        long bytes = 0;
+        for (Map.Entry<String, String> e : values.entrySet())
+        {
+            bytes += e.getKey().length() + 2;
+            if (e.getValue() != null)
+                bytes += e.getValue().length();
+        }
+        for (Range range : ranges)
+        {
+            bytes += 4;
+            if (range.fromKey != null)
+                bytes += range.fromKey.length();
+            if (range.toKey != null)
+                bytes += range.toKey.length();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the ranges of keys removed, in the order they were added
+     */
+    public List<Range> ranges()
+    {
+        return Collections.unmodifiableList(ranges);
+    }
+
+    /**
+     * @return the values in the order they were first added, a removed key
+     *         has a null value
+     */
+    public Map<String, String> values()
+    {
+        return Collections.unmodifiableMap(values);
+    }
+
+    /**
+     * A range of keys removed by a batch
+     */
+    public static final class Range
+    {
+        /**
+         * First key removed, or null to start at the first key
+         */
+        public final String fromKey;
+
+        /**
+         * Key to stop before, or null to continue to the last key
+         */
+        public final String toKey;
+
+        Range(String fromKey, String toKey)
+        {
+            this.fromKey = fromKey;
+            this.toKey = toKey;
+        }
+
+        public boolean contains(String key)
+        {
+            return (fromKey == null || key.compareTo(fromKey) >= 0) &&
+                    (toKey == null || key.compareTo(toKey) < 0);
+        }
+
+        /**
+         * Remove the keys in the range from a sorted map
+         */
+        void removeFrom(TreeMap<String, ?> map)
+        {
+            if (fromKey != null && toKey != null && fromKey.compareTo(toKey) >= 0)
+                return;
+            if (fromKey == null && toKey == null)
+                map.clear();
+            else if (fromKey == null)
+                map.headMap(toKey).clear();
+            else if (toKey == null)
+                map.tailMap(fromKey).clear();
+            else
+                map.subMap(fromKey, toKey).clear();
+        }
+    }
+}
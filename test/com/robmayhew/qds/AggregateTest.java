@@ -0,0 +1,88 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+public class AggregateTest extends StoreTestCase
+{
+    private QuickDataStore store;
+
+    public AggregateTest()
+    {
+        super("aggregateTest");
+    }
+
+    public void setUp()
+    {
+        deleteFiles();
+        store = new QuickDataStore(open());
+        List<Foo> people = new ArrayList<Foo>();
+        people.add(new Foo(25, "Ann {\"Value\":100}", true, 1.5));
+        people.add(new Foo(31, "Bob", false, 2.0));
+        people.add(new Foo(40, "Cy", true, 2.5));
+        people.add(new Foo(52, null, true, -1));
+        store.save("people", people);
+    }
+
+    public void testAggregates()
+    {
+        assertEquals(5.0, store.aggregate("people", "Value", Aggregate.SUM), 0);
+        assertEquals(1.25, store.aggregate("people", "Value", Aggregate.AVG), 0);
+        assertEquals(-1.0, store.aggregate("people", "Value", Aggregate.MIN), 0);
+        assertEquals(2.5, store.aggregate("people", "Value", Aggregate.MAX), 0);
+        assertEquals(4.0, store.aggregate("people", "Value", Aggregate.COUNT), 0);
+        assertEquals(148.0, store.aggregate("people", "Age", Aggregate.SUM), 0);
+    }
+
+    public void testFieldsThatAreNotNumbers()
+    {
+        assertEquals(0.0, store.aggregate("people", "Name", Aggregate.COUNT), 0);
+        assertEquals(0.0, store.aggregate("people", "Active", Aggregate.SUM), 0);
+        assertTrue(Double.isNaN(store.aggregate("people", "Missing", Aggregate.MIN)));
+        assertTrue(Double.isNaN(store.aggregate("nothing", "Value", Aggregate.AVG)));
+    }
+
+    public void testNumbersAndSingleObjects()
+    {
+        store.save("numbers", Arrays.asList(3, -7L, 2.5e3, 1));
+        assertEquals(2497.0, store.aggregate("numbers", null, Aggregate.SUM), 0);
+        assertEquals(-7.0, store.aggregate("numbers", null, Aggregate.MIN), 0);
+        store.save("single", new Foo(25, "Ann", true, 1.5));
+        assertEquals(25.0, store.aggregate("single", "Age", Aggregate.MAX), 0);
+        store.save("one", 42);
+        assertEquals(42.0, store.aggregate("one", null, Aggregate.SUM), 0);
+    }
+
+    public void testNothingIsCreated()
+    {
+        List<QueryTest.Counted> list = new ArrayList<QueryTest.Counted>();
+        for (int i = 0; i < 100; i++)
+        {
+            QueryTest.Counted c = new QueryTest.Counted();
+            c.setNumber(i);
+            list.add(c);
+        }
+        store.save("counted", list);
+        QueryTest.Counted.created = 0;
+        assertEquals(4950.0, store.aggregate("counted", "Number", Aggregate.SUM), 0);
+        assertEquals(0, QueryTest.Counted.created);
+    }
+}
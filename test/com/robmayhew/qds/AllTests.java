@@ -29,6 +29,27 @@ public class AllTests extends TestCase{
         suite.addTestSuite(FooObjectTest.class);
         suite.addTestSuite(SaveListTest.class);
         suite.addTestSuite(QDSTest.class);
+        suite.addTestSuite(FileValueStoreTest.class);
+        suite.addTestSuite(PreferencesValueStoreTest.class);
+        suite.addTestSuite(KeyIndexTest.class);
+        suite.addTestSuite(TransactionTest.class);
+        suite.addTestSuite(ScanTest.class);
+        suite.addTestSuite(IndexTest.class);
+        suite.addTestSuite(QueryTest.class);
+        suite.addTestSuite(BitmapTest.class);
+        suite.addTestSuite(BitmapIndexTest.class);
+        suite.addTestSuite(TextIndexTest.class);
+        suite.addTestSuite(AggregateTest.class);
+        suite.addTestSuite(ViewTest.class);
+        suite.addTestSuite(ParallelTest.class);
+        suite.addTestSuite(ExpiryTest.class);
+        suite.addTestSuite(DeleteTest.class);
+        suite.addTestSuite(CompactionTest.class);
+        suite.addTestSuite(IoSchedulerTest.class);
+        suite.addTestSuite(MetricsTest.class);
+        suite.addTestSuite(MBeanTest.class);
+        suite.addTestSuite(StorageReportTest.class);
+        suite.addTestSuite(RealWorldTests.class);
         return suite;
     }
 }
@@ -0,0 +1,150 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+public class BitmapIndexTest extends StoreTestCase
+{
+    private QuickDataStore store;
+
+    public BitmapIndexTest()
+    {
+        super("bitmapIndexTest");
+    }
+
+    public void setUp()
+    {
+        deleteFiles();
+        store = new QuickDataStore(open());
+        store.save("people", people(0));
+        store.createBitmapIndex(Foo.class, "Active");
+        store.createBitmapIndex(Foo.class, "Age", 10);
+    }
+
+    public void testCountAndCombine()
+    {
+        Bitmap active = store.bitmap("people", Foo.class, "Active", true);
+        assertEquals(500, active.cardinality());
+        Bitmap thirties = store.bitmap("people", Foo.class, "Age", 35);
+        assertEquals(100, thirties.cardinality());
+        Bitmap both = active.and(thirties);
+        assertEquals(50, both.cardinality());
+        for (Object o : store.loadElements("people", both))
+        {
+            Foo foo = (Foo) o;
+            assertTrue(foo.isActive());
+            assertTrue(foo.getAge() >= 30 && foo.getAge() < 40);
+        }
+        assertEquals(50, store.loadElements("people", both).size());
+    }
+
+    public void testSaveRewritesBitmaps()
+    {
+        store.save("people", people(1));
+        assertEquals(500, store.bitmap("people", Foo.class, "Active", false).cardinality());
+        assertTrue(store.bitmap("people", Foo.class, "Active", true).contains(1));
+        store.save("people", "gone");
+        assertTrue(store.bitmap("people", Foo.class, "Active", true).isEmpty());
+    }
+
+    public void testSeparateLists()
+    {
+        List<Foo> few = new ArrayList<Foo>();
+        few.add(new Foo(31, "A", true, 0));
+        store.save("few", few);
+        assertEquals(Bitmap.of(0), store.bitmap("few", Foo.class, "Active", true));
+        assertEquals(500, store.bitmap("people", Foo.class, "Active", true).cardinality());
+    }
+
+    public void testIndexIsKeptAfterReopen()
+    {
+        QuickDataStore reopened = new QuickDataStore(open());
+        assertEquals(500, reopened.bitmap("people", Foo.class, "Active", true).cardinality());
+        reopened.save("people", people(1).subList(0, 10));
+        assertEquals(Bitmap.of(1, 3, 5, 7, 9),
+                reopened.bitmap("people", Foo.class, "Active", true));
+        for (String key : reopened.keys(""))
+        {
+            assertEquals("people", key);
+        }
+    }
+
+    public void testSavesWhileCreatingIndex() throws Exception
+    {
+        final QuickDataStore racing = new QuickDataStore(open(new FileValueStore(filePath + "Race")));
+        final List<Foo> few = people(0).subList(0, 4);
+        final int saves = 2000;
+        for (int i = 0; i < saves / 2; i++)
+        {
+            racing.save("list" + i, few);
+        }
+        Thread saver = new Thread()
+        {
+            public void run()
+            {
+                for (int i = saves / 2; i < saves; i++)
+                {
+                    racing.save("list" + i, few);
+                }
+            }
+        };
+        saver.start();
+        racing.createBitmapIndex(Foo.class, "Active");
+        saver.join();
+        for (int i = 0; i < saves; i++)
+        {
+            assertEquals(Bitmap.of(0, 2), racing.bitmap("list" + i, Foo.class, "Active", true));
+        }
+    }
+
+    public void testPreferencesIndex() throws Exception
+    {
+        String node = "bitmapIndexTest";
+        QuickDataStore prefs = new QuickDataStore(new PreferencesValueStore(node));
+        try
+        {
+            String key = "a-fairly-long-key-for-everyone-saved-in-the-preferences-store";
+            List<Foo> many = new ArrayList<Foo>();
+            for (int i = 0; i < 100000; i++)
+            {
+                many.add(new Foo(i % 7, "P", i % 3 != 0, 0));
+            }
+            prefs.save(key, many);
+            prefs.createBitmapIndex(Foo.class, "Active");
+            Bitmap inactive = prefs.bitmap(key, Foo.class, "Active", false);
+            assertEquals(33334, inactive.cardinality());
+            assertTrue(inactive.contains(99999));
+            assertEquals(66666, prefs.bitmap(key, Foo.class, "Active", true).cardinality());
+        } finally
+        {
+            java.util.prefs.Preferences.userRoot().node(node).removeNode();
+        }
+    }
+
+    private static List<Foo> people(int shift)
+    {
+        List<Foo> people = new ArrayList<Foo>();
+        for (int i = 0; i < 1000; i++)
+        {
+            people.add(new Foo(i % 100, "P" + i, (i + shift) % 2 == 0, i));
+        }
+        return people;
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+
+public class BitmapTest extends TestCase
+{
+    public void testOperationsMatchSets()
+    {
+        Random random = new Random(42);
+        for (int round = 0; round < 20; round++)
+        {
+            // Alternate sparse and dense sets so both kinds of block are used
+            TreeSet<Integer> a = randomSet(random, round % 2 == 0 ? 500 : 20000);
+            TreeSet<Integer> b = randomSet(random, round % 3 == 0 ? 300 : 15000);
+            Bitmap x = toBitmap(a);
+            Bitmap y = toBitmap(b);
+            assertSame(a, x);
+
+            TreeSet<Integer> and = new TreeSet<Integer>(a);
+            and.retainAll(b);
+            assertSame(and, x.and(y));
+
+            TreeSet<Integer> or = new TreeSet<Integer>(a);
+            or.addAll(b);
+            assertSame(or, x.or(y));
+
+            TreeSet<Integer> andNot = new TreeSet<Integer>(a);
+            andNot.removeAll(b);
+            assertSame(andNot, x.andNot(y));
+        }
+    }
+
+    public void testEncodeAndDecode()
+    {
+        Random random = new Random(7);
+        for (int size : new int[]{0, 1, 2, 3, 100, 10000})
+        {
+            Bitmap bitmap = toBitmap(randomSet(random, size));
+            assertEquals(bitmap, Bitmap.decode(bitmap.encode()));
+        }
+    }
+
+    public void testContains()
+    {
+        Bitmap bitmap = Bitmap.of(5, 70000, 3);
+        assertTrue(bitmap.contains(3));
+        assertTrue(bitmap.contains(70000));
+        assertFalse(bitmap.contains(4));
+        assertFalse(bitmap.contains(-1));
+        assertEquals("[3, 5, 70000]", bitmap.toString());
+    }
+
+    private static TreeSet<Integer> randomSet(Random random, int size)
+    {
+        TreeSet<Integer> set = new TreeSet<Integer>();
+        for (int i = 0; i < size; i++)
+        {
+            set.add(random.nextInt(200000));
+        }
+        return set;
+    }
+
+    private static Bitmap toBitmap(TreeSet<Integer> set)
+    {
+        Bitmap.Builder builder = new Bitmap.Builder();
+        for (int v : set)
+        {
+            builder.add(v);
+        }
+        return builder.build();
+    }
+
+    private static void assertSame(TreeSet<Integer> expected, Bitmap actual)
+    {
+        List<Integer> values = new ArrayList<Integer>();
+        for (int v : actual)
+        {
+            values.add(v);
+        }
+        assertEquals(new ArrayList<Integer>(expected), values);
+        assertEquals(expected.size(), actual.cardinality());
+    }
+}
@@ -0,0 +1,338 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+
+public class CompactionTest extends StoreTestCase
+{
+    private FileValueStore store;
+
+    public CompactionTest()
+    {
+        super("compactionTest");
+    }
+
+    public void setUp()
+    {
+        deleteFiles();
+        store = open();
+        store.setCompactionPolicy(null);
+    }
+
+    public void testCompactMergesSegments()
+    {
+        for (int i = 0; i < 20; i++)
+        {
+            store.writeValue("key" + (i % 5), String.valueOf(i));
+            store.writeValue("only" + i, "v" + i);
+            store.checkpoint();
+        }
+        assertEquals(21, store.compactionStats().getSegments());
+        assertTrue(store.compact() > 0);
+        assertTrue(store.compactionStats().getSegments() < 21);
+        assertValues(store);
+        assertValues(open());
+    }
+
+    public void testKeysThatChangeAreWrittenApart() throws IOException
+    {
+        store.setCompactionPolicy(CompactionPolicy.sizeTiered(4));
+        for (int i = 0; i < 3; i++)
+        {
+            store.writeValue("changing", String.valueOf(i));
+            store.writeValue("stable" + i, "s" + i);
+            store.checkpoint();
+        }
+        store.compact();
+        assertEquals(2, store.compactionStats().getSegments());
+        String data = read(new File(filePath));
+        assertTrue(data.contains("stable0=s0"));
+        assertFalse(data.contains("changing"));
+        assertEquals("2", store.loadValue("changing"));
+        assertEquals("2", open().loadValue("changing"));
+    }
+
+    public void testRemovedKeysAreKeptUntilMergedIntoDataFile() throws IOException
+    {
+        store.writeValue("a", "1");
+        store.writeValue("b/1", "2");
+        store.writeValue("c", "3");
+        store.checkpoint();
+        store.writeValue("a", null);
+        store.checkpoint();
+        WriteBatch batch = new WriteBatch();
+        batch.removeRange("b/", "b/~");
+        store.writeValues(batch);
+        store.checkpoint();
+        store.writeValue("c", "4");
+        store.checkpoint();
+        store.setCompactionPolicy(new CompactionPolicy()
+        {
+            int[] select(long[] sizes, long[] liveBytes)
+            {
+                return sizes.length > 2 ? new int[]{1, sizes.length} : null;
+            }
+        });
+        assertTrue(store.compact() > 0);
+        assertEquals(2, store.compactionStats().getSegments());
+        assertFalse(read(new File(filePath)).contains("b/1"));
+        FileValueStore reopened = open();
+        assertNull(reopened.loadValue("a"));
+        assertNull(reopened.loadValue("b/1"));
+        assertEquals("4", reopened.loadValue("c"));
+        store.setCompactionPolicy(CompactionPolicy.maxSegments(2));
+        store.compact();
+        reopened = open();
+        assertNull(reopened.loadValue("a"));
+        assertNull(reopened.loadValue("b/1"));
+        assertEquals("4", reopened.loadValue("c"));
+    }
+
+    public void testOtherStoreSeesMerge()
+    {
+        FileValueStore other = open();
+        for (int i = 0; i < 20; i++)
+        {
+            store.writeValue("key" + (i % 5), String.valueOf(i));
+            store.writeValue("only" + i, "v" + i);
+            store.checkpoint();
+        }
+        assertValues(other);
+        store.compact();
+        assertValues(other);
+        other.writeValue("more", "1");
+        other.checkpoint();
+        assertEquals("1", open().loadValue("more"));
+        assertValues(open());
+    }
+
+    public void testBackgroundCompaction() throws InterruptedException
+    {
+        store.setCompactionPolicy(CompactionPolicy.defaultPolicy());
+        for (int i = 0; i < 40; i++)
+        {
+            store.writeValue("key" + (i % 5), String.valueOf(i));
+            store.writeValue("only" + i, "v" + i);
+            store.checkpoint();
+        }
+        long until = System.currentTimeMillis() + 5000;
+        while (store.compactionStats().getCompactions() == 0 && System.currentTimeMillis() < until)
+        {
+            Thread.sleep(10);
+        }
+        assertTrue(store.compactionStats().getCompactions() > 0);
+        assertTrue(store.compactionStats().getSegments() <= 17);
+        assertEquals("39", store.loadValue("key4"));
+        for (int i = 0; i < 40; i++)
+        {
+            assertEquals("v" + i, store.loadValue("only" + i));
+        }
+    }
+
+    public void testFailedBackgroundMergeIsReported() throws InterruptedException
+    {
+        final List<StoreEvent> failures = Collections.synchronizedList(new ArrayList<StoreEvent>());
+        StoreEventListener listener = new StoreEventListener()
+        {
+            public void event(StoreEvent event)
+            {
+                if (event.getType() == StoreEvent.Type.COMPACTION_FAILED)
+                    failures.add(event);
+            }
+        };
+        final List<LogRecord> logged = Collections.synchronizedList(new ArrayList<LogRecord>());
+        Handler handler = new Handler()
+        {
+            public void publish(LogRecord record)
+            {
+                logged.add(record);
+            }
+
+            public void flush()
+            {
+            }
+
+            public void close()
+            {
+            }
+        };
+        Logger logger = Logger.getLogger(FileValueStore.class.getName());
+        logger.addHandler(handler);
+        logger.setUseParentHandlers(false);
+        StoreEvent.addListener(listener);
+        try
+        {
+            store.setCompactionPolicy(new CompactionPolicy()
+            {
+                int[] select(long[] sizes, long[] liveBytes)
+                {
+                    throw new IllegalStateException("No merge");
+                }
+            });
+            store.writeValue("a", "1");
+            store.checkpoint();
+            long until = System.currentTimeMillis() + 5000;
+            while ((failures.isEmpty() || store.isCompacting()) && System.currentTimeMillis() < until)
+            {
+                Thread.sleep(10);
+            }
+        } finally
+        {
+            StoreEvent.removeListener(listener);
+            logger.removeHandler(handler);
+            logger.setUseParentHandlers(true);
+        }
+        assertEquals(1, failures.size());
+        StoreEvent failed = failures.get(0);
+        assertEquals(filePath, failed.getKey());
+        assertEquals("No merge", failed.getError().getMessage());
+        assertEquals(1, logged.size());
+        assertSame(failed.getError(), logged.get(0).getThrown());
+    }
+
+    public void testCloseCancelsQueuedMerge() throws InterruptedException
+    {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        store.setCompactionPolicy(new CompactionPolicy()
+        {
+            int[] select(long[] sizes, long[] liveBytes)
+            {
+                started.countDown();
+                try
+                {
+                    release.await();
+                } catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                return null;
+            }
+        });
+        try
+        {
+            // Keep the compaction thread busy so the next merge waits
+            store.writeValue("a", "1");
+            store.checkpoint();
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            FileValueStore queued = open(new FileValueStore(filePath + "Queued"));
+            queued.writeValue("b", "2");
+            queued.checkpoint();
+            assertTrue(queued.isCompacting());
+            queued.close();
+            assertFalse(queued.isCompacting());
+        } finally
+        {
+            release.countDown();
+        }
+    }
+
+    public void testStats()
+    {
+        for (int i = 0; i < 10; i++)
+        {
+            store.writeValue("key", "value" + i);
+            store.checkpoint();
+        }
+        CompactionStats stats = store.compactionStats();
+        assertTrue(stats.getDebtBytes() > 0);
+        assertTrue(stats.getWriteAmplification() > 1);
+        store.setCompactionPolicy(CompactionPolicy.maxSegments(2));
+        store.compact();
+        CompactionStats after = store.compactionStats();
+        assertTrue(after.getDebtBytes() < stats.getDebtBytes());
+        assertTrue(after.getCompactedBytes() > 0);
+        assertTrue(after.getWrittenBytes() > stats.getWrittenBytes());
+    }
+
+    public void testPolicies()
+    {
+        long k = 1024;
+        long[] sizes = {1000 * k, 100 * k, 110 * k, 120 * k, 90 * k, 300 * k};
+        assertEquals("[1, 5]", Arrays.toString(
+                CompactionPolicy.sizeTiered(4).select(sizes, sizes)));
+        assertNull(CompactionPolicy.sizeTiered(5).select(sizes, sizes));
+        long[] live = sizes.clone();
+        live[2] = 10 * k;
+        live[4] = 60 * k;
+        assertEquals("[2, 3]", Arrays.toString(
+                CompactionPolicy.deadRatio(0.5).select(sizes, live)));
+        assertNull(CompactionPolicy.deadRatio(0.95).select(sizes, live));
+        assertEquals("[1, 3]", Arrays.toString(
+                CompactionPolicy.leveled(4).select(new long[]{1000, 100, 30}, sizes)));
+        assertNull(CompactionPolicy.leveled(4).select(new long[]{1000, 100, 20}, sizes));
+        assertEquals("[2, 6]", Arrays.toString(
+                CompactionPolicy.maxSegments(4).select(sizes, sizes)));
+        assertEquals("[2, 3]", Arrays.toString(CompactionPolicy.sizeTiered(5)
+                .or(CompactionPolicy.deadRatio(0.5)).select(sizes, live)));
+    }
+
+    public void testTokenBucketLimitsRate()
+    {
+        TokenBucket bucket = new TokenBucket(1000);
+        bucket.acquire(1000);
+        long start = System.nanoTime();
+        bucket.acquire(300);
+        assertTrue(System.nanoTime() - start > 200 * 1000 * 1000);
+        bucket.setRate(0);
+        start = System.nanoTime();
+        bucket.acquire(1000000);
+        assertTrue(System.nanoTime() - start < 100 * 1000 * 1000);
+    }
+
+    private static void assertValues(FileValueStore s)
+    {
+        assertEquals("15", s.loadValue("key0"));
+        assertEquals("19", s.loadValue("key4"));
+        for (int i = 0; i < 20; i++)
+        {
+            assertEquals("v" + i, s.loadValue("only" + i));
+        }
+    }
+
+    private static String read(File f) throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new FileReader(f));
+        try
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                sb.append(line).append('\n');
+            }
+        } finally
+        {
+            reader.close();
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+public class DeleteTest extends StoreTestCase
+{
+    private QuickDataStore store;
+
+    public DeleteTest()
+    {
+        super("deleteTest");
+    }
+
+    public void setUp()
+    {
+        deleteFiles();
+        store = new QuickDataStore(open());
+    }
+
+    public void testDelete()
+    {
+        store.save("a", 1);
+        store.save("b", 2);
+        store.delete("a");
+        store.delete("missing");
+        assertNull(store.load("a"));
+        assertEquals(Arrays.asList("b"), keys(""));
+        assertNull(new QuickDataStore(open()).load("a"));
+    }
+
+    public void testDeletePrefixIsOneSmallRecord()
+    {
+        for (int i = 0; i < 1000; i++)
+        {
+            store.save("user:" + i, "some value " + i);
+        }
+        store.save("users", "kept");
+        long logSize = new File(filePath + ".wal").length();
+        store.deletePrefix("user:");
+        assertTrue(new File(filePath + ".wal").length() - logSize < 100);
+        assertEquals(Arrays.asList("users"), keys(""));
+        store.save("user:1", "again");
+        assertEquals(Arrays.asList("user:1", "users"), keys(""));
+    }
+
+    public void testIndexesFollowDeletes()
+    {
+        store.createIndex(Foo.class, "Age");
+        store.createView("ages", "", "Age");
+        store.save("foo1", new Foo(25, "Ann", true, 1.5));
+        store.save("foo2", new Foo(25, "Bob", true, 1.5));
+        store.save("bar", new Foo(25, "Cy", true, 1.5));
+        store.delete("bar");
+        assertEquals(Arrays.asList("foo1", "foo2"), store.findBy(Foo.class, "Age", 25));
+        store.deletePrefix("");
+        assertTrue(keys("").isEmpty());
+        assertTrue(store.findBy(Foo.class, "Age", 25).isEmpty());
+        assertEquals(0.0, store.view("ages", Aggregate.SUM), 0);
+        store.save("foo3", new Foo(30, "Dee", true, 1.5));
+        assertEquals(Arrays.asList("foo3"), store.findBy(Foo.class, "Age", 30));
+        assertEquals(30.0, store.view("ages", Aggregate.SUM), 0);
+    }
+
+    public void testTransactionDelete()
+    {
+        store.save("a", 1);
+        store.transaction(new TransactionWork()
+        {
+            public void run(Transaction tx)
+            {
+                tx.delete("a");
+                assertNull(tx.load("a"));
+                tx.save("b", 2);
+            }
+        });
+        assertEquals(Arrays.asList("b"), keys(""));
+    }
+
+    public void testReservedKeysAreNotDeleted()
+    {
+        try
+        {
+            store.deletePrefix(QuickDataStore.RESERVED_PREFIX);
+            fail("Expected reserved");
+        } catch (QDSException e)
+        {
+            // Expected
+        }
+    }
+
+    private List<String> keys(String prefix)
+    {
+        List<String> keys = new ArrayList<String>();
+        for (String key : store.keys(prefix))
+        {
+            keys.add(key);
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+
+public class ExpiryTest extends StoreTestCase
+{
+    private QuickDataStore store;
+    private FileValueStore valueStore;
+
+    public ExpiryTest()
+    {
+        super("expiryTest");
+    }
+
+    public void setUp()
+    {
+        deleteFiles();
+        valueStore = open();
+        store = new QuickDataStore(valueStore);
+    }
+
+    public void testExpiredValuesReadAsNull() throws Exception
+    {
+        store.save("cached", "remote result", 50);
+        store.save("kept", "forever");
+        assertEquals("remote result", store.load("cached"));
+        Thread.sleep(100);
+        assertNull(store.load("cached"));
+        assertEquals("forever", store.load("kept"));
+    }
+
+    public void testSweepRemovesExpiredValues() throws Exception
+    {
+        store.createIndex(Foo.class, "Age");
+        store.save("foo", new Foo(25, "Ann", true, 1.5), 50);
+        store.save("list", Arrays.asList(1, 2, 3), 50);
+        store.save("later", "value", 60000);
+        assertEquals(Arrays.asList("foo"), store.findBy(Foo.class, "Age", 25));
+        Thread.sleep(100);
+        store.sweepExpired();
+        assertEquals(Arrays.asList("later"), keys());
+        assertTrue(store.findBy(Foo.class, "Age", 25).isEmpty());
+        assertEquals(1, count(valueStore, Expiry.PREFIX));
+    }
+
+    public void testSavingAgainKeepsTheNewValue() throws Exception
+    {
+        store.save("a", "old", 50);
+        store.save("a", "new");
+        store.save("b", "old", 50);
+        store.save("b", "new", 60000);
+        Thread.sleep(100);
+        assertEquals(0, store.sweepExpired());
+        assertEquals("new", store.load("a"));
+        assertEquals("new", store.load("b"));
+    }
+
+    public void testSweptInTheBackground() throws Exception
+    {
+        store.save("a", 1, 20);
+        for (int i = 0; i < 200 && !keys().isEmpty(); i++)
+        {
+            Thread.sleep(10);
+        }
+        assertTrue(keys().isEmpty());
+        assertEquals(0, count(valueStore, Expiry.PREFIX));
+    }
+
+    public void testFailedSweepIsReported() throws Exception
+    {
+        final boolean[] broken = new boolean[1];
+        QuickDataStore failing = new QuickDataStore(new OrderedValueStore()
+        {
+            public void writeValue(String key, String value) throws QDSException
+            {
+                valueStore.writeValue(key, value);
+            }
+
+            public void writeValues(WriteBatch batch) throws QDSException
+            {
+                if (broken[0])
+                    throw new QDSException("Disk full");
+                valueStore.writeValues(batch);
+            }
+
+            public String loadValue(String key)
+            {
+                return valueStore.loadValue(key);
+            }
+
+            public Iterator<Map.Entry<String, String>> scan(String fromKey, String toKey)
+            {
+                return valueStore.scan(fromKey, toKey);
+            }
+        });
+        final List<StoreEvent> failures = Collections.synchronizedList(new ArrayList<StoreEvent>());
+        StoreEventListener listener = new StoreEventListener()
+        {
+            public void event(StoreEvent event)
+            {
+                if (event.getType() == StoreEvent.Type.SWEEP_FAILED)
+                    failures.add(event);
+            }
+        };
+        final List<LogRecord> logged = Collections.synchronizedList(new ArrayList<LogRecord>());
+        Handler handler = new Handler()
+        {
+            public void publish(LogRecord record)
+            {
+                logged.add(record);
+            }
+
+            public void flush()
+            {
+            }
+
+            public void close()
+            {
+            }
+        };
+        Logger logger = Logger.getLogger(QuickDataStore.class.getName());
+        logger.addHandler(handler);
+        logger.setUseParentHandlers(false);
+        StoreEvent.addListener(listener);
+        try
+        {
+            failing.save("a", 1, 20);
+            broken[0] = true;
+            for (int i = 0; i < 200 && failures.isEmpty(); i++)
+            {
+                Thread.sleep(10);
+            }
+        } finally
+        {
+            StoreEvent.removeListener(listener);
+            logger.removeHandler(handler);
+            logger.setUseParentHandlers(true);
+        }
+        assertEquals(1, failures.size());
+        assertEquals("Disk full", failures.get(0).getError().getMessage());
+        assertEquals(1, logged.size());
+        assertSame(failures.get(0).getError(), logged.get(0).getThrown());
+    }
+
+    public void testPreferencesLongKey() throws Exception
+    {
+        String node = "expiryTest";
+        QuickDataStore prefs = new QuickDataStore(new PreferencesValueStore(node));
+        try
+        {
+            String key = "some-fairly-long-cache-key-for-remote-result-number-000042";
+            prefs.save(key, "x", 50);
+            prefs.save("kept", "y", 60000);
+            assertEquals("x", prefs.load(key));
+            Thread.sleep(100);
+            assertNull(prefs.load(key));
+            prefs.sweepExpired();
+            assertFalse(prefs.keys(key).iterator().hasNext());
+            assertEquals("y", prefs.load("kept"));
+        } finally
+        {
+            java.util.prefs.Preferences.userRoot().node(node).removeNode();
+        }
+    }
+
+    public void testExpiresAt()
+    {
+        String json = store.toJson("k", "x,\"expires\":5}");
+        assertEquals(0, Expiry.expiresAt(json));
+        assertEquals(42, Expiry.expiresAt(Expiry.withExpiry(json, 42)));
+        assertEquals(0, Expiry.expiresAt(store.toJson("k", 7)));
+    }
+
+    private List<String> keys()
+    {
+        List<String> keys = new ArrayList<String>();
+        for (String key : store.keys(""))
+        {
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    private static int count(OrderedValueStore valueStore, String prefix)
+    {
+        int count = 0;
+        for (java.util.Iterator<?> it = valueStore.scan(prefix, KeyIndex.endOfPrefix(prefix));
+             it.hasNext(); it.next())
+        {
+            count++;
+        }
+        return count;
+    }
+}
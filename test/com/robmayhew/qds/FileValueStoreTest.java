@@ -0,0 +1,364 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+public class FileValueStoreTest extends StoreTestCase
+{
+    private FileValueStore store;
+
+    public FileValueStoreTest()
+    {
+        super("fileValueStoreTest");
+    }
+
+    public void setUp()
+    {
+        deleteFiles();
+        store = open();
+    }
+
+    public void testWriteAndLoad()
+    {
+        store.writeValue("a", "1");
+        store.writeValue("b", "2");
+        store.writeValue("a", "3");
+        assertEquals("3", store.loadValue("a"));
+        assertEquals("2", store.loadValue("b"));
+        assertNull(store.loadValue("c"));
+    }
+
+    public void testValuesSurviveReopen()
+    {
+        store.writeValue("key", "value=with=equals");
+        FileValueStore reopened = open();
+        assertEquals("value=with=equals", reopened.loadValue("key"));
+    }
+
+    public void testEveryDurabilityMode()
+    {
+        for (Durability durability : Durability.values())
+        {
+            new File(filePath).delete();
+            FileValueStore modeStore = open(new FileValueStore(filePath, durability, 10));
+            modeStore.writeValue("mode", durability.name());
+            modeStore.close();
+            assertEquals(durability.name(),
+                    open().loadValue("mode"));
+        }
+    }
+
+    public void testFailedSyncIsThrownOnce() throws Exception
+    {
+        final List<StoreEvent> failures = Collections.synchronizedList(new ArrayList<StoreEvent>());
+        StoreEventListener listener = new StoreEventListener()
+        {
+            public void event(StoreEvent event)
+            {
+                if (event.getType() == StoreEvent.Type.LOG_SYNC_FAILED)
+                    failures.add(event);
+            }
+        };
+        WriteAheadLog log = new WriteAheadLog(new File(filePath + "Sync.wal"),
+                Durability.PERIODIC, 60 * 1000);
+        Logger logger = Logger.getLogger(WriteAheadLog.class.getName());
+        logger.setUseParentHandlers(false);
+        StoreEvent.addListener(listener);
+        try
+        {
+            log.reset(1);
+            WriteBatch batch = new WriteBatch();
+            batch.put("a", "1");
+            long sequence = log.append(batch);
+            IOException failure = new IOException("Disk gone");
+            log.syncFailed(failure, System.nanoTime());
+            try
+            {
+                log.awaitDurable(sequence);
+                fail("The failed sync is thrown");
+            } catch (IOException e)
+            {
+                assertSame(failure, e.getCause());
+            }
+            log.awaitDurable(sequence);
+            log.syncFailed(failure, System.nanoTime());
+            try
+            {
+                log.close();
+                fail("The failed sync is thrown on close");
+            } catch (IOException e)
+            {
+                assertSame(failure, e.getCause());
+            }
+        } finally
+        {
+            StoreEvent.removeListener(listener);
+            logger.setUseParentHandlers(true);
+            log.close();
+        }
+        assertEquals(2, failures.size());
+        assertEquals(filePath + "Sync.wal", failures.get(0).getKey());
+        assertEquals("Disk gone", failures.get(1).getError().getMessage());
+    }
+
+    public void testTornLogRecordIsIgnored() throws Exception
+    {
+        store.writeValue("a", "1");
+        store.writeValue("b", "2");
+        FileOutputStream out = new FileOutputStream(filePath + ".wal", true);
+        out.write(new byte[]{0, 0, 0, 50, 1, 2, 3});
+        out.close();
+        FileValueStore reopened = open();
+        assertEquals("1", reopened.loadValue("a"));
+        assertEquals("2", reopened.loadValue("b"));
+        reopened.writeValue("c", "3");
+        assertEquals("3", open().loadValue("c"));
+    }
+
+    public void testLargeLogIsCheckpointed() throws InterruptedException
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1024 * 1024; i++)
+        {
+            sb.append('x');
+        }
+        String big = sb.toString();
+        for (int i = 0; i < 5; i++)
+        {
+            store.writeValue("big" + i, big);
+        }
+        // The checkpoint is written in the background
+        long until = System.currentTimeMillis() + 5000;
+        while (new File(filePath + ".wal").length() >= 2 * 1024 * 1024
+                && System.currentTimeMillis() < until)
+        {
+            Thread.sleep(10);
+        }
+        assertTrue(new File(filePath + ".1.seg").length() > 4 * 1024 * 1024);
+        assertTrue(new File(filePath + ".wal").length() < 2 * 1024 * 1024);
+        FileValueStore reopened = open();
+        for (int i = 0; i < 5; i++)
+        {
+            assertEquals(big, reopened.loadValue("big" + i));
+        }
+    }
+
+    public void testSavesDuringBackgroundCheckpointsAreKept()
+    {
+        store.setCheckpointInterval(0);
+        for (int i = 0; i < 2000; i++)
+        {
+            store.writeValue("key" + (i % 50), String.valueOf(i));
+            store.writeValue("only" + i, "v" + i);
+            if (i % 7 == 0)
+                store.writeValue("only" + i, null);
+        }
+        store.close();
+        FileValueStore reopened = open();
+        for (int i = 0; i < 50; i++)
+        {
+            assertEquals(String.valueOf(1950 + i), reopened.loadValue("key" + i));
+        }
+        for (int i = 0; i < 2000; i++)
+        {
+            assertEquals(i % 7 == 0 ? null : "v" + i, reopened.loadValue("only" + i));
+        }
+        assertTrue(reopened.compactionStats().getSegments() > 1);
+    }
+
+    public void testReopenAfterCheckpoints()
+    {
+        for (int i = 0; i < 20; i++)
+        {
+            store.writeValue("key" + (i % 7), String.valueOf(i));
+            store.writeValue("only" + i, "v" + i);
+            store.checkpoint();
+        }
+        store.writeValue("key0", "after");
+        FileValueStore reopened = open();
+        assertEquals("after", reopened.loadValue("key0"));
+        assertEquals("19", reopened.loadValue("key5"));
+        for (int i = 0; i < 20; i++)
+        {
+            assertEquals("v" + i, reopened.loadValue("only" + i));
+        }
+    }
+
+    public void testRemovedRangesSurviveReopen()
+    {
+        for (int i = 0; i < 100; i++)
+        {
+            store.writeValue("old" + i, "v" + i);
+        }
+        store.writeValue("other", "kept");
+        store.checkpoint();
+        WriteBatch batch = new WriteBatch();
+        batch.put("old5", "dropped");
+        batch.removeRange("old", "olde");
+        batch.put("old7", "new");
+        store.writeValues(batch);
+        assertRange(store);
+        assertRange(open());
+        store.checkpoint();
+        assertRange(open());
+        for (File f : new File(".").listFiles())
+        {
+            if (f.getName().startsWith(filePath) && f.getName().endsWith(".hint"))
+                f.delete();
+        }
+        assertRange(open());
+    }
+
+    private static void assertRange(FileValueStore s)
+    {
+        assertNull(s.loadValue("old5"));
+        assertNull(s.loadValue("old50"));
+        assertEquals("new", s.loadValue("old7"));
+        assertEquals("kept", s.loadValue("other"));
+        java.util.Iterator<?> it = s.scan("old", "olde");
+        assertTrue(it.hasNext());
+        it.next();
+        assertFalse(it.hasNext());
+    }
+
+    public void testLegacyFileIsRead() throws Exception
+    {
+        FileOutputStream out = new FileOutputStream(filePath);
+        out.write("a={\"x\":1}\r\nb=2\n".getBytes("UTF-8"));
+        out.close();
+        new File(filePath + ".wal").delete();
+        new File(filePath + ".checkpoint").delete();
+        FileValueStore legacy = open();
+        assertEquals("{\"x\":1}", legacy.loadValue("a"));
+        assertEquals("2", legacy.loadValue("b"));
+        legacy.writeValue("c", "3");
+        legacy.checkpoint();
+        assertEquals("2", open().loadValue("b"));
+        assertEquals("3", open().loadValue("c"));
+    }
+
+    public void testDeletingDataFileEmptiesStore()
+    {
+        store.writeValue("a", "1");
+        new File(filePath).delete();
+        assertNull(open().loadValue("a"));
+    }
+
+    public void testSeesWritesFromAnotherStore()
+    {
+        FileValueStore other = open();
+        store.writeValue("key", "1");
+        assertEquals("1", other.loadValue("key"));
+        other.writeValue("key", "22");
+        assertEquals("22", store.loadValue("key"));
+    }
+
+    public void testLockFileClosedWithLastStore()
+    {
+        int open = StoreLock.openCount();
+        FileValueStore other = open(new FileValueStore(filePath + "Other"));
+        FileValueStore another = open(new FileValueStore(filePath + "Other"));
+        other.writeValue("key", "1");
+        assertEquals(open + 1, StoreLock.openCount());
+        other.close();
+        other.close();
+        assertEquals("1", another.loadValue("key"));
+        assertEquals(open + 1, StoreLock.openCount());
+        another.close();
+        assertEquals(open, StoreLock.openCount());
+    }
+
+    public void testReadersNeverSeePartialState() throws Exception
+    {
+        final int writes = 200;
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        store.writeValue("counter", "0");
+        Thread reader = new Thread()
+        {
+            public void run()
+            {
+                int last = 0;
+                while (last < writes && failure.get() == null)
+                {
+                    int current = Integer.parseInt(store.loadValue("counter"));
+                    if (current < last)
+                        failure.set("Went backwards " + last + " -> " + current);
+                    last = current;
+                }
+            }
+        };
+        reader.start();
+        for (int i = 1; i <= writes; i++)
+        {
+            store.writeValue("counter", String.valueOf(i));
+        }
+        reader.join(10000);
+        assertNull(failure.get(), failure.get());
+    }
+
+    public void testProcessesDoNotLoseEachOthersWrites() throws Exception
+    {
+        int writes = 50;
+        Process[] processes = new Process[2];
+        for (int i = 0; i < processes.length; i++)
+        {
+            processes[i] = new ProcessBuilder(
+                    System.getProperty("java.home") + File.separator + "bin"
+                            + File.separator + "java",
+                    "-cp", System.getProperty("java.class.path"),
+                    Writer.class.getName(), filePath, "p" + i,
+                    String.valueOf(writes))
+                    .redirectErrorStream(true).start();
+        }
+        for (Process p : processes)
+        {
+            assertEquals(0, p.waitFor());
+        }
+        for (int i = 0; i < processes.length; i++)
+        {
+            for (int j = 0; j < writes; j++)
+            {
+                assertEquals(String.valueOf(j), store.loadValue("p" + i + "-" + j));
+            }
+        }
+    }
+
+    /**
+     * Writes keys from a separate process
+     */
+    public static class Writer
+    {
+        public static void main(String[] args)
+        {
+            FileValueStore store = new FileValueStore(args[0]);
+            int writes = Integer.parseInt(args[2]);
+            for (int i = 0; i < writes; i++)
+            {
+                store.writeValue(args[1] + "-" + i, String.valueOf(i));
+            }
+        }
+    }
+}
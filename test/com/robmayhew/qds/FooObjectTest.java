@@ -18,27 +18,25 @@ package com.robmayhew.qds;
 
 import junit.framework.TestCase;
 
-import java.io.File;
+import java.util.prefs.Preferences;
 
 
 public class FooObjectTest extends TestCase
 {
         
     private QuickDataStore store;
-    String filePath = "fooTest";
-    public void setUp()
-    {        
-        store = new QuickDataStore(new FileValueStore(filePath));
-        store = new QuickDataStore(new PreferencesValueStore(FooObjectTest.class.getSimpleName()));
-        File testFile = new File(filePath);
-        testFile.delete();
+    String node = FooObjectTest.class.getSimpleName();
+
+    public void setUp() throws Exception
+    {
+        tearDown();
+        store = new QuickDataStore(new PreferencesValueStore(node));
     }
-    
-    public void tearDown()
+
+    public void tearDown() throws Exception
     {
-        File testFile = new File(filePath);
-        testFile.delete();        
-    } 
+        Preferences.userRoot().node(node).removeNode();
+    }
     
     public void testSaveFoo()
     {
@@ -0,0 +1,171 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+public class IndexTest extends StoreTestCase
+{
+    private FileValueStore fileStore;
+    private QuickDataStore store;
+
+    public IndexTest()
+    {
+        super("indexTest");
+    }
+
+    public void setUp()
+    {
+        deleteFiles();
+        fileStore = open();
+        store = new QuickDataStore(fileStore);
+        store.save("ann", new Foo(31, "Ann", true, 1.5));
+        store.save("bob", new Foo(321, "Bob", false, -2.0));
+        store.createIndex(Foo.class, "Age");
+        store.createIndex(Foo.class, "Name");
+        store.save("cy", new Foo(321, "Cy", true, 0));
+        store.save("dee", new Foo(-5, "Ann Lee", false, 10));
+        store.save("note", "not a foo");
+    }
+
+    public void testFindBy()
+    {
+        assertEquals(Arrays.asList("bob", "cy"), store.findBy(Foo.class, "Age", 321));
+        assertEquals(Arrays.asList("ann"), store.findBy(Foo.class, "Name", "Ann"));
+        assertTrue(store.findBy(Foo.class, "Age", 99).isEmpty());
+    }
+
+    public void testFindRange()
+    {
+        assertEquals(Arrays.asList("dee", "ann"),
+                store.findRange(Foo.class, "Age", null, 321));
+        assertEquals(Arrays.asList("ann", "bob", "cy"),
+                store.findRange(Foo.class, "Age", 0, null));
+        assertEquals(Arrays.asList("ann", "dee", "bob"),
+                store.findRange(Foo.class, "Name", "A", "C"));
+    }
+
+    public void testDoubleAndBooleanIndexes()
+    {
+        store.createIndex(Foo.class, "Value");
+        store.createIndex(Foo.class, "Active");
+        assertEquals(Arrays.asList("bob", "cy", "ann"),
+                store.findRange(Foo.class, "Value", -10.0, 5.0));
+        assertEquals(Arrays.asList("ann", "cy"),
+                store.findBy(Foo.class, "Active", true));
+    }
+
+    public void testSaveUpdatesIndex()
+    {
+        store.save("bob", new Foo(40, "Bob", false, -2.0));
+        store.save("cy", "no longer a foo");
+        assertTrue(store.findBy(Foo.class, "Age", 321).isEmpty());
+        assertEquals(Arrays.asList("bob"), store.findBy(Foo.class, "Age", 40));
+    }
+
+    public void testTransactionUpdatesIndex()
+    {
+        store.transaction(new TransactionWork()
+        {
+            public void run(Transaction tx)
+            {
+                tx.save("eve", new Foo(321, "Eve", true, 0));
+                tx.save("bob", new Foo(1, "Bob", false, 0));
+            }
+        });
+        assertEquals(Arrays.asList("cy", "eve"), store.findBy(Foo.class, "Age", 321));
+    }
+
+    public void testIndexIsKeptAfterReopen()
+    {
+        fileStore.checkpoint();
+        store.save("bob", new Foo(7, "Bob", false, -2.0));
+        fileStore.checkpoint();
+        QuickDataStore reopened = new QuickDataStore(open());
+        assertEquals(Arrays.asList("cy"), reopened.findBy(Foo.class, "Age", 321));
+        reopened.save("fay", new Foo(7, "Fay", true, 0));
+        assertEquals(Arrays.asList("bob", "fay"), reopened.findBy(Foo.class, "Age", 7));
+    }
+
+    public void testSavesWhileCreatingIndex() throws Exception
+    {
+        final QuickDataStore racing = new QuickDataStore(open(new FileValueStore(filePath + "Race")));
+        final int saves = 5000;
+        for (int i = 0; i < saves / 2; i++)
+        {
+            racing.save("foo" + i, new Foo(7, "Ann", true, 0));
+        }
+        Thread saver = new Thread()
+        {
+            public void run()
+            {
+                for (int i = saves / 2; i < saves; i++)
+                {
+                    racing.save("foo" + i, new Foo(7, "Ann", true, 0));
+                }
+            }
+        };
+        saver.start();
+        racing.createIndex(Foo.class, "Age");
+        saver.join();
+        assertEquals(saves, racing.findBy(Foo.class, "Age", 7).size());
+    }
+
+    public void testPreferencesIndex() throws Exception
+    {
+        String node = "indexTest";
+        QuickDataStore prefs = new QuickDataStore(new PreferencesValueStore(node));
+        try
+        {
+            String name = "Ann Marie Smith the third of her name";
+            prefs.save("ann", new Foo(31, name, true, 1.5));
+            prefs.createIndex(Foo.class, "Name");
+            prefs.save("bob", new Foo(32, name, true, 1.5));
+            assertEquals(Arrays.asList("ann", "bob"), prefs.findBy(Foo.class, "Name", name));
+            prefs.delete("ann");
+            assertEquals(Arrays.asList("bob"), prefs.findBy(Foo.class, "Name", name));
+        } finally
+        {
+            java.util.prefs.Preferences.userRoot().node(node).removeNode();
+        }
+    }
+
+    public void testIndexKeysAreHidden()
+    {
+        List<String> keys = new ArrayList<String>();
+        for (String key : store.keys(""))
+        {
+            keys.add(key);
+        }
+        assertEquals(Arrays.asList("ann", "bob", "cy", "dee", "note"), keys);
+    }
+
+    public void testUnknownIndex()
+    {
+        try
+        {
+            store.findBy(Foo.class, "Value", 1.0);
+            fail("Expected no index");
+        } catch (QDSException e)
+        {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.io.File;
+
+public class IoSchedulerTest extends StoreTestCase
+{
+    public IoSchedulerTest()
+    {
+        super("ioSchedulerTest");
+    }
+
+    public void tearDown()
+    {
+        IoScheduler.setRate(IoScheduler.Work.MAINTENANCE, IoScheduler.Work.MAINTENANCE.defaultRate);
+        super.tearDown();
+    }
+
+    public void testForegroundNeverWaits()
+    {
+        IoScheduler.setRate(IoScheduler.Work.MAINTENANCE, 1);
+        long start = System.nanoTime();
+        IoScheduler.throttle(1000 * 1000);
+        IoScheduler.pause();
+        assertTrue(IoScheduler.enter(1000 * 1000));
+        IoScheduler.exit();
+        assertTrue(System.nanoTime() - start < 100 * 1000 * 1000);
+    }
+
+    public void testBackgroundWorkIsLimitedToItsRate()
+    {
+        IoScheduler.setRate(IoScheduler.Work.MAINTENANCE, 100 * 1000);
+        IoScheduler.Work previous = IoScheduler.begin(IoScheduler.Work.MAINTENANCE);
+        try
+        {
+            IoScheduler.pause();
+            // The first second's worth is a burst
+            IoScheduler.throttle(100 * 1000);
+            long start = System.nanoTime();
+            IoScheduler.throttle(100 * 1000);
+            assertTrue(System.nanoTime() - start > 500 * 1000 * 1000);
+        } finally
+        {
+            IoScheduler.end(previous);
+        }
+    }
+
+    public void testBackgroundSavesAreChargedAndWaitLater()
+    {
+        FileValueStore store = open();
+        IoScheduler.setRate(IoScheduler.Work.MAINTENANCE, 100 * 1000);
+        IoScheduler.Work previous = IoScheduler.begin(IoScheduler.Work.MAINTENANCE);
+        try
+        {
+            IoScheduler.pause();
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 150 * 1000; i++)
+            {
+                sb.append('x');
+            }
+            long start = System.nanoTime();
+            store.writeValue("big", sb.toString());
+            assertTrue(System.nanoTime() - start < 300 * 1000 * 1000);
+            start = System.nanoTime();
+            IoScheduler.pause();
+            assertTrue(System.nanoTime() - start > 200 * 1000 * 1000);
+        } finally
+        {
+            IoScheduler.end(previous);
+        }
+        assertEquals(150 * 1000, store.loadValue("big").length());
+    }
+
+    public void testBackgroundCheckpointIsMaintenance() throws InterruptedException
+    {
+        FileValueStore store = open();
+        store.setCheckpointInterval(0);
+        IoScheduler.setRate(IoScheduler.Work.MAINTENANCE, 100 * 1000);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 300 * 1000; i++)
+        {
+            sb.append('x');
+        }
+        File wal = new File(filePath + ".wal");
+        long start = System.nanoTime();
+        store.writeValue("big", sb.toString());
+        assertTrue(System.nanoTime() - start < 300 * 1000 * 1000);
+        Thread.sleep(500);
+        assertTrue(wal.length() > 300 * 1000);
+        IoScheduler.setRate(IoScheduler.Work.MAINTENANCE, IoScheduler.Work.MAINTENANCE.defaultRate);
+        long until = System.currentTimeMillis() + 5000;
+        while (wal.length() > 300 * 1000 && System.currentTimeMillis() < until)
+        {
+            Thread.sleep(10);
+        }
+        assertTrue(wal.length() < 1000);
+        assertEquals(300 * 1000, store.loadValue("big").length());
+    }
+
+    public void testBackgroundStepsAsideForForeground() throws InterruptedException
+    {
+        assertTrue(IoScheduler.enter(100));
+        final long[] waited = new long[1];
+        Thread background = new Thread()
+        {
+            public void run()
+            {
+                IoScheduler.begin(IoScheduler.Work.MAINTENANCE);
+                long start = System.nanoTime();
+                IoScheduler.pause();
+                waited[0] = System.nanoTime() - start;
+            }
+        };
+        try
+        {
+            background.start();
+            background.join();
+        } finally
+        {
+            IoScheduler.exit();
+        }
+        assertTrue(waited[0] >= 1000 * 1000);
+        assertTrue(waited[0] < 100 * 1000 * 1000);
+        assertEquals(0, IoScheduler.foreground());
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import junit.framework.TestCase;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+
+public class KeyIndexTest extends TestCase
+{
+    public void testMatchesTreeMap()
+    {
+        Random random = new Random(42);
+        TreeMap<String, Integer> expected = new TreeMap<String, Integer>();
+        KeyIndex<Integer> index = KeyIndex.empty();
+        for (int i = 0; i < 5000; i++)
+        {
+            String key = "k" + random.nextInt(2000);
+            expected.put(key, i);
+            index = index.put(key, i);
+        }
+        assertSameEntries(expected, index);
+    }
+
+    public void testRemoveMatchesTreeMap()
+    {
+        Random random = new Random(7);
+        TreeMap<String, Integer> expected = new TreeMap<String, Integer>();
+        KeyIndex<Integer> index = KeyIndex.empty();
+        for (int i = 0; i < 5000; i++)
+        {
+            String key = "k" + random.nextInt(500);
+            if (random.nextBoolean())
+            {
+                expected.remove(key);
+                index = index.remove(key);
+            } else
+            {
+                expected.put(key, i);
+                index = index.put(key, i);
+            }
+        }
+        assertSameEntries(expected, index);
+        KeyIndex<Integer> before = index;
+        assertSame(before, index.remove("missing"));
+    }
+
+    public void testRemoveRangeMatchesTreeMap()
+    {
+        Random random = new Random(11);
+        TreeMap<String, Integer> expected = new TreeMap<String, Integer>();
+        KeyIndex<Integer> index = KeyIndex.empty();
+        for (int round = 0; round < 200; round++)
+        {
+            for (int i = 0; i < 50; i++)
+            {
+                String key = "k" + random.nextInt(1000);
+                expected.put(key, i);
+                index = index.put(key, i);
+            }
+            String from = random.nextInt(10) == 0 ? null : "k" + random.nextInt(1000);
+            String to = random.nextInt(10) == 0 ? null : "k" + random.nextInt(1000);
+            if (from != null && to != null && from.compareTo(to) > 0)
+                continue;
+            if (from == null && to == null)
+                expected.clear();
+            else if (from == null)
+                expected.headMap(to).clear();
+            else if (to == null)
+                expected.tailMap(from).clear();
+            else
+                expected.subMap(from, to).clear();
+            index = index.removeRange(from, to);
+            assertSameEntries(expected, index);
+        }
+        assertSame(index, index.removeRange("z", null));
+    }
+
+    public void testOldVersionsAreUnchanged()
+    {
+        KeyIndex<String> first = KeyIndex.<String>empty().put("a", "1");
+        KeyIndex<String> second = first.put("a", "2").put("b", "3");
+        assertEquals("1", first.get("a"));
+        assertNull(first.get("b"));
+        assertEquals(1, first.size());
+        assertEquals("2", second.get("a"));
+        assertEquals(2, second.size());
+    }
+
+    public void testRangeIteration()
+    {
+        TreeMap<String, Integer> expected = new TreeMap<String, Integer>();
+        KeyIndex<Integer> index = KeyIndex.empty();
+        for (int i = 0; i < 500; i++)
+        {
+            String key = "k" + (i * 7919 % 1000);
+            expected.put(key, i);
+            index = index.put(key, i);
+        }
+        String[][] ranges = {{"k1", "k2"}, {null, "k5"}, {"k55", null},
+                {"k0", "k0"}, {"a", "b"}, {"k999", "z"}};
+        for (String[] range : ranges)
+        {
+            Map<String, Integer> sub = expected;
+            if (range[0] != null)
+                sub = expected.tailMap(range[0]);
+            if (range[1] != null)
+                sub = expected.headMap(range[1]);
+            if (range[0] != null && range[1] != null)
+                sub = expected.subMap(range[0], range[1]);
+            Iterator<Map.Entry<String, Integer>> it = index.iterator(range[0], range[1]);
+            for (Map.Entry<String, Integer> e : sub.entrySet())
+            {
+                assertEquals(e.getKey(), it.next().getKey());
+            }
+            assertFalse(it.hasNext());
+        }
+    }
+
+    public void testEndOfPrefix()
+    {
+        assertEquals("user:43", KeyIndex.endOfPrefix("user:42"));
+        assertEquals("b", KeyIndex.endOfPrefix("a" + Character.MAX_VALUE));
+        assertNull(KeyIndex.endOfPrefix(""));
+    }
+
+    static <V> void assertSameEntries(TreeMap<String, V> expected,
+                                      KeyIndex<V> index)
+    {
+        assertEquals(expected.size(), index.size());
+        Iterator<Map.Entry<String, V>> it = index.iterator();
+        for (Map.Entry<String, V> e : expected.entrySet())
+        {
+            Map.Entry<String, V> actual = it.next();
+            assertEquals(e.getKey(), actual.getKey());
+            assertEquals(e.getValue(), actual.getValue());
+            assertEquals(e.getValue(), index.get(e.getKey()));
+        }
+        assertFalse(it.hasNext());
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+
+public class MBeanTest extends StoreTestCase
+{
+
+    public MBeanTest()
+    {
+        super("mbeanTest");
+    }
+
+    public void testAttributesAndOperations() throws Exception
+    {
+        FileValueStore valueStore = open();
+        valueStore.setCompactionPolicy(null);
+        QuickDataStore store = new QuickDataStore(valueStore);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = store.registerMBean("test store");
+        try
+        {
+            assertTrue(server.isRegistered(name));
+            assertEquals("com.robmayhew.qds", name.getDomain());
+            for (int i = 0; i < 20; i++)
+            {
+                store.save("key" + i, "value" + i);
+                store.load("key" + i);
+            }
+            assertEquals(20L, server.getAttribute(name, "KeyCount"));
+            assertEquals(20L, server.getAttribute(name, "SaveCount"));
+            assertEquals(20L, server.getAttribute(name, "LoadCount"));
+            assertTrue((Double) server.getAttribute(name, "SaveP99Micros") > 0);
+            assertEquals(filePath, server.getAttribute(name, "FilePath"));
+            assertEquals(Boolean.FALSE, server.getAttribute(name, "Compacting"));
+            assertEquals(0L, server.getAttribute(name, "BackgroundFailures"));
+
+            server.invoke(name, "flush", null, null);
+            int segments = (Integer) server.getAttribute(name, "SegmentCount");
+            assertTrue(segments > 0);
+            store.save("key0", "changed");
+            server.invoke(name, "flush", null, null);
+            assertEquals(segments + 1, server.getAttribute(name, "SegmentCount"));
+            assertTrue((Long) server.getAttribute(name, "CompactionDebtBytes") > 0);
+
+            valueStore.setCompactionPolicy(CompactionPolicy.sizeTiered(2));
+            assertTrue((Integer) server.invoke(name, "compact", null, null) > 0);
+            assertTrue((Long) server.getAttribute(name, "Compactions") > 0);
+            assertEquals(0L, server.getAttribute(name, "CompactionDebtBytes"));
+            assertEquals("changed", store.load("key0"));
+
+            Object p50 = server.invoke(name, "latencyMicros", new Object[]{"ENCODE", 50.0},
+                    new String[]{String.class.getName(), double.class.getName()});
+            assertTrue((Double) p50 > 0);
+        } finally
+        {
+            store.unregisterMBean();
+            valueStore.close();
+        }
+        assertFalse(server.isRegistered(name));
+    }
+
+    public void testRegisteringAgainReplaces() throws Exception
+    {
+        QuickDataStore store = new QuickDataStore(
+                new PreferencesValueStore(MBeanTest.class.getSimpleName()));
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName first = store.registerMBean("first");
+        ObjectName second = store.registerMBean("second");
+        try
+        {
+            assertFalse(server.isRegistered(first));
+            assertTrue(server.isRegistered(second));
+            store.save("key", "value");
+            assertEquals(1L, server.getAttribute(second, "KeyCount"));
+            assertEquals(0, server.getAttribute(second, "SegmentCount"));
+        } finally
+        {
+            store.unregisterMBean();
+        }
+        assertFalse(server.isRegistered(second));
+    }
+}
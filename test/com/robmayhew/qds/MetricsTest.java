@@ -0,0 +1,309 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+
+public class MetricsTest extends StoreTestCase
+{
+
+    public MetricsTest()
+    {
+        super("metricsTest");
+    }
+
+    public void testBucketsCoverTimes()
+    {
+        for (long nanos = 0; nanos < 1000 * 1000; nanos += 7)
+        {
+            int bucket = LatencyHistogram.bucket(nanos);
+            assertTrue(nanos <= LatencyHistogram.highestInBucket(bucket));
+            assertTrue(bucket == 0 || nanos > LatencyHistogram.highestInBucket(bucket - 1));
+        }
+        assertEquals(1023, LatencyHistogram.bucket(Long.MAX_VALUE));
+    }
+
+    public void testPercentiles()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 10000; i++)
+        {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(10000, histogram.getCount());
+        assertEquals(10000 * 1000L, histogram.getMax());
+        assertEquals(5000500.0, histogram.getMean(), 1);
+        assertEquals(5000 * 1000.0, histogram.getPercentile(50), 5000 * 1000 * 0.03);
+        assertEquals(9900 * 1000.0, histogram.getPercentile(99), 9900 * 1000 * 0.03);
+        assertEquals(10000 * 1000L, histogram.getPercentile(100));
+        assertEquals(0, new LatencyHistogram().getPercentile(99));
+    }
+
+    public void testThreadsCountWithoutLosingAny() throws InterruptedException
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++)
+        {
+            threads[t] = new Thread()
+            {
+                public void run()
+                {
+                    for (int i = 0; i < 10000; i++)
+                    {
+                        histogram.record(i);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+        assertEquals(80000, histogram.getCount());
+        assertEquals(8 * 49995000L, histogram.getTotalNanos());
+    }
+
+    public void testStoreOperationsAreTimed()
+    {
+        QuickDataStore store = new QuickDataStore(open());
+        for (int i = 0; i < 10; i++)
+        {
+            store.save("key" + i, "value" + i);
+        }
+        for (int i = 0; i < 5; i++)
+        {
+            store.load("key" + i);
+        }
+        store.load("missing");
+        StoreMetrics metrics = store.metrics();
+        assertEquals(10, metrics.count(StoreMetrics.Op.SAVE));
+        assertEquals(10, metrics.count(StoreMetrics.Op.ENCODE));
+        assertEquals(10, metrics.count(StoreMetrics.Op.WRITE));
+        assertEquals(6, metrics.count(StoreMetrics.Op.LOAD));
+        assertEquals(6, metrics.count(StoreMetrics.Op.READ));
+        assertEquals(5, metrics.count(StoreMetrics.Op.DECODE));
+        assertTrue(metrics.getBytesWritten() > 10 * "key0".length());
+        assertTrue(metrics.getBytesRead() > 5 * "value0".length());
+        assertTrue(metrics.latency(StoreMetrics.Op.SAVE).getPercentile(50) > 0);
+        assertTrue(metrics.toString().contains("LOAD count=6"));
+    }
+
+    public void testIndexUpdatesAreNotCountedAsReads()
+    {
+        QuickDataStore store = new QuickDataStore(open());
+        store.createIndex(Foo.class, "Age");
+        store.save("ann", new Foo(31, "Ann", true, 1.5));
+        long reads = store.metrics().count(StoreMetrics.Op.READ);
+        store.save("ann", new Foo(32, "Ann", true, 1.5));
+        store.delete("ann");
+        assertEquals(reads, store.metrics().count(StoreMetrics.Op.READ));
+        assertEquals(0, store.findBy(Foo.class, "Age", 32).size());
+    }
+
+    public void testEventsAreToldToListeners()
+    {
+        final List<StoreEvent> events = Collections.synchronizedList(new ArrayList<StoreEvent>());
+        StoreEventListener listener = new StoreEventListener()
+        {
+            public void event(StoreEvent event)
+            {
+                events.add(event);
+            }
+        };
+        FileValueStore valueStore = open();
+        valueStore.setCompactionPolicy(null);
+        QuickDataStore store = new QuickDataStore(valueStore);
+        store.save("before", 1);
+        StoreEvent.addListener(listener);
+        try
+        {
+            store.save("key", "value");
+            store.load("key");
+            store.load("missing");
+            valueStore.checkpoint();
+            store.save("key", "changed");
+            valueStore.checkpoint();
+            valueStore.setCompactionPolicy(CompactionPolicy.sizeTiered(2));
+            valueStore.compact();
+        } finally
+        {
+            StoreEvent.removeListener(listener);
+            valueStore.close();
+        }
+        store.load("key");
+
+        List<StoreEvent.Type> types = new ArrayList<StoreEvent.Type>();
+        for (StoreEvent event : events)
+        {
+            types.add(event.getType());
+            assertTrue(event.getDurationNanos() >= 0);
+        }
+        assertEquals(Arrays.asList(StoreEvent.Type.SAVE, StoreEvent.Type.PARSE,
+                StoreEvent.Type.LOAD, StoreEvent.Type.LOAD, StoreEvent.Type.FILE_REWRITE,
+                StoreEvent.Type.SAVE, StoreEvent.Type.FILE_REWRITE), types.subList(0, 7));
+        assertEquals(StoreEvent.Type.COMPACTION, types.get(types.size() - 1));
+        StoreEvent save = events.get(0);
+        assertEquals("key", save.getKey());
+        assertEquals("java.lang.String", save.getValueType());
+        assertTrue(save.getValueBytes() > "value".length());
+        assertEquals("key", events.get(1).getKey());
+        assertNull(events.get(3).getValueType());
+        assertEquals(0, events.get(3).getValueBytes());
+        assertEquals(filePath, events.get(4).getKey());
+        assertTrue(events.get(4).getValueBytes() > 0);
+        assertTrue(events.get(7).getValueBytes() > 0);
+        assertEquals(filePath, events.get(7).getKey());
+    }
+
+    public void testSlowOperationsAreLogged()
+    {
+        final FileValueStore files = open();
+        QuickDataStore store = new QuickDataStore(new ValueStore()
+        {
+            public void writeValue(String key, String value) throws QDSException
+            {
+                if (key.startsWith("slow"))
+                {
+                    try
+                    {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e)
+                    {
+                        throw new QDSException("Interrupted", e);
+                    }
+                }
+                files.writeValue(key, value);
+            }
+
+            public void writeValues(WriteBatch batch) throws QDSException
+            {
+                files.writeValues(batch);
+            }
+
+            public String loadValue(String key)
+            {
+                return files.loadValue(key);
+            }
+
+            public Iterator<Map.Entry<String, String>> scan(String fromKey, String toKey)
+            {
+                return files.scan(fromKey, toKey);
+            }
+        });
+        final List<String> logged = new ArrayList<String>();
+        Handler handler = new Handler()
+        {
+            public void publish(LogRecord record)
+            {
+                logged.add(record.getMessage());
+            }
+
+            public void flush()
+            {
+            }
+
+            public void close()
+            {
+            }
+        };
+        Logger logger = Logger.getLogger(QuickDataStore.class.getName());
+        logger.addHandler(handler);
+        logger.setUseParentHandlers(false);
+        try
+        {
+            store.save("slow", "value");
+            assertTrue(logged.isEmpty());
+            store.setSlowOperationThreshold(10);
+            store.save("fast", "value");
+            store.load("fast");
+            store.save("slow", "value");
+            store.setSlowOperationThreshold(0);
+            store.save("slow", "value");
+        } finally
+        {
+            logger.removeHandler(handler);
+            logger.setUseParentHandlers(true);
+            files.close();
+        }
+        assertEquals(1, logged.size());
+        String message = logged.get(0);
+        assertTrue(message, message.startsWith("Slow SAVE slow "));
+        assertTrue(message, message.contains("validate "));
+        assertTrue(message, message.contains("serialize "));
+        assertTrue(message, message.contains("parse 0ns"));
+    }
+
+    public void testSpansCollectTheThreadsEvents()
+    {
+        FileValueStore files = open();
+        QuickDataStore store = new QuickDataStore(files);
+        store.save("before", 1);
+        Span outer = Span.start("request");
+        Span inner;
+        try
+        {
+            store.save("key", 42);
+            inner = Span.start("lookup");
+            try
+            {
+                assertSame(inner, Span.current());
+                assertEquals(42, store.load("key"));
+            } finally
+            {
+                inner.end();
+            }
+            assertSame(outer, Span.current());
+        } finally
+        {
+            outer.end();
+            files.close();
+        }
+        assertNull(Span.current());
+        store.load("before");
+
+        assertEquals(2, inner.getEvents().size());
+        StoreEvent parse = inner.getEvents().get(0);
+        assertEquals(StoreEvent.Type.PARSE, parse.getType());
+        StoreEvent load = inner.getEvents().get(1);
+        assertEquals(StoreEvent.Type.LOAD, load.getType());
+        assertTrue(load.getNanos(StoreMetrics.Op.READ) > 0);
+        assertEquals(parse.getDurationNanos(), load.getNanos(StoreMetrics.Op.DECODE), 1000000);
+        assertEquals(0, parse.getNanos(StoreMetrics.Op.READ));
+
+        assertEquals(3, outer.getEvents().size());
+        StoreEvent save = outer.getEvents().get(0);
+        assertEquals(StoreEvent.Type.SAVE, save.getType());
+        assertEquals("key", save.getKey());
+        assertTrue(save.getNanos(StoreMetrics.Op.VALIDATE) > 0);
+        assertTrue(save.getNanos(StoreMetrics.Op.ENCODE) >= save.getNanos(StoreMetrics.Op.VALIDATE));
+        assertTrue(save.getNanos(StoreMetrics.Op.WRITE) > 0);
+        assertEquals(save.getDurationNanos() + load.getDurationNanos(), outer.getStoreNanos());
+        assertTrue(outer.getDurationNanos() >= outer.getStoreNanos());
+        assertTrue(outer.toString().startsWith("request "));
+    }
+}
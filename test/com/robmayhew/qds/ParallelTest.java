@@ -0,0 +1,165 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+
+public class ParallelTest extends StoreTestCase
+{
+    private QuickDataStore store;
+
+    public ParallelTest()
+    {
+        super("parallelTest");
+    }
+
+    public void setUp()
+    {
+        deleteFiles();
+        store = new QuickDataStore(open());
+        store.createIndex(Foo.class, "Age");
+        for (int i = 0; i < 1000; i++)
+        {
+            store.save(key(i), i);
+        }
+        store.save("foo", new Foo(7, "Ann", true, 1.5));
+    }
+
+    public void tearDown()
+    {
+        store.close();
+        super.tearDown();
+    }
+
+    public void testForEachSeesEveryValue()
+    {
+        final Set<String> seen = Collections.synchronizedSet(new HashSet<String>());
+        final long[] total = new long[1];
+        store.forEachParallel(new EntryWork()
+        {
+            public void run(String key, Object value)
+            {
+                seen.add(key);
+                if (value instanceof Integer)
+                {
+                    synchronized (total)
+                    {
+                        total[0] += (Integer) value;
+                    }
+                }
+            }
+        });
+        assertEquals(1001, seen.size());
+        assertTrue(seen.contains("foo"));
+        assertEquals(499500, total[0]);
+    }
+
+    public void testReduceCombinesInKeyOrder()
+    {
+        String keys = store.reduce(new Reducer<String>()
+        {
+            public String start()
+            {
+                return "";
+            }
+
+            public String add(String result, String key, Object value)
+            {
+                return result + key + ",";
+            }
+
+            public String combine(String first, String second)
+            {
+                return first + second;
+            }
+        });
+        StringBuilder expected = new StringBuilder("foo,");
+        for (int i = 0; i < 1000; i++)
+        {
+            expected.append(key(i)).append(',');
+        }
+        assertEquals(expected.toString(), keys);
+    }
+
+    public void testFailuresAreThrown()
+    {
+        try
+        {
+            store.forEachParallel(new EntryWork()
+            {
+                public void run(String key, Object value) throws Exception
+                {
+                    if (key.equals(key(500)))
+                        throw new Exception("Bad " + key);
+                }
+            });
+            fail("Expected the failure");
+        } catch (QDSException e)
+        {
+            assertEquals("Bad " + key(500), e.getCause().getMessage());
+        }
+    }
+
+    public void testWorkersAreKeptUntilClose() throws Exception
+    {
+        EntryWork nothing = new EntryWork()
+        {
+            public void run(String key, Object value)
+            {
+            }
+        };
+        for (int i = 0; i < 10; i++)
+        {
+            store.forEachParallel(nothing);
+        }
+        assertTrue(workerThreads() > 0);
+        assertTrue(workerThreads() <= Runtime.getRuntime().availableProcessors());
+        store.close();
+        for (int i = 0; i < 100 && workerThreads() > 0; i++)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals(0, workerThreads());
+        try
+        {
+            store.forEachParallel(nothing);
+            fail("Expected the store to be closed");
+        } catch (QDSException e)
+        {
+            // expected
+        }
+    }
+
+    private static int workerThreads()
+    {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+        {
+            if (thread.getName().equals("QDS worker") && thread.isAlive())
+                count++;
+        }
+        return count;
+    }
+
+    private static String key(int i)
+    {
+        return "n" + (10000 + i);
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.prefs.Preferences;
+
+
+public class PreferencesValueStoreTest extends TestCase
+{
+    private PreferencesValueStore store;
+    String node = "preferencesValueStoreTest";
+
+    public void setUp() throws Exception
+    {
+        tearDown();
+        store = new PreferencesValueStore(node);
+    }
+
+    public void tearDown() throws Exception
+    {
+        Preferences.userRoot().node(node).removeNode();
+    }
+
+    public void testLongKeysAndValues()
+    {
+        String longKey = repeat('k', 200);
+        String longValue = repeat('v', 20000);
+        store.writeValue(longKey, "short");
+        store.writeValue("short", longValue);
+        assertEquals("short", store.loadValue(longKey));
+        assertEquals(longValue, store.loadValue("short"));
+        assertEquals(longValue, new PreferencesValueStore(node).loadValue("short"));
+        assertNull(store.loadValue(repeat('k', 201)));
+    }
+
+    public void testReplacingChangesHowValuesAreKept() throws Exception
+    {
+        store.writeValue("key", repeat('a', 30000));
+        store.writeValue("key", repeat('b', 10000));
+        assertEquals(repeat('b', 10000), store.loadValue("key"));
+        store.writeValue("key", "small");
+        assertEquals("small", store.loadValue("key"));
+        assertEquals(Arrays.asList("key"),
+                Arrays.asList(Preferences.userRoot().node(node).keys()));
+    }
+
+    public void testScanAndRemove() throws Exception
+    {
+        String longKey = "b" + repeat('x', 100);
+        WriteBatch batch = new WriteBatch();
+        batch.put("a", "1");
+        batch.put(longKey, repeat('2', 9000));
+        batch.put("c", "3");
+        store.writeValues(batch);
+        assertEquals(Arrays.asList("a", longKey, "c"), keys(store.scan(null, null)));
+        assertEquals(Arrays.asList(longKey), keys(store.scan("b", "c")));
+        assertEquals(repeat('2', 9000), store.scan("b", "c").next().getValue());
+        batch = new WriteBatch();
+        batch.removeRange("b", "c");
+        store.writeValues(batch);
+        assertNull(store.loadValue(longKey));
+        assertEquals(Arrays.asList("a", "c"),
+                Arrays.asList(Preferences.userRoot().node(node).keys()));
+    }
+
+    public void testShortKeysMarkSpilledValues() throws Exception
+    {
+        Preferences preferences = Preferences.userRoot().node(node);
+        store.writeValue("short", repeat('v', 20000));
+        store.writeValue("marker", PreferencesValueStore.SPILLED);
+        assertEquals(PreferencesValueStore.SPILLED, preferences.get("short", null));
+        assertEquals(Arrays.asList("marker", "short"), keys(store.scan(null, null)));
+        assertEquals(PreferencesValueStore.SPILLED, store.loadValue("marker"));
+        assertNull(store.loadValue("missing"));
+        WriteBatch batch = new WriteBatch();
+        batch.remove("short");
+        batch.remove("marker");
+        store.writeValues(batch);
+        assertNull(store.loadValue("short"));
+        assertEquals(0, preferences.keys().length);
+    }
+
+    private static List<String> keys(Iterator<Map.Entry<String, String>> it)
+    {
+        List<String> keys = new ArrayList<String>();
+        while (it.hasNext())
+        {
+            keys.add(it.next().getKey());
+        }
+        return keys;
+    }
+
+    static String repeat(char c, int length)
+    {
+        char[] chars = new char[length];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+public class QueryTest extends StoreTestCase
+{
+    private QuickDataStore store;
+
+    public QueryTest()
+    {
+        super("queryTest");
+    }
+
+    public void setUp()
+    {
+        deleteFiles();
+        store = new QuickDataStore(open());
+        List<Foo> people = new ArrayList<Foo>();
+        people.add(new Foo(25, "Ann", true, 1.5));
+        people.add(new Foo(31, "Bob", false, 2.0));
+        people.add(new Foo(40, "Cy", true, 2.5));
+        people.add(new Foo(52, "Dee", true, -1));
+        store.save("people", people);
+    }
+
+    public void testComparisons()
+    {
+        assertEquals(names("Cy", "Dee"), store.query("people",
+                FieldFilter.gt("Age", 30).and(FieldFilter.eq("Active", true))));
+        assertEquals(names("Ann", "Dee"), store.query("people",
+                FieldFilter.lt("Age", 30).or(FieldFilter.lt("Value", 0))));
+        assertEquals(names("Bob", "Cy"), store.query("people",
+                FieldFilter.ge("Value", 2).and(FieldFilter.le("Value", 2.5))));
+        assertEquals(names("Ann", "Cy", "Dee"), store.query("people",
+                FieldFilter.ne("Name", "Bob")));
+    }
+
+    public void testOnlyMatchesAreCreated()
+    {
+        List<Counted> list = new ArrayList<Counted>();
+        for (int i = 0; i < 100; i++)
+        {
+            Counted c = new Counted();
+            c.setNumber(i);
+            list.add(c);
+        }
+        store.save("counted", list);
+        Counted.created = 0;
+        List<Object> found = store.query("counted", FieldFilter.ge("Number", 95));
+        assertEquals(5, found.size());
+        assertEquals(5, Counted.created);
+        assertEquals(95, ((Counted) found.get(0)).getNumber());
+    }
+
+    public void testMismatchedTypesDoNotMatch()
+    {
+        assertTrue(store.query("people", FieldFilter.eq("Age", "25")).isEmpty());
+        assertTrue(store.query("people", FieldFilter.gt("Missing", 1)).isEmpty());
+    }
+
+    public void testMissingKeyAndOtherValues()
+    {
+        assertTrue(store.query("nothing", FieldFilter.eq("Age", 1)).isEmpty());
+        store.save("numbers", Arrays.asList(1, 2, 3));
+        assertTrue(store.query("numbers", FieldFilter.eq("Age", 1)).isEmpty());
+        store.save("single", new Foo(25, "Ann", true, 1.5));
+        try
+        {
+            store.query("single", FieldFilter.eq("Age", 25));
+            fail("Expected not a list");
+        } catch (QDSException e)
+        {
+            // Expected
+        }
+    }
+
+    private static List<String> names(String... names)
+    {
+        return Arrays.asList(names);
+    }
+
+    private static void assertEquals(List<String> names, List<Object> found)
+    {
+        List<String> foundNames = new ArrayList<String>();
+        for (Object o : found)
+        {
+            foundNames.add(((Foo) o).getName());
+        }
+        assertEquals(names, foundNames);
+    }
+
+    public static class Counted
+    {
+        static int created;
+        private int number;
+
+        public Counted()
+        {
+            created++;
+        }
+
+        public int getNumber()
+        {
+            return number;
+        }
+
+        public void setNumber(int number)
+        {
+            this.number = number;
+        }
+    }
+}
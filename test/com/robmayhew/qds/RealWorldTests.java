@@ -1,11 +1,153 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
 package com.robmayhew.qds;
 
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
- * Created with IntelliJ IDEA.
- * User: rob
- * Date: 12-09-08
- * Time: 2:00 PM
- * To change this template use File | Settings | File Templates.
+ * Record a trace of an application's calls and replay it against a store
  */
-public class RealWorldTests {
+public class RealWorldTests extends StoreTestCase
+{
+    private FileValueStore files;
+    private QuickDataStore store;
+
+    public RealWorldTests()
+    {
+        super("realWorldTests");
+    }
+
+    public void setUp()
+    {
+        deleteFiles();
+        files = open();
+        store = new QuickDataStore(files);
+    }
+
+    private String record() throws Exception
+    {
+        StringWriter out = new StringWriter();
+        TraceRecorder recorder = new TraceRecorder(store, out);
+        for (int i = 0; i < 20; i++)
+        {
+            recorder.save("user:" + i, new Foo(i, "name" + i, i % 2 == 0, i / 2.0));
+            assertNotNull(recorder.load("user:" + i / 2));
+        }
+        recorder.save("count", 20);
+        recorder.delete("user:0");
+        assertNull(recorder.load("user:0"));
+        recorder.close();
+        return out.toString();
+    }
+
+    private static List<TraceCall> calls(String trace) throws Exception
+    {
+        BufferedReader reader = new BufferedReader(new StringReader(trace));
+        assertEquals(TraceCall.HEADER, reader.readLine());
+        List<TraceCall> calls = new ArrayList<TraceCall>();
+        String line;
+        while ((line = reader.readLine()) != null)
+        {
+            calls.add(TraceCall.decode(line));
+        }
+        return calls;
+    }
+
+    public void testRecord() throws Exception
+    {
+        String trace = record();
+        assertFalse(trace.contains("user"));
+        List<TraceCall> calls = calls(trace);
+        assertEquals(43, calls.size());
+        TraceCall save = calls.get(0);
+        assertEquals(TraceCall.SAVE, save.op);
+        assertEquals(TraceCall.hash("user:0"), save.keyHash);
+        assertEquals(store.toJson("user:0", new Foo(0, "name0", true, 0.0)).length(), save.size);
+        TraceCall load = calls.get(1);
+        assertEquals(TraceCall.LOAD, load.op);
+        assertEquals(save.size, load.size);
+        assertFalse(load.offsetNanos < save.offsetNanos);
+        assertEquals(TraceCall.DELETE, calls.get(41).op);
+        assertEquals(0, calls.get(42).size);
+        for (int i = 1; i < calls.size(); i++)
+        {
+            assertFalse(calls.get(i).offsetNanos < calls.get(i - 1).offsetNanos);
+        }
+    }
+
+    public void testDecode()
+    {
+        assertNull(TraceCall.decode("# a comment"));
+        assertNull(TraceCall.decode(""));
+        TraceCall call = TraceCall.decode("15 L ffffffffffffffff 120 7");
+        assertEquals(15000, call.offsetNanos);
+        assertEquals(-1L, call.keyHash);
+        assertEquals(120, call.size);
+        assertEquals(7000, call.durationNanos);
+        assertEquals(call.encode(), TraceCall.decode(call.encode()).encode());
+        try
+        {
+            TraceCall.decode("15 X 1 2");
+            fail("Bad lines are refused");
+        } catch (QDSException e)
+        {
+            // expected
+        }
+    }
+
+    public void testReplay() throws Exception
+    {
+        String trace = record();
+        files.close();
+        files = open(new FileValueStore(filePath + "Replay"));
+        store = new QuickDataStore(files);
+        TraceReplayer.Result result = new TraceReplayer(store).replay(new StringReader(trace), 2.0, 4);
+        assertEquals(43, result.getCalls());
+        assertEquals(0, result.getErrors());
+        assertEquals(21, result.getSaves().getCount());
+        assertEquals(21, result.getLoads().getCount());
+        assertEquals(1, result.getDeletes().getCount());
+        assertEquals(43, result.getServiceTimes().getCount());
+        assertTrue(result.getLoads().getPercentile(99.9) > 0);
+        assertFalse(result.getActualNanos() < result.getIntendedNanos());
+        assertTrue(result.toString().startsWith("43 calls"));
+
+        // Threads may run calls out of order, one thread runs them in turn
+        store = new QuickDataStore(open(new FileValueStore(filePath + "InOrder")));
+        new TraceReplayer(store).replay(new StringReader(trace), 2.0, 1);
+        List<TraceCall> calls = calls(trace);
+        assertNotNull(store.load(calls.get(2).replayKey()));
+        assertNull(store.load(calls.get(41).replayKey()));
+    }
+
+    public void testResponseTimeIncludesWaiting() throws Exception
+    {
+        StringBuilder trace = new StringBuilder(TraceCall.HEADER + "\n");
+        for (int i = 0; i < 50; i++)
+        {
+            trace.append(new TraceCall(0, TraceCall.SAVE, i, 200, 0).encode()).append('\n');
+        }
+        TraceReplayer.Result result = new TraceReplayer(store).replay(new StringReader(trace.toString()), 1, 1);
+        assertEquals(50, result.getSaves().getCount());
+        assertTrue(result.getSaves().getMax() > result.getServiceTimes().getMax());
+        assertTrue(result.getSaves().getTotalNanos() > result.getServiceTimes().getTotalNanos());
+    }
 }
@@ -16,30 +16,24 @@
  */
 package com.robmayhew.qds;
 
-import junit.framework.TestCase;
-
-import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
 
-public class SaveListTest extends TestCase
+public class SaveListTest extends StoreTestCase
 {
     private QuickDataStore store;
-    String filePath = "listTest";
     
-    public void setUp()
-    {        
-        store = new QuickDataStore(new FileValueStore(filePath));
-        File testFile = new File(filePath);
-        testFile.delete();
+    public SaveListTest()
+    {
+        super("listTest");
     }
-    
-    public void tearDown()
+
+    public void setUp()
     {
-        File testFile = new File(filePath);
-        testFile.delete();        
-    } 
+        deleteFiles();
+        store = new QuickDataStore(open());
+    }
     
     public void testSaveStringList() throws Exception
     {
@@ -0,0 +1,164 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+public class ScanTest extends StoreTestCase
+{
+    private FileValueStore fileStore;
+    private QuickDataStore store;
+
+    public ScanTest()
+    {
+        super("scanTest");
+    }
+
+    public void setUp()
+    {
+        deleteFiles();
+        fileStore = open();
+        store = new QuickDataStore(fileStore);
+        store.save("user:41:name", "Ann");
+        store.save("user:42:name", "Bob");
+        store.save("user:42:age", 42);
+        store.save("user:420:name", "Cy");
+        store.save("other", "x");
+    }
+
+    public void testKeysWithPrefix()
+    {
+        assertEquals(Arrays.asList("user:42:age", "user:42:name"),
+                toList(store.keys("user:42:")));
+        assertEquals(Arrays.asList("user:420:name", "user:42:age", "user:42:name"),
+                toList(store.keys("user:42")));
+        assertEquals(5, toList(store.keys("")).size());
+        assertTrue(toList(store.keys("nothing")).isEmpty());
+    }
+
+    public void testScanRange()
+    {
+        List<String> keys = new ArrayList<String>();
+        List<Object> values = new ArrayList<Object>();
+        for (Map.Entry<String, Object> e : store.scan("user:41:", "user:42:name"))
+        {
+            keys.add(e.getKey());
+            values.add(e.getValue());
+        }
+        assertEquals(Arrays.asList("user:41:name", "user:420:name", "user:42:age"), keys);
+        assertEquals(Arrays.<Object>asList("Ann", "Cy", 42), values);
+    }
+
+    public void testScanSeesCheckpointedValues()
+    {
+        fileStore.checkpoint();
+        store.save("user:42:name", "Bobby");
+        List<Object> values = new ArrayList<Object>();
+        for (Map.Entry<String, Object> e : store.scan("user:42:", "user:43"))
+        {
+            values.add(e.getValue());
+        }
+        assertEquals(Arrays.<Object>asList(42, "Bobby"), values);
+    }
+
+    public void testPreferencesKeys()
+    {
+        QuickDataStore prefs = new QuickDataStore(
+                new PreferencesValueStore(ScanTest.class.getSimpleName()));
+        prefs.save("b", 2);
+        prefs.save("a", 1);
+        prefs.save("c", 3);
+        List<Object> values = new ArrayList<Object>();
+        for (Map.Entry<String, Object> e : prefs.scan("a", "c"))
+        {
+            values.add(e.getValue());
+        }
+        assertEquals(Arrays.<Object>asList(1, 2), values);
+    }
+
+    public void testStoreWithoutKeyOrder()
+    {
+        final Map<String, String> values = new HashMap<String, String>();
+        QuickDataStore plain = new QuickDataStore(new ValueStore()
+        {
+            public void writeValue(String key, String value)
+            {
+                values.put(key, value);
+            }
+
+            public String loadValue(String key)
+            {
+                return values.get(key);
+            }
+        });
+        plain.save("a", 1);
+        plain.save("b", 2);
+        assertEquals(1, plain.load("a"));
+        assertEquals(2, plain.load("b"));
+        assertFalse(plain.keys("").iterator().hasNext());
+        try
+        {
+            plain.delete("a");
+            fail("A plain ValueStore cannot remove keys");
+        } catch (QDSException e)
+        {
+            assertTrue(e.getMessage().contains("does not support removing keys"));
+        }
+        assertEquals(1, plain.load("a"));
+    }
+
+    public void testStoreThatRemovesKeys()
+    {
+        final Map<String, String> values = new HashMap<String, String>();
+        QuickDataStore removable = new QuickDataStore(new AbstractValueStore()
+        {
+            public void writeValue(String key, String value)
+            {
+                values.put(key, value);
+            }
+
+            public String loadValue(String key)
+            {
+                return values.get(key);
+            }
+
+            protected void removeValue(String key)
+            {
+                values.remove(key);
+            }
+        });
+        removable.save("a", 1);
+        removable.delete("a");
+        assertNull(removable.load("a"));
+        assertFalse(values.containsKey("a"));
+    }
+
+    private static List<String> toList(Iterable<String> keys)
+    {
+        List<String> list = new ArrayList<String>();
+        for (String key : keys)
+        {
+            list.add(key);
+        }
+        return list;
+    }
+}
@@ -16,27 +16,19 @@
  */
 package com.robmayhew.qds;
 
-import junit.framework.TestCase;
-
-import java.io.File;
-
-
-public class SimplePrimitiveTest extends TestCase
+public class SimplePrimitiveTest extends StoreTestCase
 {
     
     private QuickDataStore store;
-    String filePath = "stringTest";
-    public void setUp()
-    {        
-        store = new QuickDataStore(new FileValueStore(filePath));
-        File testFile = new File(filePath);
-        testFile.delete();
+    public SimplePrimitiveTest()
+    {
+        super("stringTest");
     }
-    
-    public void tearDown()
+
+    public void setUp()
     {
-        File testFile = new File(filePath);
-        testFile.delete();        
+        deleteFiles();
+        store = new QuickDataStore(open());
     }
     
     
@@ -0,0 +1,182 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+
+public class StorageReportTest extends StoreTestCase
+{
+    private FileValueStore files;
+    private QuickDataStore store;
+
+    public StorageReportTest()
+    {
+        super("storageReportTest");
+    }
+
+    public void setUp()
+    {
+        deleteFiles();
+        files = open();
+        store = new QuickDataStore(files);
+        store.save("user:1", new Foo(25, "Ann", true, 1.5));
+        store.save("user:2", new Foo(31, "Bob", false, 2.0));
+        store.save("count", 3);
+        store.save("log/1", "started");
+    }
+
+    public void testCountedByScan()
+    {
+        StorageReport report = store.storageReport();
+        assertEquals(4, report.getKeyCount());
+        assertEquals(2, report.getByPrefix().get("user:").getCount());
+        assertEquals(1, report.getByPrefix().get("log/").getCount());
+        assertEquals(1, report.getByPrefix().get("").getCount());
+        assertEquals(2, report.getByClass().get(Foo.class.getName()).getCount());
+        assertEquals(1, report.getByClass().get("java.lang.String").getCount());
+        assertEquals(2, report.getByType().get("object").getCount());
+        assertEquals(2, report.getByType().get("primitive").getCount());
+        assertEquals(report.getBytes(), report.getByPrefix().get("user:").getBytes()
+                + report.getByPrefix().get("log/").getBytes()
+                + report.getByPrefix().get("").getBytes());
+        assertEquals(0, report.getDeadSpaceRatio(), 0);
+    }
+
+    public void testKeptUpToDate()
+    {
+        store.createStorageReport();
+        List<Integer> big = new ArrayList<Integer>();
+        for (int i = 0; i < 1000; i++)
+        {
+            big.add(i);
+        }
+        store.save("user:3", big);
+        store.save("user:1", new Foo(26, "Ann", true, 1.5));
+        store.delete("log/1");
+        store.save("count", 4, 60000);
+        StorageReport report = store.storageReport();
+        assertCounted(report);
+
+        StorageReport.Usage users = report.getByPrefix().get("user:");
+        assertEquals(3, users.getCount());
+        assertEquals("user:3", users.getLargestKey());
+        assertTrue(users.getLargestBytes() > users.getBytes() / 2);
+        assertEquals("user:3", report.getByClass().get("java.util.List<java.lang.Integer>")
+                .getLargestKey());
+        assertNull(report.getByPrefix().get("log/"));
+        assertNull(report.getByClass().get("java.lang.String"));
+        assertEquals("java.util.List<java.lang.Integer>",
+                report.getByClass().keySet().iterator().next());
+
+        store.deletePrefix("user:");
+        report = store.storageReport();
+        assertEquals(1, report.getKeyCount());
+        assertNull(report.getByPrefix().get("user:"));
+    }
+
+    public void testKeptByAnotherStore()
+    {
+        store.createStorageReport();
+        files.close();
+        files = open();
+        store = new QuickDataStore(files);
+        store.save("user:4", new Foo(1, "Di", true, 0));
+        assertEquals(3, store.storageReport().getByPrefix().get("user:").getCount());
+    }
+
+    public void testDeadSpace()
+    {
+        files.setCompactionPolicy(null);
+        files.checkpoint();
+        for (int i = 0; i < 10; i++)
+        {
+            store.save("user:1", new Foo(i, "Ann", true, 1.5));
+            files.checkpoint();
+        }
+        double dead = store.storageReport().getDeadSpaceRatio();
+        assertTrue(dead > 0 && dead < 1);
+    }
+
+    public void testCommandLine()
+    {
+        files.close();
+        PrintStream out = System.out;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(printed));
+        try
+        {
+            StorageReport.main(new String[]{filePath, "1"});
+        } finally
+        {
+            System.setOut(out);
+        }
+        String report = printed.toString();
+        assertTrue(report, report.startsWith("4 keys "));
+        assertTrue(report, report.contains("user:"));
+        assertTrue(report, report.contains("... 2 more"));
+        files = null;
+    }
+
+    /**
+     * Check a kept report against one counted from the saved values
+     */
+    private void assertCounted(StorageReport report)
+    {
+        Map<String, StorageReport.Usage> counted = new HashMap<String, StorageReport.Usage>();
+        Iterator<Map.Entry<String, String>> it = files.scan(null, null);
+        while (it.hasNext())
+        {
+            Map.Entry<String, String> e = it.next();
+            if (e.getKey().startsWith(QuickDataStore.RESERVED_PREFIX))
+                continue;
+            for (String usageKey : StorageAnalytics.usageKeys(e.getKey(), e.getValue()))
+            {
+                if (!counted.containsKey(usageKey))
+                    counted.put(usageKey, new StorageReport.Usage());
+                counted.get(usageKey).add(e.getKey(),
+                        StorageAnalytics.sizeOf(e.getKey(), e.getValue()));
+            }
+        }
+        assertUsages(counted, StorageAnalytics.PREFIX, report.getByPrefix());
+        assertUsages(counted, StorageAnalytics.CLASS, report.getByClass());
+        assertUsages(counted, StorageAnalytics.TYPE, report.getByType());
+    }
+
+    private static void assertUsages(Map<String, StorageReport.Usage> counted, String prefix,
+                                     Map<String, StorageReport.Usage> kept)
+    {
+        int found = 0;
+        for (Map.Entry<String, StorageReport.Usage> e : counted.entrySet())
+        {
+            if (!e.getKey().startsWith(prefix))
+                continue;
+            StorageReport.Usage usage = kept.get(e.getKey().substring(prefix.length()));
+            assertNotNull(e.getKey(), usage);
+            assertEquals(e.getKey(), e.getValue().getCount(), usage.getCount());
+            assertEquals(e.getKey(), e.getValue().getBytes(), usage.getBytes());
+            found++;
+        }
+        assertEquals(found, kept.size());
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Base for tests that keep their data in files named after {@link #filePath}.
+ * Stores opened through {@link #open()} are closed in {@link #tearDown()},
+ * which then deletes the data file and every file kept beside it, including
+ * the log, hints, segments and lock file.
+ */
+public abstract class StoreTestCase extends TestCase
+{
+    final String filePath;
+    private final List<FileValueStore> stores = new ArrayList<FileValueStore>();
+
+    protected StoreTestCase(String filePath)
+    {
+        this.filePath = filePath;
+    }
+
+    /**
+     * Opens a store on the test file that is closed when the test ends
+     */
+    FileValueStore open()
+    {
+        return open(new FileValueStore(filePath));
+    }
+
+    /**
+     * Closes the store when the test ends
+     */
+    FileValueStore open(FileValueStore store)
+    {
+        synchronized (stores)
+        {
+            stores.add(store);
+        }
+        return store;
+    }
+
+    /**
+     * Deletes every file whose name starts with the test file's name
+     */
+    void deleteFiles()
+    {
+        File[] files = new File(".").listFiles();
+        for (File f : files)
+        {
+            if (f.getName().startsWith(filePath))
+                f.delete();
+        }
+    }
+
+    public void tearDown()
+    {
+        synchronized (stores)
+        {
+            for (FileValueStore store : stores)
+            {
+                store.close();
+            }
+            stores.clear();
+        }
+        deleteFiles();
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+
+public class TextIndexTest extends StoreTestCase
+{
+    private QuickDataStore store;
+
+    public TextIndexTest()
+    {
+        super("textIndexTest");
+    }
+
+    public void setUp()
+    {
+        deleteFiles();
+        store = new QuickDataStore(open());
+        store.save("a", new Foo(1, "Ann Marie Smith", true, 0));
+        store.createTextIndex(Foo.class, "Name");
+        store.save("b", new Foo(2, "Bob Smith", true, 0));
+        store.save("c", new Foo(3, "smithers, Marie-Ann", true, 0));
+    }
+
+    public void testSearch()
+    {
+        assertEquals(Arrays.asList("a", "b"), store.search(Foo.class, "Name", "SMITH"));
+        assertEquals(Arrays.asList("a", "c"), store.search(Foo.class, "Name", "marie ann"));
+        assertTrue(store.search(Foo.class, "Name", "bob marie").isEmpty());
+        assertTrue(store.search(Foo.class, "Name", "").isEmpty());
+    }
+
+    public void testSearchPrefix()
+    {
+        assertEquals(Arrays.asList("a", "b", "c"), store.searchPrefix(Foo.class, "Name", "Smi"));
+        assertEquals(Arrays.asList("c"), store.searchPrefix(Foo.class, "Name", "smithe"));
+        assertTrue(store.searchPrefix(Foo.class, "Name", "z").isEmpty());
+    }
+
+    public void testSaveUpdatesBeforeAndAfterMerge()
+    {
+        store.save("b", new Foo(2, "Robert Jones", true, 0));
+        store.save("a", "not a foo");
+        assertEquals(Arrays.asList(), store.search(Foo.class, "Name", "smith"));
+        assertEquals(Arrays.asList("b"), store.search(Foo.class, "Name", "jones"));
+        store.mergeTextIndexes();
+        assertEquals(Arrays.asList(), store.search(Foo.class, "Name", "smith"));
+        assertEquals(Arrays.asList("b"), store.search(Foo.class, "Name", "jones"));
+        assertEquals(Arrays.asList("c"), store.searchPrefix(Foo.class, "Name", "smi"));
+        store.save("a", new Foo(1, "Jones", true, 0));
+        assertEquals(Arrays.asList("a", "b"), store.search(Foo.class, "Name", "jones"));
+    }
+
+    public void testFailedBackgroundMergeIsReported() throws Exception
+    {
+        final FileValueStore files = open(new FileValueStore(filePath + "Failing"));
+        final boolean[] broken = new boolean[1];
+        QuickDataStore failing = new QuickDataStore(new OrderedValueStore()
+        {
+            public void writeValue(String key, String value) throws QDSException
+            {
+                files.writeValue(key, value);
+            }
+
+            public void writeValues(WriteBatch batch) throws QDSException
+            {
+                files.writeValues(batch);
+            }
+
+            public String loadValue(String key)
+            {
+                return files.loadValue(key);
+            }
+
+            public Iterator<Map.Entry<String, String>> scan(String fromKey, String toKey)
+            {
+                if (broken[0])
+                    throw new QDSException("Disk gone");
+                return files.scan(fromKey, toKey);
+            }
+        });
+        final List<StoreEvent> failures = Collections.synchronizedList(new ArrayList<StoreEvent>());
+        StoreEventListener listener = new StoreEventListener()
+        {
+            public void event(StoreEvent event)
+            {
+                if (event.getType() == StoreEvent.Type.TEXT_MERGE_FAILED)
+                    failures.add(event);
+            }
+        };
+        final List<LogRecord> logged = Collections.synchronizedList(new ArrayList<LogRecord>());
+        Handler handler = new Handler()
+        {
+            public void publish(LogRecord record)
+            {
+                logged.add(record);
+            }
+
+            public void flush()
+            {
+            }
+
+            public void close()
+            {
+            }
+        };
+        Logger logger = Logger.getLogger(QuickDataStore.class.getName());
+        logger.addHandler(handler);
+        logger.setUseParentHandlers(false);
+        StoreEvent.addListener(listener);
+        try
+        {
+            failing.createTextIndex(Foo.class, "Name");
+            broken[0] = true;
+            for (int i = 0; i < 1000; i++)
+            {
+                failing.save("k" + i, new Foo(i, "word" + i, true, 0));
+            }
+            for (int i = 0; i < 200 && failures.isEmpty(); i++)
+            {
+                Thread.sleep(10);
+            }
+        } finally
+        {
+            StoreEvent.removeListener(listener);
+            logger.removeHandler(handler);
+            logger.setUseParentHandlers(true);
+        }
+        assertEquals(1, failures.size());
+        assertEquals("Disk gone", failures.get(0).getError().getMessage());
+        assertEquals(1, logged.size());
+        assertSame(failures.get(0).getError(), logged.get(0).getThrown());
+        assertEquals(1, failing.metrics().getBackgroundFailures());
+    }
+
+    public void testPreferencesIndex() throws Exception
+    {
+        String node = "textIndexTest";
+        QuickDataStore prefs = new QuickDataStore(new PreferencesValueStore(node));
+        try
+        {
+            String word = "pneumonoultramicroscopicsilicovolcanoconiosis";
+            String key = "a-fairly-long-key-for-a-person-saved-in-the-preferences-store";
+            prefs.createTextIndex(Foo.class, "Name");
+            prefs.save(key + 1, new Foo(1, "Ann " + word, true, 0));
+            prefs.save(key + 2, new Foo(2, "Bob " + word, true, 0));
+            assertEquals(Arrays.asList(key + 1, key + 2), prefs.search(Foo.class, "Name", word));
+            prefs.mergeTextIndexes();
+            assertEquals(Arrays.asList(key + 2), prefs.search(Foo.class, "Name", "bob " + word));
+            assertEquals(Arrays.asList(key + 1, key + 2), prefs.searchPrefix(Foo.class, "Name", "pneumono"));
+        } finally
+        {
+            java.util.prefs.Preferences.userRoot().node(node).removeNode();
+        }
+    }
+
+    public void testManySavesAreMergedInTheBackground() throws Exception
+    {
+        for (int i = 0; i < 600; i++)
+        {
+            store.save("k" + i, new Foo(i, "common word" + (i % 10), true, 0));
+        }
+        assertEquals(600, store.search(Foo.class, "Name", "common").size());
+        assertEquals(60, store.search(Foo.class, "Name", "word3").size());
+        QuickDataStore reopened = new QuickDataStore(open());
+        assertEquals(600, reopened.search(Foo.class, "Name", "common").size());
+        assertEquals(Arrays.asList("a", "b"), reopened.search(Foo.class, "Name", "smith"));
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.util.Iterator;
+import java.util.Map;
+
+
+public class TransactionTest extends StoreTestCase
+{
+    private QuickDataStore store;
+    private int commits;
+
+    public TransactionTest()
+    {
+        super("transactionTest");
+    }
+
+    public void setUp()
+    {
+        deleteFiles();
+        final FileValueStore fileStore = open();
+        store = new QuickDataStore(new OrderedValueStore()
+        {
+            public void writeValue(String key, String value)
+            {
+                commits++;
+                fileStore.writeValue(key, value);
+            }
+
+            public void writeValues(WriteBatch batch)
+            {
+                commits++;
+                fileStore.writeValues(batch);
+            }
+
+            public String loadValue(String key)
+            {
+                return fileStore.loadValue(key);
+            }
+
+            public Iterator<Map.Entry<String, String>> scan(String fromKey, String toKey)
+            {
+                return fileStore.scan(fromKey, toKey);
+            }
+        });
+    }
+
+    public void testSavesAreCommittedTogether()
+    {
+        store.save("count", 1);
+        store.transaction(new TransactionWork()
+        {
+            public void run(Transaction tx)
+            {
+                int count = (Integer) tx.load("count");
+                tx.save("count", count + 1);
+                tx.save("foo", new Foo(3, "Three", true, 3.0));
+                assertEquals(count + 1, tx.load("count"));
+                assertNull(store.load("foo"));
+            }
+        });
+        assertEquals(2, commits);
+        assertEquals(2, store.load("count"));
+        assertEquals(new Foo(3, "Three", true, 3.0), store.load("foo"));
+    }
+
+    public void testFailedWorkSavesNothing()
+    {
+        store.save("count", 1);
+        try
+        {
+            store.transaction(new TransactionWork()
+            {
+                public void run(Transaction tx) throws Exception
+                {
+                    tx.save("count", 2);
+                    throw new Exception("failed");
+                }
+            });
+            fail();
+        } catch (QDSException e)
+        {
+            assertEquals("failed", e.getCause().getMessage());
+        }
+        assertEquals(1, commits);
+        assertEquals(1, store.load("count"));
+    }
+}
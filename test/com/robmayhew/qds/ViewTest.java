@@ -0,0 +1,96 @@
+/**
+ *
+ * Copyright 2013 Rob Mayhew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.robmayhew.qds;
+
+import java.util.Arrays;
+
+
+public class ViewTest extends StoreTestCase
+{
+    private QuickDataStore store;
+
+    public ViewTest()
+    {
+        super("viewTest");
+    }
+
+    public void setUp()
+    {
+        deleteFiles();
+        store = new QuickDataStore(open());
+        store.save("orders/1", new Foo(25, "Ann", true, 1.5));
+        store.save("orders/2", new Foo(31, "Bob", false, 2.0));
+        store.save("other", new Foo(40, "Cy", true, 100));
+    }
+
+    public void testCreatedFromExistingValues()
+    {
+        store.createView("orders", "orders/", "Value");
+        assertEquals(3.5, store.view("orders", Aggregate.SUM), 0);
+        assertEquals(2.0, store.view("orders", Aggregate.COUNT), 0);
+        assertEquals(1.5, store.view("orders", Aggregate.MIN), 0);
+    }
+
+    public void testKeptUpToDate()
+    {
+        store.createView("orders", "orders/", "Value");
+        store.save("orders/3", Arrays.asList(new Foo(1, "A", true, 3), new Foo(2, "B", true, 4)));
+        store.save("orders/2", new Foo(31, "Bob", false, 0.5));
+        store.save("other", new Foo(40, "Cy", true, 1000));
+        assertEquals(9.0, store.view("orders", Aggregate.SUM), 0);
+        assertEquals(4.0, store.view("orders", Aggregate.COUNT), 0);
+        assertEquals(0.5, store.view("orders", Aggregate.MIN), 0);
+        assertEquals(4.0, store.view("orders", Aggregate.MAX), 0);
+        store.save("orders/3", new Foo(1, "A", true, 2));
+        assertEquals(2.0, store.view("orders", Aggregate.MAX), 0);
+        assertEquals(4.0, store.view("orders", Aggregate.SUM), 0);
+    }
+
+    public void testSavedWithTheStore()
+    {
+        store.createView("orders", "orders/", "Value");
+        store.createView("ages", "orders/", "Age");
+        store = new QuickDataStore(open());
+        store.save("orders/4", new Foo(4, "Dee", true, 10));
+        assertEquals(13.5, store.view("orders", Aggregate.SUM), 0);
+        assertEquals(60.0, store.view("ages", Aggregate.SUM), 0);
+        store.createView("ages", "", "Age");
+        assertEquals(100.0, store.view("ages", Aggregate.SUM), 0);
+    }
+
+    public void testTransactionsAndMissingViews()
+    {
+        store.createView("numbers", "count", null);
+        store.transaction(new TransactionWork()
+        {
+            public void run(Transaction tx)
+            {
+                tx.save("count", 5);
+                tx.save("counts", Arrays.asList(1, 2));
+            }
+        });
+        assertEquals(8.0, store.view("numbers", Aggregate.SUM), 0);
+        try
+        {
+            store.view("missing", Aggregate.SUM);
+            fail("Expected no view");
+        } catch (QDSException e)
+        {
+            // Expected
+        }
+    }
+}